@@ -0,0 +1,137 @@
+package com.hexadevlabs.simplefsm;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Content addressed directory of blobs, one file per blob named after its SHA-256.
+ * ProcessingData.toJson(BlobStore) puts the blobs of the data here and only writes
+ * their hash, fromJson(String, BlobStore) maps them back from here.
+ * <p>
+ * Putting the same bytes twice writes them once. Nothing is ever removed, delete()
+ * blobs no longer referred to by any stored data.
+ * <p>
+ * JSON may also refer to a region of any file, so reading it only maps files in the
+ * directory of the store and the ones added with allowFilesIn().
+ */
+public class BlobStore {
+
+    private final Path directory;
+    // Real paths of the directories files are mapped from, the store's own first.
+    private final List<Path> allowed = new CopyOnWriteArrayList<>();
+
+    public BlobStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory).toAbsolutePath();
+        allowed.add(this.directory.toRealPath());
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Allows blobs read from JSON to map files in the directory and below it, and
+     * keeps blobs mapped from there written as file references.
+     */
+    public BlobStore allowFilesIn(Path directory) throws IOException {
+        allowed.add(directory.toRealPath());
+        return this;
+    }
+
+    /**
+     * @return True if the file exists in one of the allowed directories.
+     */
+    public boolean allows(Path file) {
+        try {
+            return isAllowed(file.toRealPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean isAllowed(Path realFile) {
+        for (Path dir : allowed) {
+            if (realFile.startsWith(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Maps a region of a file in one of the allowed directories.
+     *
+     * @throws IllegalArgumentException If the file is anywhere else.
+     */
+    BlobValue map(Path file, long offset, long length) throws IOException {
+        Path real = file.toRealPath();
+        if (!isAllowed(real)) {
+            throw new IllegalArgumentException("Blob file " + file + " is outside of the directories the BlobStore allows");
+        }
+        return BlobValue.map(real, offset, length);
+    }
+
+    /**
+     * Writes the blob unless a blob with the same bytes is stored already.
+     *
+     * @return The stored blob, mapped from its file.
+     */
+    public BlobValue put(BlobValue blob) throws IOException {
+        String sha = blob.sha256();
+        Path file = file(sha);
+        if (blob.getPath() != null && blob.getOffset() == 0 && file.equals(blob.getPath())) {
+            return blob;
+        }
+        if (!Files.exists(file)) {
+            // Written under a temporary name first, so a blob file is either complete or missing.
+            Path temp = Files.createTempFile(directory, sha, ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    blob.writeTo(channel);
+                }
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // Stored by another thread meanwhile.
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return get(sha);
+    }
+
+    /**
+     * @throws NoSuchFileException If no blob with the hash is stored.
+     */
+    public BlobValue get(String sha256) throws IOException {
+        Path file = file(sha256);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return BlobValue.map(channel, file, 0, channel.size(), sha256);
+        }
+    }
+
+    public boolean contains(String sha256) {
+        return Files.exists(file(sha256));
+    }
+
+    /**
+     * @return True if the blob was stored.
+     */
+    public boolean delete(String sha256) throws IOException {
+        return Files.deleteIfExists(file(sha256));
+    }
+
+    private Path file(String sha256) {
+        if (!sha256.matches("[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("Not a SHA-256 hash: " + sha256);
+        }
+        return directory.resolve(sha256);
+    }
+}
@@ -0,0 +1,326 @@
+package com.hexadevlabs.simplefsm;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Binary value for ProcessingData, like a document or an image, held outside the heap
+ * in a direct buffer or a memory-mapped region of a file. The bytes can't be changed,
+ * so the same BlobValue is safely shared between states and split branches.
+ * <p>
+ * In JSON a blob is written as a reference instead of its bytes, under the reserved
+ * key "@simplefsm.blob" with a version and the kind of reference:
+ * {"@simplefsm.blob":{"version":1,"kind":"path","path":..,"offset":..,"length":..}} for a
+ * region of a file, or {..,"kind":"sha256","sha256":..,"length":..} for a blob put into
+ * the BlobStore given to ProcessingData.toJson(). Only without a store a blob not backed
+ * by a file is inlined as base64. A reference to a file is only mapped back if the
+ * file is in a directory the BlobStore given to fromJson() allows, see
+ * BlobStore.allowFilesIn().
+ * <p>
+ * Java serialization works the same way: a blob mapped from a file is written as
+ * its path and region and mapped again when read, other blobs are written with
+ * their bytes.
+ */
+@JsonSerialize(using = BlobValue.Serializer.class)
+public final class BlobValue implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String JSON_KEY = "@simplefsm.blob";
+    static final int JSON_VERSION = 1;
+
+    private final transient ByteBuffer buffer;
+    private final transient Path path;
+    private final long offset;
+    private volatile String sha256;
+
+    private BlobValue(ByteBuffer buffer, Path path, long offset, String sha256) {
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.path = path;
+        this.offset = offset;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Copies the bytes into direct memory.
+     */
+    public static BlobValue copyOf(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return new BlobValue(buffer, null, 0, null);
+    }
+
+    /**
+     * Wraps the remaining bytes of the buffer without copying them. The buffer must
+     * not be changed afterwards.
+     */
+    public static BlobValue wrap(ByteBuffer buffer) {
+        return new BlobValue(buffer.slice(), null, 0, null);
+    }
+
+    /**
+     * Maps a whole file.
+     */
+    public static BlobValue map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return map(channel, file, 0, channel.size(), null);
+        }
+    }
+
+    /**
+     * Maps a region of a file. The file must stay in place for as long as the blob,
+     * or JSON referring to it, is used.
+     */
+    public static BlobValue map(Path file, long offset, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (offset < 0 || length < 0 || offset + length > channel.size()) {
+                throw new IOException("Region " + offset + "+" + length + " is outside of " + file);
+            }
+            return map(channel, file, offset, length, null);
+        }
+    }
+
+    static BlobValue map(FileChannel channel, Path file, long offset, long length, String sha256) throws IOException {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return new BlobValue(buffer, file.toAbsolutePath(), offset, sha256);
+    }
+
+    /**
+     * @return A read-only view of the bytes, positioned at the start. Each call
+     * returns a new view, so readers don't move each other's position.
+     */
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    public int size() {
+        return buffer.limit();
+    }
+
+    /**
+     * Copies the bytes onto the heap.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size()];
+        buffer().get(bytes);
+        return bytes;
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer view = buffer();
+        while (view.hasRemaining()) {
+            channel.write(view);
+        }
+    }
+
+    /**
+     * @return File the bytes are mapped from, null if they are in memory.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Hex SHA-256 of the bytes, computed on first use.
+     */
+    public String sha256() {
+        String hash = sha256;
+        if (hash == null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(buffer());
+                hash = HexFormat.of().formatHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            sha256 = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Turns the object Jackson reads for {"@simplefsm.blob":{..}} back into a BlobValue.
+     *
+     * @param store Store to look up blobs written by hash and to check files against, may be null.
+     * @throws IllegalArgumentException If the reference is malformed or its file is not allowed.
+     * @throws IllegalStateException If the reference needs a store and there is none.
+     */
+    static BlobValue fromReference(Object reference, BlobStore store) {
+        if (!(reference instanceof Map)) {
+            throw invalidReference(reference, "not an object");
+        }
+        Map<?, ?> fields = (Map<?, ?>) reference;
+        Object version = fields.get("version");
+        if (!(version instanceof Integer) || (Integer) version != JSON_VERSION) {
+            throw invalidReference(reference, "unsupported version " + version);
+        }
+        String kind = stringField(fields, "kind");
+        long length = longField(fields, "length");
+        BlobValue blob;
+        try {
+            switch (kind) {
+                case "path":
+                    String path = stringField(fields, "path");
+                    if (store == null) {
+                        throw new IllegalStateException("Blob refers to file " + path + ", pass a BlobStore allowing its directory to fromJson()");
+                    }
+                    return store.map(Paths.get(path), longField(fields, "offset"), length);
+                case "sha256":
+                    String sha = stringField(fields, "sha256");
+                    if (store == null) {
+                        throw new IllegalStateException("Blob " + sha + " was written to a BlobStore, pass it to fromJson()");
+                    }
+                    blob = store.get(sha);
+                    break;
+                case "base64":
+                    blob = copyOf(Base64.getDecoder().decode(stringField(fields, "base64")));
+                    break;
+                default:
+                    throw invalidReference(reference, "unknown kind '" + kind + "'");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (blob.size() != length) {
+            throw invalidReference(reference, "length " + length + " does not match the " + blob.size() + " bytes read");
+        }
+        return blob;
+    }
+
+    private static String stringField(Map<?, ?> fields, String name) {
+        Object value = fields.get(name);
+        if (!(value instanceof String)) {
+            throw invalidReference(fields, "'" + name + "' is not a string");
+        }
+        return (String) value;
+    }
+
+    private static long longField(Map<?, ?> fields, String name) {
+        Object value = fields.get(name);
+        if (!(value instanceof Integer || value instanceof Long) || ((Number) value).longValue() < 0) {
+            throw invalidReference(fields, "'" + name + "' is not a non-negative integer");
+        }
+        return ((Number) value).longValue();
+    }
+
+    private static IllegalArgumentException invalidReference(Object reference, String reason) {
+        return new IllegalArgumentException("Invalid blob reference " + reference + ": " + reason);
+    }
+
+    /**
+     * Compares the bytes.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BlobValue)) return false;
+        return buffer().equals(((BlobValue) o).buffer());
+    }
+
+    @Override
+    public int hashCode() {
+        return sha256().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "BlobValue(" + size() + " bytes" + (path != null ? " of " + path : "") + ")";
+    }
+
+    /**
+     * Writes the inner object of the JSON reference. With a store, a blob is put into it
+     * unless it is mapped from a file the store allows.
+     */
+    void writeReference(JsonGenerator gen, BlobStore store) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("version", JSON_VERSION);
+        if (path != null && (store == null || store.allows(path))) {
+            gen.writeStringField("kind", "path");
+            gen.writeStringField("path", path.toString());
+            gen.writeNumberField("offset", offset);
+        } else if (store != null) {
+            gen.writeStringField("kind", "sha256");
+            gen.writeStringField("sha256", store.put(this).sha256());
+        } else {
+            gen.writeStringField("kind", "base64");
+            gen.writeFieldName("base64");
+            gen.writeBinary(toByteArray());
+        }
+        gen.writeNumberField("length", size());
+        gen.writeEndObject();
+    }
+
+    private Object writeReplace() {
+        return path != null ? new SerializedForm(path.toString(), offset, size(), null) : new SerializedForm(null, 0, size(), toByteArray());
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("BlobValue is read through its serialized form.");
+    }
+
+    /**
+     * What a BlobValue is serialized as, the buffer itself can't be.
+     */
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final long offset;
+        private final long length;
+        private final byte[] bytes;
+
+        SerializedForm(String path, long offset, long length, byte[] bytes) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+            this.bytes = bytes;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            if (path == null) {
+                return copyOf(bytes);
+            }
+            try {
+                return map(Paths.get(path), offset, length);
+            } catch (IOException e) {
+                InvalidObjectException invalid = new InvalidObjectException("Could not map blob from " + path);
+                invalid.initCause(e);
+                throw invalid;
+            }
+        }
+    }
+
+    static class Serializer extends JsonSerializer<BlobValue> {
+        @Override
+        public void serialize(BlobValue blob, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject();
+            gen.writeFieldName(JSON_KEY);
+            blob.writeReference(gen, (BlobStore) provider.getAttribute(BlobStore.class));
+            gen.writeEndObject();
+        }
+    }
+}
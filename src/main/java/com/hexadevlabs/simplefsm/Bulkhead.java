@@ -0,0 +1,141 @@
+package com.hexadevlabs.simplefsm;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the number of concurrent executions of the step of a state, set with
+ * SimpleFSM.StateBuilder.bulkhead(). The State and so the Bulkhead is shared by
+ * all instances of a definition, so the limit applies across all of them.
+ * <p>
+ * Permits are taken with a CAS, an uncontended execution does not lock or allocate.
+ * When no permit is free an execution either is rejected right away, or waits up
+ * to maxWait for one with at most maxQueued executions waiting at a time.
+ */
+public class Bulkhead {
+
+    /**
+     * Event of the transition taken when an execution is rejected.
+     */
+    public static final String REJECTED_EVENT = "BULKHEAD_REJECTED";
+
+    private final int maxConcurrent;
+    private final AtomicInteger permits;
+    private long maxWaitNanos;
+    private int maxQueued = Integer.MAX_VALUE;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    private Bulkhead(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new AtomicInteger(maxConcurrent);
+    }
+
+    public static Bulkhead maxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("Max concurrent must be at least 1.");
+        }
+        return new Bulkhead(maxConcurrent);
+    }
+
+    /**
+     * How long an execution waits for a permit before it is rejected. Defaults to
+     * zero, rejecting right away. Waiting parks the thread of the state machine.
+     */
+    public Bulkhead maxWait(Duration maxWait) {
+        if (maxWait.isNegative()) {
+            throw new IllegalArgumentException("Max wait must not be negative.");
+        }
+        this.maxWaitNanos = maxWait.toNanos();
+        return this;
+    }
+
+    /**
+     * Maximum number of executions waiting for a permit, further ones are rejected right away.
+     */
+    public Bulkhead maxQueued(int maxQueued) {
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("Max queued must not be negative.");
+        }
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getAvailablePermits() {
+        return permits.get();
+    }
+
+    /**
+     * Number of executions waiting for a permit right now.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Takes a permit, waiting for one if configured to.
+     *
+     * @return Nanoseconds waited for the permit, or -1 if rejected.
+     */
+    long acquire() {
+        if (tryAcquire()) {
+            return 0;
+        }
+        if (maxWaitNanos == 0) {
+            return -1;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return -1;
+        }
+        Thread thread = Thread.currentThread();
+        waiters.add(thread);
+        long start = System.nanoTime();
+        long deadline = start + maxWaitNanos;
+        try {
+            // Registered as waiter before trying again, so a release in between unparks us.
+            while (!tryAcquire()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || thread.isInterrupted()) {
+                    return -1;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return Math.max(1, System.nanoTime() - start);
+        } finally {
+            waiters.remove(thread);
+            queued.decrementAndGet();
+            // Several releases may have unparked only us, pass the wake up on.
+            if (permits.get() > 0) {
+                Thread next = waiters.peek();
+                if (next != null) {
+                    LockSupport.unpark(next);
+                }
+            }
+        }
+    }
+
+    private boolean tryAcquire() {
+        int available;
+        while ((available = permits.get()) > 0) {
+            if (permits.compareAndSet(available, available - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void release() {
+        permits.incrementAndGet();
+        Thread waiter = waiters.peek();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.hexadevlabs.simplefsm;
+
+/**
+ * The step of a state was not executed because its Bulkhead was full.
+ */
+public class BulkheadRejectedException extends RuntimeException {
+    public BulkheadRejectedException(String message) {
+        super(message);
+    }
+}
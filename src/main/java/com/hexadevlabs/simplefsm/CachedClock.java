@@ -0,0 +1,45 @@
+package com.hexadevlabs.simplefsm;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coarse FsmClock. A background daemon thread refreshes the cached time from
+ * a source clock at a fixed resolution, readers only do a volatile read.
+ */
+public final class CachedClock implements FsmClock, AutoCloseable {
+
+    private final FsmClock source;
+    private final ScheduledExecutorService ticker;
+    private volatile long now;
+
+    CachedClock(FsmClock source, Duration resolution) {
+        if (resolution.isNegative() || resolution.isZero()) {
+            throw new IllegalArgumentException("Clock resolution must be positive.");
+        }
+        this.source = source;
+        this.now = source.epochNanos();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "simplefsm-cached-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = resolution.toNanos();
+        ticker.scheduleAtFixedRate(() -> now = this.source.epochNanos(), period, period, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long epochNanos() {
+        return now;
+    }
+
+    /**
+     * Stops the refresh thread. The clock keeps returning the last cached time.
+     */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+}
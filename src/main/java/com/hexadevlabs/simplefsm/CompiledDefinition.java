@@ -0,0 +1,116 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tables used by the COMPILED backend to run a definition, see SimpleFSM.Backend.
+ * <p>
+ * States are numbered and every state is classified once. A plain state has
+ * none of the features the interpreter checks for on every iteration: no split,
+ * fan-out, wait, retry, bulkhead, rate limit or cache. For those the successor
+ * taken when the step does not pick one is resolved ahead of time, so a chain of
+ * plain states runs as a loop over int ids.
+ */
+final class CompiledDefinition {
+
+    // Successor of a state without any transition to take.
+    static final int NONE = -1;
+    // Successor of a state with more than one transition and no AUTO.
+    static final int AMBIGUOUS = -2;
+    // Id of a state name that is not in the definition.
+    static final int UNKNOWN = -3;
+
+    private final State[] states;
+    private final String[] names;
+    private final Map<String, Integer> ids;
+    private final boolean[] plain;
+    private final int[] successors;
+    private final int exceptionStateId;
+
+    private CompiledDefinition(State[] states, String[] names, Map<String, Integer> ids, boolean[] plain,
+                               int[] successors, int exceptionStateId) {
+        this.states = states;
+        this.names = names;
+        this.ids = ids;
+        this.plain = plain;
+        this.successors = successors;
+        this.exceptionStateId = exceptionStateId;
+    }
+
+    static CompiledDefinition compile(Map<String, State> stateMap, String onExceptionState) {
+        int n = stateMap.size();
+        State[] states = new State[n];
+        String[] names = new String[n];
+        Map<String, Integer> ids = new HashMap<>(n * 2);
+        int id = 0;
+        for (State state : stateMap.values()) {
+            states[id] = state;
+            names[id] = state.getName();
+            ids.put(state.getName(), id);
+            id++;
+        }
+
+        boolean[] plain = new boolean[n];
+        int[] successors = new int[n];
+        for (int i = 0; i < n; i++) {
+            State state = states[i];
+            plain[i] = state.getSplitTransitions().isEmpty()
+                    && state.getFanOut() == null
+                    && !state.shouldWaitForEventBeforeTransition()
+                    && state.getRetryPolicy() == null
+                    && state.getBulkhead() == null
+                    && state.getRateLimit() == null
+                    && state.getCache() == null;
+            successors[i] = successor(state, ids);
+            // Left to the interpreter, which stops on the unknown state.
+            if (successors[i] == UNKNOWN) {
+                plain[i] = false;
+            }
+        }
+        int exceptionStateId = onExceptionState == null ? NONE : ids.getOrDefault(onExceptionState, UNKNOWN);
+        return new CompiledDefinition(states, names, ids, plain, successors, exceptionStateId);
+    }
+
+    // Same order as SimpleFSM.resolveNextState() when the step did not pick a state.
+    private static int successor(State state, Map<String, Integer> ids) {
+        String next = state.getNextState("AUTO");
+        if (next == null) {
+            Collection<String> possible = state.getStepTransitions();
+            if (possible.size() > 1) {
+                return AMBIGUOUS;
+            }
+            if (possible.isEmpty()) {
+                return NONE;
+            }
+            next = possible.iterator().next();
+        }
+        return ids.getOrDefault(next, UNKNOWN);
+    }
+
+    int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? UNKNOWN : id;
+    }
+
+    State state(int id) {
+        return states[id];
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    boolean isPlain(int id) {
+        return plain[id];
+    }
+
+    int successor(int id) {
+        return successors[id];
+    }
+
+    int exceptionStateId() {
+        return exceptionStateId;
+    }
+}
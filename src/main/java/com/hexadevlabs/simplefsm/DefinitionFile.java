@@ -0,0 +1,202 @@
+package com.hexadevlabs.simplefsm;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes the structure of a definition as compact JSON, with steps
+ * referred to by name instead of being created up front:
+ * <pre>
+ * {"name":"order","onException":"ERROR","states":[
+ *   {"name":"START","step":"Validate","transitions":[{"on":"AUTO","to":"SPLIT"}]},
+ *   {"name":"SPLIT","step":"Noop","splitTimeout":"PT5S","transitions":[{"split":"A"},{"split":"B","timeout":"PT1S"}]},
+ *   {"name":"A","step":"Charge","join":"END"},
+ *   {"name":"B","step":"Reserve","join":"END"},
+ *   {"name":"WAIT","step":"Noop","wait":true,"transitions":[{"on":"APPROVE","to":"END"}]},
+ *   {"name":"END","step":"Noop","final":true},
+ *   {"name":"ERROR","step":"Noop"}]}
+ * </pre>
+ * States are read back through the Builder so the result is validated like any
+ * other definition. Steps come from a StepRegistry and are only created once
+ * their state first runs.
+ * <p>
+ * Fan-outs, retry policies, bulkheads, rate limits and caches hold objects rather
+ * than structure and are not part of the format, add them in code instead.
+ */
+public class DefinitionFile {
+
+    private DefinitionFile() {
+    }
+
+    /**
+     * Reads a definition file into a Builder. Hooks, metrics, a split handler and
+     * the like can still be added before calling build().
+     *
+     * @param in The file, not closed.
+     * @param steps Steps the file refers to.
+     * @throws IOException If the file is malformed.
+     * @throws IllegalArgumentException If the file refers to a step that is not registered.
+     */
+    public static SimpleFSM.Builder read(InputStream in, StepRegistry steps) throws IOException {
+        JsonNode root = SimpleFSM.STATE_MAPPER.readTree(in);
+        if (root == null || !root.isObject()) {
+            throw new IOException("A definition file must contain a JSON object.");
+        }
+        SimpleFSM.Builder builder = new SimpleFSM.Builder();
+        if (root.hasNonNull("name")) {
+            builder.withName(root.get("name").asText());
+        }
+        JsonNode states = root.get("states");
+        if (states == null || !states.isArray()) {
+            throw new IOException("A definition file must contain an array of states.");
+        }
+        for (JsonNode state : states) {
+            readState(state, builder, steps);
+        }
+        if (root.hasNonNull("onException")) {
+            builder.onExceptionGoTo(root.get("onException").asText());
+        }
+        return builder;
+    }
+
+    private static void readState(JsonNode node, SimpleFSM.Builder builder, StepRegistry steps) throws IOException {
+        String name = requireText(node, "name");
+        ProcessingStep step = steps.lazy(requireText(node, "step"));
+        if (node.path("final").asBoolean()) {
+            builder.finalState(name, step);
+            return;
+        }
+        SimpleFSM.StateBuilder state = builder.state(name, step, node.path("wait").asBoolean());
+        for (JsonNode transition : node.path("transitions")) {
+            if (transition.has("split")) {
+                SimpleFSM.TransitionBuilder split = state.split();
+                if (transition.has("timeout")) {
+                    split.withTimeout(requireDuration(transition, "timeout"));
+                }
+                split.goTo(requireText(transition, "split"));
+            } else {
+                state.on(requireText(transition, "on")).goTo(requireText(transition, "to"));
+            }
+        }
+        if (node.has("splitTimeout")) {
+            state.splitTimeout(requireDuration(node, "splitTimeout"));
+        }
+        if (node.has("join")) {
+            state.join(requireText(node, "join"));
+        }
+    }
+
+    private static String requireText(JsonNode node, String field) throws IOException {
+        JsonNode value = node.get(field);
+        if (value == null || !value.isTextual()) {
+            throw new IOException("Missing text field '" + field + "' in " + node);
+        }
+        return value.asText();
+    }
+
+    private static Duration requireDuration(JsonNode node, String field) throws IOException {
+        try {
+            return Duration.parse(requireText(node, field));
+        } catch (DateTimeParseException e) {
+            throw new IOException("Invalid duration in field '" + field + "' of " + node, e);
+        }
+    }
+
+    /**
+     * Writes the definition, with each step named by getProcessStepClassName().
+     *
+     * @throws IllegalArgumentException If a state uses something the format can't hold, see class comment.
+     */
+    static void write(OutputStream out, String name, Map<String, State> states, Set<String> finalStates,
+                      String onExceptionState) throws IOException {
+        try (JsonGenerator json = SimpleFSM.STATE_MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeStartObject();
+            if (name != null) {
+                json.writeStringField("name", name);
+            }
+            if (onExceptionState != null) {
+                json.writeStringField("onException", onExceptionState);
+            }
+            json.writeArrayFieldStart("states");
+            for (State state : states.values()) {
+                // The exception state is made final by build(), it is written like any other state.
+                boolean isFinal = finalStates.contains(state.getName()) && !state.getName().equals(onExceptionState);
+                writeState(json, state, isFinal);
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+    }
+
+    private static void writeState(JsonGenerator json, State state, boolean isFinal) throws IOException {
+        String name = state.getName();
+        if (state.getFanOut() != null || state.getRetryPolicy() != null || state.getBulkhead() != null
+                || state.getRateLimit() != null || state.getCache() != null) {
+            throw new IllegalArgumentException("State '" + name + "' uses a fan-out, retry, bulkhead, rate limit or cache, which a definition file can't hold.");
+        }
+        json.writeStartObject();
+        json.writeStringField("name", name);
+        json.writeStringField("step", state.getProcessStepClassName());
+        if (isFinal) {
+            if (state.shouldWaitForEventBeforeTransition() || !state.getTransitions().isEmpty()) {
+                throw new IllegalArgumentException("Final state '" + name + "' can't wait for events or have transitions in a definition file.");
+            }
+            json.writeBooleanField("final", true);
+            json.writeEndObject();
+            return;
+        }
+        if (state.shouldWaitForEventBeforeTransition()) {
+            json.writeBooleanField("wait", true);
+        }
+        String joinState = state.getJoinState();
+        String joinEvent = joinState != null ? name + "_TO_" + joinState : null;
+        if (state.getSplitTimeout() != null) {
+            json.writeStringField("splitTimeout", state.getSplitTimeout().toString());
+        }
+        if (joinState != null) {
+            json.writeStringField("join", joinState);
+        }
+        boolean started = false;
+        for (Map.Entry<String, String> transition : state.getTransitionEntries()) {
+            String eventName = transition.getKey();
+            String nextState = transition.getValue();
+            if (eventName.equals(joinEvent)) {
+                // Written as "join".
+                continue;
+            }
+            if (!started) {
+                json.writeArrayFieldStart("transitions");
+                started = true;
+            }
+            json.writeStartObject();
+            if (state.getSplitTransitions().contains(eventName)) {
+                if (!eventName.equals("SPLIT_" + nextState)) {
+                    throw new IllegalArgumentException("Split transition '" + eventName + "' of state '" + name + "' was not made with split().");
+                }
+                json.writeStringField("split", nextState);
+                Duration timeout = state.getBranchTimeout(eventName);
+                if (timeout != null) {
+                    json.writeStringField("timeout", timeout.toString());
+                }
+            } else {
+                json.writeStringField("on", eventName);
+                json.writeStringField("to", nextState);
+            }
+            json.writeEndObject();
+        }
+        if (started) {
+            json.writeEndArray();
+        }
+        json.writeEndObject();
+    }
+}
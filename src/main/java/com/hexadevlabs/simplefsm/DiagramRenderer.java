@@ -0,0 +1,219 @@
+package com.hexadevlabs.simplefsm;
+
+import guru.nidi.graphviz.engine.Format;
+import guru.nidi.graphviz.engine.Graphviz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Renders state machine diagrams with graphviz-java and caches the result.
+ * <p>
+ * Rendering is slow so the output is cached by SimpleFSM.definitionHash() and the
+ * format. A definition is only rendered again when its structure changes. The cache
+ * holds at most maxEntries() diagrams, dropping the least recently used. Optionally
+ * rendered diagrams are also kept in a directory so they survive a restart.
+ * Concurrent requests for the same diagram share a single render.
+ */
+public class DiagramRenderer implements AutoCloseable {
+
+    /**
+     * Turns Dot notation into the bytes of the rendered diagram.
+     */
+    @FunctionalInterface
+    public interface RenderFunction {
+        byte[] render(String dot, Format format) throws IOException;
+    }
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private final RenderFunction renderFunction;
+    private final Path cacheDirectory;
+    private final ExecutorService background;
+
+    // hash + "." + format -> rendered diagram, in access order. Guarded by itself.
+    private final LinkedHashMap<String, CompletableFuture<byte[]>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    // Renders queued or running on the background thread, completed exceptionally by close().
+    private final Set<CompletableFuture<byte[]>> inBackground = ConcurrentHashMap.newKeySet();
+
+    public DiagramRenderer() {
+        this(DiagramRenderer::renderWithGraphviz, null);
+    }
+
+    /**
+     * @param cacheDirectory Directory to keep rendered diagrams in, created if needed.
+     */
+    public DiagramRenderer(Path cacheDirectory) {
+        this(DiagramRenderer::renderWithGraphviz, cacheDirectory);
+    }
+
+    /**
+     * @param renderFunction Used instead of graphviz-java to render.
+     * @param cacheDirectory Directory to keep rendered diagrams in or null to only cache in memory.
+     */
+    public DiagramRenderer(RenderFunction renderFunction, Path cacheDirectory) {
+        this.renderFunction = renderFunction;
+        this.cacheDirectory = cacheDirectory;
+        this.background = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "simplefsm-diagram-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Most diagrams kept in memory, DEFAULT_MAX_ENTRIES by default.
+     */
+    public DiagramRenderer maxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        synchronized (cache) {
+            this.maxEntries = maxEntries;
+            evict();
+        }
+        return this;
+    }
+
+    static byte[] renderWithGraphviz(String dot, Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Graphviz.fromString(dot).render(format).toOutputStream(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the rendered diagram of the definition, rendering it only if it is not cached.
+     */
+    public byte[] render(SimpleFSM simpleFSM, Format format) {
+        try {
+            return lookup(simpleFSM, format, Runnable::run).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Renders the diagrams in the background, for example at startup so that
+     * the first request is served from the cache.
+     *
+     * @return Completes when all the formats are rendered.
+     */
+    public CompletableFuture<Void> prerender(SimpleFSM simpleFSM, Format... formats) {
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (Format format : formats) {
+            futures.add(lookup(simpleFSM, format, background));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * @return If the diagram of the definition in the given format is in memory.
+     */
+    public boolean isCached(SimpleFSM simpleFSM, Format format) {
+        CompletableFuture<byte[]> future;
+        synchronized (cache) {
+            future = cache.get(key(simpleFSM.definitionHash(), format));
+        }
+        return future != null && future.isDone() && !future.isCompletedExceptionally();
+    }
+
+    private CompletableFuture<byte[]> lookup(SimpleFSM simpleFSM, Format format, Executor executor) {
+        String key = key(simpleFSM.definitionHash(), format);
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        synchronized (cache) {
+            CompletableFuture<byte[]> future = cache.putIfAbsent(key, created);
+            if (future != null) {
+                return future;
+            }
+            evict();
+        }
+        String dot = simpleFSM.toGraphviz();
+        Runnable task = () -> {
+            try {
+                created.complete(load(key, dot, format));
+            } catch (Throwable e) {
+                fail(key, created, e);
+            }
+        };
+        if (executor == background) {
+            inBackground.add(created);
+            created.whenComplete((diagram, e) -> inBackground.remove(created));
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            fail(key, created, new CancellationException("DiagramRenderer is closed"));
+        }
+        return created;
+    }
+
+    /**
+     * Failures are not cached, the next request tries again.
+     */
+    private void fail(String key, CompletableFuture<byte[]> future, Throwable e) {
+        synchronized (cache) {
+            cache.remove(key, future);
+        }
+        future.completeExceptionally(e);
+    }
+
+    // Called holding the lock on cache.
+    private void evict() {
+        Iterator<CompletableFuture<byte[]>> eldest = cache.values().iterator();
+        while (cache.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private byte[] load(String key, String dot, Format format) {
+        try {
+            Path file = cacheDirectory != null ? cacheDirectory.resolve(key) : null;
+            if (file != null && Files.exists(file)) {
+                return Files.readAllBytes(file);
+            }
+            byte[] rendered = renderFunction.render(dot, format);
+            if (file != null) {
+                Files.createDirectories(cacheDirectory);
+                Path temp = Files.createTempFile(cacheDirectory, key, ".tmp");
+                Files.write(temp, rendered);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return rendered;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String key(String hash, Format format) {
+        return hash + "." + format.name().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public void close() {
+        background.shutdownNow();
+        CancellationException closed = new CancellationException("DiagramRenderer is closed");
+        for (CompletableFuture<byte[]> future : inBackground) {
+            if (future.completeExceptionally(closed)) {
+                synchronized (cache) {
+                    cache.values().remove(future);
+                }
+            }
+        }
+    }
+}
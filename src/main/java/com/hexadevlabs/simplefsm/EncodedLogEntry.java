@@ -0,0 +1,78 @@
+package com.hexadevlabs.simplefsm;
+
+/**
+ * Trace entry holding the ids of its template and up to two values in a
+ * TraceDictionary instead of its text, which is put together when asked for.
+ */
+final class EncodedLogEntry extends LogEntry {
+
+    static final int NONE = -1;
+
+    final TraceDictionary dictionary;
+    final int template;
+    final int arg0;
+    final int arg1;
+
+    EncodedLogEntry(long epochNanos, TraceDictionary dictionary, int template, int arg0, int arg1) {
+        super(epochNanos, (String) null);
+        this.dictionary = dictionary;
+        this.template = template;
+        this.arg0 = arg0;
+        this.arg1 = arg1;
+    }
+
+    int argCount() {
+        return arg0 == NONE ? 0 : arg1 == NONE ? 1 : 2;
+    }
+
+    @Override
+    public String getMessage() {
+        String template = dictionary.value(this.template);
+        if (arg0 == NONE) {
+            return template;
+        }
+        if (arg1 == NONE) {
+            return TraceDictionary.format(template, dictionary.value(arg0));
+        }
+        return TraceDictionary.format(template, dictionary.value(arg0), dictionary.value(arg1));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof EncodedLogEntry) {
+            EncodedLogEntry other = (EncodedLogEntry) o;
+            if (other.dictionary == dictionary) {
+                // Same dictionary, same ids means the same text.
+                return epochNanos == other.epochNanos && template == other.template
+                        && arg0 == other.arg0 && arg1 == other.arg1;
+            }
+        }
+        return super.equals(o);
+    }
+
+    /**
+     * Same as LogEntry.hashCode() but hashes the text as it would be put together
+     * instead of doing so, traces are hashed whole when merged.
+     */
+    @Override
+    public int hashCode() {
+        String template = dictionary.value(this.template);
+        int args = argCount();
+        int used = 0;
+        int h = 0;
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (used < args && c == '{' && i + 1 < template.length() && template.charAt(i + 1) == '}') {
+                String arg = dictionary.value(used == 0 ? arg0 : arg1);
+                for (int j = 0; j < arg.length(); j++) {
+                    h = 31 * h + arg.charAt(j);
+                }
+                used++;
+                i++;
+                continue;
+            }
+            h = 31 * h + c;
+        }
+        return 31 * Long.hashCode(epochNanos) + h;
+    }
+}
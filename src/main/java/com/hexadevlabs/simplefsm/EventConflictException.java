@@ -0,0 +1,11 @@
+package com.hexadevlabs.simplefsm;
+
+/**
+ * An event was rejected because another event was being processed on the same
+ * instance, see EventConflictPolicy.REJECT.
+ */
+public class EventConflictException extends RuntimeException {
+    public EventConflictException(String message) {
+        super(message);
+    }
+}
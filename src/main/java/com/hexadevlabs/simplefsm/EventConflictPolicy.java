@@ -0,0 +1,21 @@
+package com.hexadevlabs.simplefsm;
+
+/**
+ * What happens to an event triggered on an instance while another event is
+ * being processed on it, with SimpleFSM.Builder.concurrentEvents().
+ */
+public enum EventConflictPolicy {
+    /**
+     * triggerEvent() throws an EventConflictException.
+     */
+    REJECT,
+    /**
+     * The event is queued and processed by the thread that holds the instance once
+     * it is done, if the state it ends up in has a transition for the event.
+     * Otherwise the event is dropped, like a duplicate webhook for a step already taken.
+     * Dropped events are reported to the handler given to
+     * SimpleFSM.Builder.concurrentEvents(policy, droppedEventHandler). An event queued
+     * as the instance terminates makes triggerEvent() throw, if it was not taken yet.
+     */
+    REQUEUE
+}
@@ -0,0 +1,198 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Queues events for a single state machine instance and triggers them in order,
+ * one at a time, so callers can submit events from any thread without blocking.
+ * <p>
+ * A work-in-progress counter picks a single drainer among the submitters: the
+ * one that finds the mailbox idle drains it, on the executor or on its own thread,
+ * taking everything queued so far as one batch. Others only enqueue. Repeats of an
+ * event the definition marks idempotent (see SimpleFSM.Builder.idempotentEvent())
+ * that follow each other in a batch are coalesced into one.
+ * <p>
+ * While processing of the instance is scheduled to resume (see RetryPolicy and
+ * RateLimit) draining waits for it. An event that can't be triggered, for example
+ * because the current state has no transition for it, is passed to onRejected().
+ */
+public class EventMailbox {
+
+    private final SimpleFSM fsm;
+    private final ProcessingData data;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    // Submissions not yet accounted for by the drainer. The submitter taking it from zero drains.
+    private final AtomicInteger wip = new AtomicInteger();
+    // Events of the current batch left to trigger, only used by the drainer.
+    private final ArrayDeque<String> batch = new ArrayDeque<>();
+    // Submissions a drain waiting for a resume of the instance accounts for.
+    private int suspendedMissed;
+    private BiConsumer<String, RuntimeException> onRejected = (event, e) -> { };
+
+    private final LongAdder triggered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * Drains on the thread of the submitter that found the mailbox idle.
+     *
+     * @param fsm A started instance.
+     * @param data The data of the instance.
+     */
+    public EventMailbox(SimpleFSM fsm, ProcessingData data) {
+        this(fsm, data, Runnable::run);
+    }
+
+    /**
+     * Drains on the executor, submitting never runs a step.
+     */
+    public EventMailbox(SimpleFSM fsm, ProcessingData data, Executor executor) {
+        this.fsm = Objects.requireNonNull(fsm);
+        this.data = Objects.requireNonNull(data);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Called on the draining thread with events that could not be triggered and why.
+     */
+    public EventMailbox onRejected(BiConsumer<String, RuntimeException> onRejected) {
+        this.onRejected = Objects.requireNonNull(onRejected);
+        return this;
+    }
+
+    public void submit(String eventName) {
+        queue.add(Objects.requireNonNull(eventName));
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Submits the events in order, waking the drainer at most once.
+     */
+    public void submitAll(Collection<String> eventNames) {
+        if (eventNames.isEmpty()) {
+            return;
+        }
+        for (String eventName : eventNames) {
+            queue.add(Objects.requireNonNull(eventName));
+        }
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Submits events for many instances in one call, in order for each of them.
+     */
+    public static void submitAll(Map<EventMailbox, ? extends Collection<String>> events) {
+        for (Map.Entry<EventMailbox, ? extends Collection<String>> entry : events.entrySet()) {
+            entry.getKey().submitAll(entry.getValue());
+        }
+    }
+
+    private void drain() {
+        // Submissions this drain accounts for, each one that found the mailbox busy adds one.
+        int missed = suspendedMissed == 0 ? 1 : suspendedMissed;
+        suspendedMissed = 0;
+        while (true) {
+            if (batch.isEmpty()) {
+                takeBatch();
+            }
+            String eventName;
+            while ((eventName = batch.peek()) != null) {
+                CompletableFuture<Void> resumed = fsm.whenResumed();
+                if (!resumed.isDone()) {
+                    // Continue with the rest of the batch once the scheduled processing,
+                    // including an attempt already running, is done.
+                    suspendedMissed = missed;
+                    resumed.whenComplete((ignored, e) -> executor.execute(this::drain));
+                    return;
+                }
+                batch.poll();
+                trigger(eventName);
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves all queued events into the batch, coalescing repeated idempotent ones.
+     */
+    private void takeBatch() {
+        String last = null;
+        String eventName;
+        while ((eventName = queue.poll()) != null) {
+            if (eventName.equals(last) && fsm.isIdempotentEvent(eventName)) {
+                coalesced.increment();
+                continue;
+            }
+            batch.add(eventName);
+            last = eventName;
+        }
+        if (!batch.isEmpty()) {
+            batches.increment();
+        }
+    }
+
+    private void trigger(String eventName) {
+        try {
+            fsm.triggerEvent(eventName, data);
+            triggered.increment();
+        } catch (RuntimeException e) {
+            rejected.increment();
+            onRejected.accept(eventName, e);
+        }
+    }
+
+    public SimpleFSM getFsm() {
+        return fsm;
+    }
+
+    public ProcessingData getData() {
+        return data;
+    }
+
+    /**
+     * Number of events queued and not yet taken into a batch.
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public long getTriggered() {
+        return triggered.sum();
+    }
+
+    /**
+     * Number of idempotent events dropped because the same event came right before.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Number of batches drained, each taking all events queued at that time.
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+}
@@ -1,5 +1,7 @@
 package com.hexadevlabs.simplefsm;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.List;
 
 public class FSMState {
@@ -12,6 +14,12 @@ public class FSMState {
 
     private String name;
 
+    // Where the entries of the trace are kept when a TraceStore is used, and how many are stored.
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String traceId;
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private long traceHighWaterMark;
+
     public String getCurrentState() {
         return currentState;
     }
@@ -58,4 +66,20 @@ public class FSMState {
     public void completedSplitStates(List<String> completedSplitStates) {
         this.completedSplitStates = completedSplitStates;
     }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(String traceId) {
+        this.traceId = traceId;
+    }
+
+    public long getTraceHighWaterMark() {
+        return traceHighWaterMark;
+    }
+
+    public void setTraceHighWaterMark(long traceHighWaterMark) {
+        this.traceHighWaterMark = traceHighWaterMark;
+    }
 }
@@ -0,0 +1,182 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dynamic fan-out of a state over a collection, also known as map or scatter-gather.
+ * <p>
+ * After the step of the state completes, the collection stored under collectionKey
+ * in the ProcessingData is read and a sub state machine runs once per element.
+ * Each run gets a copy of the data with the element stored under itemKey, and its
+ * value under resultKey is gathered into a list stored under gatherKey.
+ * Elements are processed in chunks by up to parallelism workers, the calling thread
+ * is one of them. It only waits for the workers that started on the executor, the
+ * others are skipped, so nested fan-outs on a bounded executor don't deadlock.
+ * <p>
+ * Like a split, the state continues to the state it joins to once every element is
+ * processed, or to the onExceptionGoTo state if any of the elements had an exception.
+ * Configured with SimpleFSM.StateBuilder.forEach().
+ */
+public class FanOut {
+
+    private final String collectionKey;
+    private final SimpleFSM subDefinition;
+    private final String subStartState;
+    String itemKey = "item";
+    String resultKey = "result";
+    String gatherKey;
+    boolean ordered = true;
+    int parallelism = 1;
+    int chunkSize = 1;
+    Executor executor = ForkJoinPool.commonPool();
+
+    FanOut(String collectionKey, SimpleFSM subDefinition, String subStartState) {
+        this.collectionKey = collectionKey;
+        this.subDefinition = subDefinition;
+        this.subStartState = subStartState;
+        this.gatherKey = collectionKey + "Results";
+    }
+
+    public String getCollectionKey() {
+        return collectionKey;
+    }
+
+    public SimpleFSM getSubDefinition() {
+        return subDefinition;
+    }
+
+    public String getSubStartState() {
+        return subStartState;
+    }
+
+    /**
+     * Runs the sub state machine for every element and stores the gathered results.
+     * Exceptions of the elements are added to data.
+     *
+     * @param stateName The state fanning out, used for the trace.
+     */
+    void execute(String stateName, ProcessingData data, Trace trace) {
+        List<?> items = itemsOf(data.get(collectionKey));
+        int count = items.size();
+        int chunks = (count + chunkSize - 1) / chunkSize;
+
+        Object[] results = new Object[count];
+        // In unordered mode results are stored in completion order.
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger nextChunk = new AtomicInteger();
+        AtomicInteger processed = new AtomicInteger();
+        ConcurrentLinkedQueue<ExceptionInfo> failures = new ConcurrentLinkedQueue<>();
+
+        Runnable worker = () -> {
+            try {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                    int end = Math.min(count, (chunk + 1) * chunkSize);
+                    for (int index = chunk * chunkSize; index < end; index++) {
+                        ProcessingData itemData = processItem(index, items.get(index), data);
+                        if (itemData.hasExceptions()) {
+                            failures.addAll(itemData.getExceptions());
+                        } else if (ordered) {
+                            results[index] = itemData.get(resultKey);
+                        } else {
+                            results[completed.getAndIncrement()] = itemData.get(resultKey);
+                        }
+                        processed.incrementAndGet();
+                    }
+                }
+            } catch (Throwable t) {
+                // An Error stops this worker, the rest of its chunk is counted as unprocessed below.
+                failures.add(new ExceptionInfo(asException(t), false));
+            }
+        };
+
+        int workers = Math.min(parallelism, chunks);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        // Claimed by a helper when it starts, or by the calling thread once it ran out of chunks.
+        List<AtomicBoolean> claims = new ArrayList<>();
+        for (int i = 1; i < workers; i++) {
+            AtomicBoolean claim = new AtomicBoolean();
+            claims.add(claim);
+            futures.add(CompletableFuture.runAsync(() -> {
+                if (claim.compareAndSet(false, true)) {
+                    worker.run();
+                }
+            }, executor));
+        }
+        worker.run();
+        for (int i = 0; i < futures.size(); i++) {
+            if (claims.get(i).compareAndSet(false, true)) {
+                // Still queued in the executor and nothing left to do, waiting for it could
+                // deadlock a nested fan-out on a bounded executor.
+                continue;
+            }
+            try {
+                futures.get(i).join();
+            } catch (CompletionException e) {
+                failures.add(new ExceptionInfo(asException(e.getCause()), false));
+            }
+        }
+        int unprocessed = count - processed.get();
+        if (unprocessed > 0) {
+            failures.add(new ExceptionInfo(new IllegalStateException("Fan out of state " + stateName + ": " + unprocessed
+                    + " of " + count + " items of '" + collectionKey + "' were not processed"), false));
+        }
+
+        List<Object> gathered = new ArrayList<>(Arrays.asList(results).subList(0, ordered ? count : completed.get()));
+        data.set(gatherKey, gathered);
+        for (ExceptionInfo failure : failures) {
+            data.addException(failure);
+        }
+
+        if (trace.isTraceMode()) {
+            trace.add("Fan out of state " + stateName + " processed " + count + " items of '" + collectionKey + "', " + failures.size() + " exceptions");
+        }
+    }
+
+    private ProcessingData processItem(int index, Object item, ProcessingData data) {
+        ProcessingData itemData = new ProcessingData();
+        itemData.mergeFrom(data);
+        itemData.set(itemKey, item);
+        try {
+            SimpleFSM sub = subDefinition.buildEmptyCopy();
+            sub.start(subStartState, itemData);
+            if (sub.isPaused()) {
+                throw new IllegalStateException("Item " + index + " paused in state '" + sub.getPausedOnState().getName()
+                        + "', fan-out items are not allowed to wait for an event");
+            }
+        } catch (Exception e) {
+            itemData.addException(new ExceptionInfo(e, false));
+        }
+        return itemData;
+    }
+
+    private static Exception asException(Throwable t) {
+        if (t instanceof Exception) {
+            return (Exception) t;
+        }
+        return new RuntimeException("Fan-out worker failed: " + t, t);
+    }
+
+    private List<?> itemsOf(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (value instanceof List<?> && value instanceof RandomAccess) {
+            return (List<?>) value;
+        }
+        if (value instanceof Collection<?>) {
+            return new ArrayList<>((Collection<?>) value);
+        }
+        if (value instanceof Object[]) {
+            return Arrays.asList((Object[]) value);
+        }
+        throw new IllegalStateException("Value of '" + collectionKey + "' is not a collection or an array.");
+    }
+}
@@ -0,0 +1,255 @@
+package com.hexadevlabs.simplefsm;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps all traces in one append-only segment file. Each record holds the trace id,
+ * the timestamp and the message of an entry, deleting a trace appends a tombstone.
+ * Writing at an index before the end of a trace appends a record cutting the trace
+ * back to that size first.
+ * <p>
+ * The offsets of the entries of each trace are kept in memory and rebuilt by
+ * scanning the file when it is opened, a record cut short by a crash is dropped
+ * then. Appends are not forced to disk, call force() for that.
+ */
+public class FileTraceStore implements TraceStore, Closeable {
+
+    // Message lengths marking a tombstone record, and a truncation to the size in the timestamp field.
+    private static final int TOMBSTONE = -1;
+    private static final int TRUNCATE = -2;
+
+    private final FileChannel channel;
+    private final Map<String, Offsets> index = new HashMap<>();
+    private long end;
+
+    public FileTraceStore(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = scan();
+        channel.truncate(end);
+    }
+
+    /**
+     * Rebuilds the index from the file.
+     *
+     * @return Offset after the last complete record.
+     */
+    private long scan() throws IOException {
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        while (position < size) {
+            try {
+                int idLength = readInt(header, position);
+                if (idLength < 0 || position + Integer.BYTES + idLength > size) {
+                    break;
+                }
+                String id = readString(position + Integer.BYTES, idLength);
+                long entry = position + Integer.BYTES + idLength;
+                int messageLength = readInt(header, entry + Long.BYTES);
+                if (messageLength == TOMBSTONE) {
+                    index.remove(id);
+                    position = entry + Long.BYTES + Integer.BYTES;
+                    continue;
+                }
+                if (messageLength == TRUNCATE) {
+                    Offsets offsets = index.get(id);
+                    long truncated = readLong(entry);
+                    if (offsets != null && truncated >= 0 && truncated < offsets.size) {
+                        offsets.size = (int) truncated;
+                    }
+                    position = entry + Long.BYTES + Integer.BYTES;
+                    continue;
+                }
+                long next = entry + Long.BYTES + Integer.BYTES + messageLength;
+                if (messageLength < 0 || next > size) {
+                    break;
+                }
+                index.computeIfAbsent(id, i -> new Offsets()).add(entry);
+                position = next;
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    private int readInt(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        readFully(buffer, position);
+        return buffer.getInt(0);
+    }
+
+    private long readLong(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        readFully(buffer, position);
+        return buffer.getLong(0);
+    }
+
+    private String readString(long position, int length) throws IOException {
+        if (length < 0) {
+            throw new EOFException();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    @Override
+    public synchronized long append(String traceId, long fromIndex, List<LogEntry> entries) {
+        Offsets offsets = index.get(traceId);
+        int size = offsets == null ? 0 : offsets.size;
+        if (fromIndex < 0 || fromIndex > size) {
+            throw new IllegalArgumentException("Index " + fromIndex + " is outside of trace " + traceId + " of " + size + " entries.");
+        }
+        boolean truncate = fromIndex < size;
+        if (entries.isEmpty() && !truncate) {
+            return size;
+        }
+        byte[] id = traceId.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> messages = new ArrayList<>(entries.size());
+        int length = truncate ? Integer.BYTES + id.length + Long.BYTES + Integer.BYTES : 0;
+        for (LogEntry entry : entries) {
+            byte[] message = entry.getMessage().getBytes(StandardCharsets.UTF_8);
+            messages.add(message);
+            length += Integer.BYTES + id.length + Long.BYTES + Integer.BYTES + message.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = end;
+        if (truncate) {
+            buffer.putInt(id.length).put(id).putLong(fromIndex).putInt(TRUNCATE);
+        }
+        long[] added = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            byte[] message = messages.get(i);
+            buffer.putInt(id.length).put(id);
+            added[i] = position + buffer.position();
+            buffer.putLong(entries.get(i).getEpochNanos()).putInt(message.length).put(message);
+        }
+        write(buffer);
+
+        // Only published once written, readers never see offsets of a failed write.
+        if (offsets == null) {
+            offsets = new Offsets();
+            index.put(traceId, offsets);
+        }
+        offsets.size = (int) fromIndex;
+        for (long entry : added) {
+            offsets.add(entry);
+        }
+        return offsets.size;
+    }
+
+    /**
+     * Writes the buffer at the end of the file. If that fails the file is cut back
+     * to where it ended, so a partly written record is neither read nor followed by
+     * the next one.
+     */
+    private void write(ByteBuffer buffer) {
+        buffer.flip();
+        long start = end;
+        try {
+            while (buffer.hasRemaining()) {
+                end += channel.write(buffer, end);
+            }
+        } catch (IOException e) {
+            end = start;
+            try {
+                channel.truncate(start);
+            } catch (IOException truncateFailed) {
+                e.addSuppressed(truncateFailed);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public List<LogEntry> read(String traceId, long from, long to) {
+        long[] entries;
+        synchronized (this) {
+            Offsets offsets = index.get(traceId);
+            if (offsets == null || from >= Math.min(to, offsets.size)) {
+                return Collections.emptyList();
+            }
+            entries = Arrays.copyOfRange(offsets.offsets, (int) from, (int) Math.min(to, offsets.size));
+        }
+        List<LogEntry> result = new ArrayList<>(entries.length);
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+        try {
+            for (long entry : entries) {
+                header.clear();
+                readFully(header, entry);
+                String message = readString(entry + header.capacity(), header.getInt(Long.BYTES));
+                result.add(new LogEntry(header.getLong(0), message));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized long size(String traceId) {
+        Offsets offsets = index.get(traceId);
+        return offsets == null ? 0 : offsets.size;
+    }
+
+    @Override
+    public synchronized void delete(String traceId) {
+        if (!index.containsKey(traceId)) {
+            return;
+        }
+        byte[] id = traceId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + id.length + Long.BYTES + Integer.BYTES);
+        buffer.putInt(id.length).put(id).putLong(0).putInt(TOMBSTONE);
+        write(buffer);
+        index.remove(traceId);
+    }
+
+    /**
+     * Forces appended entries to disk.
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Growable array of the file offsets of the entries of one trace.
+    private static final class Offsets {
+        long[] offsets = new long[16];
+        int size;
+
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+    }
+}
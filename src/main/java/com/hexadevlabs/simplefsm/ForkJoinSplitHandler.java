@@ -0,0 +1,143 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the branches of a split as tasks on a ForkJoinPool.
+ * <p>
+ * A thread waiting on the branches of a split helps by running queued branches
+ * instead of blocking, so splits nested any number of levels deep run on a
+ * pool of a fixed size without starving it. Each branch runs on its own copy of
+ * the state machine and the data, which are merged back in the order the split
+ * transitions were defined once all branches joined.
+ * <p>
+ * Tasks can not be interrupted, so split and branch timeouts are checked before
+ * each state of a branch and once it finished. A branch that joins after its
+ * deadline fails with a TimeoutException.
+ */
+public class ForkJoinSplitHandler implements SplitHandler {
+
+    private final ForkJoinPool pool;
+
+    public ForkJoinSplitHandler() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ForkJoinSplitHandler(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void handleSplit(SimpleFSM simpleFSM, ProcessingData data, Collection<String> splitTransitions) {
+        String joinState = splitAndJoin(simpleFSM, data, splitTransitions);
+        simpleFSM.continueAfterSplit(joinState, data);
+    }
+
+    @Override
+    public boolean supportsNestedSplits() {
+        return true;
+    }
+
+    @Override
+    public String splitAndJoin(SimpleFSM simpleFSM, ProcessingData data, Collection<String> splitTransitions) {
+        SplitTask task = new SplitTask(simpleFSM, data, splitTransitions);
+        if (ForkJoinTask.getPool() == pool) {
+            // Already a worker of the pool, fork from here so this thread keeps working.
+            return task.compute();
+        }
+        return pool.invoke(task);
+    }
+
+    /**
+     * Branches are run to their join by splitAndJoin(), so there is no
+     * other work to wait for once continueOnSplitState() is called.
+     */
+    @Override
+    public boolean getAndUpdateStateAndData(SimpleFSM simpleFSM, ProcessingData currentData, String splitSourceState, String completedSplitState) {
+        simpleFSM.recordCompletionSplitState(completedSplitState);
+        int expected = simpleFSM.getState(splitSourceState).getSplitTransitions().size();
+        return simpleFSM.getCompletionSplitStates().size() == expected;
+    }
+
+    private static class SplitTask extends RecursiveTask<String> {
+        private final SimpleFSM simpleFSM;
+        private final ProcessingData data;
+        private final Collection<String> splitTransitions;
+
+        SplitTask(SimpleFSM simpleFSM, ProcessingData data, Collection<String> splitTransitions) {
+            this.simpleFSM = simpleFSM;
+            this.data = data;
+            this.splitTransitions = splitTransitions;
+        }
+
+        @Override
+        protected String compute() {
+            State source = simpleFSM.getState(simpleFSM.getCurrentStateName());
+            long start = System.nanoTime();
+            List<BranchTask> branches = new ArrayList<>(splitTransitions.size());
+            for (String splitTransition : splitTransitions) {
+                ProcessingData branchData = new ProcessingData();
+                branchData.mergeFrom(data);
+                SimpleFSM branchFSM = simpleFSM.branchCopy();
+                long deadline = source.branchDeadline(splitTransition, start);
+                branchFSM.setBranchDeadline(deadline);
+                branches.add(new BranchTask(branchFSM, branchData, source.getNextState(splitTransition), deadline));
+            }
+
+            ForkJoinTask.invokeAll(branches);
+
+            String joinState = null;
+            for (BranchTask branch : branches) {
+                simpleFSM.mergeTraceFrom(branch.branchFSM);
+                data.mergeFrom(branch.branchData);
+                String branchJoin = branch.join();
+                if (branchJoin == null) {
+                    continue;
+                }
+                if (joinState == null) {
+                    joinState = branchJoin;
+                } else if (!joinState.equals(branchJoin)) {
+                    data.addException(new ExceptionInfo(new IllegalStateException("Branches of split state '" + source.getName()
+                            + "' join to different states: " + joinState + " and " + branchJoin), false));
+                }
+            }
+            return data.hasExceptions() ? null : joinState;
+        }
+    }
+
+    private static class BranchTask extends RecursiveTask<String> {
+        private final SimpleFSM branchFSM;
+        private final ProcessingData branchData;
+        private final String branchState;
+        private final long deadline;
+
+        BranchTask(SimpleFSM branchFSM, ProcessingData branchData, String branchState, long deadline) {
+            this.branchFSM = branchFSM;
+            this.branchData = branchData;
+            this.branchState = branchState;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected String compute() {
+            String joinState;
+            try {
+                joinState = branchFSM.runBranch(branchState, branchData);
+            } catch (Exception e) {
+                branchData.addException(new ExceptionInfo(e, false));
+                return null;
+            }
+            if (joinState != null && deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+                branchData.addException(new ExceptionInfo(new TimeoutException("Branch '" + branchState + "' joined after its deadline"), false));
+                return null;
+            }
+            return joinState;
+        }
+    }
+}
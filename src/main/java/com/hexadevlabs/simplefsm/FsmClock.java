@@ -0,0 +1,37 @@
+package com.hexadevlabs.simplefsm;
+
+import java.time.Duration;
+
+/**
+ * Source of timestamps for the Trace and for metrics.
+ * <p>
+ * Timestamps are epoch nanoseconds held in a plain long, so recording one does
+ * not allocate or consult the time zone. A LocalDateTime is only produced when
+ * a LogEntry is exported or printed.
+ */
+@FunctionalInterface
+public interface FsmClock {
+
+    /**
+     * @return The current time as nanoseconds since the epoch.
+     */
+    long epochNanos();
+
+    /**
+     * The default clock. Wall-clock base captured once plus System.nanoTime() deltas.
+     */
+    static FsmClock monotonic() {
+        return MonotonicClock.INSTANCE;
+    }
+
+    /**
+     * A coarse clock which only advances every resolution period. Reading it is
+     * a single volatile read which makes it suitable for very high rate use.
+     * The returned clock owns a daemon thread and should be closed when no longer used.
+     *
+     * @param resolution How often the cached time is refreshed.
+     */
+    static CachedClock cached(Duration resolution) {
+        return new CachedClock(monotonic(), resolution);
+    }
+}
@@ -0,0 +1,258 @@
+package com.hexadevlabs.simplefsm;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Java Flight Recorder events emitted by the state machines, so their activity
+ * can be lined up with GC pauses, lock contention and the like in a recording.
+ * <p>
+ * The events have no stack traces. Whether an event is recorded is checked with
+ * a single read before anything is allocated, so they cost next to nothing
+ * unless a recording enables them. Thresholds of the duration events are set
+ * like those of the JDK events, in a .jfc file or with
+ * {@code recording.enable(FsmEvents.StateExecuted.class).withThreshold(Duration.ofMillis(5))}.
+ */
+public final class FsmEvents {
+
+    static final String CATEGORY = "SimpleFSM";
+
+    private static final EventType STATE_EXECUTED = EventType.getEventType(StateExecuted.class);
+    private static final EventType TRANSITION = EventType.getEventType(Transition.class);
+    private static final EventType SPLIT_STARTED = EventType.getEventType(SplitStarted.class);
+    private static final EventType SPLIT_JOINED = EventType.getEventType(SplitJoined.class);
+    private static final EventType SNAPSHOT_EXPORTED = EventType.getEventType(SnapshotExported.class);
+
+    private FsmEvents() {
+    }
+
+    /**
+     * Execution of the step of a state, including its execution hooks.
+     */
+    @Name("com.hexadevlabs.simplefsm.StateExecuted")
+    @Label("State Executed")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    public static final class StateExecuted extends Event {
+        @Label("Definition")
+        String definition;
+
+        @Label("State")
+        String state;
+
+        @Label("Step Class")
+        String stepClass;
+
+        @Label("Outcome")
+        @Description("SUCCESS or EXCEPTION")
+        String outcome;
+
+        @Label("Exception")
+        @Description("Class of the exception the step ended with")
+        String exception;
+    }
+
+    @Name("com.hexadevlabs.simplefsm.Transition")
+    @Label("Transition")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class Transition extends Event {
+        @Label("Definition")
+        String definition;
+
+        @Label("From State")
+        String fromState;
+
+        @Label("To State")
+        String toState;
+    }
+
+    /**
+     * A state handed its split transitions to the SplitHandler.
+     */
+    @Name("com.hexadevlabs.simplefsm.SplitStarted")
+    @Label("Split Started")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class SplitStarted extends Event {
+        @Label("Definition")
+        String definition;
+
+        @Label("State")
+        String state;
+
+        @Label("Branches")
+        int branches;
+    }
+
+    /**
+     * The branches of a split joined. Lasts from the start of the split, unless the
+     * branches were joined by another instance, like one loaded from persistence.
+     */
+    @Name("com.hexadevlabs.simplefsm.SplitJoined")
+    @Label("Split Joined")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("0 ms")
+    public static final class SplitJoined extends Event {
+        @Label("Definition")
+        String definition;
+
+        @Label("State")
+        String state;
+
+        @Label("Join State")
+        String joinState;
+
+        @Label("Branches")
+        int branches;
+    }
+
+    /**
+     * State of an instance written out, lasts while it is serialized.
+     */
+    @Name("com.hexadevlabs.simplefsm.SnapshotExported")
+    @Label("Snapshot Exported")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("0 ms")
+    public static final class SnapshotExported extends Event {
+        @Label("Definition")
+        String definition;
+
+        @Label("Format")
+        String format;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    /**
+     * @return A started StateExecuted event, or null if no recording wants it.
+     */
+    static StateExecuted beginStateExecuted() {
+        if (!STATE_EXECUTED.isEnabled()) {
+            return null;
+        }
+        StateExecuted event = new StateExecuted();
+        event.begin();
+        return event;
+    }
+
+    static void commit(StateExecuted event, String definition, State state, ExceptionInfo exceptionInfo) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.definition = definition;
+            event.state = state.getName();
+            event.stepClass = state.getProcessStepClassName();
+            if (exceptionInfo.hadException()) {
+                event.outcome = "EXCEPTION";
+                event.exception = exceptionInfo.exception.getClass().getName();
+            } else {
+                event.outcome = "SUCCESS";
+            }
+            event.commit();
+        }
+    }
+
+    static void transition(String definition, String fromState, String toState) {
+        if (!TRANSITION.isEnabled()) {
+            return;
+        }
+        Transition event = new Transition();
+        if (event.shouldCommit()) {
+            event.definition = definition;
+            event.fromState = fromState;
+            event.toState = toState;
+            event.commit();
+        }
+    }
+
+    /**
+     * Emits SplitStarted.
+     *
+     * @return A started SplitJoined event to commit with joined(), or null if no recording wants it.
+     */
+    static SplitJoined splitStarted(String definition, String state, int branches) {
+        if (SPLIT_STARTED.isEnabled()) {
+            SplitStarted event = new SplitStarted();
+            if (event.shouldCommit()) {
+                event.definition = definition;
+                event.state = state;
+                event.branches = branches;
+                event.commit();
+            }
+        }
+        SplitJoined joined = splitJoined(definition, state, branches);
+        if (joined != null) {
+            joined.begin();
+        }
+        return joined;
+    }
+
+    /**
+     * @return A SplitJoined event to commit with joined(), for a split not started
+     * by this instance, or null if no recording wants it.
+     */
+    static SplitJoined splitJoined(String definition, String state, int branches) {
+        if (!SPLIT_JOINED.isEnabled()) {
+            return null;
+        }
+        SplitJoined event = new SplitJoined();
+        event.definition = definition;
+        event.state = state;
+        event.branches = branches;
+        return event;
+    }
+
+    static void joined(SplitJoined event, String joinState) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.joinState = joinState;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return A started SnapshotExported event, or null if no recording wants it.
+     */
+    static SnapshotExported beginSnapshotExported() {
+        if (!SNAPSHOT_EXPORTED.isEnabled()) {
+            return null;
+        }
+        SnapshotExported event = new SnapshotExported();
+        event.begin();
+        return event;
+    }
+
+    static void commit(SnapshotExported event, String definition, String format, long size) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.definition = definition;
+            event.format = format;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    static void commit(SnapshotExported event, String definition, String json) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.definition = definition;
+            event.format = "JSON";
+            event.size = json.getBytes(StandardCharsets.UTF_8).length;
+            event.commit();
+        }
+    }
+}
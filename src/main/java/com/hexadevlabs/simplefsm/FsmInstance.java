@@ -0,0 +1,31 @@
+package com.hexadevlabs.simplefsm;
+
+/**
+ * A state machine instance with its data and the id it is known by, as kept by
+ * a ShardedRuntime. Only touch it from the shard that owns it, for example in
+ * the functions passed to ShardedRuntime.inspect().
+ */
+public class FsmInstance {
+
+    private final String id;
+    private final SimpleFSM fsm;
+    private final ProcessingData data;
+
+    public FsmInstance(String id, SimpleFSM fsm, ProcessingData data) {
+        this.id = id;
+        this.fsm = fsm;
+        this.data = data;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public SimpleFSM getFsm() {
+        return fsm;
+    }
+
+    public ProcessingData getData() {
+        return data;
+    }
+}
@@ -0,0 +1,298 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters for a state machine definition. One instance is shared by
+ * every SimpleFSM built from the definition, including copies made for splits.
+ * <p>
+ * Recording uses LongAdder and LatencyHistogram so it is lock-free, reading
+ * the values does not block recording.
+ */
+public class FsmMetrics {
+
+    private final ConcurrentHashMap<String, StateMetrics> states = new ConcurrentHashMap<>();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder concluded = new LongAdder();
+
+    /**
+     * Metrics for a single state.
+     */
+    public static class StateMetrics {
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder exceptions = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder bulkheadRejections = new LongAdder();
+        private final LatencyHistogram queueTime = new LatencyHistogram();
+        private final LongAdder rateLimitDelays = new LongAdder();
+        private final LongAdder rateLimitRejections = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder cacheMisses = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder exceptionsRouted = new LongAdder();
+        private final LongAdder splits = new LongAdder();
+        private final LongAdder splitBranches = new LongAdder();
+        private final LatencyHistogram joinLatency = new LatencyHistogram();
+        private final LongAdder pauses = new LongAdder();
+        private final LongAdder resumes = new LongAdder();
+        // Target state -> number of transitions taken to it.
+        private final ConcurrentHashMap<String, LongAdder> transitions = new ConcurrentHashMap<>();
+
+        public long getExecutions() {
+            return executions.sum();
+        }
+
+        public long getExceptions() {
+            return exceptions.sum();
+        }
+
+        /**
+         * Number of retries scheduled by the RetryPolicy of the state.
+         */
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        /**
+         * Number of executions rejected because the Bulkhead of the state was full.
+         */
+        public long getBulkheadRejections() {
+            return bulkheadRejections.sum();
+        }
+
+        /**
+         * Time in nanoseconds executions waited for a permit of the Bulkhead of the state.
+         */
+        public LatencyHistogram getQueueTime() {
+            return queueTime;
+        }
+
+        /**
+         * Number of executions delayed by the RateLimit of the state.
+         */
+        public long getRateLimitDelays() {
+            return rateLimitDelays.sum();
+        }
+
+        /**
+         * Number of executions rejected by the RateLimit of the state.
+         */
+        public long getRateLimitRejections() {
+            return rateLimitRejections.sum();
+        }
+
+        /**
+         * Number of executions replayed from the StepCache of the state.
+         */
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        /**
+         * Number of executions that ran the step because the StepCache of the state had no entry.
+         */
+        public long getCacheMisses() {
+            return cacheMisses.sum();
+        }
+
+        /**
+         * Fraction of lookups in the StepCache of the state which were hits.
+         */
+        public double getCacheHitRate() {
+            long hits = getCacheHits();
+            long total = hits + getCacheMisses();
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        /**
+         * Fraction of executions which ended with an exception.
+         */
+        public double getExceptionRate() {
+            long total = getExecutions();
+            return total == 0 ? 0 : (double) getExceptions() / total;
+        }
+
+        /**
+         * Step execution time in nanoseconds, including execution hooks.
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * Number of exceptions in the state that sent the instance to the onExceptionGoTo state.
+         */
+        public long getExceptionsRouted() {
+            return exceptionsRouted.sum();
+        }
+
+        /**
+         * Number of splits started by the state.
+         */
+        public long getSplits() {
+            return splits.sum();
+        }
+
+        /**
+         * Number of branches of the splits started by the state.
+         */
+        public long getSplitBranches() {
+            return splitBranches.sum();
+        }
+
+        /**
+         * Time in nanoseconds from the start of a split of the state until its
+         * branches joined. Only recorded when the split started and joined in the
+         * same instance, not when it was joined by one loaded from persistence.
+         */
+        public LatencyHistogram getJoinLatency() {
+            return joinLatency;
+        }
+
+        /**
+         * Number of times an instance paused in the state to wait for an event.
+         */
+        public long getPauses() {
+            return pauses.sum();
+        }
+
+        /**
+         * Number of instances paused in the state right now, as far as seen by this
+         * process. Instances paused here and resumed elsewhere are counted until the
+         * process restarts.
+         */
+        public long getPaused() {
+            return Math.max(0, pauses.sum() - resumes.sum());
+        }
+
+        public long getTransitionCount(String targetState) {
+            LongAdder counter = transitions.get(targetState);
+            return counter == null ? 0 : counter.sum();
+        }
+
+        /**
+         * Target state -> number of transitions taken to it.
+         */
+        public Map<String, Long> getTransitionCounts() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            transitions.forEach((target, counter) -> result.put(target, counter.sum()));
+            return result;
+        }
+
+        LongAdder transitionCounter(String targetState) {
+            LongAdder counter = transitions.get(targetState);
+            if (counter == null) {
+                counter = transitions.computeIfAbsent(targetState, k -> new LongAdder());
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * @return Metrics of the state, created on first use.
+     */
+    public StateMetrics state(String stateName) {
+        StateMetrics stateMetrics = states.get(stateName);
+        if (stateMetrics == null) {
+            stateMetrics = states.computeIfAbsent(stateName, k -> new StateMetrics());
+        }
+        return stateMetrics;
+    }
+
+    /**
+     * @return Metrics of the state or null if nothing was recorded for it.
+     */
+    public StateMetrics getStateMetrics(String stateName) {
+        return states.get(stateName);
+    }
+
+    public Map<String, StateMetrics> getStates() {
+        return Collections.unmodifiableMap(states);
+    }
+
+    /**
+     * Number of instances started.
+     */
+    public long getStarted() {
+        return started.sum();
+    }
+
+    /**
+     * Number of instances that reached a final state or were terminated.
+     */
+    public long getConcluded() {
+        return concluded.sum();
+    }
+
+    void recordStarted() {
+        started.increment();
+    }
+
+    void recordConcluded() {
+        concluded.increment();
+    }
+
+    void recordExceptionRouted(String stateName) {
+        state(stateName).exceptionsRouted.increment();
+    }
+
+    void recordSplit(String stateName, int branches) {
+        StateMetrics stateMetrics = state(stateName);
+        stateMetrics.splits.increment();
+        stateMetrics.splitBranches.add(branches);
+    }
+
+    void recordJoin(String stateName, long durationNanos) {
+        state(stateName).joinLatency.record(durationNanos);
+    }
+
+    void recordPause(String stateName) {
+        state(stateName).pauses.increment();
+    }
+
+    void recordResume(String stateName) {
+        state(stateName).resumes.increment();
+    }
+
+    void recordExecution(String stateName, long durationNanos, boolean hadException) {
+        StateMetrics stateMetrics = state(stateName);
+        stateMetrics.executions.increment();
+        stateMetrics.latency.record(durationNanos);
+        if (hadException) {
+            stateMetrics.exceptions.increment();
+        }
+    }
+
+    void recordRetry(String stateName) {
+        state(stateName).retries.increment();
+    }
+
+    void recordBulkheadRejection(String stateName) {
+        state(stateName).bulkheadRejections.increment();
+    }
+
+    void recordQueueTime(String stateName, long queuedNanos) {
+        state(stateName).queueTime.record(queuedNanos);
+    }
+
+    void recordRateLimited(String stateName, boolean delayed) {
+        StateMetrics stateMetrics = state(stateName);
+        (delayed ? stateMetrics.rateLimitDelays : stateMetrics.rateLimitRejections).increment();
+    }
+
+    void recordCacheHit(String stateName) {
+        state(stateName).cacheHits.increment();
+    }
+
+    void recordCacheMiss(String stateName) {
+        state(stateName).cacheMisses.increment();
+    }
+
+    void recordTransition(String fromState, String toState) {
+        state(fromState).transitionCounter(toState).increment();
+    }
+}
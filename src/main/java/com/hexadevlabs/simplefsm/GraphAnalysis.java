@@ -0,0 +1,641 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.*;
+
+/**
+ * Result of validating and analysing the graph of a SimpleFSM definition.
+ * <p>
+ * It is computed once when the state machine is built and reused for every item,
+ * the engine only recomputes it when the definition is changed afterwards.
+ * States are numbered in the order they are iterated from the definition which
+ * allows the analysis to work on int arrays. All passes are O(V+E) so that generated
+ * definitions with a very large number of states can be analysed.
+ */
+public final class GraphAnalysis {
+
+    /**
+     * Returned by getMaxChainLength() when the graph has a cycle.
+     */
+    public static final int UNBOUNDED = -1;
+
+    private final String[] names;
+    private final Map<String, Integer> ids;
+    private final int[][] successors;
+    private final BitSet reachable;
+    private final BitSet terminal;
+    private final BitSet inCycle;
+    private final BitSet splitStates;
+    private final BitSet joinTargets;
+    private final Map<String, String> splitJoins;
+    private final int maxChainLength;
+
+    private GraphAnalysis(String[] names, Map<String, Integer> ids, int[][] successors, BitSet reachable,
+                          BitSet terminal, BitSet inCycle, BitSet splitStates, BitSet joinTargets,
+                          Map<String, String> splitJoins, int maxChainLength) {
+        this.names = names;
+        this.ids = ids;
+        this.successors = successors;
+        this.reachable = reachable;
+        this.terminal = terminal;
+        this.inCycle = inCycle;
+        this.splitStates = splitStates;
+        this.joinTargets = joinTargets;
+        this.splitJoins = splitJoins;
+        this.maxChainLength = maxChainLength;
+    }
+
+    /**
+     * Validates the definition and computes the analysis.
+     *
+     * @throws SimpleFSMValidationException If the definition is not valid.
+     */
+    static GraphAnalysis analyze(Map<String, State> states, Set<String> finalStates,
+                                 String onExceptionState, SplitHandler splitHandler) {
+        // Make sure final States exist in State map
+        if(!finalStates.isEmpty() && !finalStates.stream().allMatch(states::containsKey)){
+            throw new SimpleFSMValidationException("Some final states are not declared. Make sure all states marked as final are added with state() method.");
+        }
+
+        int n = states.size();
+        String[] names = new String[n];
+        State[] byId = new State[n];
+        Map<String, Integer> ids = new HashMap<>(n * 2);
+        for (State state : states.values()) {
+            int id = ids.size();
+            names[id] = state.getName();
+            byId[id] = state;
+            ids.put(state.getName(), id);
+        }
+
+        // Make sure the transitions are to states that exist.
+        int[][] successors = new int[n][];
+        int[] inDegree = new int[n];
+        BitSet splitStates = new BitSet(n);
+        BitSet joinTargets = new BitSet(n);
+        for (int id = 0; id < n; id++) {
+            State state = byId[id];
+            Collection<String> transitions = state.getTransitions();
+            int[] targets = new int[transitions.size()];
+            int i = 0;
+            for (String transitionTarget : transitions) {
+                Integer target = ids.get(transitionTarget);
+                if (target == null) {
+                    throw new SimpleFSMValidationException("State '" + names[id] + "' has a transition to undefined state '" + transitionTarget + "'.");
+                }
+                targets[i++] = target;
+                inDegree[target]++;
+            }
+            successors[id] = targets;
+            if (!state.getSplitTransitions().isEmpty()) {
+                splitStates.set(id);
+            }
+            if (state.getJoinState() != null) {
+                Integer target = ids.get(state.getJoinState());
+                if (target != null) {
+                    joinTargets.set(target);
+                }
+            }
+        }
+
+        // If there's a split handler, make sure there's at least one split transition defined
+        if (splitHandler != null && splitStates.isEmpty()) {
+            throw new SimpleFSMValidationException("A split handler is set, but no split transitions are defined.");
+        }
+
+        // Ensure that states reached by split transitions have additional transitions
+        for (int id = splitStates.nextSetBit(0); id >= 0; id = splitStates.nextSetBit(id + 1)) {
+            State state = byId[id];
+            for (String splitTransition : state.getSplitTransitions()) {
+                String stateName = state.getNextState(splitTransition);
+                if (states.get(stateName).getTransitions().isEmpty()) {  // Check if the state has only the incoming split transition
+                    throw new SimpleFSMValidationException("State '" + stateName + "' reached by a split transition must have at least one additional transition.");
+                }
+            }
+        }
+
+        for (State state : byId) {
+            FanOut fanOut = state.getFanOut();
+            if (fanOut == null) {
+                continue;
+            }
+            if (state.shouldWaitForEventBeforeTransition() || !state.getSplitTransitions().isEmpty() || state.getStepTransitions().size() != 1) {
+                throw new SimpleFSMValidationException("State '" + state.getName() + "' fans out so it must not wait or split and must have exactly one transition to join to.");
+            }
+            // Validates the sub definition as well.
+            if (fanOut.getSubDefinition().getAnalysis().getStateId(fanOut.getSubStartState()) < 0) {
+                throw new SimpleFSMValidationException("State '" + state.getName() + "' fans out to undefined state '" + fanOut.getSubStartState() + "'.");
+            }
+        }
+
+        BitSet terminal = new BitSet(n);
+        for (int id = 0; id < n; id++) {
+            if (successors[id].length == 0) {
+                terminal.set(id);
+            }
+        }
+
+        // States without incoming transitions are the natural places to start,
+        // the exception state can be entered from anywhere.
+        BitSet roots = new BitSet(n);
+        for (int id = 0; id < n; id++) {
+            if (inDegree[id] == 0) {
+                roots.set(id);
+            }
+        }
+        if (n > 0) {
+            roots.set(0);
+        }
+        if (onExceptionState != null && ids.containsKey(onExceptionState)) {
+            roots.set(ids.get(onExceptionState));
+        }
+        BitSet reachable = reachableFrom(roots, successors);
+
+        BitSet inCycle = findCycles(successors);
+
+        int maxChainLength = UNBOUNDED;
+        if (inCycle.isEmpty()) {
+            int[] longestFrom = longestPaths(successors, inDegree);
+            int longest = 0;
+            for (int length : longestFrom) {
+                longest = Math.max(longest, length);
+            }
+            if (onExceptionState != null && ids.containsKey(onExceptionState)) {
+                longest += longestFrom[ids.get(onExceptionState)];
+            }
+            maxChainLength = longest;
+        }
+
+        SplitJoinResolver resolver = new SplitJoinResolver(byId, ids, successors, splitStates, joinTargets);
+        Map<String, String> splitJoins = resolver.resolve();
+        int nested = resolver.nestedSplits.nextSetBit(0);
+        if (nested >= 0 && splitHandler != null && !splitHandler.supportsNestedSplits()) {
+            throw new SimpleFSMValidationException("State '" + names[nested] + "' splits inside a branch of another split, but "
+                    + splitHandler.getClass().getSimpleName() + " does not support nested splits.");
+        }
+
+        return new GraphAnalysis(names, ids, successors, reachable, terminal, inCycle, splitStates,
+                joinTargets, splitJoins, maxChainLength);
+    }
+
+    private static BitSet reachableFrom(BitSet roots, int[][] successors) {
+        BitSet seen = new BitSet(successors.length);
+        int[] queue = new int[successors.length];
+        int tail = 0;
+        for (int id = roots.nextSetBit(0); id >= 0; id = roots.nextSetBit(id + 1)) {
+            seen.set(id);
+            queue[tail++] = id;
+        }
+        for (int head = 0; head < tail; head++) {
+            for (int next : successors[queue[head]]) {
+                if (!seen.get(next)) {
+                    seen.set(next);
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Iterative Tarjan strongly connected components. A state is part of a cycle
+     * when its component has more than one state or it transitions to itself.
+     */
+    private static BitSet findCycles(int[][] successors) {
+        int n = successors.length;
+        BitSet inCycle = new BitSet(n);
+        int[] index = new int[n];
+        int[] low = new int[n];
+        Arrays.fill(index, -1);
+        boolean[] onStack = new boolean[n];
+        int[] componentStack = new int[n];
+        int componentTop = 0;
+        int[] callStack = new int[n];
+        int[] edgePosition = new int[n];
+        int counter = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+            int callTop = 0;
+            callStack[callTop++] = root;
+            index[root] = low[root] = counter++;
+            componentStack[componentTop++] = root;
+            onStack[root] = true;
+            edgePosition[root] = 0;
+
+            while (callTop > 0) {
+                int v = callStack[callTop - 1];
+                if (edgePosition[v] < successors[v].length) {
+                    int w = successors[v][edgePosition[v]++];
+                    if (w == v) {
+                        inCycle.set(v);
+                    }
+                    if (index[w] == -1) {
+                        index[w] = low[w] = counter++;
+                        componentStack[componentTop++] = w;
+                        onStack[w] = true;
+                        edgePosition[w] = 0;
+                        callStack[callTop++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                } else {
+                    callTop--;
+                    if (callTop > 0) {
+                        int parent = callStack[callTop - 1];
+                        low[parent] = Math.min(low[parent], low[v]);
+                    }
+                    if (low[v] == index[v]) {
+                        int size = 0;
+                        int start = componentTop;
+                        int w;
+                        do {
+                            w = componentStack[--componentTop];
+                            onStack[w] = false;
+                            size++;
+                        } while (w != v);
+                        if (size > 1) {
+                            for (int i = componentTop; i < start; i++) {
+                                inCycle.set(componentStack[i]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return inCycle;
+    }
+
+    /**
+     * For an acyclic graph computes the number of states on the longest chain starting at each state.
+     */
+    private static int[] longestPaths(int[][] successors, int[] inDegree) {
+        int n = successors.length;
+        int[] remaining = inDegree.clone();
+        int[] order = new int[n];
+        int tail = 0;
+        for (int id = 0; id < n; id++) {
+            if (remaining[id] == 0) {
+                order[tail++] = id;
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            for (int next : successors[order[head]]) {
+                if (--remaining[next] == 0) {
+                    order[tail++] = next;
+                }
+            }
+        }
+        int[] longestFrom = new int[n];
+        for (int i = tail - 1; i >= 0; i--) {
+            int v = order[i];
+            int best = 0;
+            for (int next : successors[v]) {
+                best = Math.max(best, longestFrom[next]);
+            }
+            longestFrom[v] = best + 1;
+        }
+        return longestFrom;
+    }
+
+    /**
+     * Pairs every split state with the state its branches join to.
+     * <p>
+     * A branch ends at a state declared with join(), or when the next state is a
+     * join target of some other branch. A nested split inside a branch continues
+     * from the state the nested split joins to. Results are memoized per state
+     * so each state is walked once.
+     */
+    private static final class SplitJoinResolver {
+        private static final int UNRESOLVED = -2;
+        private static final int NONE = -1;
+        private static final int IN_PROGRESS = -3;
+
+        private final State[] byId;
+        private final Map<String, Integer> ids;
+        private final int[][] successors;
+        private final BitSet splitStates;
+        private final BitSet joinTargets;
+        private final int[] branchJoin;
+        private final int[] splitJoin;
+        // Split states walked into from a branch of another split.
+        final BitSet nestedSplits;
+
+        SplitJoinResolver(State[] byId, Map<String, Integer> ids, int[][] successors, BitSet splitStates, BitSet joinTargets) {
+            this.byId = byId;
+            this.ids = ids;
+            this.successors = successors;
+            this.splitStates = splitStates;
+            this.joinTargets = joinTargets;
+            this.branchJoin = new int[byId.length];
+            this.splitJoin = new int[byId.length];
+            this.nestedSplits = new BitSet(byId.length);
+            Arrays.fill(branchJoin, UNRESOLVED);
+            Arrays.fill(splitJoin, UNRESOLVED);
+        }
+
+        Map<String, String> resolve() {
+            Map<String, String> result = new HashMap<>();
+            for (int id = splitStates.nextSetBit(0); id >= 0; id = splitStates.nextSetBit(id + 1)) {
+                int join = run(new SplitFrame(id));
+                if (join >= 0) {
+                    result.put(byId[id].getName(), byId[join].getName());
+                }
+            }
+            return result;
+        }
+
+        // Frames of the walks in progress. Instead of recursing, a frame pushes the frame
+        // of the split or branch it needs the join of, and is resumed with that in returned.
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private int returned;
+
+        private int run(Frame first) {
+            stack.push(first);
+            while (!stack.isEmpty()) {
+                if (stack.peek().resume()) {
+                    stack.pop();
+                }
+            }
+            return returned;
+        }
+
+        private interface Frame {
+            /**
+             * @return True when done, with the result in returned, false after pushing another frame.
+             */
+            boolean resume();
+        }
+
+        /**
+         * Join of a split state: the join all of its branches end at, or NONE.
+         */
+        private final class SplitFrame implements Frame {
+            private final int split;
+            private Iterator<String> transitions;
+            private int join = UNRESOLVED;
+
+            SplitFrame(int split) {
+                this.split = split;
+            }
+
+            @Override
+            public boolean resume() {
+                if (transitions == null) {
+                    if (splitJoin[split] == IN_PROGRESS) {
+                        returned = NONE;
+                        return true;
+                    }
+                    if (splitJoin[split] != UNRESOLVED) {
+                        returned = splitJoin[split];
+                        return true;
+                    }
+                    splitJoin[split] = IN_PROGRESS;
+                    transitions = byId[split].getSplitTransitions().iterator();
+                } else if (join == UNRESOLVED) {
+                    join = returned;
+                } else if (join != returned) {
+                    join = NONE;
+                }
+                if (transitions.hasNext()) {
+                    stack.push(new BranchFrame(ids.get(byId[split].getNextState(transitions.next()))));
+                    return false;
+                }
+                splitJoin[split] = join == UNRESOLVED ? NONE : join;
+                returned = splitJoin[split];
+                return true;
+            }
+        }
+
+        /**
+         * Join a branch ends at. Walks the single successor chain of the branch in a
+         * loop, only pushing frames for nested splits and conditional transitions.
+         */
+        private final class BranchFrame implements Frame {
+            private static final int WALK = 0;
+            private static final int AFTER_SPLIT = 1;
+            private static final int CONDITIONAL = 2;
+
+            private final List<Integer> path = new ArrayList<>();
+            private int current;
+            private int waitingFor = WALK;
+            private int[] targets;
+            private int index;
+            private int result;
+
+            BranchFrame(int start) {
+                this.current = start;
+            }
+
+            @Override
+            public boolean resume() {
+                if (waitingFor == AFTER_SPLIT) {
+                    waitingFor = WALK;
+                    if (returned < 0) {
+                        return finish(NONE);
+                    }
+                    // Nested join state is executed as part of this branch.
+                    current = returned;
+                } else if (waitingFor == CONDITIONAL) {
+                    waitingFor = WALK;
+                    if (combine(returned)) {
+                        return finish(NONE);
+                    }
+                    return conditional();
+                }
+                while (true) {
+                    if (branchJoin[current] == IN_PROGRESS) {
+                        return finish(NONE);
+                    }
+                    if (branchJoin[current] != UNRESOLVED) {
+                        return finish(branchJoin[current]);
+                    }
+                    branchJoin[current] = IN_PROGRESS;
+                    path.add(current);
+
+                    State state = byId[current];
+                    if (state.getJoinState() != null) {
+                        return finish(ids.getOrDefault(state.getJoinState(), NONE));
+                    }
+                    if (splitStates.get(current)) {
+                        // A branch looping back to the split it runs in is not a nested split.
+                        if (splitJoin[current] != IN_PROGRESS) {
+                            nestedSplits.set(current);
+                        }
+                        waitingFor = AFTER_SPLIT;
+                        stack.push(new SplitFrame(current));
+                        return false;
+                    }
+                    int[] next = successors[current];
+                    if (next.length == 0) {
+                        return finish(NONE);
+                    }
+                    if (next.length == 1 || allSame(next)) {
+                        if (joinTargets.get(next[0])) {
+                            return finish(next[0]);
+                        }
+                        current = next[0];
+                        continue;
+                    }
+                    targets = next;
+                    index = 0;
+                    result = UNRESOLVED;
+                    return conditional();
+                }
+            }
+
+            /**
+             * Combines the ends of the remaining conditional targets.
+             */
+            private boolean conditional() {
+                while (index < targets.length) {
+                    int target = targets[index++];
+                    if (!joinTargets.get(target)) {
+                        waitingFor = CONDITIONAL;
+                        stack.push(new BranchFrame(target));
+                        return false;
+                    }
+                    if (combine(target)) {
+                        return finish(NONE);
+                    }
+                }
+                return finish(result == UNRESOLVED ? NONE : result);
+            }
+
+            /**
+             * @return True if the targets end at different joins.
+             */
+            private boolean combine(int end) {
+                if (result == UNRESOLVED || result == NONE) {
+                    result = end;
+                    return false;
+                }
+                return end != NONE && end != result;
+            }
+
+            private boolean finish(int join) {
+                for (int id : path) {
+                    branchJoin[id] = join;
+                }
+                returned = join;
+                return true;
+            }
+        }
+
+        private static boolean allSame(int[] targets) {
+            for (int target : targets) {
+                if (target != targets[0]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return Number of states in the definition.
+     */
+    public int getStateCount() {
+        return names.length;
+    }
+
+    /**
+     * Dense id of a state, from 0 to getStateCount() - 1, or -1 if it is not defined.
+     */
+    public int getStateId(String stateName) {
+        Integer id = ids.get(stateName);
+        return id == null ? -1 : id;
+    }
+
+    public String getStateName(int stateId) {
+        return names[stateId];
+    }
+
+    /**
+     * @return Ids of the states that can be transitioned to from the given state.
+     */
+    int[] getSuccessors(int stateId) {
+        return successors[stateId];
+    }
+
+    /**
+     * States reachable from the states without incoming transitions, the first
+     * declared state and the exception state.
+     */
+    public Set<String> getReachableStates() {
+        return namesOf(reachable);
+    }
+
+    public Set<String> getUnreachableStates() {
+        BitSet unreachable = new BitSet(names.length);
+        unreachable.set(0, names.length);
+        unreachable.andNot(reachable);
+        return namesOf(unreachable);
+    }
+
+    /**
+     * States without any outgoing transition.
+     */
+    public Set<String> getTerminalStates() {
+        return namesOf(terminal);
+    }
+
+    public boolean hasCycles() {
+        return !inCycle.isEmpty();
+    }
+
+    /**
+     * States which are part of at least one cycle.
+     */
+    public Set<String> getCycleStates() {
+        return namesOf(inCycle);
+    }
+
+    public boolean hasSplits() {
+        return !splitStates.isEmpty();
+    }
+
+    /**
+     * States that split branches join to.
+     */
+    public Set<String> getJoinTargets() {
+        return namesOf(joinTargets);
+    }
+
+    boolean isJoinTarget(String stateName) {
+        Integer id = ids.get(stateName);
+        return id != null && joinTargets.get(id);
+    }
+
+    /**
+     * @return The state all branches of the split state join to, or null if the
+     * branches do not join to a single common state.
+     */
+    public String getJoinState(String splitState) {
+        return splitJoins.get(splitState);
+    }
+
+    /**
+     * Split state -> state its branches join to, for all splits that pair up.
+     */
+    public Map<String, String> getSplitJoins() {
+        return Collections.unmodifiableMap(splitJoins);
+    }
+
+    /**
+     * Upper bound of how many states a single run can execute including a final
+     * transition to the exception state, or UNBOUNDED if the graph has cycles.
+     */
+    public int getMaxChainLength() {
+        return maxChainLength;
+    }
+
+    private Set<String> namesOf(BitSet bits) {
+        Set<String> result = new LinkedHashSet<>();
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            result.add(names[id]);
+        }
+        return result;
+    }
+}
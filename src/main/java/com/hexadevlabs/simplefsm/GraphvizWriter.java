@@ -0,0 +1,132 @@
+package com.hexadevlabs.simplefsm;
+
+import org.apache.commons.text.StringEscapeUtils;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the Dot notation of a state machine to an Appendable one line at a time,
+ * so very large definitions can be written to a file or socket without building
+ * the whole document in memory. States and transitions are written in the order
+ * they were defined.
+ * <p>
+ * With metrics the diagram becomes a heat map: a state is filled redder the closer
+ * its p99 latency is to the slowest state, states that had exceptions get a red
+ * border, and transitions are drawn thicker the more often they were taken.
+ */
+class GraphvizWriter {
+
+    private final String name;
+    private final Map<String, State> states;
+    private final Set<String> finalStates;
+    private final String onExceptionState;
+    private final FsmMetrics metrics;
+
+    // Maximums used to scale the heat map.
+    private long maxP99;
+    private long maxTransitions;
+
+    GraphvizWriter(String name, Map<String, State> states, Set<String> finalStates, String onExceptionState, FsmMetrics metrics) {
+        this.name = name;
+        this.states = states;
+        this.finalStates = finalStates;
+        this.onExceptionState = onExceptionState;
+        this.metrics = metrics;
+    }
+
+    void write(Appendable dot) throws IOException {
+        if (metrics != null) {
+            computeMaximums();
+        }
+
+        dot.append("digraph G {\n");
+
+        if(name != null){
+            dot.append("labelloc=\"t\";\n" + "label=<<B>")
+                    .append(StringEscapeUtils.escapeHtml4(name)).append("</B>>;\n");
+        }
+        for (Map.Entry<String, State> entry : states.entrySet()) {
+            String stateName = entry.getKey();
+            State state = entry.getValue();
+            FsmMetrics.StateMetrics stateMetrics = metrics != null ? metrics.getStateMetrics(stateName) : null;
+
+            dot.append("\t").append(stateName)
+                    .append("[label=\"")
+                    .append(stateName)
+                    .append("\\n")
+                    .append("[").append(state.getProcessStepClassName()).append("]");
+
+            if(state.shouldWaitForEventBeforeTransition()){
+                dot.append("\\n").append("<wait>");
+            }
+            if(state.getFanOut() != null){
+                dot.append("\\n").append("<for each ").append(state.getFanOut().getCollectionKey()).append(">");
+            }
+            if(finalStates.contains(stateName)){
+                dot.append("\\n").append("<final>");
+            }
+            if (stateMetrics != null) {
+                appendStateMetrics(dot, stateMetrics);
+            } else {
+                dot.append("\"];\n");
+            }
+
+            for (Map.Entry<String, String> transition : state.getTransitionEntries()) {
+                String eventName = transition.getKey();
+                String targetState = transition.getValue();
+
+                dot.append("\t").append(stateName).append(" -> ").append(targetState)
+                        .append("[label=\"").append(eventName);
+                if (stateMetrics != null) {
+                    appendTransitionMetrics(dot, stateMetrics.getTransitionCount(targetState));
+                } else {
+                    dot.append("\"];\n");
+                }
+            }
+        }
+        if(onExceptionState!= null){
+            dot.append("\t").append("Exception [label=\"Exception\" shape=\"box\"];\n");
+            dot.append("\t").append("Exception -> ").append(onExceptionState)
+                    .append("[label=\"ON_EXCEPTION\"];\n");
+        }
+
+        dot.append("}");
+    }
+
+    private void computeMaximums() {
+        for (FsmMetrics.StateMetrics stateMetrics : metrics.getStates().values()) {
+            maxP99 = Math.max(maxP99, stateMetrics.getLatency().getPercentile(0.99));
+            for (long count : stateMetrics.getTransitionCounts().values()) {
+                maxTransitions = Math.max(maxTransitions, count);
+            }
+        }
+    }
+
+    private void appendStateMetrics(Appendable dot, FsmMetrics.StateMetrics stateMetrics) throws IOException {
+        long p99 = stateMetrics.getLatency().getPercentile(0.99);
+        double exceptionRate = stateMetrics.getExceptionRate();
+        dot.append("\\n").append(String.format(Locale.ROOT, "n=%d p99=%.3fms err=%.1f%%",
+                stateMetrics.getExecutions(), p99 / 1_000_000.0, exceptionRate * 100));
+        dot.append("\"");
+
+        // HSV color, hue 0 is red and saturation grows with the relative latency.
+        double heat = maxP99 == 0 ? 0 : (double) p99 / maxP99;
+        dot.append(" style=\"filled\" fillcolor=\"")
+                .append(String.format(Locale.ROOT, "0.000 %.3f 1.000", heat)).append("\"");
+        if (exceptionRate > 0) {
+            dot.append(" color=\"red\"")
+                    .append(String.format(Locale.ROOT, " penwidth=\"%.2f\"", 1 + 4 * exceptionRate));
+        }
+        dot.append("];\n");
+    }
+
+    private void appendTransitionMetrics(Appendable dot, long count) throws IOException {
+        dot.append(" (").append(Long.toString(count)).append(")\"");
+        double weight = maxTransitions == 0 ? 0 : Math.log1p(count) / Math.log1p(maxTransitions);
+        dot.append(String.format(Locale.ROOT, " penwidth=\"%.2f\"", 1 + 4 * weight));
+        dot.append("];\n");
+    }
+}
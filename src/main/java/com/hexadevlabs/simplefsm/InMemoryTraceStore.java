@@ -0,0 +1,59 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps traces on the heap. Snapshots stay small, but the entries are lost with the process.
+ */
+public class InMemoryTraceStore implements TraceStore {
+
+    private final Map<String, List<LogEntry>> traces = new ConcurrentHashMap<>();
+
+    @Override
+    public long append(String traceId, long fromIndex, List<LogEntry> entries) {
+        List<LogEntry> trace = traces.computeIfAbsent(traceId, id -> new ArrayList<>());
+        synchronized (trace) {
+            if (fromIndex < 0 || fromIndex > trace.size()) {
+                throw new IllegalArgumentException("Index " + fromIndex + " is outside of trace " + traceId + " of " + trace.size() + " entries.");
+            }
+            trace.subList((int) fromIndex, trace.size()).clear();
+            trace.addAll(entries);
+            return trace.size();
+        }
+    }
+
+    @Override
+    public List<LogEntry> read(String traceId, long from, long to) {
+        List<LogEntry> trace = traces.get(traceId);
+        if (trace == null) {
+            return Collections.emptyList();
+        }
+        synchronized (trace) {
+            int end = (int) Math.min(to, trace.size());
+            if (from >= end) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<>(trace.subList((int) from, end));
+        }
+    }
+
+    @Override
+    public long size(String traceId) {
+        List<LogEntry> trace = traces.get(traceId);
+        if (trace == null) {
+            return 0;
+        }
+        synchronized (trace) {
+            return trace.size();
+        }
+    }
+
+    @Override
+    public void delete(String traceId) {
+        traces.remove(traceId);
+    }
+}
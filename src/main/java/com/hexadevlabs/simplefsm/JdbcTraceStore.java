@@ -0,0 +1,139 @@
+package com.hexadevlabs.simplefsm;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps traces in a database table, one row per entry:
+ * <pre>
+ * trace_id VARCHAR(64), seq BIGINT, epoch_nanos BIGINT, message TEXT, PRIMARY KEY (trace_id, seq)
+ * </pre>
+ * createTable() creates it if it does not exist. Each append runs in its own
+ * transaction on a connection from the supplier, which is closed afterwards.
+ */
+public class JdbcTraceStore implements TraceStore {
+
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+
+    private final Supplier<Connection> connectionSupplier;
+    private final String table;
+
+    public JdbcTraceStore(Supplier<Connection> connectionSupplier, String table) {
+        if (!TABLE_NAME.matcher(table).matches()) {
+            throw new IllegalArgumentException("Invalid table name '" + table + "'.");
+        }
+        this.connectionSupplier = Objects.requireNonNull(connectionSupplier);
+        this.table = table;
+    }
+
+    public JdbcTraceStore createTable() {
+        try (Connection conn = connectionSupplier.get(); Statement st = conn.createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS " + table
+                    + " (trace_id VARCHAR(64) NOT NULL, seq BIGINT NOT NULL, epoch_nanos BIGINT NOT NULL,"
+                    + " message TEXT, PRIMARY KEY (trace_id, seq))");
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not create trace table " + table, e);
+        }
+        return this;
+    }
+
+    @Override
+    public long append(String traceId, long fromIndex, List<LogEntry> entries) {
+        try (Connection conn = connectionSupplier.get()) {
+            conn.setAutoCommit(false);
+            try {
+                long size = size(conn, traceId);
+                if (fromIndex < 0 || fromIndex > size) {
+                    throw new IllegalArgumentException("Index " + fromIndex + " is outside of trace " + traceId + " of " + size + " entries.");
+                }
+                if (fromIndex < size) {
+                    try (PreparedStatement truncate = conn.prepareStatement(
+                            "DELETE FROM " + table + " WHERE trace_id = ? AND seq >= ?")) {
+                        truncate.setString(1, traceId);
+                        truncate.setLong(2, fromIndex);
+                        truncate.executeUpdate();
+                    }
+                }
+                long seq = fromIndex;
+                if (!entries.isEmpty()) {
+                    try (PreparedStatement insert = conn.prepareStatement(
+                            "INSERT INTO " + table + " (trace_id, seq, epoch_nanos, message) VALUES (?, ?, ?, ?)")) {
+                        for (LogEntry entry : entries) {
+                            insert.setString(1, traceId);
+                            insert.setLong(2, seq++);
+                            insert.setLong(3, entry.getEpochNanos());
+                            insert.setString(4, entry.getMessage());
+                            insert.addBatch();
+                        }
+                        insert.executeBatch();
+                    }
+                }
+                conn.commit();
+                return seq;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not append to trace " + traceId, e);
+        }
+    }
+
+    @Override
+    public List<LogEntry> read(String traceId, long from, long to) {
+        List<LogEntry> entries = new ArrayList<>();
+        try (Connection conn = connectionSupplier.get();
+             PreparedStatement select = conn.prepareStatement("SELECT epoch_nanos, message FROM " + table
+                     + " WHERE trace_id = ? AND seq >= ? AND seq < ? ORDER BY seq")) {
+            select.setString(1, traceId);
+            select.setLong(2, from);
+            select.setLong(3, to);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    entries.add(new LogEntry(rs.getLong(1), rs.getString(2)));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read trace " + traceId, e);
+        }
+        return entries;
+    }
+
+    @Override
+    public long size(String traceId) {
+        try (Connection conn = connectionSupplier.get()) {
+            return size(conn, traceId);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read trace " + traceId, e);
+        }
+    }
+
+    private long size(Connection conn, String traceId) throws SQLException {
+        try (PreparedStatement count = conn.prepareStatement("SELECT COUNT(*) FROM " + table + " WHERE trace_id = ?")) {
+            count.setString(1, traceId);
+            try (ResultSet rs = count.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    @Override
+    public void delete(String traceId) {
+        try (Connection conn = connectionSupplier.get();
+             PreparedStatement delete = conn.prepareStatement("DELETE FROM " + table + " WHERE trace_id = ?")) {
+            delete.setString(1, traceId);
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not delete trace " + traceId, e);
+        }
+    }
+}
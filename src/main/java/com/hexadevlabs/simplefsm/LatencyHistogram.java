@@ -0,0 +1,139 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values, normally durations in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: every power of two is split into 8
+ * sub-buckets, so a percentile is accurate to within 12.5%. Recording is a
+ * couple of atomic increments and never allocates.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    static final int BUCKET_COUNT = (63 - 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return (exponent - 2) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Largest value counted in the bucket.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + 2;
+        long sub = index % SUB_BUCKETS;
+        long upper = ((SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    /**
+     * Approximate value below which the given fraction of recorded values fall.
+     *
+     * @param percentile Between 0 and 1, for example 0.99.
+     * @return The upper bound of the bucket the percentile falls into, 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long bucket : snapshot) {
+            total += bucket;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Copy of the bucket counts. Reading does not block recording, so a snapshot
+     * taken during recording may be off by the values recorded meanwhile.
+     */
+    long[] snapshot() {
+        long[] result = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            result[i] = buckets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Number of values at most each of the bounds, from a single snapshot. A value
+     * counts towards a bound if the upper bound of its bucket is not above it.
+     *
+     * @param bounds Ascending bounds.
+     * @return The counts for the bounds followed by the total count.
+     */
+    long[] cumulativeCounts(long[] bounds) {
+        long[] snapshot = snapshot();
+        long[] result = new long[bounds.length + 1];
+        int bound = 0;
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            long upper = bucketUpperBound(i);
+            while (bound < bounds.length && upper > bounds[bound]) {
+                result[bound++] = seen;
+            }
+            seen += snapshot[i];
+        }
+        while (bound < bounds.length) {
+            result[bound++] = seen;
+        }
+        result[bounds.length] = seen;
+        return result;
+    }
+}
@@ -1,56 +1,82 @@
 package com.hexadevlabs.simplefsm;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonCreator;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"timestamp", "message"})
 public class LogEntry {
 
-    @JsonProperty("timestamp")
-    final LocalDateTime timestamp;
+    // Epoch nanoseconds as taken from an FsmClock.
+    final long epochNanos;
 
-    @JsonProperty("message")
+    // Null for entries encoded with a TraceDictionary, see EncodedLogEntry.
     final String message;
 
+    public LogEntry(long epochNanos, String message) {
+        this.epochNanos = epochNanos;
+        this.message = message;
+    }
+
     @JsonCreator
     public LogEntry(@JsonProperty("timestamp") LocalDateTime timestamp,
                     @JsonProperty("message") String message) {
-        this.timestamp = timestamp;
-        this.message = message;
+        this(toEpochNanos(timestamp), message);
     }
 
     // Getters
+
+    /**
+     * Converts the timestamp to LocalDateTime in the default time zone.
+     * Only used when exporting or printing so the conversion is done lazily.
+     */
+    @JsonProperty("timestamp")
     public LocalDateTime getTimestamp() {
-        return timestamp;
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(0, epochNanos), ZoneId.systemDefault());
+    }
+
+    @JsonIgnore
+    public long getEpochNanos() {
+        return epochNanos;
     }
 
+    @JsonProperty("message")
     public String getMessage() {
         return message;
     }
 
+    private static long toEpochNanos(LocalDateTime timestamp) {
+        Instant instant = timestamp.atZone(ZoneId.systemDefault()).toInstant();
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
     @Override
     public String toString() {
-        return timestamp + ": " + message;
+        return getTimestamp() + ": " + getMessage();
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+        if (!(o instanceof LogEntry)) return false;
 
         LogEntry logEntry = (LogEntry) o;
 
-        if (!timestamp.equals(logEntry.timestamp)) return false;
-        return message.equals(logEntry.message);
+        if (epochNanos != logEntry.epochNanos) return false;
+        return getMessage().equals(logEntry.getMessage());
     }
 
     @Override
     public int hashCode() {
-        int result = timestamp.hashCode();
-        result = 31 * result + message.hashCode();
+        int result = Long.hashCode(epochNanos);
+        result = 31 * result + getMessage().hashCode();
         return result;
     }
 }
@@ -0,0 +1,62 @@
+package com.hexadevlabs.simplefsm;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The FsmMetrics of several definitions by name, to expose them together, for
+ * example in the Prometheus text format with writePrometheus() or PrometheusEndpoint.
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentHashMap<String, FsmMetrics> definitions = new ConcurrentHashMap<>();
+
+    /**
+     * @return Metrics of the definition, created on first use. Pass them to Builder.withMetrics().
+     */
+    public FsmMetrics metrics(String definition) {
+        return definitions.computeIfAbsent(definition, k -> new FsmMetrics());
+    }
+
+    /**
+     * Adds metrics under the name of the definition, replacing any registered before.
+     */
+    public MetricsRegistry register(String definition, FsmMetrics metrics) {
+        definitions.put(definition, metrics);
+        return this;
+    }
+
+    /**
+     * Adds the metrics of a definition built with Builder.withMetrics() and withName().
+     */
+    public MetricsRegistry register(SimpleFSM definition) {
+        if (definition.getMetrics() == null) {
+            throw new IllegalArgumentException("Definition has no metrics, see Builder.withMetrics()");
+        }
+        if (definition.name == null) {
+            throw new IllegalArgumentException("Definition has no name, see Builder.withName()");
+        }
+        return register(definition.name, definition.getMetrics());
+    }
+
+    public void unregister(String definition) {
+        definitions.remove(definition);
+    }
+
+    /**
+     * Registered metrics by definition name, in name order.
+     */
+    public Map<String, FsmMetrics> getDefinitions() {
+        return new TreeMap<>(definitions);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format. Reads the
+     * counters without blocking the instances recording into them.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        new PrometheusWriter(getDefinitions()).write(out);
+    }
+}
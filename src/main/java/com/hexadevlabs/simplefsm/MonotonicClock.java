@@ -0,0 +1,26 @@
+package com.hexadevlabs.simplefsm;
+
+import java.time.Instant;
+
+/**
+ * FsmClock that reads the wall clock once and then advances using System.nanoTime().
+ * Timestamps are therefore strictly ordered within the JVM and cheap to take.
+ */
+final class MonotonicClock implements FsmClock {
+
+    static final MonotonicClock INSTANCE = new MonotonicClock();
+
+    private final long baseEpochNanos;
+    private final long baseNanoTime;
+
+    MonotonicClock() {
+        Instant now = Instant.now();
+        this.baseNanoTime = System.nanoTime();
+        this.baseEpochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    @Override
+    public long epochNanos() {
+        return baseEpochNanos + (System.nanoTime() - baseNanoTime);
+    }
+}
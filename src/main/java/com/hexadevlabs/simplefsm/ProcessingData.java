@@ -4,13 +4,17 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 
 /**
@@ -30,6 +34,10 @@ public class ProcessingData implements Serializable {
 
     private final Map<String, Object> dataMap;
     private String nextState;
+    // Keys set while recording, for StepCache. Not part of the data itself.
+    private transient Map<String, Object> recordedWrites;
+    // Content hashes of the watched mutable values when recording started.
+    private transient Map<String, Integer> recordedHashes;
 
     // Other properties remain unchanged.
     private final List<ExceptionInfo> exceptions = new ArrayList<>();
@@ -60,6 +68,46 @@ public class ProcessingData implements Serializable {
      */
     public void set(String key, Object value) {
         dataMap.put(key, value);
+        if (recordedWrites != null) {
+            recordedWrites.put(key, value);
+        }
+    }
+
+    /**
+     * Starts recording the keys set(), until stopRecording(). The values of the
+     * watched keys are hashed, so changing them in place instead of set() is noticed as well.
+     */
+    void startRecording(String[] watchedKeys) {
+        recordedWrites = new LinkedHashMap<>();
+        recordedHashes = new HashMap<>();
+        for (String key : watchedKeys) {
+            Object value = dataMap.get(key);
+            if (!StepCache.isImmutable(value)) {
+                recordedHashes.put(key, contentHash(value));
+            }
+        }
+    }
+
+    /**
+     * @return Keys set since startRecording() with their last value, and the keys
+     * whose value changed in place.
+     */
+    Map<String, Object> stopRecording() {
+        Map<String, Object> writes = recordedWrites;
+        for (Map.Entry<String, Integer> hash : recordedHashes.entrySet()) {
+            String key = hash.getKey();
+            if (!writes.containsKey(key) && dataMap.containsKey(key)
+                    && contentHash(dataMap.get(key)) != hash.getValue()) {
+                writes.put(key, dataMap.get(key));
+            }
+        }
+        recordedWrites = null;
+        recordedHashes = null;
+        return writes;
+    }
+
+    private static int contentHash(Object value) {
+        return Arrays.deepHashCode(new Object[]{value});
     }
 
 
@@ -73,6 +121,21 @@ public class ProcessingData implements Serializable {
         return dataMap.get(key);
     }
 
+    /**
+     * @return The BlobValue stored under the key, or null if there is none.
+     */
+    public BlobValue getBlob(String key) {
+        Object value = dataMap.get(key);
+        return value instanceof BlobValue ? (BlobValue) value : null;
+    }
+
+    /**
+     * @return The map itself, for ProcessingDataCodec.
+     */
+    Map<String, Object> getDataMap() {
+        return dataMap;
+    }
+
     public boolean containsKey(String key) {
         return dataMap.containsKey(key);
     }
@@ -118,8 +181,20 @@ public class ProcessingData implements Serializable {
     }
 
     public String toJson(){
+        return toJson(null);
+    }
+
+    /**
+     * Like toJson(), with blobs that are not mapped from a file put into the store
+     * and written as their hash, instead of inlined as base64.
+     */
+    public String toJson(BlobStore blobStore){
         try {
-            return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(this);
+            ObjectWriter writer = mapper.writerWithDefaultPrettyPrinter();
+            if (blobStore != null) {
+                writer = writer.withAttribute(BlobStore.class, blobStore);
+            }
+            return writer.writeValueAsString(this);
         } catch (JsonProcessingException e) {
             System.out.println("Got json exception" + e.getMessage());
             return "";
@@ -127,12 +202,50 @@ public class ProcessingData implements Serializable {
     }
 
     public static ProcessingData fromJson(String json){
+        return fromJson(json, null);
+    }
+
+    /**
+     * Like fromJson(), looking up blobs written by hash in the store. Blobs referring to
+     * a file are only mapped if the store allows the directory of the file.
+     */
+    public static ProcessingData fromJson(String json, BlobStore blobStore){
         try {
-            return mapper.readValue(json, ProcessingData.class);
+            return mapper.readValue(json, ProcessingData.class).resolveBlobs(blobStore);
         } catch (JsonProcessingException e) {
             System.out.println("Got json exception" + e.getMessage());
             return new ProcessingData();
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Replaces the {"@simplefsm.blob":{..}} maps Jackson read for blobs with BlobValues,
+     * also inside lists and maps.
+     */
+    ProcessingData resolveBlobs(BlobStore blobStore) {
+        for (Map.Entry<String, Object> entry : dataMap.entrySet()) {
+            entry.setValue(resolveBlob(entry.getValue(), blobStore));
+        }
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object resolveBlob(Object value, BlobStore blobStore) {
+        if (value instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) value;
+            if (map.size() == 1 && map.containsKey(BlobValue.JSON_KEY)) {
+                return BlobValue.fromReference(map.get(BlobValue.JSON_KEY), blobStore);
+            }
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                entry.setValue(resolveBlob(entry.getValue(), blobStore));
+            }
+        } else if (value instanceof List) {
+            ListIterator<Object> elements = ((List<Object>) value).listIterator();
+            while (elements.hasNext()) {
+                elements.set(resolveBlob(elements.next(), blobStore));
+            }
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,609 @@
+package com.hexadevlabs.simplefsm;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes ProcessingData as compact JSON or binary, keeping the type of every value.
+ * The type of each key is registered once with the ValueCodec that writes it, so a
+ * Long comes back as a Long and a POJO as that POJO instead of a map. Codecs of POJOs
+ * resolve their Jackson serializers when registered, not for every value.
+ * <p>
+ * Unlike ProcessingData.fromJson() nothing is silently dropped: encoding fails on
+ * keys that are not registered and values of another type, decoding on unknown keys
+ * and on truncated or corrupt input, all with a ProcessingDataCodecException.
+ * <p>
+ * JSON is {"data":{..},"nextState":..,"exceptions":[..]}, with nextState and exceptions
+ * left out when there are none. BINARY is "SFPD" and a version byte, the number of
+ * entries, each entry as its key, a null flag and the value, then the next state and
+ * the exceptions as JSON.
+ * <p>
+ * Register all keys before the codec is shared between threads.
+ */
+public class ProcessingDataCodec {
+
+    // "SFPD" followed by the version of the binary format.
+    static final byte[] BINARY_MAGIC = {'S', 'F', 'P', 'D'};
+    static final int BINARY_VERSION = 1;
+
+    private static final JsonFactory FACTORY = ProcessingData.mapper.getFactory();
+    private static final TypeReference<List<ExceptionInfo>> EXCEPTIONS = new TypeReference<>() { };
+    private static final ObjectWriter EXCEPTIONS_WRITER = ProcessingData.mapper.writerFor(EXCEPTIONS)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private static final ObjectReader EXCEPTIONS_READER = ProcessingData.mapper.readerFor(EXCEPTIONS);
+
+    /**
+     * Writes and reads the values of one key.
+     */
+    public interface ValueCodec<T> {
+        /**
+         * @return Class the values must be an instance of.
+         */
+        Class<T> type();
+
+        void writeJson(T value, JsonGenerator gen) throws IOException;
+
+        /**
+         * @param parser Positioned on the first token of the value, to be left on its last token.
+         */
+        T readJson(JsonParser parser) throws IOException;
+
+        void writeBinary(T value, DataOutput out) throws IOException;
+
+        T readBinary(DataInput in) throws IOException;
+    }
+
+    public static final ValueCodec<String> STRING = new Simple<>(String.class,
+            (value, gen) -> gen.writeString(value),
+            parser -> {
+                expect(parser, JsonToken.VALUE_STRING);
+                return parser.getText();
+            },
+            (value, out) -> writeBytes(out, value.getBytes(StandardCharsets.UTF_8)),
+            in -> new String(readBytes(in), StandardCharsets.UTF_8));
+
+    public static final ValueCodec<Integer> INTEGER = new Simple<>(Integer.class,
+            (value, gen) -> gen.writeNumber(value),
+            parser -> {
+                expect(parser, JsonToken.VALUE_NUMBER_INT);
+                return parser.getIntValue();
+            },
+            (value, out) -> out.writeInt(value),
+            DataInput::readInt);
+
+    public static final ValueCodec<Long> LONG = new Simple<>(Long.class,
+            (value, gen) -> gen.writeNumber(value),
+            parser -> {
+                expect(parser, JsonToken.VALUE_NUMBER_INT);
+                return parser.getLongValue();
+            },
+            (value, out) -> out.writeLong(value),
+            DataInput::readLong);
+
+    public static final ValueCodec<Double> DOUBLE = new Simple<>(Double.class,
+            (value, gen) -> gen.writeNumber(value),
+            parser -> {
+                // NaN and the infinities are written as strings.
+                if (parser.currentToken() == JsonToken.VALUE_STRING) {
+                    return Double.parseDouble(parser.getText());
+                }
+                if (!parser.currentToken().isNumeric()) {
+                    throw new JsonParseException(parser, "Expected a number but got " + parser.currentToken());
+                }
+                return parser.getDoubleValue();
+            },
+            (value, out) -> out.writeDouble(value),
+            DataInput::readDouble);
+
+    public static final ValueCodec<Boolean> BOOLEAN = new Simple<>(Boolean.class,
+            (value, gen) -> gen.writeBoolean(value),
+            parser -> {
+                if (!parser.currentToken().isBoolean()) {
+                    throw new JsonParseException(parser, "Expected a boolean but got " + parser.currentToken());
+                }
+                return parser.getBooleanValue();
+            },
+            (value, out) -> out.writeBoolean(value),
+            DataInput::readBoolean);
+
+    /**
+     * Base64 in JSON, raw in binary.
+     */
+    public static final ValueCodec<byte[]> BYTES = new Simple<>(byte[].class,
+            // java.util.Base64 instead of writeBinary()/getBinaryValue(), decoding with the parser
+            // took most of the time of fromJson().
+            (value, gen) -> gen.writeString(Base64.getEncoder().encodeToString(value)),
+            parser -> {
+                expect(parser, JsonToken.VALUE_STRING);
+                return Base64.getDecoder().decode(parser.getText());
+            },
+            (value, out) -> writeBytes(out, value),
+            ProcessingDataCodec::readBytes);
+
+    private static final Map<Class<?>, ValueCodec<?>> BUILT_IN = new HashMap<>();
+
+    static {
+        BUILT_IN.put(String.class, STRING);
+        BUILT_IN.put(Integer.class, INTEGER);
+        BUILT_IN.put(int.class, INTEGER);
+        BUILT_IN.put(Long.class, LONG);
+        BUILT_IN.put(long.class, LONG);
+        BUILT_IN.put(Double.class, DOUBLE);
+        BUILT_IN.put(double.class, DOUBLE);
+        BUILT_IN.put(Boolean.class, BOOLEAN);
+        BUILT_IN.put(boolean.class, BOOLEAN);
+        BUILT_IN.put(byte[].class, BYTES);
+        BUILT_IN.put(BlobValue.class, blob(null));
+    }
+
+    private final Map<String, ValueCodec<?>> codecs = new LinkedHashMap<>();
+
+    /**
+     * Registers the built-in codec of the type, or json(type) for other types.
+     */
+    public <T> ProcessingDataCodec register(String key, Class<T> type) {
+        ValueCodec<?> codec = BUILT_IN.get(type);
+        return register(key, codec != null ? codec : json(type));
+    }
+
+    /**
+     * Registers json(type), for generic types like List&lt;Long&gt;.
+     */
+    public <T> ProcessingDataCodec register(String key, TypeReference<T> type) {
+        return register(key, json(type));
+    }
+
+    public ProcessingDataCodec register(String key, ValueCodec<?> codec) {
+        if (codecs.putIfAbsent(key, codec) != null) {
+            throw new IllegalArgumentException("Key '" + key + "' is already registered");
+        }
+        return this;
+    }
+
+    /**
+     * Codec writing values with the Jackson mapper of ProcessingData, length prefixed in binary.
+     */
+    public static <T> ValueCodec<T> json(Class<T> type) {
+        return new JsonValue<>(ProcessingData.mapper.constructType(type));
+    }
+
+    public static <T> ValueCodec<T> json(TypeReference<T> type) {
+        return new JsonValue<>(ProcessingData.mapper.constructType(type));
+    }
+
+    /**
+     * Codec writing BlobValues as references, like ProcessingData.toJson(BlobStore).
+     *
+     * @param store Store for blobs not mapped from a file it allows, null to inline them.
+     *              Blobs referring to a file are only read back with a store allowing it.
+     */
+    public static ValueCodec<BlobValue> blob(BlobStore store) {
+        return new Blob(store);
+    }
+
+    public String toJson(ProcessingData data) {
+        // Like ObjectMapper.writeValueAsString(), unlike StringWriter it is not synchronized
+        // and reuses the recycled buffers of the factory.
+        SegmentedStringWriter out = new SegmentedStringWriter(FACTORY._getBufferRecycler());
+        try (JsonGenerator gen = FACTORY.createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeObjectFieldStart("data");
+            for (Map.Entry<String, Object> entry : data.getDataMap().entrySet()) {
+                ValueCodec<Object> codec = codec(entry.getKey(), entry.getValue());
+                gen.writeFieldName(entry.getKey());
+                if (entry.getValue() == null) {
+                    gen.writeNull();
+                    continue;
+                }
+                try {
+                    codec.writeJson(entry.getValue(), gen);
+                } catch (IOException | RuntimeException e) {
+                    throw new ProcessingDataCodecException("Could not encode key '" + entry.getKey() + "'", e);
+                }
+            }
+            gen.writeEndObject();
+            if (data.getNextState() != null) {
+                gen.writeStringField("nextState", data.getNextState());
+            }
+            if (data.hasExceptions()) {
+                gen.writeFieldName("exceptions");
+                EXCEPTIONS_WRITER.writeValue(gen, data.getExceptions());
+            }
+            gen.writeEndObject();
+            gen.flush();
+            return out.getAndClear();
+        } catch (IOException e) {
+            throw new ProcessingDataCodecException("Could not encode data", e);
+        }
+    }
+
+    public ProcessingData fromJson(String json) {
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new ProcessingDataCodecException("Data is not a JSON object");
+            }
+            ProcessingData data = new ProcessingData();
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "data":
+                        readJsonValues(parser, data.getDataMap());
+                        break;
+                    case "nextState":
+                        expect(parser, JsonToken.VALUE_STRING);
+                        data.setNextState(parser.getText());
+                        break;
+                    case "exceptions":
+                        List<ExceptionInfo> exceptions = EXCEPTIONS_READER.readValue(parser);
+                        exceptions.forEach(data::addException);
+                        break;
+                    default:
+                        throw new ProcessingDataCodecException("Unknown field '" + field + "'");
+                }
+            }
+            if (token != JsonToken.END_OBJECT) {
+                throw new ProcessingDataCodecException("Truncated JSON data");
+            }
+            if (parser.nextToken() != null) {
+                throw new ProcessingDataCodecException("Unexpected content after the data");
+            }
+            return data;
+        } catch (IOException e) {
+            throw new ProcessingDataCodecException("Corrupt JSON data: " + e.getMessage(), e);
+        }
+    }
+
+    private void readJsonValues(JsonParser parser, Map<String, Object> values) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String key = parser.currentName();
+            ValueCodec<?> codec = registered(key);
+            Object value = null;
+            if (parser.nextToken() != JsonToken.VALUE_NULL) {
+                try {
+                    value = codec.readJson(parser);
+                } catch (IOException | RuntimeException e) {
+                    throw new ProcessingDataCodecException("Could not decode key '" + key + "'", e);
+                }
+            }
+            put(values, key, value);
+        }
+        if (token != JsonToken.END_OBJECT) {
+            throw new ProcessingDataCodecException("Truncated JSON data");
+        }
+    }
+
+    public byte[] toBinary(ProcessingData data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(BINARY_MAGIC);
+            out.writeByte(BINARY_VERSION);
+            Map<String, Object> values = data.getDataMap();
+            out.writeInt(values.size());
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                ValueCodec<Object> codec = codec(entry.getKey(), entry.getValue());
+                out.writeUTF(entry.getKey());
+                if (entry.getValue() == null) {
+                    out.writeBoolean(false);
+                    continue;
+                }
+                out.writeBoolean(true);
+                try {
+                    codec.writeBinary(entry.getValue(), out);
+                } catch (IOException | RuntimeException e) {
+                    throw new ProcessingDataCodecException("Could not encode key '" + entry.getKey() + "'", e);
+                }
+            }
+            out.writeBoolean(data.getNextState() != null);
+            if (data.getNextState() != null) {
+                out.writeUTF(data.getNextState());
+            }
+            writeBytes(out, data.hasExceptions() ? EXCEPTIONS_WRITER.writeValueAsBytes(data.getExceptions()) : new byte[0]);
+        } catch (IOException e) {
+            throw new ProcessingDataCodecException("Could not encode data", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public ProcessingData fromBinary(byte[] bytes) {
+        Input in = new Input(bytes);
+        try {
+            byte[] magic = new byte[BINARY_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BINARY_MAGIC)) {
+                throw new ProcessingDataCodecException("Not binary ProcessingData");
+            }
+            int version = in.readUnsignedByte();
+            if (version != BINARY_VERSION) {
+                throw new ProcessingDataCodecException("Unsupported binary version " + version);
+            }
+            int count = in.readInt();
+            // Every entry takes at least three bytes.
+            if (count < 0 || count > in.remaining() / 3) {
+                throw new ProcessingDataCodecException("Corrupt binary data, " + count + " entries");
+            }
+            ProcessingData data = new ProcessingData();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                ValueCodec<?> codec = registered(key);
+                Object value = null;
+                if (in.readBoolean()) {
+                    try {
+                        value = codec.readBinary(in);
+                    } catch (IOException | RuntimeException e) {
+                        throw new ProcessingDataCodecException("Could not decode key '" + key + "'", e);
+                    }
+                }
+                put(data.getDataMap(), key, value);
+            }
+            if (in.readBoolean()) {
+                data.setNextState(in.readUTF());
+            }
+            byte[] exceptions = readBytes(in);
+            if (exceptions.length > 0) {
+                List<ExceptionInfo> list = EXCEPTIONS_READER.readValue(exceptions);
+                list.forEach(data::addException);
+            }
+            if (in.remaining() > 0) {
+                throw new ProcessingDataCodecException("Unexpected bytes after the data");
+            }
+            return data;
+        } catch (EOFException e) {
+            throw new ProcessingDataCodecException("Truncated binary data", e);
+        } catch (IOException e) {
+            throw new ProcessingDataCodecException("Corrupt binary data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the length of the bytes followed by the bytes.
+     */
+    public static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads bytes written by writeBytes(), checking the length against what is left
+     * to decode before allocating.
+     */
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || (in instanceof Input && length > ((Input) in).remaining())) {
+            throw new IOException("Corrupt length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private ValueCodec<?> registered(String key) {
+        ValueCodec<?> codec = codecs.get(key);
+        if (codec == null) {
+            throw new ProcessingDataCodecException("Key '" + key + "' is not registered");
+        }
+        return codec;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ValueCodec<Object> codec(String key, Object value) {
+        ValueCodec<?> codec = registered(key);
+        if (value != null && !codec.type().isInstance(value)) {
+            throw new ProcessingDataCodecException("Value of key '" + key + "' is a " + value.getClass().getName()
+                    + ", registered as " + codec.type().getName());
+        }
+        return (ValueCodec<Object>) codec;
+    }
+
+    private static void put(Map<String, Object> values, String key, Object value) {
+        if (values.containsKey(key)) {
+            throw new ProcessingDataCodecException("Key '" + key + "' appears twice");
+        }
+        values.put(key, value);
+    }
+
+    private static void expect(JsonParser parser, JsonToken token) throws IOException {
+        if (parser.currentToken() != token) {
+            throw new JsonParseException(parser, "Expected " + token + " but got " + parser.currentToken());
+        }
+    }
+
+    private static final class Input extends DataInputStream {
+        Input(byte[] bytes) {
+            super(new ByteArrayInputStream(bytes));
+        }
+
+        int remaining() {
+            return ((ByteArrayInputStream) in).available();
+        }
+    }
+
+    private interface Writer<T, O> {
+        void write(T value, O out) throws IOException;
+    }
+
+    private interface Reader<T, I> {
+        T read(I in) throws IOException;
+    }
+
+    private static final class Simple<T> implements ValueCodec<T> {
+        private final Class<T> type;
+        private final Writer<T, JsonGenerator> jsonWriter;
+        private final Reader<T, JsonParser> jsonReader;
+        private final Writer<T, DataOutput> binaryWriter;
+        private final Reader<T, DataInput> binaryReader;
+
+        Simple(Class<T> type, Writer<T, JsonGenerator> jsonWriter, Reader<T, JsonParser> jsonReader,
+               Writer<T, DataOutput> binaryWriter, Reader<T, DataInput> binaryReader) {
+            this.type = type;
+            this.jsonWriter = jsonWriter;
+            this.jsonReader = jsonReader;
+            this.binaryWriter = binaryWriter;
+            this.binaryReader = binaryReader;
+        }
+
+        @Override
+        public Class<T> type() {
+            return type;
+        }
+
+        @Override
+        public void writeJson(T value, JsonGenerator gen) throws IOException {
+            jsonWriter.write(value, gen);
+        }
+
+        @Override
+        public T readJson(JsonParser parser) throws IOException {
+            return jsonReader.read(parser);
+        }
+
+        @Override
+        public void writeBinary(T value, DataOutput out) throws IOException {
+            binaryWriter.write(value, out);
+        }
+
+        @Override
+        public T readBinary(DataInput in) throws IOException {
+            return binaryReader.read(in);
+        }
+    }
+
+    private static final class JsonValue<T> implements ValueCodec<T> {
+        private final Class<T> type;
+        private final ObjectWriter writer;
+        private final ObjectReader reader;
+
+        @SuppressWarnings("unchecked")
+        JsonValue(JavaType javaType) {
+            this.type = (Class<T>) javaType.getRawClass();
+            this.writer = ProcessingData.mapper.writerFor(javaType).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            this.reader = ProcessingData.mapper.readerFor(javaType);
+        }
+
+        @Override
+        public Class<T> type() {
+            return type;
+        }
+
+        @Override
+        public void writeJson(T value, JsonGenerator gen) throws IOException {
+            writer.writeValue(gen, value);
+        }
+
+        @Override
+        public T readJson(JsonParser parser) throws IOException {
+            return reader.readValue(parser);
+        }
+
+        @Override
+        public void writeBinary(T value, DataOutput out) throws IOException {
+            writeBytes(out, writer.writeValueAsBytes(value));
+        }
+
+        @Override
+        public T readBinary(DataInput in) throws IOException {
+            return reader.readValue(readBytes(in));
+        }
+    }
+
+    private static final class Blob implements ValueCodec<BlobValue> {
+        private static final byte PATH = 'P';
+        private static final byte HASH = 'H';
+        private static final byte INLINE = 'B';
+
+        private final BlobStore store;
+
+        Blob(BlobStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public Class<BlobValue> type() {
+            return BlobValue.class;
+        }
+
+        @Override
+        public void writeJson(BlobValue value, JsonGenerator gen) throws IOException {
+            value.writeReference(gen, store);
+        }
+
+        @Override
+        public BlobValue readJson(JsonParser parser) throws IOException {
+            expect(parser, JsonToken.START_OBJECT);
+            return BlobValue.fromReference(ProcessingData.mapper.readValue(parser, Map.class), store);
+        }
+
+        @Override
+        public void writeBinary(BlobValue value, DataOutput out) throws IOException {
+            if (value.getPath() != null && (store == null || store.allows(value.getPath()))) {
+                out.writeByte(PATH);
+                out.writeUTF(value.getPath().toString());
+                out.writeLong(value.getOffset());
+                out.writeInt(value.size());
+            } else if (store != null) {
+                out.writeByte(HASH);
+                out.writeUTF(store.put(value).sha256());
+            } else {
+                out.writeByte(INLINE);
+                writeBytes(out, value.toByteArray());
+            }
+        }
+
+        @Override
+        public BlobValue readBinary(DataInput in) throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case PATH:
+                    String path = in.readUTF();
+                    if (store == null) {
+                        throw new IOException("Blob refers to file " + path + ", register blob(store) with a store allowing its directory");
+                    }
+                    try {
+                        return store.map(Paths.get(path), in.readLong(), in.readInt());
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(e.getMessage(), e);
+                    }
+                case HASH:
+                    String sha = in.readUTF();
+                    if (store == null) {
+                        throw new IOException("Blob " + sha + " was written to a BlobStore, register blob(store)");
+                    }
+                    return store.get(sha);
+                case INLINE:
+                    return BlobValue.copyOf(readBytes(in));
+                default:
+                    throw new IOException("Unknown blob tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.hexadevlabs.simplefsm;
+
+/**
+ * ProcessingDataCodec could not encode data, or the input it decodes is corrupt
+ * or doesn't match the registered keys and types.
+ */
+public class ProcessingDataCodecException extends RuntimeException {
+    public ProcessingDataCodecException(String message) {
+        super(message);
+    }
+
+    public ProcessingDataCodecException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
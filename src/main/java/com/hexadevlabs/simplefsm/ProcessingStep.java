@@ -1,7 +1,6 @@
 package com.hexadevlabs.simplefsm;
 
 
-import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,8 +12,45 @@ import java.util.List;
  */
 public abstract class ProcessingStep {
 
-    // Collects log entries during step execution.
-    List<LogEntry> logs;
+    // Log of the execution in progress on each thread. A step instance is shared by
+    // every instance of a definition, which may run on many threads at the same time.
+    private static final ThreadLocal<ExecutionLog> CURRENT_LOG = new ThreadLocal<>();
+
+    /**
+     * Log entries of one execution of a step, timestamped with the clock of the Trace it is for.
+     */
+    static final class ExecutionLog {
+        private final FsmClock clock;
+        // Log of an execution this one runs inside of, for steps that run a state machine themselves.
+        private final ExecutionLog outer;
+        private List<LogEntry> entries;
+
+        private ExecutionLog(FsmClock clock, ExecutionLog outer) {
+            this.clock = clock;
+            this.outer = outer;
+        }
+    }
+
+    /**
+     * Starts collecting log() calls made on this thread. Must be paired with endLog().
+     */
+    static ExecutionLog beginLog(FsmClock clock) {
+        ExecutionLog log = new ExecutionLog(clock, CURRENT_LOG.get());
+        CURRENT_LOG.set(log);
+        return log;
+    }
+
+    /**
+     * @return The entries logged since beginLog(), or null if there were none.
+     */
+    static List<LogEntry> endLog(ExecutionLog log) {
+        if (log.outer == null) {
+            CURRENT_LOG.remove();
+        } else {
+            CURRENT_LOG.set(log.outer);
+        }
+        return log.entries;
+    }
 
     /**
      * The main processing method that must be implemented by concrete subclasses.
@@ -43,14 +79,19 @@ public abstract class ProcessingStep {
      * During Step execution a log can be made to the FSM.
      * The logs will be available via SimpleFSM.getTrace() at the completion of execution.
      * These logs will be added to Trace regardless of Trace mode.
+     * Logs made outside of process() are ignored.
      *
      * @param log Individual log message.
      */
     protected void log(String log){
-        if(logs == null){
-            logs = new ArrayList<>();
+        ExecutionLog executionLog = CURRENT_LOG.get();
+        if (executionLog == null) {
+            return;
+        }
+        if (executionLog.entries == null) {
+            executionLog.entries = new ArrayList<>();
         }
-        logs.add(new LogEntry(LocalDateTime.now(), log));
+        executionLog.entries.add(new LogEntry(executionLog.clock.epochNanos(), log));
     }
 
 }
\ No newline at end of file
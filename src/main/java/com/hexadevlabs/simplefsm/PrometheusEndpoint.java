@@ -0,0 +1,77 @@
+package com.hexadevlabs.simplefsm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Small HTTP server exposing a MetricsRegistry at /metrics for a Prometheus
+ * scraper, for applications that don't have an HTTP server of their own.
+ * Uses the HttpServer of the JDK, requests are handled on one thread.
+ */
+public class PrometheusEndpoint implements Closeable {
+
+    public static final String PATH = "/metrics";
+
+    private final MetricsRegistry registry;
+    private final HttpServer server;
+
+    /**
+     * Starts serving on the address.
+     *
+     * @param address Port 0 picks a free port, see getPort().
+     */
+    public PrometheusEndpoint(MetricsRegistry registry, InetSocketAddress address) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+
+    /**
+     * Starts serving on the port of all interfaces.
+     */
+    public PrometheusEndpoint(MetricsRegistry registry, int port) throws IOException {
+        this(registry, new InetSocketAddress(port));
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(4096);
+            registry.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", PrometheusWriter.CONTENT_TYPE);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Stops the server, waiting at most a second for requests being handled.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+    }
+}
@@ -0,0 +1,141 @@
+package com.hexadevlabs.simplefsm;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Writes metrics in the Prometheus text exposition format, version 0.0.4. All
+ * samples of a metric are written together, definitions and states in name order.
+ * <p>
+ * Durations are exposed in seconds. LatencyHistogram keeps far more buckets than
+ * a scraper wants, so they are summed up into the fixed buckets of LE_NANOS.
+ */
+class PrometheusWriter {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final long[] LE_NANOS = {
+            100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L,
+            10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L};
+    private static final String[] LE_LABELS = {
+            "0.0001", "0.00025", "0.0005",
+            "0.001", "0.0025", "0.005",
+            "0.01", "0.025", "0.05",
+            "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10"};
+
+    private final Map<String, FsmMetrics> definitions;
+
+    PrometheusWriter(Map<String, FsmMetrics> definitions) {
+        this.definitions = definitions;
+    }
+
+    void write(Appendable out) throws IOException {
+        definitionCounter(out, "simplefsm_instances_started_total", "Instances started.", FsmMetrics::getStarted);
+        definitionCounter(out, "simplefsm_instances_concluded_total", "Instances that reached a final state or were terminated.", FsmMetrics::getConcluded);
+
+        stateMetric(out, "simplefsm_state_executions_total", "counter", "Step executions.", FsmMetrics.StateMetrics::getExecutions);
+        stateMetric(out, "simplefsm_state_exceptions_total", "counter", "Step executions that ended with an exception.", FsmMetrics.StateMetrics::getExceptions);
+        stateMetric(out, "simplefsm_state_exceptions_routed_total", "counter", "Exceptions that sent the instance to the onExceptionGoTo state.", FsmMetrics.StateMetrics::getExceptionsRouted);
+        stateMetric(out, "simplefsm_state_retries_total", "counter", "Retries scheduled by the RetryPolicy of the state.", FsmMetrics.StateMetrics::getRetries);
+        stateHistogram(out, "simplefsm_step_duration_seconds", "Step execution time, including execution hooks.", FsmMetrics.StateMetrics::getLatency);
+
+        transitions(out);
+
+        stateMetric(out, "simplefsm_splits_total", "counter", "Splits started by the state.", FsmMetrics.StateMetrics::getSplits);
+        stateMetric(out, "simplefsm_split_branches_total", "counter", "Branches of the splits started by the state.", FsmMetrics.StateMetrics::getSplitBranches);
+        stateHistogram(out, "simplefsm_split_join_duration_seconds", "Time from the start of a split until its branches joined.", FsmMetrics.StateMetrics::getJoinLatency);
+
+        stateMetric(out, "simplefsm_paused_instances", "gauge", "Instances paused in the state waiting for an event.", FsmMetrics.StateMetrics::getPaused);
+    }
+
+    private static void header(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void definitionCounter(Appendable out, String name, String help, ToLongFunction<FsmMetrics> value) throws IOException {
+        header(out, name, "counter", help);
+        for (Map.Entry<String, FsmMetrics> definition : definitions.entrySet()) {
+            out.append(name).append("{definition=\"").append(escape(definition.getKey())).append("\"} ")
+                    .append(Long.toString(value.applyAsLong(definition.getValue()))).append('\n');
+        }
+    }
+
+    private void stateMetric(Appendable out, String name, String type, String help,
+                             ToLongFunction<FsmMetrics.StateMetrics> value) throws IOException {
+        header(out, name, type, help);
+        for (Map.Entry<String, FsmMetrics> definition : definitions.entrySet()) {
+            for (Map.Entry<String, FsmMetrics.StateMetrics> state : sorted(definition.getValue().getStates()).entrySet()) {
+                out.append(name);
+                stateLabels(out, definition.getKey(), state.getKey());
+                out.append("} ").append(Long.toString(value.applyAsLong(state.getValue()))).append('\n');
+            }
+        }
+    }
+
+    private void stateHistogram(Appendable out, String name, String help,
+                                Function<FsmMetrics.StateMetrics, LatencyHistogram> histogram) throws IOException {
+        header(out, name, "histogram", help);
+        for (Map.Entry<String, FsmMetrics> definition : definitions.entrySet()) {
+            for (Map.Entry<String, FsmMetrics.StateMetrics> state : sorted(definition.getValue().getStates()).entrySet()) {
+                LatencyHistogram values = histogram.apply(state.getValue());
+                long[] counts = values.cumulativeCounts(LE_NANOS);
+                if (counts[LE_NANOS.length] == 0) {
+                    continue;
+                }
+                for (int i = 0; i <= LE_NANOS.length; i++) {
+                    out.append(name).append("_bucket");
+                    stateLabels(out, definition.getKey(), state.getKey());
+                    out.append(",le=\"").append(i < LE_NANOS.length ? LE_LABELS[i] : "+Inf").append("\"} ")
+                            .append(Long.toString(counts[i])).append('\n');
+                }
+                out.append(name).append("_sum");
+                stateLabels(out, definition.getKey(), state.getKey());
+                out.append("} ").append(Double.toString(values.getSum() / 1e9)).append('\n');
+                out.append(name).append("_count");
+                stateLabels(out, definition.getKey(), state.getKey());
+                out.append("} ").append(Long.toString(counts[LE_NANOS.length])).append('\n');
+            }
+        }
+    }
+
+    private void transitions(Appendable out) throws IOException {
+        String name = "simplefsm_transitions_total";
+        header(out, name, "counter", "Transitions taken between two states.");
+        for (Map.Entry<String, FsmMetrics> definition : definitions.entrySet()) {
+            for (Map.Entry<String, FsmMetrics.StateMetrics> state : sorted(definition.getValue().getStates()).entrySet()) {
+                for (Map.Entry<String, Long> target : sorted(state.getValue().getTransitionCounts()).entrySet()) {
+                    out.append(name).append("{definition=\"").append(escape(definition.getKey()))
+                            .append("\",from=\"").append(escape(state.getKey()))
+                            .append("\",to=\"").append(escape(target.getKey())).append("\"} ")
+                            .append(Long.toString(target.getValue())).append('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the labels, the caller closes them.
+     */
+    private static void stateLabels(Appendable out, String definition, String state) throws IOException {
+        out.append("{definition=\"").append(escape(definition)).append("\",state=\"").append(escape(state)).append('"');
+    }
+
+    private static <V> Map<String, V> sorted(Map<String, V> map) {
+        return new TreeMap<>(map);
+    }
+
+    static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
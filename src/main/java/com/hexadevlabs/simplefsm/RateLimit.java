@@ -0,0 +1,113 @@
+package com.hexadevlabs.simplefsm;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the rate of executions of the step of a state, set with
+ * SimpleFSM.StateBuilder.rateLimit(). The State and so the RateLimit is shared by
+ * all instances of a definition, so the limit applies across all of them.
+ * <p>
+ * Implemented as a generic cell rate algorithm: the whole bucket is a single
+ * AtomicLong holding the time the next execution is due, taken with a CAS.
+ * <p>
+ * In DELAY mode an execution over the limit reserves the next free slot and the
+ * state machine returns with isResumePending() true, continuing on the executor
+ * once the slot is due. In REJECT mode it is not executed at all.
+ */
+public class RateLimit {
+
+    public enum Mode { DELAY, REJECT }
+
+    /**
+     * Event of the transition taken when an execution is rejected.
+     */
+    public static final String REJECTED_EVENT = "RATE_LIMITED";
+
+    private final long intervalNanos;
+    private long toleranceNanos;
+    private Mode mode = Mode.DELAY;
+    private long maxDelayNanos = Duration.ofMinutes(1).toNanos();
+    private Executor executor = ForkJoinPool.commonPool();
+    // Theoretical arrival time, in System.nanoTime(), of the next execution when running at the rate.
+    private final AtomicLong theoreticalArrival;
+
+    private RateLimit(double permitsPerSecond) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / permitsPerSecond));
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    public static RateLimit perSecond(double permitsPerSecond) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("Permits per second must be positive.");
+        }
+        return new RateLimit(permitsPerSecond);
+    }
+
+    /**
+     * Number of executions allowed back to back after being idle. Defaults to 1.
+     */
+    public RateLimit burst(int burst) {
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be at least 1.");
+        }
+        this.toleranceNanos = (burst - 1) * intervalNanos;
+        return this;
+    }
+
+    /**
+     * Reject executions over the limit instead of delaying them.
+     */
+    public RateLimit reject() {
+        this.mode = Mode.REJECT;
+        return this;
+    }
+
+    /**
+     * In DELAY mode, executions that would wait longer than this are rejected. Defaults to a minute.
+     */
+    public RateLimit maxDelay(Duration maxDelay) {
+        this.maxDelayNanos = maxDelay.toNanos();
+        return this;
+    }
+
+    /**
+     * Executor delayed state machines continue on. Defaults to the common ForkJoinPool.
+     */
+    public RateLimit executor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor);
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Takes a slot for an execution.
+     *
+     * @param now System.nanoTime()
+     * @return 0 if the execution can go ahead now, the nanoseconds until the slot
+     * reserved for it in DELAY mode, or -1 if it is rejected.
+     */
+    long reserve(long now) {
+        while (true) {
+            long arrival = theoreticalArrival.get();
+            long base = arrival - now > 0 ? arrival : now;
+            long waitNanos = base - toleranceNanos - now;
+            if (waitNanos > 0 && (mode == Mode.REJECT || waitNanos > maxDelayNanos)) {
+                return -1;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, base + intervalNanos)) {
+                return Math.max(0, waitNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.hexadevlabs.simplefsm;
+
+/**
+ * The step of a state was not executed because its RateLimit was reached.
+ */
+public class RateLimitedException extends RuntimeException {
+    public RateLimitedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,135 @@
+package com.hexadevlabs.simplefsm;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How to retry the step of a state that throws, set with SimpleFSM.StateBuilder.retry().
+ * <p>
+ * Delays grow exponentially from the initial delay up to the max delay, with
+ * random jitter so instances that failed together do not retry together.
+ * The delay is not slept: the state machine returns from start() or triggerEvent()
+ * with isResumePending() true and the retry runs on the executor once the delay passed.
+ * Inside a split branch the retry runs on the branch thread after the delay.
+ * <p>
+ * Once attempts run out, or for exceptions not retried, the exception is handled
+ * as usual by going to the onExceptionGoTo state.
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private long initialDelayNanos = Duration.ofMillis(100).toNanos();
+    private double multiplier = 2.0;
+    private long maxDelayNanos = Duration.ofSeconds(30).toNanos();
+    private double jitter = 0.2;
+    private final List<Class<? extends Exception>> retryOn = new ArrayList<>();
+    private Executor executor = ForkJoinPool.commonPool();
+
+    private RetryPolicy(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts Number of times the step is executed at most, including the first time.
+     */
+    public static RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be at least 1.");
+        }
+        return new RetryPolicy(maxAttempts);
+    }
+
+    /**
+     * Delay before the first retry and how much it is multiplied by for every next retry.
+     * Defaults to 100ms and 2.
+     */
+    public RetryPolicy backoff(Duration initialDelay, double multiplier) {
+        if (initialDelay.isNegative() || multiplier < 1) {
+            throw new IllegalArgumentException("Delay must not be negative and multiplier must be at least 1.");
+        }
+        this.initialDelayNanos = initialDelay.toNanos();
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Upper bound of the delay. Defaults to 30 seconds.
+     */
+    public RetryPolicy maxDelay(Duration maxDelay) {
+        this.maxDelayNanos = maxDelay.toNanos();
+        return this;
+    }
+
+    /**
+     * Fraction of the delay that is randomly taken off, 0 for none. Defaults to 0.2.
+     */
+    public RetryPolicy jitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Only retry exceptions of these types or their subtypes. By default all exceptions are retried.
+     */
+    @SafeVarargs
+    public final RetryPolicy retryOn(Class<? extends Exception>... exceptionTypes) {
+        for (Class<? extends Exception> type : exceptionTypes) {
+            retryOn.add(type);
+        }
+        return this;
+    }
+
+    /**
+     * Executor the state machine continues on after the delay. Defaults to the common ForkJoinPool.
+     */
+    public RetryPolicy executor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor);
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param failedAttempts Number of attempts that failed so far, including this one.
+     */
+    boolean shouldRetry(Exception exception, int failedAttempts) {
+        if (failedAttempts >= maxAttempts) {
+            return false;
+        }
+        if (retryOn.isEmpty()) {
+            return true;
+        }
+        for (Class<? extends Exception> type : retryOn) {
+            if (type.isInstance(exception)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delay before the retry after the given number of failed attempts.
+     */
+    long delayNanos(int failedAttempts) {
+        double delay = initialDelayNanos * Math.pow(multiplier, failedAttempts - 1);
+        delay = Math.min(delay, maxDelayNanos);
+        if (jitter > 0) {
+            delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return (long) delay;
+    }
+}
@@ -0,0 +1,245 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Runs state machine instances on a fixed number of single threaded event loops,
+ * by default one per core. An instance is assigned to a shard by the hash of its
+ * id and only ever runs on the thread of that shard, so SimpleFSM, its data and
+ * its trace are used without any locking.
+ * <p>
+ * Work for an instance is queued to its shard, every method returns a future
+ * completed on the shard thread once the work ran. Scheduled processing for a
+ * RetryPolicy or RateLimit also continues on the shard. Dependent stages of the
+ * futures run on the shard thread too, unless an async variant is used, so they
+ * should not block.
+ * <p>
+ * A step that blocks, or a split waiting for its branches, holds up every other
+ * instance of the shard while it does.
+ */
+public class ShardedRuntime implements AutoCloseable {
+
+    private final Shard[] shards;
+
+    /**
+     * One shard per available processor.
+     */
+    public ShardedRuntime() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedRuntime(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1.");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+            shards[i].thread.start();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return Index of the shard owning the instance with the id.
+     */
+    public int shardOf(String id) {
+        int hash = id.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    /**
+     * Starts a new instance of the definition on its shard.
+     *
+     * @param id Unique id of the instance, for example the id of the item processed.
+     * @param definition The definition, an instance is made of it with buildEmptyCopy().
+     * @return Completed with the instance once it paused or concluded.
+     */
+    public CompletableFuture<FsmInstance> start(String id, SimpleFSM definition, String startingState, ProcessingData data) {
+        Shard shard = shards[shardOf(id)];
+        return shard.submit(() -> {
+            if (shard.instances.containsKey(id)) {
+                throw new IllegalArgumentException("An instance with the id '" + id + "' already exists.");
+            }
+            SimpleFSM fsm = definition.buildEmptyCopy();
+            fsm.setResumeExecutor(shard);
+            FsmInstance instance = new FsmInstance(id, fsm, data);
+            fsm.start(startingState, data);
+            // Only registered once started, a failed start can be retried with the same id.
+            shard.instances.put(id, instance);
+            return instance;
+        });
+    }
+
+    /**
+     * Triggers the event on the instance with the id.
+     *
+     * @return Completed with the instance once it paused or concluded again.
+     */
+    public CompletableFuture<FsmInstance> triggerEvent(String id, String eventName) {
+        Shard shard = shards[shardOf(id)];
+        return shard.submit(() -> {
+            FsmInstance instance = shard.get(id);
+            instance.getFsm().triggerEvent(eventName, instance.getData());
+            return instance;
+        });
+    }
+
+    /**
+     * Runs the function on the instance with the id, on its shard.
+     */
+    public <T> CompletableFuture<T> inspect(String id, Function<FsmInstance, T> function) {
+        Shard shard = shards[shardOf(id)];
+        return shard.submit(() -> function.apply(shard.get(id)));
+    }
+
+    /**
+     * Removes the instance with the id, for example once it concluded.
+     *
+     * @return Completed with the removed instance, or null if there was none.
+     */
+    public CompletableFuture<FsmInstance> remove(String id) {
+        Shard shard = shards[shardOf(id)];
+        return shard.submit(() -> shard.instances.remove(id));
+    }
+
+    /**
+     * @return Completed with the number of instances on all shards.
+     */
+    public CompletableFuture<Integer> instanceCount() {
+        CompletableFuture<Integer> total = CompletableFuture.completedFuture(0);
+        for (Shard shard : shards) {
+            CompletableFuture<Integer> count = shard.submit(shard.instances::size);
+            total = total.thenCombine(count, Integer::sum);
+        }
+        return total;
+    }
+
+    /**
+     * Stops the shards after the work already queued ran, waiting up to the timeout for that.
+     * Work submitted afterwards is rejected. An instance whose retry or RateLimit delay
+     * ends afterwards is terminated with a RejectedExecutionException, see
+     * SimpleFSM.whenResumed().
+     *
+     * @return If all shards stopped in time.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (Shard shard : shards) {
+            shard.closed = true;
+            LockSupport.unpark(shard.thread);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Shard shard : shards) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(shard.thread, remaining);
+            }
+            if (shard.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            shutdown(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Task<T> {
+        T run() throws Exception;
+    }
+
+    /**
+     * A single threaded event loop with the instances it owns. Other threads only
+     * add to its queue, the instances map is only used from its thread.
+     */
+    private static final class Shard implements Executor, Runnable {
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final Map<String, FsmInstance> instances = new HashMap<>();
+        private volatile boolean sleeping;
+        private volatile boolean closed;
+
+        Shard(int index) {
+            thread = new Thread(this, "simplefsm-shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        FsmInstance get(String id) {
+            FsmInstance instance = instances.get(id);
+            if (instance == null) {
+                throw new IllegalArgumentException("No instance with the id '" + id + "'.");
+            }
+            return instance;
+        }
+
+        <T> CompletableFuture<T> submit(Task<T> task) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            execute(() -> {
+                try {
+                    result.complete(task.run());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            return result;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (closed) {
+                throw new RejectedExecutionException("Shard " + thread.getName() + " is shut down.");
+            }
+            queue.offer(task);
+            if (closed && queue.remove(task)) {
+                // Shut down meanwhile, the loop may have stopped without seeing the task.
+                throw new RejectedExecutionException("Shard " + thread.getName() + " is shut down.");
+            }
+            // Both sides write their volatile before reading the other's, so one of them sees the other.
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = queue.poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // Tasks from submit() don't throw, scheduled processing of an instance may.
+                        Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+                        handler.uncaughtException(thread, e);
+                    }
+                    continue;
+                }
+                if (closed) {
+                    return;
+                }
+                sleeping = true;
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+    }
+}
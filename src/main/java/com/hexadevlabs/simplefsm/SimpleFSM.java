@@ -4,11 +4,59 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import org.apache.commons.text.StringEscapeUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 public class SimpleFSM {
+
+    // Thread safe once configured, shared by all exports and imports of state.
+    static final ObjectMapper STATE_MAPPER = JsonMapper.builder()
+            .addModule(new JavaTimeModule())
+            .build();
+
+    /**
+     * How the states of a definition are run.
+     */
+    public enum Backend {
+        /**
+         * Checks every feature a state could use on each step. Always used for traced
+         * instances and definitions with execution hooks or metrics.
+         */
+        INTERPRETED,
+        /**
+         * Runs chains of states without splits, guards and waits from precompiled
+         * tables, see CompiledDefinition. Behaves exactly like INTERPRETED.
+         */
+        COMPILED;
+
+        /**
+         * The backend set by the simplefsm.backend system property, INTERPRETED if not set.
+         */
+        static Backend fromSystemProperty() {
+            String backend = System.getProperty("simplefsm.backend");
+            return backend == null || backend.isEmpty() ? INTERPRETED : valueOf(backend.toUpperCase(Locale.ROOT));
+        }
+    }
+
     private final Map<String, State> states;
     private String onExceptionState;
     private String currentState;
@@ -22,12 +70,76 @@ public class SimpleFSM {
     private List<String> completedSplitStates;
 
     private SplitHandler splitHandler;
+    private FsmClock clock;
+    private FsmMetrics metrics;
+    private StateProfiler profiler;
     String name;
+    // SplitJoined event and start time of the split this instance started, while it runs.
+    private FsmEvents.SplitJoined pendingSplit;
+    private long splitStartedNanos;
+    // Whether metrics counted this instance as concluded yet.
+    private boolean concludedRecorded;
+
+    // Bumped by the States of this definition when they change, shared with copies.
+    private AtomicLong structureVersion = new AtomicLong();
+    // Cached result of validate(), null when the definition was changed through SimpleFSM.
+    private volatile Validated validated;
+
+    private Backend backend = Backend.fromSystemProperty();
+    // Tables for the COMPILED backend and the analysis they were compiled with.
+    private CompiledDefinition compiled;
+    private GraphAnalysis compiledFor;
+
+    // Only set on copies running a split branch, see branchCopy().
+    private SimpleFSM branchParent;
+    private volatile boolean branchCancelled;
+    private long branchDeadline = Long.MAX_VALUE;
+
+    // Failed attempts of the current state, for its RetryPolicy.
+    private int failedAttempts;
+    // Processing of the current state is scheduled to continue later, for a retry or a rate limit.
+    private volatile boolean resumePending;
+    // Completed once scheduled processing has run and nothing else is scheduled.
+    private volatile CompletableFuture<Void> resumed;
+    // The resumed processing scheduled the next resume, only used by the thread running it.
+    private boolean rescheduled;
+    // The current state already has its slot of the RateLimit reserved.
+    private boolean rateSlotReserved;
+    // Runs scheduled processing instead of the executor of the RetryPolicy or RateLimit, see ShardedRuntime.
+    private Executor resumeExecutor;
+
+    // Keeps trace entries out of exported state, see TraceStore.
+    private TraceStore traceStore;
+    private String traceId;
+    // Number of entries of the trace moved to the store so far.
+    private long traceHighWaterMark;
+
+    // Templates and values of trace messages, shared by all instances of the definition.
+    private TraceDictionary traceDictionary;
+    private boolean compactTrace;
+
+    // Events that can be coalesced when repeated, see EventMailbox.
+    private Set<String> idempotentEvents = Collections.emptySet();
+
+    // Set when events may be triggered from several threads at once, see Builder.concurrentEvents().
+    private EventConflictPolicy eventConflictPolicy;
+    // Told about requeued events that could not be applied, may be null.
+    private BiConsumer<String, ProcessingData> droppedEventHandler;
+    // The state the instance is paused in, which an event claims by swapping in PROCESSING.
+    // Null until started and once terminated.
+    private final AtomicReference<String> eventGate = new AtomicReference<>();
+    // Events that lost the claim, with REQUEUE.
+    private final ConcurrentLinkedQueue<QueuedEvent> requeuedEvents = new ConcurrentLinkedQueue<>();
+    // Compared by identity, never equal to a state name in the gate.
+    private static final String PROCESSING = new String("PROCESSING");
 
 
     public SimpleFSM() {
-        states = new HashMap<>();
-        trace = new Trace();
+        states = new LinkedHashMap<>();
+        clock = FsmClock.monotonic();
+        traceDictionary = new TraceDictionary();
+        trace = new Trace(clock);
+        trace.setDictionary(traceDictionary);
         started = false;
         finalStates = new HashSet<>();
         completedSplitStates = new ArrayList<>();
@@ -37,6 +149,32 @@ public class SimpleFSM {
         this.trace.setTraceMode(traceMode);
     }
 
+    /**
+     * Sets the clock used to timestamp Trace entries.
+     */
+    public void setClock(FsmClock clock) {
+        this.clock = Objects.requireNonNull(clock, "Clock must not be null.");
+        this.trace.setClock(clock);
+    }
+
+    public FsmClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Metrics recorded for this definition, or null if metrics are not enabled.
+     */
+    public FsmMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Profiler of the steps of this definition, or null if profiling is not enabled.
+     */
+    public StateProfiler getProfiler() {
+        return profiler;
+    }
+
     /**
      * Adds a State instance to the SimpleFSM.
      *
@@ -44,6 +182,8 @@ public class SimpleFSM {
      */
     public void addState(State state) {
         states.put(state.getName(), state);
+        state.attach(structureVersion);
+        validated = null;
     }
 
     public State getState(String name) {
@@ -62,10 +202,27 @@ public class SimpleFSM {
     }
 
     public void start(String startingState, ProcessingData data) {
-        validate();
+        GraphAnalysis graph = validate();
+        if (trace.isTraceMode() && graph.getMaxChainLength() != GraphAnalysis.UNBOUNDED) {
+            // Roughly five trace entries are written for every state executed.
+            trace.ensureCapacity(graph.getMaxChainLength() * 5);
+        }
         currentState = startingState;
+        if (metrics != null) {
+            metrics.recordStarted();
+        }
+        if (eventConflictPolicy == null) {
+            started = true;
+            process(data);
+            return;
+        }
+        eventGate.set(PROCESSING);
         started = true;
-        process(data);
+        try {
+            process(data);
+        } finally {
+            releaseEventGate();
+        }
     }
 
 
@@ -73,6 +230,115 @@ public class SimpleFSM {
         if (!started) {
             throw new IllegalStateException("State machine not started.");
         }
+        if (eventConflictPolicy != null) {
+            triggerConcurrentEvent(eventName, data);
+            return;
+        }
+        if (resumePending) {
+            throw new IllegalStateException("State machine is scheduled to continue in state '" + currentState + "'.");
+        }
+        applyEvent(eventName, data);
+    }
+
+    /**
+     * triggerEvent() when events may come from several threads. The event claims
+     * the instance with a CAS on the state it is paused in, only the winner runs.
+     */
+    private void triggerConcurrentEvent(String eventName, ProcessingData data) {
+        String pausedIn = eventGate.get();
+        if (pausedIn != PROCESSING && pausedIn != null) {
+            if (states.get(pausedIn).getNextState(eventName) == null) {
+                throw new IllegalArgumentException("No transition found for event '" + eventName + "' in the current state '" + pausedIn + "'.");
+            }
+            if (eventGate.compareAndSet(pausedIn, PROCESSING)) {
+                try {
+                    applyEvent(eventName, data);
+                } finally {
+                    releaseEventGate();
+                }
+                return;
+            }
+        } else if (pausedIn == null) {
+            throw new IllegalStateException("State machine was terminated.");
+        }
+
+        // Lost to another event.
+        if (eventConflictPolicy == EventConflictPolicy.REJECT) {
+            throw new EventConflictException("Event '" + eventName + "' rejected, another event is being processed.");
+        }
+        QueuedEvent queued = new QueuedEvent(eventName, data);
+        requeuedEvents.add(queued);
+        // The holder may have released the instance before the event was queued.
+        String current = eventGate.get();
+        if (current == null && requeuedEvents.remove(queued)) {
+            // Terminated meanwhile, nobody is left to take the event.
+            throw new IllegalStateException("State machine was terminated.");
+        }
+        if (current != PROCESSING && current != null && eventGate.compareAndSet(current, PROCESSING)) {
+            releaseEventGate();
+        }
+    }
+
+    /**
+     * Releases the instance claimed for an event, unless processing is scheduled to
+     * continue, in which case resume() releases it. Processes requeued events first.
+     */
+    private void releaseEventGate() {
+        while (!resumePending) {
+            QueuedEvent queued = requeuedEvents.poll();
+            if (queued == null) {
+                eventGate.set(currentState);
+                if (currentState == null) {
+                    // Terminated, events queued after the poll but before the set can't be applied.
+                    while ((queued = requeuedEvents.poll()) != null) {
+                        dropRequeued(queued);
+                    }
+                    return;
+                }
+                // Check again for an event queued after the poll but before the set.
+                if (requeuedEvents.isEmpty() || !eventGate.compareAndSet(currentState, PROCESSING)) {
+                    return;
+                }
+                continue;
+            }
+            State state = currentState == null ? null : states.get(currentState);
+            if (state == null || state.getNextState(queued.eventName) == null) {
+                dropRequeued(queued);
+                continue;
+            }
+            try {
+                applyEvent(queued.eventName, queued.data);
+            } catch (RuntimeException e) {
+                // The thread that triggered the event is gone, keep the error with the data.
+                queued.data.addException(new ExceptionInfo(e, false));
+            }
+        }
+    }
+
+    private void dropRequeued(QueuedEvent queued) {
+        if (trace.isTraceMode()) {
+            trace.add("Dropped requeued event " + queued.eventName + ", no transition for it in state " + currentState);
+        }
+        if (droppedEventHandler != null) {
+            try {
+                droppedEventHandler.accept(queued.eventName, queued.data);
+            } catch (RuntimeException e) {
+                queued.data.addException(new ExceptionInfo(e, false));
+            }
+        }
+    }
+
+    private static final class QueuedEvent {
+        private final String eventName;
+        private final ProcessingData data;
+
+        QueuedEvent(String eventName, ProcessingData data) {
+            this.eventName = eventName;
+            this.data = data;
+        }
+    }
+
+    private void applyEvent(String eventName, ProcessingData data) {
         State state = states.get(currentState);
         String nextState = state.getNextState(eventName);
         if (nextState == null) {
@@ -80,8 +346,12 @@ public class SimpleFSM {
         }
 
         if (trace.isTraceMode()) {
-            trace.add("triggerEvent, continuing to state: " + nextState);
+            trace.add("triggerEvent, continuing to state: {}", nextState);
         }
+        if (metrics != null && state.shouldWaitForEventBeforeTransition()) {
+            metrics.recordResume(currentState);
+        }
+        recordTransition(currentState, nextState);
         currentState = nextState;
         process(data);
     }
@@ -110,7 +380,8 @@ public class SimpleFSM {
         String nextStateName = state.getNextState(splitStateTransition);
         State nextState = states.get(nextStateName);
 
-        ExceptionInfo exceptionInfo = nextState.execute(data, trace , executionHooks);
+        recordTransition(currentState, nextStateName);
+        ExceptionInfo exceptionInfo = executeState(nextState, data);
 
         // Add exception to list of exceptions if an exception happened.
         if(exceptionInfo.hadException()) {
@@ -127,31 +398,17 @@ public class SimpleFSM {
 
             // If there is an exception somewhere in one of the split states.
             if(data.hasExceptions()) {
-                if (this.onExceptionState != null) {
-
-                    if (trace.isTraceMode()) {
-                        trace.add("Due to exception after split transitioning to state " + this.onExceptionState);
-                    }
-
-                    currentState = this.onExceptionState;
-                    process(data);
-
-                } else {
-                    // Don't have a transition for Exception event.
-                    if (trace.isTraceMode()) {
-                        trace.add("Stopping because of exception and no onExceptionState transition defined, after split");
-                        trace.add("Had " + data.getExceptions().size() + " exceptions after split");
-                    }
-                    currentState = null;
-                }
+                splitJoined(null);
+                continueAfterSplitException(data);
             } else {
                 String nextStateTransition;
-                Collection<String> transitions = nextState.getTransitions();
+                Collection<String> transitions = nextState.getStepTransitions();
                 if (transitions.size() == 1) {
                     nextStateTransition = transitions.iterator().next();
                 } else {
                     throw new IllegalStateException("Expected on transition to joined state");
                 }
+                splitJoined(nextStateTransition);
                 currentState = nextStateTransition;
 
                 process(data);
@@ -160,11 +417,251 @@ public class SimpleFSM {
 
     }
 
+    /**
+     * Used by SplitHandlers that run the branches of a split to the join themselves,
+     * see runBranch(). Continues processing from the join state, or goes to the
+     * onExceptionGoTo state if any of the branches had an exception.
+     *
+     * @param joinState State the branches joined to.
+     * @param data The data with the data of all branches merged in.
+     */
+    void continueAfterSplit(String joinState, ProcessingData data) {
+        splitJoined(data.hasExceptions() ? null : joinState);
+        if (data.hasExceptions()) {
+            continueAfterSplitException(data);
+            return;
+        }
+        if (joinState == null) {
+            throw new IllegalStateException("Split branches did not join to a state");
+        }
+        if (trace.isTraceMode()) {
+            trace.add("Split joined, continuing to state: {}", joinState);
+        }
+        currentState = joinState;
+        process(data);
+    }
+
+    /**
+     * Emits SplitJoined for the split of the current state and records how long
+     * it took to join if this instance started it.
+     *
+     * @param joinState State the branches joined to, null if a branch had an exception.
+     */
+    private void splitJoined(String joinState) {
+        if (metrics != null && splitStartedNanos != 0 && currentState != null) {
+            metrics.recordJoin(currentState, clock.epochNanos() - splitStartedNanos);
+        }
+        splitStartedNanos = 0;
+        FsmEvents.SplitJoined event = pendingSplit;
+        pendingSplit = null;
+        if (event == null) {
+            State splitState = currentState == null ? null : states.get(currentState);
+            int branches = splitState == null ? 0 : splitState.getSplitTransitions().size();
+            event = FsmEvents.splitJoined(name, currentState, branches);
+        }
+        if (event != null) {
+            FsmEvents.joined(event, joinState);
+        }
+    }
+
+    private void continueAfterSplitException(ProcessingData data) {
+        if (this.onExceptionState != null) {
+
+            if (trace.isTraceMode()) {
+                trace.add("Due to exception after split transitioning to state {}", this.onExceptionState);
+            }
+            if (metrics != null && currentState != null) {
+                metrics.recordExceptionRouted(currentState);
+            }
+
+            currentState = this.onExceptionState;
+            process(data);
+
+        } else {
+            // Don't have a transition for Exception event.
+            if (trace.isTraceMode()) {
+                trace.add("Stopping because of exception and no onExceptionState transition defined, after split");
+                trace.add("Had " + data.getExceptions().size() + " exceptions after split");
+            }
+            currentState = null;
+            recordIfConcluded();
+        }
+    }
+
+    /**
+     * Runs one branch of a split on the calling thread, from the state the split
+     * transitions to until the branch reaches its join. A split nested inside the
+     * branch is handed to SplitHandler.splitAndJoin() and the branch carries on
+     * from the state that nested split joined to.
+     * <p>
+     * Meant to be called on a copy of the state machine made for the branch, see branchCopy().
+     *
+     * @param branchState First state of the branch.
+     * @param data Data of the branch, exceptions are added to it.
+     * @return The state the branch joins to, or null if the branch stopped because of an exception.
+     */
+    String runBranch(String branchState, ProcessingData data) {
+        GraphAnalysis graph = validate();
+        if (currentState != null) {
+            recordTransition(currentState, branchState);
+        }
+        String stateName = branchState;
+        int branchFailedAttempts = 0;
+        while (true) {
+            if (isBranchCancelled()) {
+                data.addException(new ExceptionInfo(new CancellationException("Split branch cancelled before state '" + stateName + "'"), false));
+                return null;
+            }
+            if (branchDeadline != Long.MAX_VALUE && System.nanoTime() - branchDeadline > 0) {
+                data.addException(new ExceptionInfo(new TimeoutException("Split branch passed its deadline before state '" + stateName + "'"), false));
+                return null;
+            }
+            State state = states.get(stateName);
+            currentState = stateName;
+            if (trace.isTraceMode()) {
+                trace.add("Entering state: {}", stateName);
+            }
+            data.setNextState(null);
+
+            long rateWaitNanos = reserveRateSlot(state);
+            if (rateWaitNanos > 0) {
+                // Branches have to join before the split continues, so wait for the slot here.
+                LockSupport.parkNanos(rateWaitNanos);
+            }
+            ExceptionInfo exceptionInfo = rateWaitNanos < 0 ? rateLimited(state) : executeState(state, data);
+            String guardRoute = guardRoute(state, exceptionInfo);
+            if (guardRoute != null) {
+                if (trace.isTraceMode()) {
+                    trace.add("Rejected, transitioning to: {}", guardRoute);
+                }
+                recordTransition(stateName, guardRoute);
+                if (graph.isJoinTarget(guardRoute)) {
+                    return guardRoute;
+                }
+                stateName = guardRoute;
+                continue;
+            }
+            if (exceptionInfo.hadException()) {
+                RetryPolicy policy = state.getRetryPolicy();
+                if (policy != null && !exceptionInfo.isOnHook() && policy.shouldRetry(exceptionInfo.exception, branchFailedAttempts + 1)) {
+                    // Branches have to join before the split continues, so the retry waits here.
+                    branchFailedAttempts++;
+                    long delayNanos = policy.delayNanos(branchFailedAttempts);
+                    recordRetry(state, exceptionInfo, branchFailedAttempts, delayNanos);
+                    LockSupport.parkNanos(delayNanos);
+                    continue;
+                }
+                data.addException(exceptionInfo);
+                return null;
+            }
+            branchFailedAttempts = 0;
+            if (state.shouldWaitForEventBeforeTransition()) {
+                data.addException(new ExceptionInfo(new IllegalStateException("A split state is not allowed to wait for an event"), false));
+                return null;
+            }
+            if (state.getFanOut() != null) {
+                int exceptionsBefore = data.getExceptions().size();
+                try {
+                    state.getFanOut().execute(stateName, data, trace);
+                } catch (Exception e) {
+                    data.addException(new ExceptionInfo(e, false));
+                }
+                if (data.getExceptions().size() > exceptionsBefore) {
+                    return null;
+                }
+            }
+
+            if (state.getJoinState() != null) {
+                return state.getJoinState();
+            }
+
+            if (!state.getSplitTransitions().isEmpty()) {
+                int exceptionsBefore = data.getExceptions().size();
+                int branches = state.getSplitTransitions().size();
+                FsmEvents.SplitJoined split = FsmEvents.splitStarted(name, stateName, branches);
+                long splitStart = 0;
+                if (metrics != null) {
+                    metrics.recordSplit(stateName, branches);
+                    splitStart = clock.epochNanos();
+                }
+                String nestedJoin = splitHandler.splitAndJoin(this, data, state.getSplitTransitions());
+                if (split != null) {
+                    FsmEvents.joined(split, nestedJoin);
+                }
+                if (metrics != null) {
+                    metrics.recordJoin(stateName, clock.epochNanos() - splitStart);
+                }
+                if (nestedJoin == null || data.getExceptions().size() > exceptionsBefore) {
+                    return null;
+                }
+                // The branch goes on from the join of the nested split.
+                stateName = nestedJoin;
+                continue;
+            }
+
+            String nextState = resolveNextState(state, data);
+            if (nextState == null) {
+                data.addException(new ExceptionInfo(new IllegalStateException("Split branch ended in state '" + stateName + "' without reaching a join"), false));
+                return null;
+            }
+            recordTransition(stateName, nextState);
+            if (trace.isTraceMode()) {
+                trace.add("Exiting state: {}, transitioning to: {}", stateName, nextState);
+            }
+            if (graph.isJoinTarget(nextState)) {
+                return nextState;
+            }
+            stateName = nextState;
+        }
+    }
+
+    /**
+     * Name of the state the machine is in, while splitting this is the split state.
+     */
+    String getCurrentStateName() {
+        return currentState;
+    }
+
+    /**
+     * Copy of this state machine to run one branch of a split on, with an empty
+     * trace that is merged back with mergeTraceFrom() once the branch joined.
+     */
+    SimpleFSM branchCopy() {
+        SimpleFSM branch = buildEmptyCopy();
+        branch.trace.setTraceMode(trace.isTraceMode());
+        branch.name = name;
+        branch.started = true;
+        branch.currentState = currentState;
+        // Nested branches can not outlive the branch they are part of.
+        branch.branchParent = this;
+        branch.branchDeadline = branchDeadline;
+        return branch;
+    }
+
+    /**
+     * Sets the System.nanoTime() by which a branch must reach its join. runBranch()
+     * checks it before every state, a state that is already running is not interrupted.
+     */
+    void setBranchDeadline(long deadlineNanos) {
+        branchDeadline = Math.min(branchDeadline, deadlineNanos);
+    }
+
+    /**
+     * Asks a branch and the branches of splits nested in it to stop before their next state.
+     */
+    void cancelBranch() {
+        branchCancelled = true;
+    }
+
+    private boolean isBranchCancelled() {
+        return branchCancelled || (branchParent != null && branchParent.isBranchCancelled());
+    }
+
     /**
      * Paused means FSM is waiting on an event
      */
     public boolean isPaused() {
-        if (!started) {
+        if (!started || resumePending) {
             return false;
         }
         State state = states.get(currentState);
@@ -195,7 +692,26 @@ public class SimpleFSM {
      * indicating that reaching a "final state" requires explicit designation of such states.
      */
     public boolean hasReachedFinalState(){
-        return started && finalStates.contains(currentState);
+        return started && !resumePending && finalStates.contains(currentState);
+    }
+
+    /**
+     * Processing is scheduled to continue on another thread after a delay, because
+     * the step of the current state threw and is retried (see RetryPolicy) or its
+     * RateLimit delayed it.
+     */
+    public boolean isResumePending() {
+        return resumePending;
+    }
+
+    /**
+     * Completes once scheduled processing has run and processing stopped again,
+     * because the state machine concluded, paused or terminated.
+     * Already complete when nothing is scheduled.
+     */
+    public CompletableFuture<Void> whenResumed() {
+        CompletableFuture<Void> done = resumed;
+        return done == null ? CompletableFuture.completedFuture(null) : done;
     }
 
     /**
@@ -210,10 +726,12 @@ public class SimpleFSM {
 
     public void addFinalState(String finalState) {
         this.finalStates.add(finalState);
+        validated = null;
     }
 
     public void addSplitHandler(SplitHandler handleSplit) {
         this.splitHandler = handleSplit;
+        validated = null;
     }
 
     public void recordCompletionSplitState(String completedSplitState) {
@@ -238,19 +756,52 @@ public class SimpleFSM {
         // We get the current state object since we know what state
         // to execute as the loop starts.
         State state = states.get(currentState);
+        CompiledDefinition compiled = compiled();
         while (state != null) {
 
+            if (compiled != null) {
+                int id = compiled.idOf(state.getName());
+                if (id >= 0 && compiled.isPlain(id)) {
+                    state = runCompiled(compiled, id, data);
+                    continue;
+                }
+            }
+
             if (trace.isTraceMode()) {
-                trace.add("Entering state: " + state.getName());
+                trace.add("Entering state: {}", state.getName());
             }
 
             data.setNextState(null); // Reset the nextState before executing the step
 
             ExceptionInfo exceptionInfo;
 
-            exceptionInfo = state.execute(data, trace , executionHooks);
+            long rateWaitNanos = reserveRateSlot(state);
+            if (rateWaitNanos > 0) {
+                // The slot is reserved, come back for it instead of waiting here.
+                rateSlotReserved = true;
+                scheduleResume(rateWaitNanos, state.getRateLimit().getExecutor(), data);
+                break;
+            }
+            exceptionInfo = rateWaitNanos < 0 ? rateLimited(state) : executeState(state, data);
+
+            String guardRoute = guardRoute(state, exceptionInfo);
+            if (guardRoute != null) {
+                if (trace.isTraceMode()) {
+                    trace.add("Rejected, transitioning to: {}", guardRoute);
+                }
+                recordTransition(state.getName(), guardRoute);
+                state = states.get(guardRoute);
+                currentState = guardRoute;
+                continue;
+            }
 
             if(exceptionInfo.hadException()){
+                if (scheduleRetry(state, exceptionInfo, data)) {
+                    // currentState stays on the state so it runs again when the retry is due.
+                    break;
+                }
+                failedAttempts = 0;
+
                 // Have a transition for on Exception event
                 data.addException(exceptionInfo);
 
@@ -275,7 +826,10 @@ public class SimpleFSM {
                     }
 
                     if (trace.isTraceMode()) {
-                        trace.add("Due to exception transitioning to state " + this.onExceptionState);
+                        trace.add("Due to exception transitioning to state {}", this.onExceptionState);
+                    }
+                    if (metrics != null) {
+                        metrics.recordExceptionRouted(state.getName());
                     }
 
                     state = states.get(this.onExceptionState);
@@ -297,13 +851,47 @@ public class SimpleFSM {
                     break;
                 }
 
-            } else if(state.shouldWaitForEventBeforeTransition()){
+            }
+            failedAttempts = 0;
+
+            if(state.shouldWaitForEventBeforeTransition()){
                 if (trace.isTraceMode()) {
-                    trace.add("Processed state " + state.getName() + ". Pausing because " + state.getName() + " requires a wait after completion");
+                    trace.add("Processed state {}. Pausing because {} requires a wait after completion", state.getName(), state.getName());
+                }
+                if (metrics != null) {
+                    metrics.recordPause(state.getName());
                 }
                 break;
             }
 
+            if (state.getFanOut() != null) {
+                int exceptionsBefore = data.getExceptions().size();
+                try {
+                    state.getFanOut().execute(state.getName(), data, trace);
+                } catch (Exception e) {
+                    data.addException(new ExceptionInfo(e, false));
+                }
+                if (data.getExceptions().size() > exceptionsBefore) {
+                    // Same as after a split, exceptions of any item go to the exception state.
+                    if (this.onExceptionState != null) {
+                        if (trace.isTraceMode()) {
+                            trace.add("Due to exception after fan out transitioning to state {}", this.onExceptionState);
+                        }
+                        if (metrics != null) {
+                            metrics.recordExceptionRouted(state.getName());
+                        }
+                        state = states.get(this.onExceptionState);
+                        currentState = this.onExceptionState;
+                        continue;
+                    }
+                    if (trace.isTraceMode()) {
+                        trace.add("Stopping because of exception and no onExceptionState transition defined, after fan out");
+                    }
+                    currentState = null;
+                    break;
+                }
+            }
+
             // From here we figure out what the next State to transition to needs to be.
             // It can be directed by the Processor via data, be an auto transition,
             // or there is only one possibly transition available.
@@ -314,29 +902,23 @@ public class SimpleFSM {
             if(!splitTransitions.isEmpty()){
                 // Pause state machine loop.
                 // currentState will remain what it was.
+                pendingSplit = FsmEvents.splitStarted(name, state.getName(), splitTransitions.size());
+                if (metrics != null) {
+                    metrics.recordSplit(state.getName(), splitTransitions.size());
+                    splitStartedNanos = clock.epochNanos();
+                }
                 splitHandler.handleSplit(this, data, splitTransitions);
                 break;
             }
 
-            String nextState = data.getNextState();
-            if (nextState == null) {
-                nextState = state.getNextState("AUTO");
-            }
-
-            if (nextState == null) {
-                Collection<String> possibleTransitions = state.getTransitions();
-                if (possibleTransitions.size() == 1) {
-                    nextState = possibleTransitions.iterator().next();
-                } else if (possibleTransitions.size() > 1) {
-                    throw new IllegalStateException("Next state is ambiguous. Please specify the next state in the processing step.");
-                }
-            }
+            String nextState = resolveNextState(state, data);
 
             if (trace.isTraceMode()) {
-                trace.add("Exiting state: " + state.getName() + ", transitioning to: " + (nextState == null ? "terminated" : nextState));
+                trace.add("Exiting state: {}, transitioning to: {}", state.getName(), nextState == null ? "terminated" : nextState);
             }
 
             if(nextState != null){
+                recordTransition(state.getName(), nextState);
                 // State is updated to the nextState since we know the next state for next iteration of loop will be.
                 state = states.get(nextState);
                 // currentState is updates to the nextState so the state machine has moved to be in the next
@@ -350,61 +932,554 @@ public class SimpleFSM {
             }
 
         }
+        recordIfConcluded();
     }
 
-    public Trace getTrace() {
-        return trace;
+    private void recordIfConcluded() {
+        if (metrics != null && !concludedRecorded && isConcluded()) {
+            concludedRecorded = true;
+            metrics.recordConcluded();
+        }
     }
 
-    public String toGraphviz() {
-        StringBuilder dot = new StringBuilder("digraph G {\n");
-
-        if(name != null){
-            dot.append("labelloc=\"t\";\n" + "label=<<B>")
-                    .append(StringEscapeUtils.escapeHtml4(name)).append("</B>>;\n");
+    /**
+     * @return Tables to run this instance with, or null to interpret it.
+     */
+    private CompiledDefinition compiled() {
+        // Traces, hooks, metrics and profiling are only handled by the interpreter.
+        if (backend != Backend.COMPILED || trace.isTraceMode() || executionHooks != null || metrics != null
+                || profiler != null) {
+            return null;
+        }
+        GraphAnalysis current = validate();
+        CompiledDefinition result = compiled;
+        if (result == null || compiledFor != current) {
+            result = CompiledDefinition.compile(states, onExceptionState);
+            compiled = result;
+            compiledFor = current;
         }
-        for (Map.Entry<String, State> entry : states.entrySet()) {
-            String stateName = entry.getKey();
-            State state = entry.getValue();
-            dot.append("\t").append(stateName)
-                    .append("[label=\"")
-                    .append(stateName)
-                    .append("\\n")
-                    .append("[").append(state.getProcessStepClassName()).append("]");
+        return result;
+    }
 
-            if(state.shouldWaitForEventBeforeTransition()){
-                dot.append("\\n").append("<wait>");
-            }
-            if(finalStates.contains(stateName)){
-                dot.append("\\n").append("<final>");
+    /**
+     * Runs plain states, starting with the state of the id, until reaching one
+     * that is not plain. Does what process() does for these states, without the
+     * checks for features they don't use.
+     *
+     * @return The state for process() to continue with, or null when done.
+     */
+    private State runCompiled(CompiledDefinition compiled, int id, ProcessingData data) {
+        while (true) {
+            State state = compiled.state(id);
+            data.setNextState(null);
+            FsmEvents.StateExecuted event = FsmEvents.beginStateExecuted();
+            ExceptionInfo exceptionInfo = state.execute(data, trace, null);
+            if (event != null) {
+                FsmEvents.commit(event, name, state, exceptionInfo);
             }
-            dot.append("\"];\n");
-
-            for (Map.Entry<String, String> transition : state.getTransitionEntries()) {
-                String eventName = transition.getKey();
-                String targetState = transition.getValue();
 
-                dot.append("\t").append(stateName).append(" -> ").append(targetState)
-                        .append("[label=\"").append(eventName).append("\"];\n");
+            int nextId;
+            boolean exceptionRoute = exceptionInfo.hadException();
+            if (exceptionRoute) {
+                data.addException(exceptionInfo);
+                if (onExceptionState == null || onExceptionState.equals(currentState)) {
+                    currentState = null;
+                    return null;
+                }
+                nextId = compiled.exceptionStateId();
+                if (nextId < 0) {
+                    currentState = onExceptionState;
+                    return null;
+                }
+            } else if (data.getNextState() != null) {
+                nextId = compiled.idOf(data.getNextState());
+                if (nextId < 0) {
+                    currentState = data.getNextState();
+                    return null;
+                }
+            } else {
+                nextId = compiled.successor(id);
+                if (nextId == CompiledDefinition.NONE) {
+                    return null;
+                }
+                if (nextId == CompiledDefinition.AMBIGUOUS) {
+                    throw new IllegalStateException("Next state is ambiguous. Please specify the next state in the processing step.");
+                }
+            }
 
+            currentState = compiled.name(nextId);
+            if (!exceptionRoute) {
+                // Like process(), routing to the exception state is not a transition.
+                FsmEvents.transition(name, state.getName(), currentState);
             }
+            if (!compiled.isPlain(nextId)) {
+                return compiled.state(nextId);
+            }
+            id = nextId;
         }
-        if(onExceptionState!= null){
-            dot.append("\t").append("Exception [label=\"Exception\" shape=\"box\"];\n");
-            dot.append("\t").append("Exception -> ").append(onExceptionState)
-                    .append("[label=\"ON_EXCEPTION\"];\n");
-        }
-
-        dot.append("}");
-        return dot.toString();
     }
 
     /**
-     * Helper method to easily build an equivalent
-     * state machine object without any state object as
-     * if it came out by making it with static build() method.
+     * Schedules the state to run again if its RetryPolicy allows for the exception.
+     *
+     * @return If a retry was scheduled.
      */
-    public SimpleFSM buildEmptyCopy(){
+    private boolean scheduleRetry(State state, ExceptionInfo exceptionInfo, ProcessingData data) {
+        RetryPolicy policy = state.getRetryPolicy();
+        if (policy == null || exceptionInfo.isOnHook() || !policy.shouldRetry(exceptionInfo.exception, failedAttempts + 1)) {
+            return false;
+        }
+        failedAttempts++;
+        long delayNanos = policy.delayNanos(failedAttempts);
+        recordRetry(state, exceptionInfo, failedAttempts, delayNanos);
+        scheduleResume(delayNanos, policy.getExecutor(), data);
+        return true;
+    }
+
+    /**
+     * Continues processing from the current state after the delay, without holding
+     * a thread in the meantime. The delay is kept by the shared timer of CompletableFuture.
+     */
+    private void scheduleResume(long delayNanos, Executor executor, ProcessingData data) {
+        if (resumed == null) {
+            resumed = new CompletableFuture<>();
+        }
+        resumePending = true;
+        rescheduled = true;
+        Executor target = resumeExecutor != null ? resumeExecutor : executor;
+        CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS, task -> {
+            try {
+                target.execute(task);
+            } catch (RejectedExecutionException e) {
+                abandonResume(data, e);
+            }
+        }).execute(() -> resume(data));
+    }
+
+    /**
+     * Terminates the state machine when its scheduled processing can't run, for example
+     * because the executor was shut down. Runs on the timer thread, which is the only
+     * one using the instance then.
+     */
+    private void abandonResume(ProcessingData data, RejectedExecutionException e) {
+        CompletableFuture<Void> done = resumed;
+        data.addException(new ExceptionInfo(e, false));
+        if (trace.isTraceMode()) {
+            trace.add("Scheduled processing of state {} was rejected, terminating", currentState);
+        }
+        currentState = null;
+        resumePending = false;
+        resumed = null;
+        if (eventConflictPolicy != null) {
+            releaseEventGate();
+        }
+        done.completeExceptionally(e);
+    }
+
+    /**
+     * Runs the scheduled processing. The resume stays pending until the attempt returns,
+     * so events triggered meanwhile are rejected or queued instead of running alongside it.
+     */
+    private void resume(ProcessingData data) {
+        CompletableFuture<Void> done = resumed;
+        rescheduled = false;
+        try {
+            process(data);
+        } catch (RuntimeException e) {
+            resumePending = false;
+            resumed = null;
+            done.completeExceptionally(e);
+            return;
+        } finally {
+            if (!rescheduled) {
+                resumePending = false;
+            }
+            if (eventConflictPolicy != null) {
+                releaseEventGate();
+            }
+        }
+        if (!resumePending) {
+            resumed = null;
+            done.complete(null);
+        }
+    }
+
+    /**
+     * If triggering the event twice in a row has the same effect as once, see Builder.idempotentEvent().
+     */
+    public boolean isIdempotentEvent(String eventName) {
+        return idempotentEvents.contains(eventName);
+    }
+
+    /**
+     * Makes scheduled processing of this instance run on the executor, whatever
+     * the RetryPolicy or RateLimit of the state say.
+     */
+    void setResumeExecutor(Executor resumeExecutor) {
+        this.resumeExecutor = resumeExecutor;
+    }
+
+    /**
+     * Takes a slot of the RateLimit of the state, if it has one.
+     *
+     * @return 0 to execute now, the nanoseconds to wait for the reserved slot, or -1 if rejected.
+     */
+    private long reserveRateSlot(State state) {
+        RateLimit rateLimit = state.getRateLimit();
+        if (rateLimit == null) {
+            return 0;
+        }
+        if (rateSlotReserved) {
+            // Resumed after waiting for the slot.
+            rateSlotReserved = false;
+            return 0;
+        }
+        long waitNanos = rateLimit.reserve(System.nanoTime());
+        if (waitNanos != 0) {
+            if (metrics != null) {
+                metrics.recordRateLimited(state.getName(), waitNanos > 0);
+            }
+            if (trace.isTraceMode()) {
+                trace.add(waitNanos > 0
+                        ? "Rate limit of state " + state.getName() + " delays it " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms"
+                        : "Rate limit of state " + state.getName() + " reached, rejected");
+            }
+        }
+        return waitNanos;
+    }
+
+    private void recordRetry(State state, ExceptionInfo exceptionInfo, int failedAttempts, long delayNanos) {
+        if (trace.isTraceMode()) {
+            trace.add("Exception in state " + state.getName() + ": " + exceptionInfo.exception.getMessage()
+                    + ". Retry " + failedAttempts + " of " + (state.getRetryPolicy().getMaxAttempts() - 1)
+                    + " in " + TimeUnit.NANOSECONDS.toMillis(delayNanos) + "ms");
+        }
+        if (metrics != null) {
+            metrics.recordRetry(state.getName());
+        }
+    }
+
+    /**
+     * The state to go to after state has executed. It can be directed by the step
+     * via data, be an auto transition, or the only transition available.
+     *
+     * @return Next state or null if there is no transition.
+     */
+    private String resolveNextState(State state, ProcessingData data) {
+        String nextState = data.getNextState();
+        if (nextState == null) {
+            nextState = state.getNextState("AUTO");
+        }
+
+        if (nextState == null) {
+            Collection<String> possibleTransitions = state.getStepTransitions();
+            if (possibleTransitions.size() == 1) {
+                nextState = possibleTransitions.iterator().next();
+            } else if (possibleTransitions.size() > 1) {
+                throw new IllegalStateException("Next state is ambiguous. Please specify the next state in the processing step.");
+            }
+        }
+        return nextState;
+    }
+
+    /**
+     * The state to go to when the step of the state was not run because a guard
+     * like its Bulkhead rejected it, if a transition was configured for that.
+     */
+    private String guardRoute(State state, ExceptionInfo exceptionInfo) {
+        if (exceptionInfo.exception instanceof BulkheadRejectedException) {
+            return state.getNextState(Bulkhead.REJECTED_EVENT);
+        }
+        if (exceptionInfo.exception instanceof RateLimitedException) {
+            return state.getNextState(RateLimit.REJECTED_EVENT);
+        }
+        return null;
+    }
+
+    private static ExceptionInfo rateLimited(State state) {
+        return new ExceptionInfo(new RateLimitedException("Rate limit of state '" + state.getName() + "' reached."), false);
+    }
+
+    /**
+     * Executes the step of a state, or replays it from its StepCache.
+     */
+    private ExceptionInfo executeState(State state, ProcessingData data) {
+        StepCache cache = state.getCache();
+        if (cache == null) {
+            return executeInBulkhead(state, data);
+        }
+        StepCache.Key key = cache.keyOf(data);
+        StepCache.Result cached = cache.get(key);
+        if (cached == null) {
+            CompletableFuture<StepCache.Result> load = new CompletableFuture<>();
+            CompletableFuture<StepCache.Result> inFlight = cache.startLoad(key, load);
+            if (inFlight == null) {
+                return loadIntoCache(state, cache, key, load, data);
+            }
+            // Another execution is running the step for the same key, use what it gets.
+            cached = inFlight.join();
+            if (cached == null) {
+                if (metrics != null) {
+                    metrics.recordCacheMiss(state.getName());
+                }
+                return executeInBulkhead(state, data);
+            }
+        }
+        if (metrics != null) {
+            metrics.recordCacheHit(state.getName());
+        }
+        if (trace.isTraceMode()) {
+            trace.add("Cache hit in state {}", state.getName());
+        }
+        cached.replay(data);
+        return new ExceptionInfo();
+    }
+
+    private ExceptionInfo loadIntoCache(State state, StepCache cache, StepCache.Key key,
+                                        CompletableFuture<StepCache.Result> load, ProcessingData data) {
+        if (metrics != null) {
+            metrics.recordCacheMiss(state.getName());
+        }
+        ExceptionInfo exceptionInfo = null;
+        StepCache.Result result = null;
+        data.startRecording(cache.getChangedInPlace());
+        try {
+            exceptionInfo = executeInBulkhead(state, data);
+        } finally {
+            Map<String, Object> writes = data.stopRecording();
+            if (exceptionInfo != null && !exceptionInfo.hadException()) {
+                try {
+                    result = StepCache.result(key, writes, data.getNextState());
+                } catch (IllegalArgumentException e) {
+                    exceptionInfo = new ExceptionInfo(e, false);
+                }
+            }
+            // Waiters run the step themselves when it failed.
+            cache.loaded(key, load, result);
+        }
+        return exceptionInfo;
+    }
+
+    /**
+     * Executes the step of a state within its Bulkhead, if it has one.
+     */
+    private ExceptionInfo executeInBulkhead(State state, ProcessingData data) {
+        Bulkhead bulkhead = state.getBulkhead();
+        if (bulkhead == null) {
+            return executeStep(state, data);
+        }
+        long queuedNanos = bulkhead.acquire();
+        if (queuedNanos < 0) {
+            if (metrics != null) {
+                metrics.recordBulkheadRejection(state.getName());
+            }
+            if (trace.isTraceMode()) {
+                trace.add("Bulkhead of state {} is full, rejected", state.getName());
+            }
+            return new ExceptionInfo(new BulkheadRejectedException("Bulkhead of state '" + state.getName() + "' is full."), false);
+        }
+        try {
+            if (metrics != null) {
+                metrics.recordQueueTime(state.getName(), queuedNanos);
+            }
+            return executeStep(state, data);
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Executes the step of a state and records metrics about it when enabled.
+     */
+    private ExceptionInfo executeStep(State state, ProcessingData data) {
+        FsmEvents.StateExecuted event = FsmEvents.beginStateExecuted();
+        if (event == null) {
+            return executeMeasured(state, data);
+        }
+        ExceptionInfo exceptionInfo = executeMeasured(state, data);
+        FsmEvents.commit(event, name, state, exceptionInfo);
+        return exceptionInfo;
+    }
+
+    private ExceptionInfo executeMeasured(State state, ProcessingData data) {
+        if (profiler != null && profiler.sample()) {
+            return executeProfiled(state, data);
+        }
+        if (metrics == null) {
+            return state.execute(data, trace, executionHooks);
+        }
+        long start = clock.epochNanos();
+        ExceptionInfo exceptionInfo = state.execute(data, trace, executionHooks);
+        metrics.recordExecution(state.getName(), clock.epochNanos() - start, exceptionInfo.hadException());
+        return exceptionInfo;
+    }
+
+    private ExceptionInfo executeProfiled(State state, ProcessingData data) {
+        long start = clock.epochNanos();
+        long allocatedBefore = StateProfiler.allocatedBytes();
+        long cpuBefore = StateProfiler.cpuTime();
+        long wallBefore = System.nanoTime();
+        ExceptionInfo exceptionInfo = state.execute(data, trace, executionHooks);
+        long wall = System.nanoTime() - wallBefore;
+        long cpu = StateProfiler.cpuTime() - cpuBefore;
+        long allocated = StateProfiler.allocatedBytes() - allocatedBefore;
+        profiler.record(state.getName(), wall, cpu, allocated);
+        if (metrics != null) {
+            metrics.recordExecution(state.getName(), clock.epochNanos() - start, exceptionInfo.hadException());
+        }
+        return exceptionInfo;
+    }
+
+    private void recordTransition(String fromState, String toState) {
+        if (metrics != null) {
+            metrics.recordTransition(fromState, toState);
+        }
+        FsmEvents.transition(name, fromState, toState);
+    }
+
+    /**
+     * The trace of the instance. With a TraceStore this is assembled from the
+     * stored entries and the ones not exported yet, adding to it has no effect.
+     */
+    public Trace getTrace() {
+        if (traceStore == null || traceHighWaterMark == 0) {
+            return trace;
+        }
+        Trace full = new Trace(clock);
+        full.setTraceMode(trace.isTraceMode());
+        full.append(traceStore.read(traceId, 0, traceHighWaterMark));
+        full.append(trace.logs);
+        return full;
+    }
+
+    /**
+     * The trace entries are added to while running, never assembled from a TraceStore.
+     */
+    Trace liveTrace() {
+        return trace;
+    }
+
+    /**
+     * Id of the trace in the TraceStore, null until entries were first stored.
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Moves the entries logged since the last flush to the TraceStore. Done
+     * by exportState(), does nothing without a store.
+     */
+    public void flushTrace() {
+        if (traceStore == null || trace.size() == 0) {
+            return;
+        }
+        if (traceId == null) {
+            traceId = UUID.randomUUID().toString();
+        }
+        // At the high water mark, replacing anything stored after the snapshot this instance was restored from.
+        traceHighWaterMark = traceStore.append(traceId, traceHighWaterMark, trace.takeAll());
+    }
+
+    public String toGraphviz() {
+        StringBuilder dot = new StringBuilder();
+        try {
+            toGraphviz(dot);
+        } catch (IOException e) {
+            // StringBuilder does not throw.
+            throw new UncheckedIOException(e);
+        }
+        return dot.toString();
+    }
+
+    /**
+     * Streams the Dot notation graph to the Appendable, for example a Writer.
+     * States and transitions are written in the order they were defined.
+     */
+    public void toGraphviz(Appendable out) throws IOException {
+        new GraphvizWriter(name, states, finalStates, onExceptionState, null).write(out);
+    }
+
+    /**
+     * Streams the Dot notation graph annotated with runtime metrics. States are
+     * colored by p99 latency and show execution count and exception rate,
+     * transitions show how often they were taken and get thicker with use.
+     *
+     * @param out Where to write the graph.
+     * @param metrics Metrics collected for this definition, see Builder.withMetrics().
+     */
+    public void toGraphviz(Appendable out, FsmMetrics metrics) throws IOException {
+        new GraphvizWriter(name, states, finalStates, onExceptionState, metrics).write(out);
+    }
+
+    /**
+     * Writes the structure of the definition as a definition file, to be loaded
+     * with DefinitionFile.read(). Steps are referred to by their class name.
+     */
+    public void writeDefinition(OutputStream out) throws IOException {
+        DefinitionFile.write(out, name, states, finalStates, onExceptionState);
+    }
+
+    public String toDefinitionJson() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeDefinition(out);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw.
+            throw new UncheckedIOException(e);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hash of the structure of the definition: name, states with their step class
+     * and wait flag, transitions, final states and the exception state.
+     * It does not depend on the order states were defined in, two definitions
+     * with the same hash render to the same diagram.
+     *
+     * @return Hex encoded SHA-256 hash.
+     */
+    public String definitionHash() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        updateDigest(digest, name);
+        for (String stateName : new TreeSet<>(states.keySet())) {
+            State state = states.get(stateName);
+            updateDigest(digest, stateName);
+            updateDigest(digest, state.getProcessStepClassName());
+            updateDigest(digest, state.shouldWaitForEventBeforeTransition() ? "wait" : "");
+            updateDigest(digest, finalStates.contains(stateName) ? "final" : "");
+            SortedMap<String, String> transitions = new TreeMap<>();
+            for (Map.Entry<String, String> transition : state.getTransitionEntries()) {
+                transitions.put(transition.getKey(), transition.getValue());
+            }
+            for (Map.Entry<String, String> transition : transitions.entrySet()) {
+                updateDigest(digest, transition.getKey());
+                updateDigest(digest, transition.getValue());
+            }
+        }
+        updateDigest(digest, onExceptionState);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void updateDigest(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        // Separator so that adjacent values can not run into each other.
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Helper method to easily build an equivalent
+     * state machine object without any state object as
+     * if it came out by making it with static build() method.
+     */
+    public SimpleFSM buildEmptyCopy(){
         SimpleFSM result = new SimpleFSM();
         // Copy all the declarative properties of the State machine.
         result.states.putAll(states);
@@ -413,6 +1488,22 @@ public class SimpleFSM {
         result.executionHooks = executionHooks;
         result.onExecutionHookExceptionTerminate = onExecutionHookExceptionTerminate;
         result.splitHandler = splitHandler;
+        result.setClock(clock);
+        result.metrics = metrics;
+        result.profiler = profiler;
+        result.structureVersion = structureVersion;
+        result.validated = validated;
+        result.backend = backend;
+        result.eventConflictPolicy = eventConflictPolicy;
+        result.droppedEventHandler = droppedEventHandler;
+        result.idempotentEvents = idempotentEvents;
+        result.traceStore = traceStore;
+        result.traceDictionary = traceDictionary;
+        result.trace.setDictionary(traceDictionary);
+        result.compactTrace = compactTrace;
+        result.trace.setCompact(compactTrace);
+        result.compiled = compiled;
+        result.compiledFor = compiledFor;
         return result;
     }
 
@@ -422,20 +1513,32 @@ public class SimpleFSM {
      * @return A JSON string representing the current state of the FSM.
      */
     public String exportState() {
-        ObjectMapper objectMapper = JsonMapper.builder()
-                .addModule(new JavaTimeModule())
-                .build();
+        FsmEvents.SnapshotExported event = FsmEvents.beginSnapshotExported();
+        try {
+            String json = STATE_MAPPER.writeValueAsString(toFSMState());
+            if (event != null) {
+                FsmEvents.commit(event, name, json);
+            }
+            return json;
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    FSMState toFSMState() {
         FSMState fsmState = new FSMState();
         fsmState.setCurrentState(currentState);
         fsmState.completedSplitStates(completedSplitStates);
+        if (traceStore != null) {
+            // Leaves the trace without entries, the snapshot only refers to them.
+            flushTrace();
+            fsmState.setTraceId(traceId);
+            fsmState.setTraceHighWaterMark(traceHighWaterMark);
+        }
         fsmState.setTrace(trace);
         fsmState.setStarted(started);
         fsmState.setName(name);
-        try {
-            return objectMapper.writeValueAsString(fsmState);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
+        return fsmState;
     }
 
     /**
@@ -444,18 +1547,23 @@ public class SimpleFSM {
      * @param json The JSON string representing the state to be imported.
      */
     public void importState(String json)  {
-        ObjectMapper objectMapper =  JsonMapper.builder()
-                .addModule(new JavaTimeModule())
-                .build();
-
         FSMState fsmState;
         try {
-            fsmState = objectMapper.readValue(json, FSMState.class);
+            fsmState = STATE_MAPPER.readValue(json, FSMState.class);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
+        importState(fsmState);
+    }
+
+    void importState(FSMState fsmState) {
         currentState = fsmState.getCurrentState();
         trace = fsmState.getTrace();
+        trace.setClock(clock);
+        trace.setDictionary(traceDictionary);
+        trace.setCompact(compactTrace);
+        traceId = fsmState.getTraceId();
+        traceHighWaterMark = fsmState.getTraceHighWaterMark();
         started = fsmState.isStarted();
         name = fsmState.getName();
         completedSplitStates = fsmState.getCompletedSplitStates();
@@ -512,7 +1620,7 @@ public class SimpleFSM {
             if (simpleFSM.states.containsKey(name)) {
                 throw new IllegalArgumentException("A state with the name '" + name + "' already exists.");
             }
-            this.simpleFSM.states.put(name, new State(name, processingStep, waitForEventBeforeTransition));
+            this.simpleFSM.addState(new State(name, processingStep, waitForEventBeforeTransition));
             return new StateBuilder(name, this);
         }
 
@@ -530,6 +1638,7 @@ public class SimpleFSM {
          */
         public Builder onExceptionGoTo(String state) {
             simpleFSM.onExceptionState = state;
+            simpleFSM.validated = null;
             return this;
         }
 
@@ -563,6 +1672,93 @@ public class SimpleFSM {
             return this;
         }
 
+        /**
+         * Use a specific clock to timestamp Trace entries.
+         * For example FsmClock.cached() when tracing at a very high rate.
+         */
+        public Builder withClock(FsmClock clock){
+            simpleFSM.setClock(clock);
+            return this;
+        }
+
+        /**
+         * Record execution counts, latencies, exceptions and transitions into metrics.
+         * The same FsmMetrics can be shared by all instances of the definition.
+         */
+        public Builder withMetrics(FsmMetrics metrics){
+            simpleFSM.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Profile the wall time, CPU time and allocations of the steps, see StateProfiler.
+         * The same StateProfiler can be shared by all instances of the definition.
+         */
+        public Builder withProfiler(StateProfiler profiler){
+            simpleFSM.profiler = profiler;
+            return this;
+        }
+
+        /**
+         * Allow triggerEvent() to be called for an instance from several threads at
+         * the same time. Only one event is processed at a time, the policy decides
+         * what happens to the others. Without this the caller has to make sure events
+         * for an instance are not triggered concurrently.
+         */
+        public Builder concurrentEvents(EventConflictPolicy policy){
+            simpleFSM.eventConflictPolicy = Objects.requireNonNull(policy);
+            return this;
+        }
+
+        /**
+         * Like concurrentEvents(policy), with a handler called with the name and data of
+         * every requeued event that is dropped because the state the instance ended up
+         * in, or its termination, leaves no transition for it. Runs on the thread that
+         * held the instance, before it is released.
+         */
+        public Builder concurrentEvents(EventConflictPolicy policy, BiConsumer<String, ProcessingData> droppedEventHandler){
+            simpleFSM.droppedEventHandler = Objects.requireNonNull(droppedEventHandler);
+            return concurrentEvents(policy);
+        }
+
+        /**
+         * Marks events for which triggering them twice in a row has the same effect
+         * as once, like a refresh. An EventMailbox coalesces repeats of them.
+         */
+        public Builder idempotentEvent(String... eventNames){
+            Set<String> events = new HashSet<>(simpleFSM.idempotentEvents);
+            events.addAll(Arrays.asList(eventNames));
+            simpleFSM.idempotentEvents = events;
+            return this;
+        }
+
+        /**
+         * Export traces with each distinct message text listed once instead of
+         * the full text of every entry. Imports read both forms.
+         */
+        public Builder compactTrace(){
+            simpleFSM.compactTrace = true;
+            simpleFSM.trace.setCompact(true);
+            return this;
+        }
+
+        /**
+         * Keep trace entries in the store instead of in exported state, see TraceStore.
+         */
+        public Builder traceStore(TraceStore traceStore){
+            simpleFSM.traceStore = Objects.requireNonNull(traceStore);
+            return this;
+        }
+
+        /**
+         * Backend to run the definition with, see Backend. Defaults to the
+         * simplefsm.backend system property or INTERPRETED.
+         */
+        public Builder backend(Backend backend){
+            simpleFSM.backend = Objects.requireNonNull(backend);
+            return this;
+        }
+
         public SimpleFSM build() {
             if (simpleFSM.states.isEmpty()) {
                 throw new IllegalArgumentException("At least one state must be defined.");
@@ -585,44 +1781,43 @@ public class SimpleFSM {
         }
     }
 
-    private void validate() {
-        // Make sure final States exist in State map
-        if(!finalStates.isEmpty() && !finalStates.stream().allMatch(states::containsKey)){
-            throw new SimpleFSMValidationException("Some final states are not declared. Make sure all states marked as final are added with state() method.");
-        }
-
-        // Make sure the transitions are to states that exist.
-        for (Map.Entry<String, State> stateEntry : states.entrySet()) {
-            String stateName = stateEntry.getKey();
-            State state = stateEntry.getValue();
-            for (String transitionTarget : state.getTransitions()) {
-                if (!states.containsKey(transitionTarget)) {
-                    throw new SimpleFSMValidationException("State '" + stateName + "' has a transition to undefined state '" + transitionTarget + "'.");
-                }
-            }
-        }
-
-        // If there's a split handler, make sure there's at least one split transition defined
-        if (splitHandler != null && states.values().stream().allMatch(state -> state.getSplitTransitions().isEmpty())) {
-            throw new SimpleFSMValidationException("A split handler is set, but no split transitions are defined.");
+    /**
+     * Validates the definition. The result is cached, so it only does work the
+     * first time or after the definition was changed through one of the mutators
+     * or by adding transitions to a State.
+     *
+     * @return The analysis of the definition.
+     * @throws SimpleFSMValidationException If the definition is not valid.
+     */
+    private GraphAnalysis validate() {
+        Validated current = validated;
+        long version = structureVersion.get();
+        if (current == null || current.version != version) {
+            current = new Validated(GraphAnalysis.analyze(states, finalStates, onExceptionState, splitHandler), version);
+            validated = current;
         }
+        return current.analysis;
+    }
 
-        // Ensure that states reached by split transitions have additional transitions
-        Set<String> statesWithSplitTransitions = new HashSet<>();
-        for (State state : states.values()) {
-            for (String splitTransition : state.getSplitTransitions()) {
-                statesWithSplitTransitions.add(state.getNextState(splitTransition));
-            }
-        }
+    /**
+     * An analysis with the structure version it was computed for, published together.
+     */
+    private static final class Validated {
+        final GraphAnalysis analysis;
+        final long version;
 
-        for (String stateName : statesWithSplitTransitions) {
-            State state = states.get(stateName);
-            if (state.getTransitions().isEmpty()) {  // Check if the state has only the incoming split transition
-                throw new SimpleFSMValidationException("State '" + stateName + "' reached by a split transition must have at least one additional transition.");
-            }
+        Validated(GraphAnalysis analysis, long version) {
+            this.analysis = analysis;
+            this.version = version;
         }
     }
 
+    /**
+     * Static analysis of the definition. Validates it first if needed.
+     */
+    public GraphAnalysis getAnalysis() {
+        return validate();
+    }
 
     public static class StateBuilder {
         private final String name;
@@ -641,6 +1836,72 @@ public class SimpleFSM {
             return on("SPLIT");
         }
 
+        /**
+         * Retry the step of this state when it throws, see RetryPolicy.
+         */
+        public StateBuilder retry(RetryPolicy retryPolicy) {
+            this.parentBuilder.simpleFSM.getState(name).setRetryPolicy(Objects.requireNonNull(retryPolicy));
+            return this;
+        }
+
+        /**
+         * Limit how many executions of the step of this state run at the same time,
+         * across all instances of the definition. Rejected executions go to the
+         * onExceptionGoTo state with a BulkheadRejectedException.
+         */
+        public StateBuilder bulkhead(Bulkhead bulkhead) {
+            this.parentBuilder.simpleFSM.getState(name).setBulkhead(Objects.requireNonNull(bulkhead));
+            return this;
+        }
+
+        /**
+         * Like bulkhead(Bulkhead) but rejected executions go to onRejectGoTo instead,
+         * without recording an exception.
+         */
+        public StateBuilder bulkhead(Bulkhead bulkhead, String onRejectGoTo) {
+            bulkhead(bulkhead);
+            this.parentBuilder.simpleFSM.getState(name).addGuardTransition(Bulkhead.REJECTED_EVENT, onRejectGoTo);
+            return this;
+        }
+
+        /**
+         * Limit the rate at which the step of this state is executed, across all
+         * instances of the definition. Executions over the limit are delayed or go
+         * to the onExceptionGoTo state with a RateLimitedException, see RateLimit.
+         */
+        public StateBuilder rateLimit(RateLimit rateLimit) {
+            this.parentBuilder.simpleFSM.getState(name).setRateLimit(Objects.requireNonNull(rateLimit));
+            return this;
+        }
+
+        /**
+         * Like rateLimit(RateLimit) but rejected executions go to onRejectGoTo instead,
+         * without recording an exception.
+         */
+        public StateBuilder rateLimit(RateLimit rateLimit, String onRejectGoTo) {
+            rateLimit(rateLimit);
+            this.parentBuilder.simpleFSM.getState(name).addGuardTransition(RateLimit.REJECTED_EVENT, onRejectGoTo);
+            return this;
+        }
+
+        /**
+         * Memoize the step of this state by some keys of the data, see StepCache.
+         */
+        public StateBuilder cache(StepCache cache) {
+            this.parentBuilder.simpleFSM.getState(name).setCache(Objects.requireNonNull(cache));
+            return this;
+        }
+
+        /**
+         * Time all branches of this split state have to join in. When it passes,
+         * the branches still running are cancelled and a TimeoutException goes to
+         * the onExceptionGoTo state.
+         */
+        public StateBuilder splitTimeout(Duration timeout) {
+            this.parentBuilder.simpleFSM.getState(name).setSplitTimeout(requirePositive(timeout));
+            return this;
+        }
+
         /**
          * For events that are split one needs to tell
          * how to join to a common state.
@@ -651,7 +1912,9 @@ public class SimpleFSM {
 
             String eventName = name + "_TO_" + joinToState;
             // Add a Transition to the joinToState
-            this.parentBuilder.simpleFSM.getState(name).addTransition(eventName, joinToState, false);
+            State state = this.parentBuilder.simpleFSM.getState(name);
+            state.addTransition(eventName, joinToState, false);
+            state.setJoinState(joinToState);
 
             return this;
         }
@@ -660,6 +1923,22 @@ public class SimpleFSM {
             return on("AUTO");
         }
 
+        /**
+         * After the step of this state, run a sub state machine once for every
+         * element of the collection stored in ProcessingData under collectionKey.
+         * Finish with join() to name the state to continue with once all elements are done.
+         *
+         * @param collectionKey Key of a Collection or array in ProcessingData.
+         * @param subDefinition State machine to run for each element. Its instances are made with buildEmptyCopy().
+         * @param subStartState State to start the sub state machine in.
+         * @return FanOutBuilder to configure the fan-out.
+         */
+        public FanOutBuilder forEach(String collectionKey, SimpleFSM subDefinition, String subStartState) {
+            FanOut fanOut = new FanOut(collectionKey, subDefinition, subStartState);
+            this.parentBuilder.simpleFSM.getState(name).setFanOut(fanOut);
+            return new FanOutBuilder(fanOut, this);
+        }
+
         public TransitionBuilder conditional() {
             String nextState = name + "_TO_";
             return new TransitionBuilder(nextState, this, true);
@@ -700,15 +1979,142 @@ public class SimpleFSM {
             return parentBuilder.withTrace();
         }
 
+        public Builder withClock(FsmClock clock){
+            return parentBuilder.withClock(clock);
+        }
+
+        public Builder withMetrics(FsmMetrics metrics){
+            return parentBuilder.withMetrics(metrics);
+        }
+
+        public Builder withProfiler(StateProfiler profiler){
+            return parentBuilder.withProfiler(profiler);
+        }
+
+        public Builder backend(Backend backend){
+            return parentBuilder.backend(backend);
+        }
+
+        public Builder concurrentEvents(EventConflictPolicy policy){
+            return parentBuilder.concurrentEvents(policy);
+        }
+
+        public Builder concurrentEvents(EventConflictPolicy policy, BiConsumer<String, ProcessingData> droppedEventHandler){
+            return parentBuilder.concurrentEvents(policy, droppedEventHandler);
+        }
+
+        public Builder traceStore(TraceStore traceStore){
+            return parentBuilder.traceStore(traceStore);
+        }
+
+        public Builder compactTrace(){
+            return parentBuilder.compactTrace();
+        }
+
+        public Builder idempotentEvent(String... eventNames){
+            return parentBuilder.idempotentEvent(eventNames);
+        }
+
         public Builder splitHandler(SplitHandler handleSplit) {
             return parentBuilder.splitHandler(handleSplit);
         }
     }
 
+    public static class FanOutBuilder {
+        private final FanOut fanOut;
+        private final StateBuilder stateBuilder;
+
+        public FanOutBuilder(FanOut fanOut, StateBuilder stateBuilder) {
+            this.fanOut = fanOut;
+            this.stateBuilder = stateBuilder;
+        }
+
+        /**
+         * Key the element is stored under in the data of each sub state machine. Defaults to "item".
+         */
+        public FanOutBuilder itemKey(String itemKey) {
+            fanOut.itemKey = itemKey;
+            return this;
+        }
+
+        /**
+         * Key the sub state machine stores its result under. Defaults to "result".
+         */
+        public FanOutBuilder resultKey(String resultKey) {
+            fanOut.resultKey = resultKey;
+            return this;
+        }
+
+        /**
+         * Key the list of results is stored under. Defaults to collectionKey + "Results".
+         */
+        public FanOutBuilder gatherInto(String gatherKey) {
+            fanOut.gatherKey = gatherKey;
+            return this;
+        }
+
+        /**
+         * Gather results in the order elements complete instead of the order of the collection.
+         * Results of elements with an exception are left out.
+         */
+        public FanOutBuilder unordered() {
+            fanOut.ordered = false;
+            return this;
+        }
+
+        /**
+         * Maximum number of elements processed at the same time. Defaults to 1.
+         */
+        public FanOutBuilder parallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism must be at least 1.");
+            }
+            fanOut.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Number of elements a worker takes at a time. Larger chunks lower the
+         * coordination cost for very large collections. Defaults to 1.
+         */
+        public FanOutBuilder chunkSize(int chunkSize) {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("Chunk size must be at least 1.");
+            }
+            fanOut.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Executor for the workers besides the calling thread. Defaults to the common ForkJoinPool.
+         */
+        public FanOutBuilder executor(Executor executor) {
+            fanOut.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * The state to continue with once all elements are processed without exception.
+         */
+        public StateBuilder join(String joinToState) {
+            String eventName = stateBuilder.name + "_TO_" + joinToState;
+            stateBuilder.parentBuilder.simpleFSM.getState(stateBuilder.name).addTransition(eventName, joinToState, false);
+            return stateBuilder;
+        }
+    }
+
+    private static Duration requirePositive(Duration timeout) {
+        if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Timeout must be positive.");
+        }
+        return timeout;
+    }
+
     public static class TransitionBuilder {
         private String eventName;
         private final StateBuilder stateBuilder;
         private final boolean isConditional;
+        private Duration timeout;
 
        // private final boolean isJoin
 
@@ -722,6 +2128,14 @@ public class SimpleFSM {
             this.isConditional = isConditional;
         }
 
+        /**
+         * Time the branch started by this split transition has to reach its join in.
+         */
+        public TransitionBuilder withTimeout(Duration timeout) {
+            this.timeout = requirePositive(timeout);
+            return this;
+        }
+
         public StateBuilder goTo(String nextState) {
             if (isConditional) {
                 eventName += nextState;
@@ -731,7 +2145,14 @@ public class SimpleFSM {
                 eventName += '_' + nextState;
                 partOfSplit = true;
             }
-            stateBuilder.parentBuilder.simpleFSM.states.get(stateBuilder.name).addTransition(eventName, nextState, partOfSplit);
+            if (timeout != null && !partOfSplit) {
+                throw new IllegalArgumentException("A timeout can only be set on a split transition.");
+            }
+            State state = stateBuilder.parentBuilder.simpleFSM.states.get(stateBuilder.name);
+            state.addTransition(eventName, nextState, partOfSplit);
+            if (timeout != null) {
+                state.setBranchTimeout(eventName, timeout);
+            }
             return stateBuilder;
         }
     }
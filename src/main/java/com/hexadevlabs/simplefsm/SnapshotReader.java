@@ -0,0 +1,296 @@
+package com.hexadevlabs.simplefsm;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Reads snapshots written by SnapshotWriter, in either format, detected from the stream.
+ * <p>
+ * The stream is split into frames on the calling thread while frames are decoded
+ * in parallel on the executor, a batch at a time so memory stays bounded however
+ * large the stream is. Every instance is a buildEmptyCopy() of the one definition
+ * and instances are passed to the consumer in the order they were written.
+ */
+public class SnapshotReader {
+
+    private static final ObjectReader STATE_READER = SimpleFSM.STATE_MAPPER.readerFor(FSMState.class);
+    private static final ObjectReader DATA_READER = ProcessingData.mapper.readerFor(ProcessingData.class);
+
+    private final SimpleFSM definition;
+    private Executor executor = ForkJoinPool.commonPool();
+    private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int batchSize = 4096;
+    private BlobStore blobStore;
+
+    public SnapshotReader(SimpleFSM definition) {
+        this.definition = Objects.requireNonNull(definition);
+    }
+
+    /**
+     * Executor frames are decoded on. Defaults to the common ForkJoinPool.
+     */
+    public SnapshotReader executor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor);
+        return this;
+    }
+
+    /**
+     * Number of slices a batch is decoded in at the same time. Defaults to the
+     * number of processors, 1 decodes on the calling thread.
+     */
+    public SnapshotReader parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Number of frames read ahead and decoded together. Defaults to 4096.
+     */
+    public SnapshotReader batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Store to look up blobs in and to check the files blobs refer to against, see
+     * ProcessingData.fromJson(String, BlobStore). Without one only inlined blobs are read.
+     */
+    public SnapshotReader blobStore(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        return this;
+    }
+
+    public List<FsmInstance> readAll(InputStream in) throws IOException {
+        List<FsmInstance> instances = new ArrayList<>();
+        read(in, instances::add);
+        return instances;
+    }
+
+    /**
+     * Reads the stream to its end, passing each instance to the consumer on the calling thread.
+     *
+     * @return Number of instances read.
+     */
+    public long read(InputStream in, Consumer<FsmInstance> consumer) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+        FrameSource source = isBinary(buffered) ? new BinaryFrames(buffered) : new LineFrames(buffered);
+        long read = 0;
+        List<Frame> batch = new ArrayList<>(batchSize);
+        while (true) {
+            batch.clear();
+            Frame frame;
+            while (batch.size() < batchSize && (frame = source.next()) != null) {
+                batch.add(frame);
+            }
+            if (batch.isEmpty()) {
+                return read;
+            }
+            for (FsmInstance instance : decode(batch)) {
+                consumer.accept(instance);
+            }
+            read += batch.size();
+        }
+    }
+
+    private FsmInstance[] decode(List<Frame> batch) throws IOException {
+        FsmInstance[] decoded = new FsmInstance[batch.size()];
+        int slices = Math.min(parallelism, batch.size());
+        if (slices == 1) {
+            decodeSlice(batch, decoded, 0, batch.size());
+            return decoded;
+        }
+        int sliceSize = (batch.size() + slices - 1) / slices;
+        List<CompletableFuture<Void>> running = new ArrayList<>(slices);
+        for (int from = sliceSize; from < batch.size(); from += sliceSize) {
+            int start = from;
+            int end = Math.min(batch.size(), from + sliceSize);
+            running.add(CompletableFuture.runAsync(() -> {
+                try {
+                    decodeSlice(batch, decoded, start, end);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+        // The first slice is decoded here instead of waiting.
+        decodeSlice(batch, decoded, 0, Math.min(sliceSize, batch.size()));
+        try {
+            CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+        return decoded;
+    }
+
+    private void decodeSlice(List<Frame> batch, FsmInstance[] decoded, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            decoded[i] = batch.get(i).decode(definition);
+            decoded[i].getData().resolveBlobs(blobStore);
+        }
+    }
+
+    private static boolean isBinary(BufferedInputStream in) throws IOException {
+        in.mark(SnapshotWriter.BINARY_MAGIC.length);
+        byte[] head = in.readNBytes(SnapshotWriter.BINARY_MAGIC.length);
+        if (Arrays.equals(head, SnapshotWriter.BINARY_MAGIC)) {
+            int version = in.read();
+            if (version != SnapshotWriter.BINARY_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ".");
+            }
+            return true;
+        }
+        in.reset();
+        return false;
+    }
+
+    private static FsmInstance instance(SimpleFSM definition, String id, FSMState state, ProcessingData data) {
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        fsm.importState(state);
+        return new FsmInstance(id, fsm, data);
+    }
+
+    private interface FrameSource {
+        /**
+         * @return The next frame or null at the end of the stream.
+         */
+        Frame next() throws IOException;
+    }
+
+    private interface Frame {
+        FsmInstance decode(SimpleFSM definition) throws IOException;
+    }
+
+    private static final class BinaryFrames implements FrameSource {
+        private final DataInputStream in;
+
+        BinaryFrames(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        @Override
+        public Frame next() throws IOException {
+            int idLength;
+            try {
+                idLength = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            String id = new String(readBytes(idLength), StandardCharsets.UTF_8);
+            byte[] state = readBytes(in.readInt());
+            byte[] data = readBytes(in.readInt());
+            return definition -> instance(definition, id, STATE_READER.readValue(state), DATA_READER.readValue(data));
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot frame, negative length.");
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    private static final class LineFrames implements FrameSource {
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 16];
+        private int position;
+        private int limit;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+
+        LineFrames(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public Frame next() throws IOException {
+            line.reset();
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit == -1) {
+                        limit = 0;
+                        return line.size() > 0 ? frame(line.toByteArray()) : null;
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                line.write(buffer, start, position - start);
+                if (position < limit) {
+                    // Skip the line break, and empty lines.
+                    position++;
+                    if (line.size() > 0) {
+                        return frame(line.toByteArray());
+                    }
+                }
+            }
+        }
+
+        private static Frame frame(byte[] json) {
+            return definition -> decodeLine(definition, json);
+        }
+
+        private static FsmInstance decodeLine(SimpleFSM definition, byte[] json) throws IOException {
+            try (JsonParser parser = SimpleFSM.STATE_MAPPER.getFactory().createParser(json)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Snapshot line is not a JSON object.");
+                }
+                String id = null;
+                FSMState state = null;
+                ProcessingData data = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "id":
+                            id = parser.getValueAsString();
+                            break;
+                        case "state":
+                            state = STATE_READER.readValue(parser);
+                            break;
+                        case "data":
+                            data = DATA_READER.readValue(parser);
+                            break;
+                        default:
+                            parser.skipChildren();
+                    }
+                }
+                if (state == null || data == null) {
+                    throw new IOException("Snapshot line of '" + id + "' is missing its state or data.");
+                }
+                return instance(definition, id, state, data);
+            }
+        }
+    }
+}
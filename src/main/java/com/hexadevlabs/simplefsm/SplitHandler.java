@@ -29,5 +29,28 @@ public interface SplitHandler {
      */
     boolean getAndUpdateStateAndData(SimpleFSM simpleFSM, ProcessingData currentData, String splitSourceState, String completedSplitState);
 
+    /**
+     * Runs all branches of a split to their join and merges their data and trace
+     * back, without continuing past the join. Used for a split nested inside a branch
+     * of another split, the outer branch carries on from the returned state.
+     *
+     * @param simpleFSM The state machine running the branch, its current state is the split state.
+     * @param data The processing data of the branch, the data of the nested branches is merged into it.
+     * @param splitTransitions List of all the transitions that need to be handled.
+     * @return The state the branches join to, or null if a branch had an exception.
+     * @see #supportsNestedSplits()
+     */
+    default String splitAndJoin(SimpleFSM simpleFSM, ProcessingData data, Collection<String> splitTransitions) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support nested splits.");
+    }
+
+    /**
+     * A definition with a split nested inside a branch of another split fails to
+     * validate unless its handler returns true here. Handlers implementing
+     * splitAndJoin() should override it.
+     */
+    default boolean supportsNestedSplits() {
+        return false;
+    }
 
 }
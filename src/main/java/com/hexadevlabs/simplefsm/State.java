@@ -1,7 +1,9 @@
 package com.hexadevlabs.simplefsm;
 
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The State class represents a state in a finite state machine (FSM). Each state has a name,
@@ -10,6 +12,12 @@ import java.util.*;
  * retrieving the next state based on an event, and executing the processing step.
  */
 public class State {
+
+    // Structure version of the definition this State belongs to, bumped on any change to its
+    // transitions or guards. SimpleFSM compares it to the value seen when it last validated
+    // to know if its cached analysis is stale. A State not added to a SimpleFSM has its own.
+    private AtomicLong structureVersion = new AtomicLong();
+
     private final String name;
 
     // Transition name -> State name... Other states that can be
@@ -17,7 +25,25 @@ public class State {
     private final Map<String, String> transitions;
 
     // List of Transition that are part of a split.
-    private final ArrayList<String> splitTransitions;
+    private final List<String> splitTransitions;
+
+    // State this state joins to when it is the last state of a split branch.
+    private String joinState;
+
+    // Set when the state fans out over a collection after its step.
+    private FanOut fanOut;
+
+    // Deadlines of a split state, for the split as a whole and per split transition.
+    private Duration splitTimeout;
+    private final Map<String, Duration> branchTimeouts = new HashMap<>();
+
+    private RetryPolicy retryPolicy;
+    private Bulkhead bulkhead;
+    private RateLimit rateLimit;
+    private StepCache cache;
+
+    // Transitions only taken when a guard like the Bulkhead rejects the state.
+    private final Set<String> guardTransitions = new HashSet<>();
 
     private ProcessingStep processingStep;
     private final boolean waitForEventBeforeTransition;
@@ -34,8 +60,8 @@ public class State {
     public State(String name, ProcessingStep processingStep, boolean waitForEventBeforeTransition) {
         this.name = name;
         this.processingStep = processingStep;
-        this.transitions = new HashMap<>();
-        this.splitTransitions = new ArrayList<>();
+        this.transitions = new LinkedHashMap<>();
+        this.splitTransitions = new SplitTransitionList();
         this.waitForEventBeforeTransition = waitForEventBeforeTransition;
     }
 
@@ -52,11 +78,136 @@ public class State {
             throw new IllegalArgumentException("A transition with the event name '" + eventName + "' already exists in the state '" + name + "'.");
         }
         transitions.put(eventName, nextState);
+        structureVersion.incrementAndGet();
 
         if(partOfSplit)
             splitTransitions.add(eventName);
     }
 
+    /**
+     * Marks this state as the end of a split branch which joins to joinState.
+     */
+    void setJoinState(String joinState) {
+        this.joinState = joinState;
+        structureVersion.incrementAndGet();
+    }
+
+    /**
+     * @return The state this split branch joins to, or null if this state does not end a branch.
+     */
+    public String getJoinState() {
+        return joinState;
+    }
+
+    /**
+     * @return The fan-out of this state or null if it does not fan out.
+     */
+    public FanOut getFanOut() {
+        return fanOut;
+    }
+
+    void setFanOut(FanOut fanOut) {
+        this.fanOut = fanOut;
+        structureVersion.incrementAndGet();
+    }
+
+    /**
+     * How the step is retried when it throws, or null to not retry.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        structureVersion.incrementAndGet();
+    }
+
+    /**
+     * Limits concurrent executions of the step, or null for no limit.
+     */
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+        structureVersion.incrementAndGet();
+    }
+
+    /**
+     * Limits the rate of executions of the step, or null for no limit.
+     */
+    public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    void setRateLimit(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+        structureVersion.incrementAndGet();
+    }
+
+    /**
+     * Memoizes the step, or null if it always runs.
+     */
+    public StepCache getCache() {
+        return cache;
+    }
+
+    void setCache(StepCache cache) {
+        this.cache = cache;
+        structureVersion.incrementAndGet();
+    }
+
+    /**
+     * Time all branches of this split state have to join in, or null for no limit.
+     */
+    public Duration getSplitTimeout() {
+        return splitTimeout;
+    }
+
+    void setSplitTimeout(Duration splitTimeout) {
+        this.splitTimeout = splitTimeout;
+    }
+
+    /**
+     * Time the branch of the split transition has to reach its join in, or null for no limit.
+     */
+    public Duration getBranchTimeout(String splitTransition) {
+        return branchTimeouts.get(splitTransition);
+    }
+
+    void setBranchTimeout(String splitTransition, Duration timeout) {
+        branchTimeouts.put(splitTransition, timeout);
+    }
+
+    /**
+     * The System.nanoTime() by which the branch of the split transition has to
+     * join, taking both the split and the branch timeout into account.
+     *
+     * @param startNanos System.nanoTime() the split started at.
+     * @return The deadline or Long.MAX_VALUE if there is none.
+     */
+    long branchDeadline(String splitTransition, long startNanos) {
+        long deadline = Long.MAX_VALUE;
+        if (splitTimeout != null) {
+            deadline = startNanos + splitTimeout.toNanos();
+        }
+        Duration branchTimeout = branchTimeouts.get(splitTransition);
+        if (branchTimeout != null) {
+            deadline = Math.min(deadline, startNanos + branchTimeout.toNanos());
+        }
+        return deadline;
+    }
+
+    /**
+     * Makes changes to this state count as changes of the definition owning the version.
+     */
+    void attach(AtomicLong definitionVersion) {
+        structureVersion = definitionVersion;
+        definitionVersion.incrementAndGet();
+    }
+
     /**
      * Returns a collections of Events that this state can transition to
      */
@@ -64,6 +215,31 @@ public class State {
         return transitions.values();
     }
 
+    /**
+     * Transitions the state can take after its step ran, which leaves out guard transitions.
+     */
+    Collection<String> getStepTransitions() {
+        if (guardTransitions.isEmpty()) {
+            return transitions.values();
+        }
+        List<String> result = new ArrayList<>(transitions.size());
+        for (Map.Entry<String, String> transition : transitions.entrySet()) {
+            if (!guardTransitions.contains(transition.getKey())) {
+                result.add(transition.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a transition that is only taken when a guard of the state rejects it,
+     * for example when its Bulkhead is full.
+     */
+    void addGuardTransition(String eventName, String nextState) {
+        addTransition(eventName, nextState, false);
+        guardTransitions.add(eventName);
+    }
+
     /**
      * Returns a set of entries with Transition Name -> Target Event name.
      */
@@ -94,26 +270,28 @@ public class State {
         // Call the before hook
         if( executionHooks != null) {
             try {
-                if(trace.isTraceMode()) trace.add("Before execution hook: " + processingStep.getClassName());
+                if(trace.isTraceMode()) trace.add("Before execution hook: {}", processingStep.getClassName());
                 executionHooks.before(this, data);
             } catch (Exception e) {
                 return new ExceptionInfo(e, true);
             }
         }
-        if(trace.isTraceMode()) trace.add("Before processing: " + processingStep.getClassName());
+        if(trace.isTraceMode()) trace.add("Before processing: {}", processingStep.getClassName());
+        ProcessingStep.ExecutionLog log = ProcessingStep.beginLog(trace.getClock());
         try {
             processingStep.process(data);
-            trace.addAll(processingStep.logs);
         }catch (Exception e){
+            ProcessingStep.endLog(log);
             if(trace.isTraceMode())trace.add("Exception occurred in "+ processingStep.getClassName() + ".process()");
             return new ExceptionInfo(e, false);
         }
-        if(trace.isTraceMode())trace.add("After processing: " + processingStep.getClassName());
+        trace.append(ProcessingStep.endLog(log));
+        if(trace.isTraceMode())trace.add("After processing: {}", processingStep.getClassName());
 
         // Call the after hook
         if( executionHooks != null) {
             try {
-                if(trace.isTraceMode()) trace.add("After execution hook: " + processingStep.getClassName());
+                if(trace.isTraceMode()) trace.add("After execution hook: {}", processingStep.getClassName());
                 executionHooks.after(this, data);
             } catch (Exception e) {
                 return new ExceptionInfo(e, true);
@@ -142,4 +320,40 @@ public class State {
     public void setProcessingStep(ProcessingStep processingStep){
         this.processingStep = processingStep;
     }
+
+    /**
+     * Split transitions stay a mutable list but every modification counts
+     * as a structural change of the state machine.
+     */
+    private final class SplitTransitionList extends AbstractList<String> {
+        private final ArrayList<String> items = new ArrayList<>();
+
+        @Override
+        public String get(int index) {
+            return items.get(index);
+        }
+
+        @Override
+        public int size() {
+            return items.size();
+        }
+
+        @Override
+        public String set(int index, String element) {
+            structureVersion.incrementAndGet();
+            return items.set(index, element);
+        }
+
+        @Override
+        public void add(int index, String element) {
+            structureVersion.incrementAndGet();
+            items.add(index, element);
+        }
+
+        @Override
+        public String remove(int index) {
+            structureVersion.incrementAndGet();
+            return items.remove(index);
+        }
+    }
 }
@@ -0,0 +1,247 @@
+package com.hexadevlabs.simplefsm;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the wall time, thread CPU time and bytes allocated by the step of every
+ * state, to find the states worth optimizing. Shared by every SimpleFSM built
+ * from a definition, like FsmMetrics.
+ * <p>
+ * CPU time and allocations are read from the ThreadMXBean of the JVM before and
+ * after the step runs on the current thread, so work a step hands to other
+ * threads is not counted. Where the JVM can't measure them they stay 0. To keep
+ * the cost low enough for a production node only every n-th execution can be
+ * profiled, see StateProfiler(int).
+ */
+public class StateProfiler {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean SUN_THREADS =
+            THREADS instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) THREADS : null;
+    private static final boolean CPU_TIME = enableCpuTime();
+    private static final boolean ALLOCATIONS = enableAllocations();
+
+    private final int sampleEvery;
+    private final ConcurrentHashMap<String, Profile> states = new ConcurrentHashMap<>();
+    private volatile Profile definition = new Profile("*");
+
+    /**
+     * Wall time, CPU time and allocations of the executions of a state.
+     */
+    public static class Profile {
+        private final String name;
+        private final LatencyHistogram wallTime = new LatencyHistogram();
+        private final LatencyHistogram cpuTime = new LatencyHistogram();
+        private final LatencyHistogram allocatedBytes = new LatencyHistogram();
+
+        Profile(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Name of the state, * for the profile of the whole definition.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getExecutions() {
+            return wallTime.getCount();
+        }
+
+        /**
+         * Wall time of executions in nanoseconds.
+         */
+        public LatencyHistogram getWallTime() {
+            return wallTime;
+        }
+
+        /**
+         * CPU time used by the executing thread in nanoseconds.
+         */
+        public LatencyHistogram getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * Bytes allocated by the executing thread.
+         */
+        public LatencyHistogram getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Fraction of the wall time spent on the CPU, low values mean the step mostly waits.
+         */
+        public double getCpuRatio() {
+            long wall = wallTime.getSum();
+            return wall == 0 ? 0 : (double) cpuTime.getSum() / wall;
+        }
+
+        void record(long wallNanos, long cpuNanos, long bytes) {
+            wallTime.record(wallNanos);
+            cpuTime.record(cpuNanos);
+            allocatedBytes.record(bytes);
+        }
+    }
+
+    /**
+     * Profiles every execution.
+     */
+    public StateProfiler() {
+        this(1);
+    }
+
+    /**
+     * @param sampleEvery Profile about one in this many executions, picked at random.
+     */
+    public StateProfiler(int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be at least 1");
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    private static boolean enableCpuTime() {
+        try {
+            if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    private static boolean enableAllocations() {
+        try {
+            if (SUN_THREADS == null || !SUN_THREADS.isThreadAllocatedMemorySupported()) {
+                return false;
+            }
+            if (!SUN_THREADS.isThreadAllocatedMemoryEnabled()) {
+                SUN_THREADS.setThreadAllocatedMemoryEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    public static boolean isCpuTimeSupported() {
+        return CPU_TIME;
+    }
+
+    public static boolean isAllocationSupported() {
+        return ALLOCATIONS;
+    }
+
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    /**
+     * @return True if the next execution should be profiled.
+     */
+    boolean sample() {
+        return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+
+    static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    static long allocatedBytes() {
+        return ALLOCATIONS ? SUN_THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    void record(String stateName, long wallNanos, long cpuNanos, long bytes) {
+        Profile profile = states.get(stateName);
+        if (profile == null) {
+            profile = states.computeIfAbsent(stateName, Profile::new);
+        }
+        profile.record(wallNanos, cpuNanos, bytes);
+        definition.record(wallNanos, cpuNanos, bytes);
+    }
+
+    /**
+     * @return Profile of the state or null if it was not profiled yet.
+     */
+    public Profile getProfile(String stateName) {
+        return states.get(stateName);
+    }
+
+    /**
+     * Profile of all executions of the definition.
+     */
+    public Profile getDefinitionProfile() {
+        return definition;
+    }
+
+    public Map<String, Profile> getProfiles() {
+        return Collections.unmodifiableMap(states);
+    }
+
+    /**
+     * Profiles of the states, the ones that used the most CPU time first, or wall
+     * time if CPU time can't be measured.
+     */
+    public List<Profile> getReport() {
+        List<Profile> report = new ArrayList<>(states.values());
+        Comparator<Profile> order = CPU_TIME
+                ? Comparator.comparingLong(profile -> profile.cpuTime.getSum())
+                : Comparator.comparingLong(profile -> profile.wallTime.getSum());
+        report.sort(order.reversed().thenComparing(Profile::getName));
+        return report;
+    }
+
+    /**
+     * Writes the report as CSV with a header line, one line per state and a last
+     * line for the whole definition with the state *. Times are in nanoseconds.
+     */
+    public void writeCsv(Appendable out) throws IOException {
+        out.append("state,executions,wall_total,wall_p50,wall_p99,wall_max,cpu_total,cpu_p50,cpu_p99,cpu_max,"
+                + "alloc_total,alloc_p50,alloc_p99,alloc_max\n");
+        for (Profile profile : getReport()) {
+            appendCsv(out, profile);
+        }
+        appendCsv(out, definition);
+    }
+
+    private static void appendCsv(Appendable out, Profile profile) throws IOException {
+        out.append(csvField(profile.name)).append(',').append(Long.toString(profile.getExecutions()));
+        for (LatencyHistogram histogram : List.of(profile.wallTime, profile.cpuTime, profile.allocatedBytes)) {
+            out.append(',').append(Long.toString(histogram.getSum()))
+                    .append(',').append(Long.toString(histogram.getPercentile(0.5)))
+                    .append(',').append(Long.toString(histogram.getPercentile(0.99)))
+                    .append(',').append(Long.toString(histogram.getMax()));
+        }
+        out.append('\n');
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Forgets everything profiled so far, for example after warming up.
+     */
+    public void reset() {
+        states.clear();
+        definition = new Profile("*");
+    }
+}
@@ -0,0 +1,320 @@
+package com.hexadevlabs.simplefsm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memoizes the step of a state, set with SimpleFSM.StateBuilder.cache(). For
+ * steps whose output only depends on a few keys of the data, like a lookup by id.
+ * <p>
+ * The cache key is made of the values of the given data keys. On a miss the step
+ * runs and the values it set() on the data, and the next state it picked, are
+ * stored. On a hit they are set on the data again without running the step or
+ * its execution hooks. Step logs are not replayed.
+ * <p>
+ * Values are copied when stored and again on every hit, so items never share them.
+ * Strings, numbers, enums, java.time values and BlobValues are immutable and
+ * not copied, lists, sets, maps and arrays are copied deeply, other Serializable
+ * values through serialization. A step writing any other value fails. Values the
+ * step changes in place instead of set() are only stored for the keys given to
+ * changesInPlace(). Key values are compared with Arrays.deepEquals(), so arrays
+ * work as keys too.
+ * <p>
+ * The State and so the StepCache is shared by all instances of a definition.
+ * Once there are more than maxSize entries, the least recently used ones are
+ * evicted down to 90% of maxSize. Entries expire after the ttl. Executions
+ * missing on the same key at the same time wait for the first one instead of
+ * all running the step. Executions that end with an exception are not cached.
+ * <p>
+ * A RateLimit of the state still applies to hits, a Bulkhead only to misses.
+ */
+public class StepCache {
+
+    private final String[] keys;
+    private String[] changedInPlace = new String[0];
+    private int maxSize = 1000;
+    private long ttlNanos = Long.MAX_VALUE;
+    private final ConcurrentHashMap<Key, Result> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, CompletableFuture<Result>> loading = new ConcurrentHashMap<>();
+    // Held by the one thread evicting, the others don't wait for it.
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    private static final Set<Class<?>> IMMUTABLE = Set.of(String.class, Boolean.class, Character.class,
+            Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            BigInteger.class, BigDecimal.class, UUID.class, BlobValue.class);
+
+    private StepCache(String[] keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * @param keys Keys of the data the output of the step depends on.
+     */
+    public static StepCache keyedBy(String... keys) {
+        if (keys.length == 0) {
+            throw new IllegalArgumentException("At least one key is needed.");
+        }
+        return new StepCache(keys.clone());
+    }
+
+    /**
+     * Maximum number of entries kept. Defaults to 1000.
+     */
+    public StepCache maxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Max size must be at least 1.");
+        }
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * How long an entry is used after it was stored. Defaults to forever.
+     */
+    public StepCache ttl(Duration ttl) {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Ttl must be positive.");
+        }
+        this.ttlNanos = ttl.toNanos();
+        return this;
+    }
+
+    /**
+     * Keys whose values the step changes in place instead of set(), like adding to a
+     * list it got from the data. Their hashCode(), which must be based on the content,
+     * is compared before and after a miss. Hashing costs as much as the values are big,
+     * so only name keys the step actually changes. Defaults to none.
+     */
+    public StepCache changesInPlace(String... keys) {
+        this.changedInPlace = keys.clone();
+        return this;
+    }
+
+    String[] getChangedInPlace() {
+        return changedInPlace;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    Key keyOf(ProcessingData data) {
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = data.get(keys[i]);
+        }
+        return new Key(values);
+    }
+
+    /**
+     * @return The entry for the key, or null if there is none or it expired.
+     */
+    Result get(Key key) {
+        Result result = entries.get(key);
+        if (result == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - result.storedAt >= ttlNanos) {
+            entries.remove(key, result);
+            return null;
+        }
+        result.lastUsed = now;
+        return result;
+    }
+
+    /**
+     * Registers a load of the key.
+     *
+     * @return null if the caller is the one loading the key and has to call
+     * loaded() when done, otherwise the load in progress to wait for.
+     */
+    CompletableFuture<Result> startLoad(Key key, CompletableFuture<Result> load) {
+        return loading.putIfAbsent(key, load);
+    }
+
+    /**
+     * Ends a load started with startLoad().
+     *
+     * @param result What the step wrote, or null if it failed and is not to be cached.
+     */
+    void loaded(Key key, CompletableFuture<Result> load, Result result) {
+        if (result != null) {
+            entries.put(result.key, result);
+            if (entries.size() > maxSize) {
+                evict();
+            }
+        }
+        loading.remove(key, load);
+        load.complete(result);
+    }
+
+    /**
+     * Copies what the step wrote, and the key, for storing.
+     *
+     * @throws IllegalArgumentException If a value can't be copied.
+     */
+    static Result result(Key key, Map<String, Object> writes, String nextState) {
+        Map<String, Object> copies = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> write : writes.entrySet()) {
+            copies.put(write.getKey(), copy(write.getKey(), write.getValue()));
+        }
+        Object[] keyValues = new Object[key.values.length];
+        for (int i = 0; i < keyValues.length; i++) {
+            keyValues[i] = copy("key", key.values[i]);
+        }
+        return new Result(new Key(keyValues), copies, nextState, System.nanoTime());
+    }
+
+    /**
+     * Evicts the least recently used entries down to 90% of maxSize. Sorting a
+     * snapshot of all entries is amortized over the puts until the next eviction.
+     */
+    private void evict() {
+        if (!evicting.tryLock()) {
+            return;
+        }
+        try {
+            int excess = entries.size() - maxSize + maxSize / 10;
+            if (excess <= 0) {
+                return;
+            }
+            List<Result> oldest = new ArrayList<>(entries.values());
+            oldest.sort(Comparator.comparingLong(result -> result.lastUsed));
+            for (Result result : oldest.subList(0, Math.min(excess, oldest.size()))) {
+                entries.remove(result.key, result);
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    static boolean isImmutable(Object value) {
+        return value == null || IMMUTABLE.contains(value.getClass()) || value instanceof Enum<?>
+                || value.getClass().getPackageName().equals("java.time");
+    }
+
+    /**
+     * @return A copy of the value not sharing anything mutable with it.
+     * @throws IllegalArgumentException If the value can't be copied.
+     */
+    static Object copy(String key, Object value) {
+        if (isImmutable(value)) {
+            return value;
+        }
+        if (value instanceof List<?>) {
+            List<Object> copy = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                copy.add(copy(key, element));
+            }
+            return copy;
+        }
+        if (value instanceof Set<?>) {
+            Set<Object> copy = new LinkedHashSet<>();
+            for (Object element : (Set<?>) value) {
+                copy.add(copy(key, element));
+            }
+            return copy;
+        }
+        if (value instanceof Map<?, ?>) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(copy(key, entry.getKey()), copy(key, entry.getValue()));
+            }
+            return copy;
+        }
+        Class<?> type = value.getClass();
+        if (type.isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(type.getComponentType(), length);
+            if (type.getComponentType().isPrimitive()) {
+                System.arraycopy(value, 0, copy, 0, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    Array.set(copy, i, copy(key, Array.get(value, i)));
+                }
+            }
+            return copy;
+        }
+        if (value instanceof Serializable) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(value);
+                }
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                    return in.readObject();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                throw new IllegalArgumentException("Value of '" + key + "' could not be copied for the StepCache.", e);
+            }
+        }
+        throw new IllegalArgumentException("Value of '" + key + "' is a " + type.getName()
+                + ", the StepCache can only store immutable, collection, array or Serializable values.");
+    }
+
+    /**
+     * What an execution of the step wrote to the data.
+     */
+    static final class Result {
+        private final Key key;
+        private final Map<String, Object> writes;
+        private final String nextState;
+        private final long storedAt;
+        // Approximate, a racing hit may set an older time.
+        private volatile long lastUsed;
+
+        private Result(Key key, Map<String, Object> writes, String nextState, long storedAt) {
+            this.key = key;
+            this.writes = writes;
+            this.nextState = nextState;
+            this.storedAt = storedAt;
+            this.lastUsed = storedAt;
+        }
+
+        void replay(ProcessingData data) {
+            for (Map.Entry<String, Object> write : writes.entrySet()) {
+                data.set(write.getKey(), copy(write.getKey(), write.getValue()));
+            }
+            if (nextState != null) {
+                data.setNextState(nextState);
+            }
+        }
+    }
+
+    static final class Key {
+        private final Object[] values;
+        private final int hash;
+
+        private Key(Object[] values) {
+            this.values = values;
+            this.hash = Arrays.deepHashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.deepEquals(values, ((Key) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
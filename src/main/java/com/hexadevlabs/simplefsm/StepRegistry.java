@@ -0,0 +1,111 @@
+package com.hexadevlabs.simplefsm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Steps a definition file refers to by name, see DefinitionFile.
+ * <p>
+ * Only factories are registered. States read from a file get a step that calls
+ * the factory on its first execution, so steps of states that never run are
+ * never created and loading a definition does not pay for their constructors.
+ */
+public class StepRegistry {
+
+    private final Map<String, Supplier<? extends ProcessingStep>> factories = new ConcurrentHashMap<>();
+    private final AtomicInteger instantiated = new AtomicInteger();
+
+    public StepRegistry register(String name, Supplier<? extends ProcessingStep> factory) {
+        if (factories.putIfAbsent(name, Objects.requireNonNull(factory)) != null) {
+            throw new IllegalArgumentException("A step with the name '" + name + "' is already registered.");
+        }
+        return this;
+    }
+
+    /**
+     * Registers the class under its simple name, created with its no argument constructor.
+     */
+    public StepRegistry register(Class<? extends ProcessingStep> stepClass) {
+        return register(stepClass.getSimpleName(), () -> {
+            try {
+                return stepClass.getDeclaredConstructor().newInstance();
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Could not create step " + stepClass.getName(), e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not create step " + stepClass.getName(), e);
+            }
+        });
+    }
+
+    public boolean contains(String name) {
+        return factories.containsKey(name);
+    }
+
+    public Set<String> getNames() {
+        return factories.keySet();
+    }
+
+    /**
+     * Number of steps created so far by steps this registry handed out.
+     */
+    public int getInstantiated() {
+        return instantiated.get();
+    }
+
+    /**
+     * A step that creates the registered step on its first execution and delegates to it.
+     *
+     * @throws IllegalArgumentException If no step is registered under the name.
+     */
+    ProcessingStep lazy(String name) {
+        Supplier<? extends ProcessingStep> factory = factories.get(name);
+        if (factory == null) {
+            throw new IllegalArgumentException("No step registered with the name '" + name + "'.");
+        }
+        return new LazyStep(name, factory, instantiated);
+    }
+
+    private static final class LazyStep extends ProcessingStep {
+        private final String name;
+        private final Supplier<? extends ProcessingStep> factory;
+        private final AtomicInteger instantiated;
+        private volatile ProcessingStep step;
+
+        LazyStep(String name, Supplier<? extends ProcessingStep> factory, AtomicInteger instantiated) {
+            this.name = name;
+            this.factory = factory;
+            this.instantiated = instantiated;
+        }
+
+        private ProcessingStep step() {
+            ProcessingStep current = step;
+            if (current == null) {
+                synchronized (this) {
+                    current = step;
+                    if (current == null) {
+                        current = Objects.requireNonNull(factory.get(), "Step factory of '" + name + "' returned null");
+                        instantiated.incrementAndGet();
+                        step = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        @Override
+        protected void process(ProcessingData data) {
+            step().process(data);
+        }
+
+        // The name the step was registered under, which is what the definition file refers to.
+        @Override
+        String getClassName() {
+            return name;
+        }
+    }
+}
@@ -3,15 +3,68 @@ package com.hexadevlabs.simplefsm;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs each branch of a split on a thread of an ExecutorService and waits for
+ * all of them to join, honoring the split and branch timeouts of the split state.
+ * <p>
+ * A branch that does not join in time is cancelled, its thread is interrupted and
+ * it stops before its next state. A TimeoutException is added to the data so the
+ * state machine goes to the onExceptionGoTo state.
+ * <p>
+ * Optionally a slow branch is hedged, see withHedging().
+ */
 public class ThreadBasedSplitHandler implements SplitHandler {
 
-    // this holds the shared intermediate state that is accessed by
-    // different threads. Access to these must be synchronized.
-    String state;
-    String otherData;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final ExecutorService executor;
+
+    private double hedgePercentile = -1;
+    private int hedgeMinSamples;
+    // Latency of joined branches by split state and split transition, used for hedging.
+    private final Map<String, LatencyHistogram> branchLatencies = new ConcurrentHashMap<>();
+
+    /**
+     * Runs branches on a cached pool of daemon threads.
+     */
+    public ThreadBasedSplitHandler() {
+        this(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "simplefsm-split-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * @param executor Runs the branches. A branch with a nested split waits on
+     *                 its thread for the nested branches, so the executor needs a
+     *                 thread for every branch that can run at the same time.
+     */
+    public ThreadBasedSplitHandler(ExecutorService executor) {
+        this.executor = executor;
+    }
 
+    /**
+     * Starts a duplicate of a branch that is still running after the given percentile
+     * of its past latencies. Whichever of the two joins first is kept and the other
+     * is cancelled. Steps of hedged branches may run twice so should be idempotent.
+     *
+     * @param percentile For example 95 to hedge the slowest 5% of branches.
+     * @param minSamples Number of latencies to record for a branch before it is hedged.
+     * @return this
+     */
+    public ThreadBasedSplitHandler withHedging(double percentile, int minSamples) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+        }
+        this.hedgePercentile = percentile;
+        this.hedgeMinSamples = Math.max(1, minSamples);
+        return this;
+    }
 
     /**
      * Will create workers to perform the work on each of the split states.
@@ -22,143 +75,198 @@ public class ThreadBasedSplitHandler implements SplitHandler {
      */
     @Override
     public void handleSplit(SimpleFSM simpleFSM, ProcessingData data, Collection<String> splitTransitions){
-        ExecutorService executor = Executors.newFixedThreadPool(2); // adjust the thread pool size as needed
-        String state = simpleFSM.exportState();
-        this.state = state;
-        this.otherData = new ProcessingData().toJson();
-
-        List<Future<?>> futures = new ArrayList<>();
-
-        // Set initial state
-
-        // Trigger processing of all the split states.
-        for (String splitState : splitTransitions) {
-            Future<ProcessingData> future = executor.submit(() -> {
-                try {
-                    // Load from DB.
-                    // Make a copy so the nextState var is not shared
-                    ProcessingData d = new ProcessingData();
-                    d.mergeFrom(data);
-
-                    SimpleFSM sm = simpleFSM.buildEmptyCopy();
-                    sm.importState(state);
-                    sm.continueOnSplitState(splitState, d);
-
-                    // Only if state machine is finished do we want to save it to DB
-                    // Will be read by Test case to verify.
-                    if (sm.isConcluded() || sm.isPaused()) {
-                        System.out.println("Concluded");
-
-                        // Copy the completed state back into the
-                        // original state machine
-                        simpleFSM.importState(sm.exportState());
-
-                        return d;
-                    } else {
-                        return null;
-                    }
-                }catch(Exception e) {
-
-                    // TODO: This is not gracefully.
+        String joinState = splitAndJoin(simpleFSM, data, splitTransitions);
+        simpleFSM.continueAfterSplit(joinState, data);
+    }
 
-                    System.err.println("Unexpected exception caught " + e.getMessage());
-                    e.printStackTrace();
-                    return null;
-                }
+    @Override
+    public boolean supportsNestedSplits() {
+        return true;
+    }
 
-            });
-            futures.add(future);
+    @Override
+    public String splitAndJoin(SimpleFSM simpleFSM, ProcessingData data, Collection<String> splitTransitions) {
+        State source = simpleFSM.getState(simpleFSM.getCurrentStateName());
+        long start = System.nanoTime();
+
+        List<Branch> branches = new ArrayList<>(splitTransitions.size());
+        for (String splitTransition : splitTransitions) {
+            Branch branch = new Branch(simpleFSM, data, source, splitTransition, start);
+            branch.startAttempt();
+            branches.add(branch);
         }
 
-        executor.shutdown(); // Stop accepting new tasks
-
-        // Wait for all tasks to complete with a timeout
-        ProcessingData resultData = null;
-        for (Future<?> future : futures) {
-            try {
-                ProcessingData processingData = (ProcessingData) future.get(5, TimeUnit.MINUTES);  // Adjust timeout as needed
-                if(processingData!=null){
-                    resultData = processingData;
+        // Deadlines are absolute so waiting for the branches one after the other is fine.
+        String joinState = null;
+        boolean interrupted = false;
+        for (Branch branch : branches) {
+            Attempt winner = null;
+            if (!interrupted) {
+                try {
+                    winner = branch.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    data.addException(new ExceptionInfo(e, false));
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt(); // Handle thread interruption
-            } catch (ExecutionException e) {
-                System.err.println("Task encountered an exception: " + e.getCause());
-            } catch (TimeoutException e) {
-                System.err.println("Task timed out and was not completed.");
             }
-        }
-
-        for (Future<?> future : futures) {
-            if (!future.isDone()) {
-                System.out.println("This task is still running or waiting to run." + future);
+            if (winner == null) {
+                branch.cancel(null);
+                if (!interrupted) {
+                    if (simpleFSM.liveTrace().isTraceMode()) {
+                        simpleFSM.liveTrace().add("Branch " + branch.branchState + " of split state " + source.getName() + " timed out, cancelling it");
+                    }
+                    data.addException(new ExceptionInfo(new TimeoutException("Branch '" + branch.branchState
+                            + "' of split state '" + source.getName() + "' did not join before its deadline"), false));
+                }
+                continue;
             }
-        }
 
-        // Optionally, enforce shutdown now if not all tasks completed
-        if (!executor.isTerminated()) {
-            try {
-                Thread.sleep(1000);
-            }catch(InterruptedException ignored){
+            simpleFSM.mergeTraceFrom(winner.branchFSM);
+            data.mergeFrom(winner.branchData);
+            if (winner.joinState == null) {
+                continue;
             }
-            if(!executor.isTerminated()) {
-                System.err.println("Not all tasks finished, forcing shutdown...");
-                List<Runnable> remainingTasks = executor.shutdownNow(); // Attempt to stop all actively executing tasks
-                System.out.println("Remaining tasks stopped: " + remainingTasks.size());
+            if (joinState == null) {
+                joinState = winner.joinState;
+            } else if (!joinState.equals(winner.joinState)) {
+                data.addException(new ExceptionInfo(new IllegalStateException("Branches of split state '" + source.getName()
+                        + "' join to different states: " + joinState + " and " + winner.joinState), false));
             }
         }
-
-        // Merge the data on the final data
-        // TODO: This is not gracefull.. this can happen for illegal state exception.
-        assert resultData != null;
-        data.mergeFrom(resultData);
-
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return data.hasExceptions() ? null : joinState;
     }
 
     /**
-     *
-     * @param simpleFSM The state machine object that needs a split state recorded.
-     * @param currentData The processing data as it is after the current split state just finished processing.
-     * @param splitSourceState Which state the split is coming from. This can be used to locate related split states.
-     * @param completedSplitState  The state that has just completed executing and needs its state recorded.
-     * @return
+     * Branches are run to their join by splitAndJoin(), this only supports
+     * SplitHandlers that call continueOnSplitState() for each split state.
      */
     @Override
     public boolean getAndUpdateStateAndData(SimpleFSM simpleFSM, ProcessingData currentData, String splitSourceState, String completedSplitState) {
-
         synchronized (this) {
+            simpleFSM.recordCompletionSplitState(completedSplitState);
+            int expected = simpleFSM.getState(splitSourceState).getSplitTransitions().size();
+            return simpleFSM.getCompletionSplitStates().size() == expected;
+        }
+    }
 
-            SimpleFSM sm = simpleFSM.buildEmptyCopy();
-            sm.importState(state);
-
-            // merge the traces.
-            sm.mergeTraceFrom(simpleFSM);
-
-            // Update the work state of State machine
-            sm.recordCompletionSplitState(completedSplitState);
-            int totalSplitStatesCompleted = sm.getCompletionSplitStates().size();
-
-            State source = sm.getState(splitSourceState);
-            int totalSplitTransitionsExpected = source.getSplitTransitions().size();
-
-            boolean completedOtherWork = totalSplitStatesCompleted == totalSplitTransitionsExpected;
+    /**
+     * One branch of a split, with its attempts. There is more than one attempt when hedged.
+     */
+    private class Branch {
+        private final SimpleFSM simpleFSM;
+        private final ProcessingData data;
+        private final String branchState;
+        private final long start;
+        private final long deadline;
+        private final LatencyHistogram latency;
+        private final CompletableFuture<Attempt> outcome = new CompletableFuture<>();
+        private final List<Attempt> attempts = new ArrayList<>(2);
+
+        Branch(SimpleFSM simpleFSM, ProcessingData data, State source, String splitTransition, long start) {
+            this.simpleFSM = simpleFSM;
+            this.data = data;
+            this.branchState = source.getNextState(splitTransition);
+            this.start = start;
+            this.deadline = source.branchDeadline(splitTransition, start);
+            this.latency = branchLatencies.computeIfAbsent(source.getName() + '/' + splitTransition, key -> new LatencyHistogram());
+        }
 
-            // Write the updated State machine to Persistence
-            String newState = sm.exportState();
+        void startAttempt() {
+            // Every attempt gets its own copy, the data of the split is not changed until all branches joined.
+            ProcessingData branchData = new ProcessingData();
+            branchData.mergeFrom(data);
+            SimpleFSM branchFSM = simpleFSM.branchCopy();
+            branchFSM.setBranchDeadline(deadline);
+            Attempt attempt = new Attempt(this, branchFSM, branchData);
+            attempts.add(attempt);
+            attempt.future = executor.submit(attempt);
+        }
 
-            ProcessingData otherSavedProcessingData = ProcessingData.fromJson(otherData);
-            // Merge the other Data to currentData.
-            currentData.mergeFrom(otherSavedProcessingData);
-            // Merge the state machine from other state, so it can continue with full state.
-            simpleFSM.mergeTraceFrom(sm);
+        /**
+         * Waits for the first attempt to join, starting a hedged attempt when it is due.
+         *
+         * @return The attempt that joined first or null if none did before the deadline.
+         */
+        Attempt await() throws InterruptedException {
+            Attempt winner = null;
+            try {
+                long hedgeAt = hedgeAt();
+                if (hedgeAt - deadline < 0) {
+                    try {
+                        winner = outcome.get(Math.max(0, hedgeAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+                        return winner;
+                    } catch (TimeoutException e) {
+                        if (simpleFSM.liveTrace().isTraceMode()) {
+                            simpleFSM.liveTrace().add("Hedging slow branch " + branchState);
+                        }
+                        startAttempt();
+                    }
+                }
+                winner = deadline == Long.MAX_VALUE
+                        ? outcome.get()
+                        : outcome.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                return winner;
+            } catch (TimeoutException e) {
+                return null;
+            } catch (ExecutionException e) {
+                // Attempts always complete normally.
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                if (winner != null) {
+                    latency.record(winner.durationNanos);
+                    cancel(winner);
+                }
+            }
+        }
 
-            // Replace the shared state.
-            state = newState;
-            otherData =  currentData.toJson();
+        private long hedgeAt() {
+            if (hedgePercentile < 0 || latency.getCount() < hedgeMinSamples) {
+                return Long.MAX_VALUE;
+            }
+            return start + latency.getPercentile(hedgePercentile / 100);
+        }
 
-            return completedOtherWork;
+        /**
+         * Cancels all attempts except the one to keep, which may be null.
+         */
+        void cancel(Attempt keep) {
+            for (Attempt attempt : attempts) {
+                if (attempt != keep) {
+                    attempt.branchFSM.cancelBranch();
+                    attempt.future.cancel(true);
+                }
+            }
+        }
+    }
 
+    private static class Attempt implements Runnable {
+        private final Branch branch;
+        private final SimpleFSM branchFSM;
+        private final ProcessingData branchData;
+        private Future<?> future;
+        private String joinState;
+        private long durationNanos;
+
+        Attempt(Branch branch, SimpleFSM branchFSM, ProcessingData branchData) {
+            this.branch = branch;
+            this.branchFSM = branchFSM;
+            this.branchData = branchData;
         }
 
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                joinState = branchFSM.runBranch(branch.branchState, branchData);
+            } catch (Exception e) {
+                branchData.addException(new ExceptionInfo(e, false));
+                joinState = null;
+            }
+            durationNanos = System.nanoTime() - start;
+            branch.outcome.complete(this);
+        }
     }
 }
@@ -1,31 +1,77 @@
 package com.hexadevlabs.simplefsm;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
-import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"logs", "compactLogs", "traceMode"})
 public class Trace {
 
-    @JsonProperty("logs")
-    final List<LogEntry> logs;
+    final ArrayList<LogEntry> logs;
 
 
     @JsonProperty("traceMode")
     private boolean traceMode = false;
 
+    @JsonIgnore
+    private FsmClock clock;
+
+    // Encodes entries added with a template, null to keep their text.
+    @JsonIgnore
+    private TraceDictionary dictionary;
+
+    // Export the entries with a dictionary of their texts, see CompactLogs.
+    @JsonIgnore
+    private boolean compact;
+
     public Trace() {
+        this(FsmClock.monotonic());
+    }
+
+    public Trace(FsmClock clock) {
         logs = new ArrayList<>();
+        this.clock = clock;
     }
 
     public void add(String message) {
-        logs.add(new LogEntry(LocalDateTime.now(), message));
+        logs.add(new LogEntry(clock.epochNanos(), message));
+    }
+
+    /**
+     * Adds a message made of a template with {} where the value goes, stored as
+     * ids in the TraceDictionary when there is one.
+     */
+    void add(String template, Object arg) {
+        add(template, String.valueOf(arg), null);
+    }
+
+    void add(String template, Object arg0, Object arg1) {
+        add(template, String.valueOf(arg0), String.valueOf(arg1));
+    }
+
+    private void add(String template, String arg0, String arg1) {
+        long now = clock.epochNanos();
+        if (dictionary != null) {
+            int templateId = dictionary.intern(template);
+            int arg0Id = dictionary.intern(arg0);
+            int arg1Id = arg1 == null ? EncodedLogEntry.NONE : dictionary.intern(arg1);
+            if (templateId >= 0 && arg0Id >= 0 && (arg1 == null || arg1Id >= 0)) {
+                logs.add(new EncodedLogEntry(now, dictionary, templateId, arg0Id, arg1Id));
+                return;
+            }
+        }
+        String message = arg1 == null ? TraceDictionary.format(template, arg0) : TraceDictionary.format(template, arg0, arg1);
+        logs.add(new LogEntry(now, message));
     }
 
     public String toString() {
@@ -42,6 +88,14 @@ public class Trace {
         return logs.size();
     }
 
+    /**
+     * Makes room for additional entries ahead of a run so the log list does not
+     * have to grow repeatedly while tracing.
+     */
+    void ensureCapacity(int additionalEntries) {
+        logs.ensureCapacity(logs.size() + Math.min(additionalEntries, 4096));
+    }
+
     /**
      * Efficiently adds all log entries from the newLogs list to the current list without duplicates.
      * Maintains the insertion order using LinkedHashSet.
@@ -57,6 +111,24 @@ public class Trace {
         }
     }
 
+    /**
+     * Appends entries as they are, for entries that can not be in the trace yet.
+     */
+    void append(List<LogEntry> newLogs) {
+        if (newLogs != null) {
+            logs.addAll(newLogs);
+        }
+    }
+
+    /**
+     * Removes and returns all entries, for moving them to a TraceStore.
+     */
+    List<LogEntry> takeAll() {
+        List<LogEntry> taken = new ArrayList<>(logs);
+        logs.clear();
+        return taken;
+    }
+
     /**
      * Merge another trace object with this.
      * LogEntries that are identical will not be duplicated.
@@ -79,4 +151,105 @@ public class Trace {
     public void setTraceMode(boolean traceMode) {
         this.traceMode = traceMode;
     }
+
+    void setDictionary(TraceDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    @JsonProperty("logs")
+    List<LogEntry> getLogsForExport() {
+        return compact ? null : logs;
+    }
+
+    @JsonProperty("logs")
+    void setLogsFromImport(List<LogEntry> entries) {
+        logs.addAll(entries);
+    }
+
+    @JsonProperty("compactLogs")
+    CompactLogs getCompactLogs() {
+        return compact ? CompactLogs.encode(logs) : null;
+    }
+
+    @JsonProperty("compactLogs")
+    void setCompactLogs(CompactLogs compactLogs) {
+        compactLogs.decode(logs);
+    }
+
+    /**
+     * Exported form of the entries where every distinct text, template and value
+     * is listed once in the dictionary. Each entry is an array of the nanoseconds
+     * since the entry before it, the id of its template and the ids of its values.
+     */
+    static final class CompactLogs {
+        @JsonProperty("dictionary")
+        List<String> dictionary;
+        @JsonProperty("entries")
+        List<long[]> entries;
+
+        static CompactLogs encode(List<LogEntry> logs) {
+            CompactLogs compact = new CompactLogs();
+            compact.dictionary = new ArrayList<>();
+            compact.entries = new ArrayList<>(logs.size());
+            Map<String, Integer> ids = new HashMap<>();
+            long previous = 0;
+            for (LogEntry entry : logs) {
+                long[] encoded;
+                if (entry instanceof EncodedLogEntry) {
+                    EncodedLogEntry e = (EncodedLogEntry) entry;
+                    encoded = new long[2 + e.argCount()];
+                    encoded[1] = localId(ids, compact.dictionary, e.dictionary.value(e.template));
+                    if (e.arg0 != EncodedLogEntry.NONE) {
+                        encoded[2] = localId(ids, compact.dictionary, e.dictionary.value(e.arg0));
+                    }
+                    if (e.arg1 != EncodedLogEntry.NONE) {
+                        encoded[3] = localId(ids, compact.dictionary, e.dictionary.value(e.arg1));
+                    }
+                } else {
+                    // Plain text is a template without values.
+                    encoded = new long[2];
+                    encoded[1] = localId(ids, compact.dictionary, entry.getMessage());
+                }
+                encoded[0] = entry.getEpochNanos() - previous;
+                previous = entry.getEpochNanos();
+                compact.entries.add(encoded);
+            }
+            return compact;
+        }
+
+        private static int localId(Map<String, Integer> ids, List<String> dictionary, String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        void decode(List<LogEntry> into) {
+            TraceDictionary decoded = new TraceDictionary(dictionary);
+            long previous = 0;
+            for (long[] encoded : entries) {
+                long epochNanos = previous + encoded[0];
+                previous = epochNanos;
+                int arg0 = encoded.length > 2 ? (int) encoded[2] : EncodedLogEntry.NONE;
+                int arg1 = encoded.length > 3 ? (int) encoded[3] : EncodedLogEntry.NONE;
+                into.add(new EncodedLogEntry(epochNanos, decoded, (int) encoded[1], arg0, arg1));
+            }
+        }
+    }
+
+    @JsonIgnore
+    public FsmClock getClock() {
+        return clock;
+    }
+
+    public void setClock(FsmClock clock) {
+        this.clock = clock;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the templates of trace messages and the values filled into them, like
+ * state and step names, so a trace entry only has to hold their ids. One dictionary
+ * is shared by all instances of a definition.
+ * <p>
+ * Templates mark where values go with {}. Once the dictionary is full, see
+ * MAX_SIZE, entries are stored as plain text again, so values that are not from a
+ * small fixed set can't make it grow without bound.
+ */
+public final class TraceDictionary {
+
+    public static final int MAX_SIZE = 1 << 16;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private int size;
+
+    public TraceDictionary() {
+    }
+
+    /**
+     * Dictionary of the values in order, for decoding an export. Not limited to MAX_SIZE.
+     */
+    TraceDictionary(List<String> values) {
+        this.values = values.toArray(new String[0]);
+        this.size = this.values.length;
+        for (int i = 0; i < size; i++) {
+            ids.putIfAbsent(this.values[i], i);
+        }
+    }
+
+    /**
+     * @return The id of the value or -1 if the dictionary is full.
+     */
+    int intern(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            if (size >= MAX_SIZE) {
+                return -1;
+            }
+            String[] current = values;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, Math.max(64, size * 2));
+            }
+            current[size] = value;
+            // Publish the value before its id, readers only look up ids they got from the map.
+            values = current;
+            ids.put(value, size);
+            return size++;
+        }
+    }
+
+    String value(int id) {
+        return values[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Fills the values into the {} of the template in order.
+     */
+    public static String format(String template, String... args) {
+        StringBuilder message = new StringBuilder(template.length() + 16 * args.length);
+        int from = 0;
+        for (String arg : args) {
+            int at = template.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            message.append(template, from, at).append(arg);
+            from = at + 2;
+        }
+        return message.append(template, from, template.length()).toString();
+    }
+}
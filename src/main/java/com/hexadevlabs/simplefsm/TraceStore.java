@@ -0,0 +1,58 @@
+package com.hexadevlabs.simplefsm;
+
+import java.util.List;
+
+/**
+ * Append-only storage of trace entries outside the state of an instance.
+ * <p>
+ * With a store set through SimpleFSM.Builder.traceStore(), exporting an instance
+ * moves the entries logged since the last export into the store. The snapshot then
+ * only carries the id of the trace and how many entries of it are stored, its high
+ * water mark, and SimpleFSM.getTrace() reads the stored part back on demand.
+ * Entries are written at the high water mark, so when an older snapshot is restored
+ * and exported again, what was stored after it is replaced.
+ * <p>
+ * A trace is written by one instance at a time, implementations must allow
+ * different traces to be written and read from many threads.
+ */
+public interface TraceStore {
+
+    /**
+     * Writes entries from index fromIndex on, creating the trace if it does not exist.
+     * Entries stored at or after fromIndex are removed first.
+     *
+     * @param fromIndex Index of the first entry, at most size().
+     * @return Number of entries in the trace after appending.
+     * @throws IllegalArgumentException If fromIndex is past the end of the trace.
+     */
+    long append(String traceId, long fromIndex, List<LogEntry> entries);
+
+    /**
+     * Appends entries to the end of the trace, creating it if it does not exist.
+     *
+     * @return Number of entries in the trace after appending.
+     */
+    default long append(String traceId, List<LogEntry> entries) {
+        return append(traceId, size(traceId), entries);
+    }
+
+    /**
+     * Entries of the trace from index from, inclusive, to index to, exclusive, in
+     * the order they were appended. Stops early at the end of the trace.
+     */
+    List<LogEntry> read(String traceId, long from, long to);
+
+    /**
+     * Number of entries in the trace, 0 if it does not exist.
+     */
+    long size(String traceId);
+
+    /**
+     * Removes the trace, for example once the instance it belongs to is done.
+     */
+    void delete(String traceId);
+
+    static TraceStore inMemory() {
+        return new InMemoryTraceStore();
+    }
+}
@@ -0,0 +1,308 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.NoopStep;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlobValueTest {
+
+    // Files and stores of a test, deleted after it.
+    private Path tempDir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("simplefsm-blobs");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class ReadBlob extends ProcessingStep {
+        private final String key;
+
+        ReadBlob(String key) {
+            this.key = key;
+        }
+
+        @Override
+        protected void process(ProcessingData data) {
+            ByteBuffer buffer = data.getBlob("doc").buffer();
+            // Moves only this view, other branches read from the start.
+            long sum = 0;
+            while (buffer.hasRemaining()) {
+                sum += buffer.get();
+            }
+            data.set(key, sum);
+            data.set(key + "_blob", data.getBlob("doc"));
+        }
+    }
+
+    @Test
+    public void directBlob() {
+        byte[] bytes = bytes(1000);
+        BlobValue blob = BlobValue.copyOf(bytes);
+        assertEquals(1000, blob.size());
+        assertTrue(blob.buffer().isDirect());
+        assertTrue(blob.buffer().isReadOnly());
+        assertArrayEquals(bytes, blob.toByteArray());
+        assertNull(blob.getPath());
+        assertEquals(64, blob.sha256().length());
+        assertEquals(blob, BlobValue.wrap(ByteBuffer.wrap(bytes)));
+        assertEquals(blob.hashCode(), BlobValue.wrap(ByteBuffer.wrap(bytes)).hashCode());
+    }
+
+    @Test
+    public void inlinedWithoutStore() {
+        byte[] bytes = bytes(100);
+        ProcessingData data = new ProcessingData();
+        data.set("doc", BlobValue.copyOf(bytes));
+        data.set("name", "scan.pdf");
+
+        String json = data.toJson();
+        assertTrue(json.contains("\"base64\""));
+
+        ProcessingData result = ProcessingData.fromJson(json);
+        assertArrayEquals(bytes, result.getBlob("doc").toByteArray());
+        assertEquals("scan.pdf", result.get("name"));
+    }
+
+    @Test
+    public void storedByHash() throws IOException {
+        Path dir = Files.createTempDirectory(tempDir, "blobs");
+        BlobStore store = new BlobStore(dir);
+        byte[] bytes = bytes(200_000);
+        BlobValue blob = BlobValue.copyOf(bytes);
+        ProcessingData data = new ProcessingData();
+        data.set("doc", blob);
+
+        String json = data.toJson(store);
+        assertTrue(json.length() < 500, json);
+        assertTrue(json.contains(blob.sha256()));
+        assertTrue(store.contains(blob.sha256()));
+        assertEquals(bytes.length, Files.size(dir.resolve(blob.sha256())));
+
+        // Storing the same bytes again writes nothing new.
+        data.toJson(store);
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+
+        ProcessingData result = ProcessingData.fromJson(json, store);
+        BlobValue read = result.getBlob("doc");
+        assertEquals(blob, read);
+        assertEquals(dir.resolve(blob.sha256()).toAbsolutePath(), read.getPath());
+        assertEquals(blob.sha256(), read.sha256());
+
+        assertThrows(IllegalStateException.class, () -> ProcessingData.fromJson(json));
+        assertTrue(store.delete(blob.sha256()));
+        assertThrows(IOException.class, () -> store.get(blob.sha256()));
+    }
+
+    @Test
+    public void mappedRegion() throws IOException {
+        Path file = Files.createTempFile(tempDir, "blob", ".bin");
+        byte[] bytes = bytes(4096);
+        Files.write(file, bytes);
+
+        BlobValue region = BlobValue.map(file, 1000, 500);
+        assertEquals(500, region.size());
+        assertEquals(1000, region.getOffset());
+        assertEquals(bytes[1000], region.buffer().get(0));
+        assertThrows(IOException.class, () -> BlobValue.map(file, 4000, 500));
+
+        ProcessingData data = new ProcessingData();
+        data.set("doc", region);
+        BlobStore store = new BlobStore(Files.createTempDirectory(tempDir, "blobs")).allowFilesIn(file.getParent());
+        String json = data.toJson(store);
+        assertTrue(json.contains("\"offset\" : 1000"), json);
+        assertFalse(json.contains("sha256"));
+
+        BlobValue read = ProcessingData.fromJson(json, store).getBlob("doc");
+        assertEquals(region, read);
+        assertEquals(file.toRealPath(), read.getPath());
+        // Without a store allowing it the file is not mapped.
+        assertThrows(IllegalStateException.class, () -> ProcessingData.fromJson(json));
+        BlobStore other = new BlobStore(Files.createTempDirectory(tempDir, "blobs"));
+        assertThrows(IllegalArgumentException.class, () -> ProcessingData.fromJson(json, other));
+        assertEquals(BlobValue.map(file), BlobValue.copyOf(bytes));
+    }
+
+    @Test
+    public void sharedBetweenBranches() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            SimpleFSM fsm = new SimpleFSM.Builder()
+                .state("START", new NoopStep())
+                    .split().goTo("READ1")
+                    .split().goTo("READ2")
+                .state("READ1", new ReadBlob("sum1"))
+                    .join("JOIN")
+                .state("READ2", new ReadBlob("sum2"))
+                    .join("JOIN")
+                .state("JOIN", new NoopStep())
+                    .auto().goTo("END")
+                .finalState("END", new NoopStep())
+                .splitHandler(new ForkJoinSplitHandler(pool))
+                .build();
+
+            BlobValue blob = BlobValue.copyOf(bytes(10_000));
+            ProcessingData data = new ProcessingData();
+            data.set("doc", blob);
+            fsm.start("START", data);
+
+            assertTrue(fsm.hasReachedFinalState());
+            assertEquals(data.get("sum1"), data.get("sum2"));
+            assertSame(blob, data.get("sum1_blob"));
+            assertSame(blob, data.get("sum2_blob"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void snapshotKeepsBlobs() throws IOException {
+        Path file = Files.createTempFile(tempDir, "blob", ".bin");
+        Files.write(file, bytes(300));
+        SimpleFSM definition = new SimpleFSM.Builder()
+            .state("START", new NoopStep(), true)
+                .on("GO").goTo("END")
+            .finalState("END", new NoopStep())
+            .build();
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        data.set("doc", BlobValue.map(file));
+        data.set("small", BlobValue.copyOf(bytes(10)));
+        fsm.start("START", data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (SnapshotWriter writer = new SnapshotWriter(out, SnapshotWriter.Format.NDJSON)) {
+            writer.write("item", fsm, data);
+        }
+        BlobStore store = new BlobStore(Files.createTempDirectory(tempDir, "blobs")).allowFilesIn(file.getParent());
+        List<FsmInstance> read = new SnapshotReader(definition).blobStore(store)
+                .readAll(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(data.get("doc"), read.get(0).getData().getBlob("doc"));
+        assertEquals(data.get("small"), read.get(0).getData().getBlob("small"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void nestedBlobs() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory(tempDir, "blobs"));
+        BlobValue first = BlobValue.copyOf(bytes(100));
+        BlobValue second = BlobValue.copyOf(bytes(200));
+        ProcessingData data = new ProcessingData();
+        data.set("pages", List.of(first, second));
+        data.set("attachments", Map.of("scan", first, "more", List.of(second)));
+
+        ProcessingData result = ProcessingData.fromJson(data.toJson(store), store);
+        assertEquals(List.of(first, second), result.get("pages"));
+        Map<String, Object> attachments = (Map<String, Object>) result.get("attachments");
+        assertEquals(first, attachments.get("scan"));
+        assertEquals(List.of(second), attachments.get("more"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void mapsLookingLikeBlobsStayData() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory(tempDir, "blobs"));
+        ProcessingData data = new ProcessingData();
+        data.set("link", Map.of("@blob", Map.of("path", "/etc/passwd", "offset", 0, "length", 10)));
+        data.set("note", Map.of("blob", "yes"));
+
+        ProcessingData result = ProcessingData.fromJson(data.toJson(), store);
+        Map<String, Object> link = (Map<String, Object>) result.get("link");
+        assertEquals("/etc/passwd", ((Map<String, Object>) link.get("@blob")).get("path"));
+        assertEquals(Map.of("blob", "yes"), result.get("note"));
+    }
+
+    @Test
+    public void invalidReferencesAreRejected() throws IOException {
+        Path file = Files.createTempFile(tempDir, "blob", ".bin");
+        Files.write(file, bytes(100));
+        BlobStore store = new BlobStore(Files.createTempDirectory(tempDir, "blobs"));
+
+        // A valid reference, but to a file outside of the store.
+        assertThrows(IllegalArgumentException.class, () -> readReference(store,
+                Map.of("version", 1, "kind", "path", "path", file.toString(), "offset", 0, "length", 100)));
+        assertThrows(IllegalArgumentException.class, () -> readReference(store,
+                Map.of("version", 2, "kind", "base64", "base64", "AAAA", "length", 3)));
+        assertThrows(IllegalArgumentException.class, () -> readReference(store,
+                Map.of("version", 1, "kind", "url", "length", 3)));
+        assertThrows(IllegalArgumentException.class, () -> readReference(store,
+                Map.of("version", 1, "kind", "base64", "base64", "AAAA")));
+        assertThrows(IllegalArgumentException.class, () -> readReference(store,
+                Map.of("version", 1, "kind", "base64", "base64", "AAAA", "length", 4)));
+        assertThrows(IllegalArgumentException.class, () -> readReference(store,
+                Map.of("version", 1, "kind", "sha256", "sha256", "../../etc/passwd", "length", 4)));
+        assertThrows(IllegalArgumentException.class, () -> readReference(store, "AAAA"));
+
+        store.allowFilesIn(file.getParent());
+        BlobValue read = readReference(store,
+                Map.of("version", 1, "kind", "path", "path", file.toString(), "offset", 10, "length", 20));
+        assertEquals(20, read.size());
+    }
+
+    private static BlobValue readReference(BlobStore store, Object reference) {
+        ProcessingData data = new ProcessingData();
+        data.set("doc", Map.of(BlobValue.JSON_KEY, reference));
+        return ProcessingData.fromJson(data.toJson(), store).getBlob("doc");
+    }
+
+    @Test
+    public void javaSerialization() throws Exception {
+        Path file = Files.createTempFile(tempDir, "blob", ".bin");
+        byte[] bytes = bytes(4096);
+        Files.write(file, bytes);
+        ProcessingData data = new ProcessingData();
+        data.set("region", BlobValue.map(file, 100, 1000));
+        data.set("small", BlobValue.copyOf(bytes(10)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream objects = new ObjectOutputStream(out)) {
+            objects.writeObject(data);
+        }
+        // The mapped region is written as a reference, not its bytes.
+        assertTrue(out.size() < 1000, "size " + out.size());
+        ProcessingData result;
+        try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            result = (ProcessingData) objects.readObject();
+        }
+        BlobValue region = result.getBlob("region");
+        assertEquals(data.get("region"), region);
+        assertEquals(file.toAbsolutePath(), region.getPath());
+        assertEquals(100, region.getOffset());
+        assertEquals(data.get("small"), result.getBlob("small"));
+    }
+}
@@ -0,0 +1,202 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BulkheadTest {
+
+    private Blocking blocking;
+    private FsmMetrics metrics;
+
+    @BeforeEach
+    public void setUp() {
+        blocking = new Blocking();
+        metrics = new FsmMetrics();
+    }
+
+    private SimpleFSM buildNew(Bulkhead bulkhead, String onRejectGoTo) {
+        SimpleFSM.StateBuilder call = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("CALL")
+            .state("CALL", blocking);
+        if (onRejectGoTo != null) {
+            call.bulkhead(bulkhead, onRejectGoTo);
+        } else {
+            call.bulkhead(bulkhead);
+        }
+        return call
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .finalState("FALLBACK", new NoopStep())
+            .finalState("FAILED", new NoopStep())
+            .onExceptionGoTo("FAILED")
+            .withMetrics(metrics)
+            .build();
+    }
+
+    @Test
+    public void uncontendedPassesThrough() {
+        blocking.release.countDown();
+        SimpleFSM fsm = buildNew(Bulkhead.maxConcurrent(1), null);
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+
+        assertEquals("END", fsm.getFinalState().getName());
+        assertEquals(1, fsm.getState("CALL").getBulkhead().getAvailablePermits());
+        assertEquals(0, metrics.getStateMetrics("CALL").getBulkheadRejections());
+        assertEquals(0, metrics.getStateMetrics("CALL").getQueueTime().getMax());
+    }
+
+    @Test
+    public void rejectsToTransition() throws Exception {
+        SimpleFSM definition = buildNew(Bulkhead.maxConcurrent(2), "FALLBACK");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<SimpleFSM>> running = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                running.add(executor.submit(() -> run(definition)));
+            }
+            blocking.started.await(5, TimeUnit.SECONDS);
+            while (blocking.inside.get() < 2) {
+                Thread.onSpinWait();
+            }
+
+            // Both permits are taken.
+            SimpleFSM rejected = run(definition);
+            assertEquals("FALLBACK", rejected.getFinalState().getName());
+
+            blocking.release.countDown();
+            for (Future<SimpleFSM> future : running) {
+                assertEquals("END", future.get(5, TimeUnit.SECONDS).getFinalState().getName());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, metrics.getStateMetrics("CALL").getBulkheadRejections());
+        assertEquals(1, metrics.getStateMetrics("CALL").getTransitionCount("FALLBACK"));
+    }
+
+    @Test
+    public void rejectsToExceptionState() throws Exception {
+        SimpleFSM definition = buildNew(Bulkhead.maxConcurrent(1), null);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<SimpleFSM> running = executor.submit(() -> run(definition));
+            blocking.started.await(5, TimeUnit.SECONDS);
+
+            SimpleFSM fsm = definition.buildEmptyCopy();
+            ProcessingData data = new ProcessingData();
+            fsm.start("START", data);
+            assertEquals("FAILED", fsm.getFinalState().getName());
+            assertInstanceOf(BulkheadRejectedException.class, data.getException());
+
+            blocking.release.countDown();
+            running.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void queuedExecutionWaitsForPermit() throws Exception {
+        SimpleFSM definition = buildNew(Bulkhead.maxConcurrent(1).maxWait(Duration.ofSeconds(5)), "FALLBACK");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<SimpleFSM> running = executor.submit(() -> run(definition));
+            blocking.started.await(5, TimeUnit.SECONDS);
+
+            CompletableFuture<SimpleFSM> queued = CompletableFuture.supplyAsync(() -> run(definition));
+            Bulkhead bulkhead = definition.getState("CALL").getBulkhead();
+            while (bulkhead.getQueued() == 0) {
+                Thread.onSpinWait();
+            }
+            Thread.sleep(20);
+            blocking.release.countDown();
+
+            assertEquals("END", running.get(5, TimeUnit.SECONDS).getFinalState().getName());
+            assertEquals("END", queued.get(5, TimeUnit.SECONDS).getFinalState().getName());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, metrics.getStateMetrics("CALL").getBulkheadRejections());
+        assertTrue(metrics.getStateMetrics("CALL").getQueueTime().getMax() >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void limitHoldsUnderLoad() throws Exception {
+        blocking.release.countDown();
+        blocking.sleepMillis = 1;
+        SimpleFSM definition = buildNew(Bulkhead.maxConcurrent(3).maxWait(Duration.ofSeconds(10)), null);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<SimpleFSM>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(() -> run(definition)));
+            }
+            for (Future<SimpleFSM> future : futures) {
+                assertEquals("END", future.get(30, TimeUnit.SECONDS).getFinalState().getName());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(blocking.maxInside.get() <= 3, "Max concurrent was " + blocking.maxInside.get());
+        assertEquals(3, definition.getState("CALL").getBulkhead().getAvailablePermits());
+    }
+
+    @Test
+    public void rejectTransitionIsNotANormalTransition() {
+        // CALL has one normal transition so it does not need to pick a next state.
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("CALL", new NoopStep())
+                .bulkhead(Bulkhead.maxConcurrent(1), "FALLBACK")
+                .on("DONE").goTo("END")
+            .finalState("END", new NoopStep())
+            .finalState("FALLBACK", new NoopStep())
+            .build();
+        ProcessingData data = new ProcessingData();
+        fsm.start("CALL", data);
+        assertEquals("END", fsm.getFinalState().getName());
+        assertTrue(fsm.toGraphviz().contains("CALL -> FALLBACK[label=\"BULKHEAD_REJECTED\"]"));
+    }
+
+    private static SimpleFSM run(SimpleFSM definition) {
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        fsm.start("START", new ProcessingData());
+        return fsm;
+    }
+
+    // Blocks until released and tracks how many executions run at the same time.
+    private static class Blocking extends ProcessingStep {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger maxInside = new AtomicInteger();
+        volatile long sleepMillis;
+
+        @Override
+        protected void process(ProcessingData data) {
+            int now = inside.incrementAndGet();
+            maxInside.accumulateAndGet(now, Math::max);
+            started.countDown();
+            try {
+                release.await();
+                if (sleepMillis > 0) {
+                    Thread.sleep(sleepMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inside.decrementAndGet();
+            }
+        }
+    }
+}
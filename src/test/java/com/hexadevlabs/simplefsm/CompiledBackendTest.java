@@ -0,0 +1,149 @@
+package com.hexadevlabs.simplefsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompiledBackendTest {
+
+    private static SimpleFSM buildNew(SimpleFSM.Backend backend) {
+        return new SimpleFSM.Builder()
+            .state("START", new Count("START"))
+                .auto().goTo("ROUTE")
+            .state("ROUTE", new Route())
+                .on("EVEN").goTo("EVEN")
+                .on("ODD").goTo("ODD")
+            .state("EVEN", new Count("EVEN"))
+                .auto().goTo("WAIT")
+            .state("ODD", new Count("ODD"))
+                .auto().goTo("CHAIN1")
+            .state("CHAIN1", new Count("CHAIN1"))
+                .auto().goTo("CHAIN2")
+            .state("CHAIN2", new Count("CHAIN2"))
+                .auto().goTo("END")
+            .state("WAIT", new Count("WAIT"), true)
+                .on("GO").goTo("GUARDED")
+            .state("GUARDED", new Count("GUARDED"))
+                .bulkhead(Bulkhead.maxConcurrent(1))
+                .auto().goTo("CHAIN1")
+            .finalState("END", new Count("END"))
+            .finalState("FAILED", new Count("FAILED"))
+            .onExceptionGoTo("FAILED")
+            .backend(backend)
+            .build();
+    }
+
+    // Everything observable about an item after running it.
+    private static String run(SimpleFSM definition, Integer value, String failIn) {
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        data.set("value", value);
+        data.set("failIn", failIn);
+        String outcome;
+        try {
+            fsm.start("START", data);
+            if (fsm.isPaused()) {
+                fsm.triggerEvent("GO", data);
+            }
+            outcome = fsm.wasTerminated() ? "terminated" : fsm.getFinalState().getName();
+        } catch (RuntimeException e) {
+            outcome = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+        List<String> exceptions = new ArrayList<>();
+        for (ExceptionInfo exceptionInfo : data.getExceptions()) {
+            exceptions.add(exceptionInfo.exception.getMessage());
+        }
+        return outcome + " | " + data.get("count") + " | " + data.get("path") + " | " + exceptions
+                + " | " + fsm.getTrace().size();
+    }
+
+    @Test
+    public void sameOutcomeAsInterpreter() {
+        SimpleFSM interpreted = buildNew(SimpleFSM.Backend.INTERPRETED);
+        SimpleFSM compiled = buildNew(SimpleFSM.Backend.COMPILED);
+        String[] failIns = {null, "START", "ODD", "CHAIN2", "GUARDED", "END", "FAILED"};
+        for (Integer value : new Integer[]{0, 1, 2, 3, null}) {
+            for (String failIn : failIns) {
+                String expected = run(interpreted, value, failIn);
+                assertEquals(expected, run(compiled, value, failIn), "value " + value + ", fail in " + failIn);
+            }
+        }
+    }
+
+    @Test
+    public void chainsAndRouting() {
+        SimpleFSM compiled = buildNew(SimpleFSM.Backend.COMPILED);
+
+        assertEquals("END | 5 | START,ROUTE,ODD,CHAIN1,CHAIN2,END | [] | 5", run(compiled, 1, null));
+        assertEquals("END | 7 | START,ROUTE,EVEN,WAIT,GUARDED,CHAIN1,CHAIN2,END | [] | 7", run(compiled, 2, null));
+        assertEquals("FAILED | 4 | START,ROUTE,ODD,CHAIN1,FAILED | [Failed in CHAIN1] | 3", run(compiled, 1, "CHAIN1"));
+        // The exception state failing itself terminates.
+        assertEquals("terminated | 3 | START,ROUTE,ODD,FAILED | [Failed in ODD, Failed in FAILED] | 1",
+                run(compiled, 1, "ODD,FAILED"));
+        assertTrue(run(compiled, null, null).startsWith("IllegalStateException: Next state is ambiguous"));
+    }
+
+    @Test
+    public void tracedInstancesAreInterpreted() {
+        SimpleFSM compiled = buildNew(SimpleFSM.Backend.COMPILED);
+        SimpleFSM fsm = compiled.buildEmptyCopy();
+        fsm.setTraceMode(true);
+        ProcessingData data = new ProcessingData();
+        data.set("value", 1);
+        fsm.start("START", data);
+
+        assertEquals("END", fsm.getFinalState().getName());
+        assertTrue(fsm.getTrace().toString().contains("Entering state: CHAIN2"));
+    }
+
+    @Test
+    public void backendFromSystemProperty() {
+        String previous = System.getProperty("simplefsm.backend");
+        try {
+            System.setProperty("simplefsm.backend", "compiled");
+            assertEquals(SimpleFSM.Backend.COMPILED, SimpleFSM.Backend.fromSystemProperty());
+            System.clearProperty("simplefsm.backend");
+            assertEquals(SimpleFSM.Backend.INTERPRETED, SimpleFSM.Backend.fromSystemProperty());
+        } finally {
+            if (previous != null) {
+                System.setProperty("simplefsm.backend", previous);
+            }
+        }
+    }
+
+    // Counts states run and records the path, fails in the states listed in failIn.
+    private static class Count extends ProcessingStep {
+        private final String name;
+
+        Count(String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected void process(ProcessingData data) {
+            Integer count = (Integer) data.get("count");
+            data.set("count", count == null ? 1 : count + 1);
+            log("count");
+            String path = (String) data.get("path");
+            data.set("path", path == null ? name : path + "," + name);
+            String failIn = (String) data.get("failIn");
+            if (failIn != null && List.of(failIn.split(",")).contains(name)) {
+                throw new RuntimeException("Failed in " + name);
+            }
+        }
+    }
+
+    private static class Route extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            data.set("path", data.get("path") + ",ROUTE");
+            Integer value = (Integer) data.get("value");
+            if (value != null) {
+                nextState(data, value % 2 == 0 ? "EVEN" : "ODD");
+            }
+        }
+    }
+}
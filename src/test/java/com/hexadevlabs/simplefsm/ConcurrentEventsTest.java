@@ -0,0 +1,246 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrentEventsTest {
+
+    private static SimpleFSM buildOrder(EventConflictPolicy policy, Exclusive ship) {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("AWAIT_PAYMENT")
+            .state("AWAIT_PAYMENT", new NoopStep(), true)
+                .on("PAID").goTo("SHIP")
+            .state("SHIP", ship, true)
+                .on("DELIVERED").goTo("END")
+            .finalState("END", new NoopStep())
+            .concurrentEvents(policy)
+            .build();
+    }
+
+    // Alternates between two waiting states on every NEXT event.
+    private static SimpleFSM buildPingPong(EventConflictPolicy policy, Exclusive step) {
+        return new SimpleFSM.Builder()
+            .state("PING", step, true)
+                .on("NEXT").goTo("PONG")
+            .state("PONG", step, true)
+                .on("NEXT").goTo("PING")
+            .concurrentEvents(policy)
+            .build();
+    }
+
+    @Test
+    public void duplicateEventRunsStateOnce() throws Exception {
+        for (EventConflictPolicy policy : EventConflictPolicy.values()) {
+            Exclusive ship = new Exclusive(5);
+            SimpleFSM fsm = buildOrder(policy, ship).buildEmptyCopy();
+            ProcessingData data = new ProcessingData();
+            fsm.start("START", data);
+
+            int threads = 4;
+            CyclicBarrier barrier = new CyclicBarrier(threads);
+            AtomicInteger rejected = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> webhooks = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    webhooks.add(executor.submit(() -> {
+                        barrier.await();
+                        try {
+                            fsm.triggerEvent("PAID", data);
+                        } catch (EventConflictException | IllegalArgumentException e) {
+                            // Lost to the first webhook, or came after it moved on.
+                            rejected.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> webhook : webhooks) {
+                    webhook.get(5, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertEquals(1, ship.runs.get(), policy.name());
+            assertFalse(ship.overlapped, policy.name());
+            assertTrue(fsm.isPaused());
+            assertEquals("SHIP", fsm.getCurrentStateName());
+            if (policy == EventConflictPolicy.REQUEUE) {
+                // Losers only fail when they see SHIP has no PAID transition, otherwise they are dropped.
+                assertTrue(rejected.get() < threads);
+            }
+        }
+    }
+
+    @Test
+    public void rejectedEventsThrow() {
+        Exclusive step = new Exclusive(0);
+        SimpleFSM fsm = buildPingPong(EventConflictPolicy.REJECT, step).buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        step.onRun = () -> assertThrows(EventConflictException.class, () -> fsm.triggerEvent("NEXT", data));
+        fsm.start("PING", data);
+        step.onRun = null;
+
+        fsm.triggerEvent("NEXT", data);
+        assertEquals("PONG", fsm.getCurrentStateName());
+    }
+
+    @Test
+    public void requeuedEventsRunAfterTheWinner() {
+        Exclusive step = new Exclusive(0);
+        SimpleFSM fsm = buildPingPong(EventConflictPolicy.REQUEUE, step).buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        fsm.start("PING", data);
+
+        AtomicInteger queued = new AtomicInteger();
+        step.onRun = () -> {
+            // Queued from inside the winner, run once it is done.
+            if (queued.incrementAndGet() <= 3) {
+                fsm.triggerEvent("NEXT", data);
+            }
+        };
+        fsm.triggerEvent("NEXT", data);
+
+        // The first event plus three queued ones.
+        assertEquals(5, step.runs.get());
+        assertEquals("PING", fsm.getCurrentStateName());
+    }
+
+    @Test
+    public void droppedEventsAreReported() {
+        Exclusive ship = new Exclusive(0);
+        SimpleFSM[] holder = new SimpleFSM[1];
+        List<String> dropped = new CopyOnWriteArrayList<>();
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("AWAIT_PAYMENT")
+            .state("AWAIT_PAYMENT", new NoopStep(), true)
+                .on("PAID").goTo("SHIP")
+            .state("SHIP", ship, true)
+                .on("CANCEL").goTo("CANCELLING")
+            .state("CANCELLING", new ProcessingStep() {
+                @Override
+                protected void process(ProcessingData data) {
+                    holder[0].triggerEvent("CANCEL", data);
+                    throw new IllegalStateException("Cancel failed");
+                }
+            })
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .concurrentEvents(EventConflictPolicy.REQUEUE, (eventName, data) -> dropped.add(eventName))
+            .build()
+            .buildEmptyCopy();
+        holder[0] = fsm;
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+
+        // A duplicate queued while SHIP runs, which has no PAID transition.
+        ship.onRun = () -> fsm.triggerEvent("PAID", data);
+        fsm.triggerEvent("PAID", data);
+        assertEquals("SHIP", fsm.getCurrentStateName());
+        assertEquals(List.of("PAID"), dropped);
+
+        // Queued while the instance terminates.
+        fsm.triggerEvent("CANCEL", data);
+        assertTrue(fsm.wasTerminated());
+        assertEquals(List.of("PAID", "CANCEL"), dropped);
+        assertThrows(IllegalStateException.class, () -> fsm.triggerEvent("CANCEL", data));
+    }
+
+    @Test
+    public void contentionBenchmark() throws Exception {
+        for (EventConflictPolicy policy : EventConflictPolicy.values()) {
+            Exclusive step = new Exclusive(0);
+            SimpleFSM fsm = buildPingPong(policy, step).buildEmptyCopy();
+            ProcessingData data = new ProcessingData();
+            fsm.start("PING", data);
+
+            int threads = 16;
+            int eventsPerThread = 5_000;
+            AtomicInteger accepted = new AtomicInteger();
+            AtomicInteger rejected = new AtomicInteger();
+            CyclicBarrier barrier = new CyclicBarrier(threads);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            long start;
+            try {
+                List<Future<?>> running = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    running.add(executor.submit(() -> {
+                        barrier.await();
+                        for (int i = 0; i < eventsPerThread; i++) {
+                            try {
+                                fsm.triggerEvent("NEXT", data);
+                                accepted.incrementAndGet();
+                            } catch (EventConflictException e) {
+                                rejected.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                start = System.nanoTime();
+                for (Future<?> future : running) {
+                    future.get(60, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            int total = threads * eventsPerThread;
+            assertFalse(step.overlapped);
+            assertEquals(total, accepted.get() + rejected.get());
+            // One run for start plus one for each processed event, none lost or doubled.
+            int processed = step.runs.get() - 1;
+            if (policy == EventConflictPolicy.REQUEUE) {
+                assertEquals(total, processed);
+            } else {
+                assertEquals(accepted.get(), processed);
+            }
+            assertEquals(processed % 2 == 0 ? "PING" : "PONG", fsm.getCurrentStateName());
+            System.out.printf("%s, %d threads: %d events in %.2fs (%.0f/s), %d processed, %d rejected%n",
+                    policy, threads, total, seconds, total / seconds, processed, rejected.get());
+        }
+    }
+
+    // Counts runs and notes if two runs ever overlapped.
+    private static class Exclusive extends ProcessingStep {
+        private final long sleepMillis;
+        final AtomicInteger runs = new AtomicInteger();
+        private final AtomicInteger inside = new AtomicInteger();
+        volatile boolean overlapped;
+        volatile Runnable onRun;
+
+        Exclusive(long sleepMillis) {
+            this.sleepMillis = sleepMillis;
+        }
+
+        @Override
+        protected void process(ProcessingData data) {
+            if (inside.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            runs.incrementAndGet();
+            Runnable action = onRun;
+            if (action != null) {
+                action.run();
+            }
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            inside.decrementAndGet();
+        }
+    }
+}
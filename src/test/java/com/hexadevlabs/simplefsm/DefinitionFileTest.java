@@ -0,0 +1,170 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DefinitionFileTest {
+
+    private static SimpleFSM buildSplit() {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().withTimeout(Duration.ofSeconds(2)).goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+                .splitTimeout(Duration.ofSeconds(5))
+            .state("SPLIT1", new Split1())
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .withName("Split FSM")
+            .splitHandler(new ThreadBasedSplitHandler())
+            .build();
+    }
+
+    private static SimpleFSM buildConditional() {
+        return new SimpleFSM.Builder()
+            .state("STEP1", new Step1())
+                .conditional().goTo("STEP2")
+                .conditional().goTo("STEP3")
+            .state("STEP2", new Step2())
+                .auto().goTo("WAIT")
+            .state("STEP3", new Step3())
+                .auto().goTo("WAIT")
+            .state("WAIT", new Step4(), true)
+                .on("DONE").goTo("END")
+            .finalState("END", new NoopStep())
+            .state("ERROR", new NoopStep())
+            .onExceptionGoTo("ERROR")
+            .build();
+    }
+
+    private static StepRegistry registry(Map<String, AtomicInteger> created) {
+        StepRegistry registry = new StepRegistry();
+        register(registry, created, "NoopStep", NoopStep::new);
+        register(registry, created, "StepSplit", StepSplit::new);
+        register(registry, created, "Split1", Split1::new);
+        register(registry, created, "Split2", Split2::new);
+        register(registry, created, "SplitEnd", SplitEnd::new);
+        register(registry, created, "Step1", Step1::new);
+        register(registry, created, "Step2", Step2::new);
+        register(registry, created, "Step3", Step3::new);
+        registry.register(Step4.class);
+        return registry;
+    }
+
+    private static void register(StepRegistry registry, Map<String, AtomicInteger> created,
+                                 String name, Supplier<ProcessingStep> factory) {
+        AtomicInteger count = created.computeIfAbsent(name, n -> new AtomicInteger());
+        registry.register(name, () -> {
+            count.incrementAndGet();
+            return factory.get();
+        });
+    }
+
+    private static InputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void splitDefinitionRoundTrip() throws IOException {
+        SimpleFSM original = buildSplit();
+        String json = original.toDefinitionJson();
+
+        SimpleFSM loaded = DefinitionFile.read(stream(json), registry(new HashMap<>()))
+                .splitHandler(new ThreadBasedSplitHandler())
+                .build();
+
+        assertEquals(original.definitionHash(), loaded.definitionHash());
+        assertEquals(json, loaded.toDefinitionJson());
+        assertEquals(Duration.ofSeconds(5), loaded.getState("STEP_SPLIT").getSplitTimeout());
+        assertEquals(Duration.ofSeconds(2), loaded.getState("STEP_SPLIT").getBranchTimeout("SPLIT_SPLIT1"));
+        assertEquals("SPLIT_END", loaded.getState("SPLIT1").getJoinState());
+
+        ProcessingData data = new ProcessingData();
+        loaded.start("START", data);
+        assertTrue(loaded.hasReachedFinalState());
+        assertEquals(5, data.get("value_sum"));
+    }
+
+    @Test
+    public void stepsAreCreatedOnFirstExecution() throws IOException {
+        Map<String, AtomicInteger> created = new HashMap<>();
+        StepRegistry registry = registry(created);
+        SimpleFSM definition = DefinitionFile.read(stream(buildConditional().toDefinitionJson()), registry).build();
+        assertEquals(0, registry.getInstantiated());
+
+        for (int i = 0; i < 3; i++) {
+            SimpleFSM fsm = definition.buildEmptyCopy();
+            ProcessingData data = new ProcessingData();
+            data.set("value", 4);
+            fsm.start("STEP1", data);
+            assertEquals(8, data.get("value"));
+            fsm.triggerEvent("DONE", data);
+            assertTrue(fsm.hasReachedFinalState());
+        }
+
+        // Created once for the definition, STEP3 and ERROR never ran.
+        assertEquals(1, created.get("Step1").get());
+        assertEquals(1, created.get("Step2").get());
+        assertEquals(0, created.get("Step3").get());
+        assertEquals(1, created.get("NoopStep").get());
+        assertEquals(4, registry.getInstantiated());
+    }
+
+    @Test
+    public void exceptionStateAndWaitAreKept() throws IOException {
+        SimpleFSM definition = DefinitionFile.read(stream(buildConditional().toDefinitionJson()), registry(new HashMap<>())).build();
+
+        assertTrue(definition.getState("WAIT").shouldWaitForEventBeforeTransition());
+        assertEquals(buildConditional().definitionHash(), definition.definitionHash());
+        assertEquals("Step4", definition.getState("WAIT").getProcessStepClassName());
+    }
+
+    @Test
+    public void unknownStepFails() {
+        String json = "{\"states\":[{\"name\":\"START\",\"step\":\"Missing\"}]}";
+        assertThrows(IllegalArgumentException.class, () -> DefinitionFile.read(stream(json), new StepRegistry()));
+    }
+
+    @Test
+    public void malformedFileFails() {
+        assertThrows(IOException.class, () -> DefinitionFile.read(stream("[]"), new StepRegistry()));
+        assertThrows(IOException.class, () -> DefinitionFile.read(stream("{\"states\":[{\"step\":\"NoopStep\"}]}"),
+                new StepRegistry().register(NoopStep.class)));
+    }
+
+    @Test
+    public void invalidDefinitionFailsOnBuild() throws IOException {
+        String json = "{\"states\":[{\"name\":\"START\",\"step\":\"NoopStep\",\"transitions\":[{\"on\":\"AUTO\",\"to\":\"NOWHERE\"}]}]}";
+        SimpleFSM.Builder builder = DefinitionFile.read(stream(json), new StepRegistry().register(NoopStep.class));
+        assertThrows(SimpleFSMValidationException.class, builder::build);
+    }
+
+    @Test
+    public void unsupportedStateFailsOnWrite() {
+        SimpleFSM definition = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .retry(RetryPolicy.maxAttempts(3))
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .build();
+        assertThrows(IllegalArgumentException.class, definition::toDefinitionJson);
+    }
+}
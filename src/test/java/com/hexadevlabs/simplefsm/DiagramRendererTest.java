@@ -0,0 +1,175 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.Step1;
+import com.hexadevlabs.simplefsm.testSteps.Step2;
+import com.hexadevlabs.simplefsm.testSteps.Step3;
+import com.hexadevlabs.simplefsm.testSteps.Step4;
+import guru.nidi.graphviz.engine.Format;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiagramRendererTest {
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    // Rendering with graphviz-java is slow, so the tests count calls to a fake renderer.
+    private byte[] fakeRender(String dot, Format format) {
+        renders.incrementAndGet();
+        return (format + ":" + dot).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private SimpleFSM buildNew(boolean withStep3){
+        SimpleFSM.Builder builder = new SimpleFSM.Builder();
+        builder.state("START", new Step1())
+                    .conditional().goTo("STEP2")
+                    .conditional().goTo(withStep3 ? "STEP3" : "END")
+                .state("STEP2", new Step2(), true)
+                    .on("proceed").goTo("END");
+        if (withStep3) {
+            builder.state("STEP3", new Step3())
+                    .auto().goTo("END");
+        }
+        return builder.finalState("END", new Step4())
+                .withName("Test FSM")
+                .build();
+    }
+
+    @Test
+    public void hashIsStructural(){
+        assertEquals(buildNew(true).definitionHash(), buildNew(true).definitionHash());
+        assertNotEquals(buildNew(true).definitionHash(), buildNew(false).definitionHash());
+
+        SimpleFSM simpleFSM = buildNew(true);
+        String hash = simpleFSM.definitionHash();
+        simpleFSM.addFinalState("STEP3");
+        assertNotEquals(hash, simpleFSM.definitionHash());
+    }
+
+    @Test
+    public void renderedOnceWhileDefinitionIsUnchanged(){
+        try (DiagramRenderer renderer = new DiagramRenderer(this::fakeRender, null)) {
+            SimpleFSM simpleFSM = buildNew(true);
+            byte[] first = renderer.render(simpleFSM, Format.SVG);
+            byte[] second = renderer.render(buildNew(true), Format.SVG);
+            assertSame(first, second);
+            assertEquals(1, renders.get());
+
+            renderer.render(simpleFSM, Format.PNG);
+            assertEquals(2, renders.get());
+
+            // Changing the definition renders again.
+            SimpleFSM changed = buildNew(false);
+            renderer.render(changed, Format.SVG);
+            assertEquals(3, renders.get());
+
+            // Definitions with the same name don't evict each other.
+            assertTrue(renderer.isCached(simpleFSM, Format.SVG));
+            renderer.render(simpleFSM, Format.SVG);
+            renderer.render(changed, Format.SVG);
+            assertEquals(3, renders.get());
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted(){
+        try (DiagramRenderer renderer = new DiagramRenderer(this::fakeRender, null).maxEntries(2)) {
+            SimpleFSM first = buildNew(true);
+            SimpleFSM second = buildNew(false);
+            renderer.render(first, Format.SVG);
+            renderer.render(second, Format.SVG);
+            renderer.render(first, Format.SVG);
+            renderer.render(first, Format.PNG);
+            assertEquals(3, renders.get());
+
+            assertTrue(renderer.isCached(first, Format.SVG));
+            assertTrue(renderer.isCached(first, Format.PNG));
+            assertFalse(renderer.isCached(second, Format.SVG));
+        }
+    }
+
+    @Test
+    public void closeFailsPendingPrerender(){
+        CountDownLatch never = new CountDownLatch(1);
+        DiagramRenderer renderer = new DiagramRenderer((dot, format) -> {
+            try {
+                never.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return new byte[0];
+        }, null);
+        SimpleFSM simpleFSM = buildNew(true);
+        CompletableFuture<Void> pending = renderer.prerender(simpleFSM, Format.SVG, Format.PNG);
+        renderer.close();
+
+        assertTrue(pending.isCompletedExceptionally());
+        assertFalse(renderer.isCached(simpleFSM, Format.SVG));
+        assertTrue(renderer.prerender(simpleFSM, Format.SVG).isCompletedExceptionally());
+    }
+
+    @Test
+    public void diskCacheSurvivesNewRenderer() throws IOException {
+        Path directory = Files.createTempDirectory("simplefsm-diagrams");
+        try {
+            SimpleFSM simpleFSM = buildNew(true);
+            try (DiagramRenderer renderer = new DiagramRenderer(this::fakeRender, directory)) {
+                renderer.render(simpleFSM, Format.SVG);
+            }
+            assertTrue(Files.exists(directory.resolve(simpleFSM.definitionHash() + ".svg")));
+
+            try (DiagramRenderer renderer = new DiagramRenderer(this::fakeRender, directory)) {
+                byte[] diagram = renderer.render(simpleFSM, Format.SVG);
+                assertEquals("SVG:" + simpleFSM.toGraphviz(), new String(diagram, StandardCharsets.UTF_8));
+            }
+            assertEquals(1, renders.get());
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void prerenderInBackground() throws Exception {
+        try (DiagramRenderer renderer = new DiagramRenderer(this::fakeRender, null)) {
+            SimpleFSM simpleFSM = buildNew(true);
+            renderer.prerender(simpleFSM, Format.SVG, Format.PNG).get(10, TimeUnit.SECONDS);
+            assertTrue(renderer.isCached(simpleFSM, Format.SVG));
+            assertTrue(renderer.isCached(simpleFSM, Format.PNG));
+
+            renderer.render(simpleFSM, Format.SVG);
+            assertEquals(2, renders.get());
+        }
+    }
+
+    @Test
+    public void failedRenderIsNotCached(){
+        try (DiagramRenderer renderer = new DiagramRenderer((dot, format) -> {
+            if (renders.incrementAndGet() == 1) {
+                throw new IOException("render failed");
+            }
+            return new byte[0];
+        }, null)) {
+            SimpleFSM simpleFSM = buildNew(true);
+            assertThrows(RuntimeException.class, () -> renderer.render(simpleFSM, Format.SVG));
+            assertNotNull(renderer.render(simpleFSM, Format.SVG));
+            assertEquals(2, renders.get());
+        }
+    }
+}
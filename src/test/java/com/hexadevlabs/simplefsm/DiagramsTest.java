@@ -7,8 +7,12 @@ import com.hexadevlabs.simplefsm.testSteps.Step4;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.StringWriter;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DiagramsTest {
     private SimpleFSM simpleFSM;
@@ -43,16 +47,16 @@ public class DiagramsTest {
                 digraph G {
                 labelloc="t";
                 label=<<B>Test FSM</B>>;
-                \tEXCEPTION[label="EXCEPTION\\n[ExceptionState]"];
                 \tSTART[label="START\\n[Step1]"];
-                \tSTART -> STEP3[label="START_TO_STEP3"];
                 \tSTART -> STEP2[label="START_TO_STEP2"];
-                \tEND[label="END\\n[Step4]\\n<final>"];
+                \tSTART -> STEP3[label="START_TO_STEP3"];
                 \tSTEP2[label="STEP2\\n[Step2]\\n<wait>"];
                 \tSTEP2 -> END[label="proceed"];
                 \tSTEP2 -> EXCEPTION[label="alt_proceed"];
                 \tSTEP3[label="STEP3\\n[Step3]"];
                 \tSTEP3 -> END[label="AUTO"];
+                \tEXCEPTION[label="EXCEPTION\\n[ExceptionState]"];
+                \tEND[label="END\\n[Step4]\\n<final>"];
                 \tException [label="Exception" shape="box"];
                 \tException -> END[label="ON_EXCEPTION"];
                 }""";
@@ -61,4 +65,46 @@ public class DiagramsTest {
         assertEquals( expected , graphviz);
     }
 
+    @Test
+    public void streamingGraphMatches() throws IOException {
+        StringWriter writer = new StringWriter();
+        simpleFSM.toGraphviz(writer);
+        assertEquals(simpleFSM.toGraphviz(), writer.toString());
+    }
+
+    @Test
+    public void heatMapGraph() throws IOException {
+        FsmMetrics metrics = new FsmMetrics();
+        SimpleFSM fsm = new SimpleFSM.Builder()
+                .state("START", new Step1())
+                    .conditional().goTo("STEP2")
+                    .conditional().goTo("STEP3")
+                .state("STEP2", new Step2(), true)
+                    .on("proceed").goTo("END")
+                .state("STEP3", new Step3())
+                    .auto().goTo("END")
+                .finalState("END", new Step4())
+                .withMetrics(metrics)
+                .build();
+        for (int value = 0; value < 3; value++) {
+            ProcessingData data = new ProcessingData();
+            data.set("value", value);
+            fsm.buildEmptyCopy().start("START", data);
+        }
+
+        assertEquals(3, metrics.getStateMetrics("START").getExecutions());
+        assertEquals(2, metrics.getStateMetrics("START").getTransitionCount("STEP2"));
+        assertEquals(1, metrics.getStateMetrics("START").getTransitionCount("STEP3"));
+
+        StringWriter writer = new StringWriter();
+        fsm.toGraphviz(writer, metrics);
+        String graphviz = writer.toString();
+
+        assertTrue(graphviz.contains("\tSTART[label=\"START\\n[Step1]\\nn=3 p99="), graphviz);
+        assertTrue(graphviz.contains("\tSTART -> STEP2[label=\"START_TO_STEP2 (2)\" penwidth=\"5.00\"];"), graphviz);
+        assertTrue(graphviz.contains("fillcolor="), graphviz);
+        // STEP2 waits so its transition was never taken.
+        assertTrue(graphviz.contains("\tSTEP2 -> END[label=\"proceed (0)\" penwidth=\"1.00\"];"), graphviz);
+    }
+
 }
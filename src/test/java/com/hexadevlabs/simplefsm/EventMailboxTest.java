@@ -0,0 +1,223 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventMailboxTest {
+
+    private final Counter refresh = new Counter("refreshes");
+    private final Counter increment = new Counter("count");
+
+    private SimpleFSM buildNew(RetryPolicy incrementRetry) {
+        SimpleFSM.StateBuilder inc = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("IDLE")
+            .state("IDLE", new NoopStep(), true)
+                .on("REFRESH").goTo("REFRESHING")
+                .on("INC").goTo("INCREMENT")
+                .on("CLOSE").goTo("END")
+            .state("REFRESHING", refresh)
+                .auto().goTo("IDLE")
+            .state("INCREMENT", increment);
+        if (incrementRetry != null) {
+            inc.retry(incrementRetry);
+        }
+        return inc
+                .auto().goTo("IDLE")
+            .finalState("END", new NoopStep())
+            .idempotentEvent("REFRESH")
+            .build();
+    }
+
+    private static EventMailbox started(SimpleFSM definition, Executor executor) {
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+        return new EventMailbox(fsm, data, executor);
+    }
+
+    @Test
+    public void burstOfIdempotentEventsIsCoalesced() {
+        ManualExecutor executor = new ManualExecutor();
+        EventMailbox mailbox = started(buildNew(null), executor);
+
+        for (int i = 0; i < 5; i++) {
+            mailbox.submit("REFRESH");
+        }
+        mailbox.submitAll(List.of("INC", "INC", "REFRESH", "REFRESH"));
+        // Only the first submit found the mailbox idle.
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+
+        assertEquals(2, mailbox.getData().get("refreshes"));
+        // INC is not idempotent, both run.
+        assertEquals(2, mailbox.getData().get("count"));
+        assertEquals(5, mailbox.getCoalesced());
+        assertEquals(4, mailbox.getTriggered());
+        assertEquals(1, mailbox.getBatches());
+        assertEquals(0, mailbox.getQueued());
+        assertTrue(mailbox.getFsm().isPaused());
+    }
+
+    @Test
+    public void eventsFromManyThreadsRunOneAtATime() throws Exception {
+        EventMailbox mailbox = started(buildNew(null), Runnable::run);
+        int threads = 8;
+        int eventsPerThread = 2_000;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                running.add(executor.submit(() -> {
+                    barrier.await();
+                    for (int i = 0; i < eventsPerThread; i++) {
+                        mailbox.submit("INC");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : running) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertFalse(increment.overlapped);
+        assertEquals(threads * eventsPerThread, mailbox.getData().get("count"));
+        assertEquals(threads * eventsPerThread, mailbox.getTriggered());
+        assertTrue(mailbox.getBatches() <= threads * eventsPerThread);
+    }
+
+    @Test
+    public void rejectedEventsGoToHandler() {
+        List<String> rejected = new ArrayList<>();
+        EventMailbox mailbox = started(buildNew(null), Runnable::run)
+                .onRejected((event, e) -> rejected.add(event + ": " + e.getClass().getSimpleName()));
+
+        mailbox.submitAll(List.of("CLOSE", "INC"));
+
+        assertTrue(mailbox.getFsm().hasReachedFinalState());
+        assertEquals(List.of("INC: IllegalArgumentException"), rejected);
+        assertEquals(1, mailbox.getRejected());
+    }
+
+    @Test
+    public void submitAllForManyInstances() {
+        ManualExecutor executor = new ManualExecutor();
+        SimpleFSM definition = buildNew(null);
+        Map<EventMailbox, List<String>> events = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            List<String> forInstance = new ArrayList<>();
+            for (int j = 0; j <= i % 3; j++) {
+                forInstance.add("INC");
+            }
+            events.put(started(definition, executor), forInstance);
+        }
+
+        EventMailbox.submitAll(events);
+        // One drain per instance.
+        assertEquals(100, executor.tasks.size());
+        executor.runAll();
+
+        events.forEach((mailbox, forInstance) ->
+                assertEquals(forInstance.size(), mailbox.getData().get("count")));
+    }
+
+    @Test
+    public void waitsForScheduledRetry() throws Exception {
+        increment.failFirst = true;
+        EventMailbox mailbox = started(buildNew(RetryPolicy.maxAttempts(2).backoff(Duration.ofMillis(20), 1)), Runnable::run);
+
+        mailbox.submitAll(List.of("INC", "INC", "CLOSE"));
+        // The first INC is waiting for its retry.
+        assertTrue(mailbox.getFsm().isResumePending());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!mailbox.getFsm().hasReachedFinalState() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(mailbox.getFsm().hasReachedFinalState());
+        assertEquals(2, mailbox.getData().get("count"));
+        assertEquals(0, mailbox.getRejected());
+    }
+
+    @Test
+    public void submitDuringRunningRetryWaits() throws Exception {
+        increment.failFirst = true;
+        increment.sleepMillis = 300;
+        EventMailbox mailbox = started(buildNew(RetryPolicy.maxAttempts(2).backoff(Duration.ofMillis(1), 1)), Runnable::run);
+
+        mailbox.submit("INC");
+        Thread.sleep(100);
+        // The retry of INCREMENT is still running, CLOSE has to wait for it to get back to IDLE.
+        mailbox.submit("CLOSE");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!mailbox.getFsm().hasReachedFinalState() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(mailbox.getFsm().hasReachedFinalState());
+        assertEquals(1, mailbox.getData().get("count"));
+        assertEquals(0, mailbox.getRejected());
+    }
+
+    private static class ManualExecutor implements Executor {
+        final Deque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    // Counts its runs under the key, optionally failing the first one.
+    private static class Counter extends ProcessingStep {
+        private final String key;
+        private final AtomicInteger inside = new AtomicInteger();
+        volatile boolean overlapped;
+        volatile boolean failFirst;
+        volatile long sleepMillis;
+
+        Counter(String key) {
+            this.key = key;
+        }
+
+        @Override
+        protected void process(ProcessingData data) {
+            if (inside.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            try {
+                if (failFirst) {
+                    failFirst = false;
+                    throw new RuntimeException("First run fails");
+                }
+                if (sleepMillis > 0) {
+                    Thread.sleep(sleepMillis);
+                }
+                Integer count = (Integer) data.get(key);
+                data.set(key, count == null ? 1 : count + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inside.decrementAndGet();
+            }
+        }
+    }
+}
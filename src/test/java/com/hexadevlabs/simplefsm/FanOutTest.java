@@ -0,0 +1,271 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.NoopStep;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FanOutTest {
+
+    static class Square extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            int item = (Integer) data.get("item");
+            if (item < 0) {
+                throw new IllegalArgumentException("Negative item " + item);
+            }
+            data.set("result", item * item);
+        }
+    }
+
+    static class Sum extends ProcessingStep {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void process(ProcessingData data) {
+            int sum = 0;
+            for (Object value : (List<Object>) data.get("squares")) {
+                sum += (Integer) value;
+            }
+            data.set("sum", sum);
+        }
+    }
+
+    static class Broken extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            if ((Integer) data.get("item") == 2) {
+                throw new AssertionError("Broken item");
+            }
+            data.set("result", data.get("item"));
+        }
+    }
+
+    static class Expand extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            data.set("items", range((Integer) data.get("item") + 4));
+        }
+    }
+
+    static class SumResult extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            data.set("result", data.get("sum"));
+        }
+    }
+
+    private SimpleFSM itemDefinition(){
+        return new SimpleFSM.Builder()
+                .finalState("SQUARE", new Square())
+                .build();
+    }
+
+    private SimpleFSM.Builder fanOutBuilder(int parallelism, int chunkSize){
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .forEach("items", itemDefinition(), "SQUARE")
+                    .parallelism(parallelism)
+                    .chunkSize(chunkSize)
+                    .gatherInto("squares")
+                    .join("SUM")
+            .state("SUM", new Sum())
+                .auto().goTo("END")
+            .state("ERROR", new NoopStep())
+            .finalState("END", new NoopStep());
+    }
+
+    private static List<Integer> range(int count){
+        return IntStream.range(0, count).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void orderedGather(){
+        SimpleFSM simpleFSM = fanOutBuilder(4, 3).withTrace().build();
+        ProcessingData data = new ProcessingData();
+        data.set("items", range(20));
+        simpleFSM.start("START", data);
+
+        assertTrue(simpleFSM.hasReachedFinalState());
+        List<Integer> expected = range(20).stream().map(i -> i * i).collect(Collectors.toList());
+        assertEquals(expected, data.get("squares"));
+        assertEquals(2470, data.get("sum"));
+        assertNull(data.get("item"));
+    }
+
+    @Test
+    public void unorderedGather(){
+        SimpleFSM simpleFSM = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .forEach("items", itemDefinition(), "SQUARE")
+                    .parallelism(8)
+                    .unordered()
+                    .gatherInto("squares")
+                    .join("END")
+            .finalState("END", new NoopStep())
+            .build();
+        ProcessingData data = new ProcessingData();
+        data.set("items", new HashSet<>(range(100)));
+        simpleFSM.start("START", data);
+
+        @SuppressWarnings("unchecked")
+        List<Integer> squares = (List<Integer>) data.get("squares");
+        assertEquals(100, squares.size());
+        assertEquals(range(100).stream().map(i -> i * i).collect(Collectors.toSet()), new HashSet<>(squares));
+    }
+
+    @Test
+    public void largeCollectionInChunks(){
+        SimpleFSM simpleFSM = fanOutBuilder(Runtime.getRuntime().availableProcessors(), 1000).build();
+        ProcessingData data = new ProcessingData();
+        data.set("items", range(50_000));
+        simpleFSM.start("START", data);
+
+        assertTrue(simpleFSM.hasReachedFinalState());
+        @SuppressWarnings("unchecked")
+        List<Integer> squares = (List<Integer>) data.get("squares");
+        assertEquals(50_000, squares.size());
+        assertEquals(49_999 * 49_999, squares.get(49_999));
+    }
+
+    @Test
+    public void exceptionGoesToExceptionState(){
+        SimpleFSM simpleFSM = fanOutBuilder(2, 1).onExceptionGoTo("ERROR").build();
+        List<Integer> items = new ArrayList<>(range(5));
+        items.set(3, -1);
+        ProcessingData data = new ProcessingData();
+        data.set("items", items);
+        simpleFSM.start("START", data);
+
+        assertTrue(simpleFSM.hasReachedFinalState());
+        assertEquals("ERROR", simpleFSM.getFinalState().getName());
+        assertEquals(1, data.getExceptions().size());
+        assertInstanceOf(IllegalArgumentException.class, data.getException());
+        assertNull(data.get("sum"));
+    }
+
+    @Test
+    public void errorInItemIsReported(){
+        for (int parallelism : new int[]{1, 3}) {
+            SimpleFSM simpleFSM = new SimpleFSM.Builder()
+                .state("START", new NoopStep())
+                    .forEach("items", new SimpleFSM.Builder().finalState("BROKEN", new Broken()).build(), "BROKEN")
+                        .parallelism(parallelism)
+                        .join("END")
+                .state("ERROR", new NoopStep())
+                .finalState("END", new NoopStep())
+                .onExceptionGoTo("ERROR")
+                .build();
+            ProcessingData data = new ProcessingData();
+            data.set("items", range(5));
+            simpleFSM.start("START", data);
+
+            assertEquals("ERROR", simpleFSM.getFinalState().getName());
+            List<Exception> exceptions = data.getExceptions().stream().map(e -> e.exception).collect(Collectors.toList());
+            assertTrue(exceptions.stream().anyMatch(e -> e.getCause() instanceof AssertionError), exceptions.toString());
+            assertTrue(exceptions.stream().anyMatch(e -> e instanceof IllegalStateException
+                    && e.getMessage().contains("were not processed")), exceptions.toString());
+        }
+    }
+
+    @Test
+    public void nestedFanOutOnBoundedExecutor() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            SimpleFSM inner = new SimpleFSM.Builder()
+                .state("EXPAND", new Expand())
+                    .forEach("items", itemDefinition(), "SQUARE")
+                        .parallelism(4)
+                        .executor(pool)
+                        .gatherInto("squares")
+                        .join("SUM")
+                .state("SUM", new Sum())
+                    .auto().goTo("RESULT")
+                .finalState("RESULT", new SumResult())
+                .build();
+            SimpleFSM simpleFSM = new SimpleFSM.Builder()
+                .state("START", new NoopStep())
+                    .forEach("outer", inner, "EXPAND")
+                        .parallelism(4)
+                        .executor(pool)
+                        .gatherInto("sums")
+                        .join("END")
+                .finalState("END", new NoopStep())
+                .build();
+            ProcessingData data = new ProcessingData();
+            data.set("outer", range(8));
+
+            // Workers of every fan-out are queued behind each other on the two threads.
+            caller.submit(() -> simpleFSM.start("START", data)).get(10, TimeUnit.SECONDS);
+
+            assertTrue(simpleFSM.hasReachedFinalState());
+            List<Integer> expected = range(8).stream()
+                    .map(i -> range(i + 4).stream().mapToInt(j -> j * j).sum())
+                    .collect(Collectors.toList());
+            assertEquals(expected, data.get("sums"));
+        } finally {
+            caller.shutdownNow();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void exceptionWithoutHandlerTerminates(){
+        SimpleFSM simpleFSM = fanOutBuilder(1, 1).build();
+        ProcessingData data = new ProcessingData();
+        data.set("items", List.of(1, -2, -3));
+        simpleFSM.start("START", data);
+
+        assertTrue(simpleFSM.wasTerminated());
+        assertEquals(2, data.getExceptions().size());
+    }
+
+    @Test
+    public void itemsMayNotWait(){
+        SimpleFSM waiting = new SimpleFSM.Builder()
+                .state("WAIT", new NoopStep(), true)
+                    .on("go").goTo("DONE")
+                .finalState("DONE", new NoopStep())
+                .build();
+        SimpleFSM simpleFSM = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .forEach("items", waiting, "WAIT")
+                    .join("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .build();
+        ProcessingData data = new ProcessingData();
+        data.set("items", List.of("a"));
+        simpleFSM.start("START", data);
+
+        assertInstanceOf(IllegalStateException.class, data.getException());
+    }
+
+    @Test
+    public void fanOutMustJoin(){
+        assertThrows(SimpleFSMValidationException.class, () -> new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .forEach("items", itemDefinition(), "SQUARE")
+                    .join("END")
+                .auto().goTo("OTHER")
+            .finalState("OTHER", new NoopStep())
+            .finalState("END", new NoopStep())
+            .build());
+
+        assertThrows(SimpleFSMValidationException.class, () -> new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .forEach("items", itemDefinition(), "MISSING")
+                    .join("END")
+            .finalState("END", new NoopStep())
+            .build());
+    }
+}
@@ -0,0 +1,216 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ForkJoinSplitHandlerTest {
+
+    private ForkJoinPool pool;
+
+    @BeforeEach
+    public void setUp() {
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void runSimpleSplit() {
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", new Split1())
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .withName("Test FSM")
+                .splitHandler(new ForkJoinSplitHandler(pool))
+            .withTrace()
+            .build();
+
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+
+        assertTrue(fsm.hasReachedFinalState());
+        assertEquals(5, (Integer) data.get("value_sum"));
+        assertTrue(fsm.getTrace().toString().contains("Split joined, continuing to state: SPLIT_END"));
+    }
+
+    @Test
+    public void runNestedSplit() {
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .state("SPLIT_NESTED_END", new NoopStep())
+                .auto().goTo("SPLIT_END")
+            .finalState("END", new NoopStep())
+            .state("SPLIT1", new NoopStep())
+                .split().goTo("SPLIT1_NESTED")
+                .split().goTo("SPLIT2_NESTED")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT1_NESTED", new Split1())
+                .join("SPLIT_NESTED_END")
+            .state("SPLIT2_NESTED", new NoopStep())
+                .join("SPLIT_NESTED_END")
+            .onExceptionGoTo("END")
+            .withName("Test FSM")
+                .splitHandler(new ForkJoinSplitHandler(pool))
+            .withTrace()
+            .build();
+
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+
+        assertTrue(fsm.hasReachedFinalState());
+        assertFalse(data.hasExceptions());
+        assertEquals(5, (Integer) data.get("value_sum"));
+    }
+
+    @Test
+    public void exceptionInBranch() {
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", new Split1WithException())
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .withName("Test FSM")
+                .splitHandler(new ForkJoinSplitHandler(pool))
+            .build();
+
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+
+        assertTrue(data.hadException());
+        assertTrue(fsm.hasReachedFinalState());
+        assertNull(data.get("value_sum"));
+    }
+
+    @Test
+    public void waitInBranchIsAnException() {
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", new Split1())
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2(), true)
+                .on("SOME_DELAY").goTo("AFTER2")
+            .state("AFTER2", new NoopStep())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .withName("Test FSM")
+                .splitHandler(new ForkJoinSplitHandler(pool))
+            .build();
+
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+
+        assertTrue(fsm.wasTerminated());
+        assertInstanceOf(IllegalStateException.class, data.getExceptions().get(0).exception);
+    }
+
+    /**
+     * 4 levels of 8-way splits, 4096 leaf branches, on a pool no bigger than the
+     * number of cores. Waiting branches must help instead of blocking the workers.
+     */
+    @Test
+    public void deeplyNestedSplitsDoNotStarvePool() throws Exception {
+        SimpleFSM.Builder builder = new SimpleFSM.Builder();
+        builder.state("START", new NoopStep())
+                .auto().goTo("S");
+        List<String> leaves = new ArrayList<>();
+        addSplit(builder, "S", 1, leaves);
+        builder.state("S_END", new NoopStep())
+                .auto().goTo("END");
+        SimpleFSM fsm = builder.finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .withName("Deep splits")
+                .splitHandler(new ForkJoinSplitHandler(pool))
+            .build();
+
+        ProcessingData data = new ProcessingData();
+        CompletableFuture.runAsync(() -> fsm.start("START", data)).get(60, TimeUnit.SECONDS);
+
+        assertFalse(data.hasExceptions());
+        assertTrue(fsm.hasReachedFinalState());
+        assertEquals(4096, leaves.size());
+        for (String leaf : leaves) {
+            assertTrue(data.containsKey(leaf), leaf);
+        }
+    }
+
+    private static final int FAN = 8;
+    private static final int DEPTH = 4;
+
+    // Split state 'name' with FAN branches all joining to name + "_END".
+    private static void addSplit(SimpleFSM.Builder builder, String name, int level, List<String> leaves) {
+        SimpleFSM.StateBuilder split = builder.state(name, new NoopStep());
+        for (int i = 0; i < FAN; i++) {
+            split.split().goTo(name + i);
+        }
+        for (int i = 0; i < FAN; i++) {
+            String branch = name + i;
+            if (level == DEPTH) {
+                leaves.add("L" + branch);
+                builder.state(branch, new Leaf("L" + branch))
+                        .join(name + "_END");
+            } else {
+                addSplit(builder, branch, level + 1, leaves);
+                builder.state(branch + "_END", new NoopStep())
+                        .join(name + "_END");
+            }
+        }
+    }
+
+    private static class Leaf extends ProcessingStep {
+        private final String key;
+
+        Leaf(String key) {
+            this.key = key;
+        }
+
+        @Override
+        protected void process(ProcessingData data) {
+            data.set(key, true);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.Step1;
+import com.hexadevlabs.simplefsm.testSteps.Step2;
+import com.hexadevlabs.simplefsm.testSteps.Step3;
+import com.hexadevlabs.simplefsm.testSteps.Step4;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FsmClockTest {
+
+    @Test
+    public void monotonicClockIsCloseToWallClock() {
+        long wall = System.currentTimeMillis() * 1_000_000L;
+        long clock = FsmClock.monotonic().epochNanos();
+        assertTrue(Math.abs(clock - wall) < Duration.ofSeconds(1).toNanos());
+    }
+
+    @Test
+    public void monotonicClockNeverGoesBack() {
+        FsmClock clock = FsmClock.monotonic();
+        long previous = clock.epochNanos();
+        for (int i = 0; i < 10_000; i++) {
+            long now = clock.epochNanos();
+            assertTrue(now >= previous);
+            previous = now;
+        }
+    }
+
+    @Test
+    public void cachedClockAdvances() throws InterruptedException {
+        try (CachedClock clock = FsmClock.cached(Duration.ofMillis(1))) {
+            long first = clock.epochNanos();
+            Thread.sleep(20);
+            assertTrue(clock.epochNanos() > first);
+        }
+    }
+
+    @Test
+    public void cachedClockRejectsZeroResolution() {
+        assertThrows(IllegalArgumentException.class, () -> FsmClock.cached(Duration.ZERO));
+    }
+
+    @Test
+    public void logEntryTimestampRoundTrip() {
+        LocalDateTime now = LocalDateTime.now();
+        LogEntry entry = new LogEntry(now, "message");
+        assertEquals(now, entry.getTimestamp());
+        assertEquals(entry, new LogEntry(entry.getEpochNanos(), "message"));
+    }
+
+    @Test
+    public void traceUsesConfiguredClock() {
+        AtomicLong ticks = new AtomicLong();
+        SimpleFSM simpleFSM = new SimpleFSM.Builder()
+                .state("START", new Step1())
+                    .conditional().goTo("STEP2")
+                    .conditional().goTo("STEP3")
+                .state("STEP2", new Step2(), true)
+                    .on("proceed").goTo("END")
+                .state("STEP3", new Step3())
+                    .auto().goTo("END")
+                .finalState("END", new Step4())
+                .withTrace()
+                .withClock(ticks::incrementAndGet)
+                .build();
+        ProcessingData data = new ProcessingData();
+        data.set("value", 5);
+        simpleFSM.start("START", data);
+
+        long previous = 0;
+        for (LogEntry entry : simpleFSM.getTrace().logs) {
+            assertTrue(entry.getEpochNanos() > previous, "Entries should be timestamped in order by the clock.");
+            previous = entry.getEpochNanos();
+        }
+        assertTrue(previous > 0);
+
+        // Clock is kept after the state is imported.
+        SimpleFSM copy = simpleFSM.buildEmptyCopy();
+        copy.importState(simpleFSM.exportState());
+        assertSame(simpleFSM.getClock(), copy.getTrace().getClock());
+    }
+}
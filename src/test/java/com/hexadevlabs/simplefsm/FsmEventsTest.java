@@ -0,0 +1,174 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FsmEventsTest {
+
+    private static SimpleFSM buildNew(ForkJoinPool pool) {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", new Split1())
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("FAIL")
+            .state("FAIL", new Fail())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .withName("Events FSM")
+            .splitHandler(new ForkJoinSplitHandler(pool))
+            .build();
+    }
+
+    private static List<RecordedEvent> events(List<RecordedEvent> all, String name) {
+        return all.stream()
+                .filter(event -> event.getEventType().getName().equals("com.hexadevlabs.simplefsm." + name))
+                .filter(event -> "Events FSM".equals(event.getString("definition")))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void recordsStateLifecycle() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        Path file = Files.createTempFile("simplefsm", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FsmEvents.StateExecuted.class).withThreshold(Duration.ZERO);
+            recording.enable(FsmEvents.Transition.class);
+            recording.enable(FsmEvents.SplitStarted.class);
+            recording.enable(FsmEvents.SplitJoined.class);
+            recording.enable(FsmEvents.SnapshotExported.class);
+            recording.start();
+
+            SimpleFSM fsm = buildNew(pool);
+            ProcessingData data = new ProcessingData();
+            fsm.start("START", data);
+            assertTrue(fsm.hasReachedFinalState());
+            fsm.exportState();
+            try (SnapshotWriter writer = new SnapshotWriter(new ByteArrayOutputStream(), SnapshotWriter.Format.BINARY)) {
+                writer.write("1", fsm, data);
+            }
+
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> all = RecordingFile.readAllEvents(file);
+
+            List<RecordedEvent> executed = events(all, "StateExecuted");
+            assertEquals(7, executed.size());
+            RecordedEvent failed = executed.stream().filter(event -> event.getString("state").equals("FAIL")).findFirst().orElseThrow();
+            assertEquals("EXCEPTION", failed.getString("outcome"));
+            assertEquals(IllegalStateException.class.getName(), failed.getString("exception"));
+            assertEquals("Fail", failed.getString("stepClass"));
+            assertNull(failed.getStackTrace());
+            assertTrue(executed.stream().filter(event -> event.getString("state").equals("SPLIT1"))
+                    .allMatch(event -> event.getString("outcome").equals("SUCCESS")));
+
+            List<String> transitions = events(all, "Transition").stream()
+                    .map(event -> event.getString("fromState") + "->" + event.getString("toState"))
+                    .collect(Collectors.toList());
+            assertTrue(transitions.contains("START->STEP_SPLIT"));
+            assertTrue(transitions.contains("STEP_SPLIT->SPLIT1"));
+            assertTrue(transitions.contains("SPLIT_END->FAIL"));
+
+            RecordedEvent started = events(all, "SplitStarted").get(0);
+            assertEquals("STEP_SPLIT", started.getString("state"));
+            assertEquals(2, started.getInt("branches"));
+            RecordedEvent joined = events(all, "SplitJoined").get(0);
+            assertEquals("SPLIT_END", joined.getString("joinState"));
+            assertEquals(2, joined.getInt("branches"));
+            assertFalse(joined.getDuration().isNegative());
+
+            List<RecordedEvent> exported = events(all, "SnapshotExported");
+            assertEquals(List.of("JSON", "BINARY"), exported.stream().map(event -> event.getString("format")).collect(Collectors.toList()));
+            assertEquals(fsm.exportState().length(), exported.get(0).getLong("size"));
+            assertTrue(exported.get(1).getLong("size") > exported.get(0).getLong("size"));
+        } finally {
+            pool.shutdownNow();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void thresholdFiltersFastStates() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        Path file = Files.createTempFile("simplefsm", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FsmEvents.StateExecuted.class).withThreshold(Duration.ofSeconds(10));
+            recording.start();
+            buildNew(pool).start("START", new ProcessingData());
+            recording.stop();
+            recording.dump(file);
+
+            assertTrue(events(RecordingFile.readAllEvents(file), "StateExecuted").isEmpty());
+        } finally {
+            pool.shutdownNow();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void sameTransitionsOnBothBackends() throws IOException {
+        Path file = Files.createTempFile("simplefsm", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FsmEvents.Transition.class);
+            recording.start();
+            for (SimpleFSM.Backend backend : SimpleFSM.Backend.values()) {
+                SimpleFSM fsm = new SimpleFSM.Builder()
+                    .state("START", new NoopStep())
+                        .auto().goTo("FAIL")
+                    .state("FAIL", new Fail())
+                        .auto().goTo("END")
+                    .state("FAILED", new NoopStep())
+                        .auto().goTo("END")
+                    .finalState("END", new NoopStep())
+                    .onExceptionGoTo("FAILED")
+                    .withName("Backend " + backend)
+                    .backend(backend)
+                    .build();
+                fsm.start("START", new ProcessingData());
+                assertTrue(fsm.hasReachedFinalState());
+            }
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> all = RecordingFile.readAllEvents(file);
+
+            for (SimpleFSM.Backend backend : SimpleFSM.Backend.values()) {
+                List<String> transitions = all.stream()
+                        .filter(event -> ("Backend " + backend).equals(event.getString("definition")))
+                        .map(event -> event.getString("fromState") + "->" + event.getString("toState"))
+                        .collect(Collectors.toList());
+                // Routing to the exception state is not recorded as a transition.
+                assertEquals(List.of("START->FAIL", "FAILED->END"), transitions, backend.toString());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static class Fail extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            throw new IllegalStateException("failing on purpose");
+        }
+    }
+}
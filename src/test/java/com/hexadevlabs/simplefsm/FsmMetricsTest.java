@@ -0,0 +1,79 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.NoopStep;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FsmMetricsTest {
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+
+        long p50 = histogram.getPercentile(0.5);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 * 1.125, "p50 was " + p50);
+        assertTrue(p99 >= 990_000 && p99 <= 1_000_000, "p99 was " + p99);
+        assertEquals(0, new LatencyHistogram().getPercentile(0.99));
+    }
+
+    @Test
+    public void bucketsCoverAllValues() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 1023, 1024, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index >= 0 && index < LatencyHistogram.BUCKET_COUNT);
+            assertTrue(LatencyHistogram.bucketUpperBound(index) >= value);
+        }
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        FsmMetrics metrics = new FsmMetrics();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    metrics.recordExecution("S", i, i % 10 == 0);
+                    metrics.recordTransition("S", "T");
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        FsmMetrics.StateMetrics state = metrics.getStateMetrics("S");
+        assertEquals(80_000, state.getExecutions());
+        assertEquals(8_000, state.getExceptions());
+        assertEquals(0.1, state.getExceptionRate(), 0.0001);
+        assertEquals(80_000, state.getTransitionCount("T"));
+        assertEquals(80_000, state.getLatency().getCount());
+    }
+
+    @Test
+    public void exceptionsAreCounted() {
+        FsmMetrics metrics = new FsmMetrics();
+        SimpleFSM simpleFSM = new SimpleFSM.Builder()
+                .state("START", new ExceptionState())
+                    .auto().goTo("END")
+                .finalState("END", new NoopStep())
+                .onExceptionGoTo("END")
+                .withMetrics(metrics)
+                .build();
+        simpleFSM.start("START", new ProcessingData());
+
+        assertEquals(1, metrics.getStateMetrics("START").getExceptions());
+        assertEquals(1, metrics.getStateMetrics("END").getExecutions());
+        assertSame(metrics, simpleFSM.getMetrics());
+    }
+}
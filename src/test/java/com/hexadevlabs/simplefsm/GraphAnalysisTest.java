@@ -0,0 +1,166 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GraphAnalysisTest {
+
+    private SimpleFSM buildNested(){
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state( "STEP_SPLIT", new StepSplit() )
+                .split().goTo("SPLIT1" )
+                .split().goTo("SPLIT2" )
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .state("SPLIT_NESTED_END", new NoopStep())
+                .auto().goTo("SPLIT_END")
+            .finalState("END", new NoopStep())
+            .state("SPLIT1", new Split1() )
+                .split().goTo("SPLIT1_NESTED")
+                .split().goTo("SPLIT2_NESTED")
+            .state("SPLIT2", new Split2() )
+                .join( "SPLIT_END" )
+            .state("SPLIT1_NESTED", new Split1())
+                .join("SPLIT_NESTED_END")
+            .state("SPLIT2_NESTED", new Split2())
+                .join("SPLIT_NESTED_END")
+            .onExceptionGoTo("END")
+            .build();
+    }
+
+    @Test
+    public void analysisIsComputedOnceAtBuild(){
+        SimpleFSM simpleFSM = buildNested();
+        GraphAnalysis analysis = simpleFSM.getAnalysis();
+        assertSame(analysis, simpleFSM.getAnalysis());
+        assertSame(analysis, simpleFSM.buildEmptyCopy().getAnalysis());
+
+        simpleFSM.addFinalState("SPLIT_END");
+        assertNotSame(analysis, simpleFSM.getAnalysis());
+    }
+
+    @Test
+    public void otherDefinitionsDoNotInvalidate(){
+        SimpleFSM simpleFSM = buildNested();
+        GraphAnalysis analysis = simpleFSM.getAnalysis();
+
+        // Building and changing another definition leaves the analysis of this one alone.
+        SimpleFSM other = buildNested();
+        other.getState("START").addTransition("EXTRA", "END", false);
+        assertSame(analysis, simpleFSM.getAnalysis());
+        assertSame(analysis, simpleFSM.buildEmptyCopy().getAnalysis());
+
+        // Changing a State of this definition does invalidate it, also for copies.
+        SimpleFSM copy = simpleFSM.buildEmptyCopy();
+        simpleFSM.getState("START").addTransition("EXTRA", "END", false);
+        GraphAnalysis changed = simpleFSM.getAnalysis();
+        assertNotSame(analysis, changed);
+        assertNotSame(analysis, copy.getAnalysis());
+    }
+
+    @Test
+    public void splitsArePairedWithJoins(){
+        GraphAnalysis analysis = buildNested().getAnalysis();
+        assertTrue(analysis.hasSplits());
+        assertEquals("SPLIT_END", analysis.getJoinState("STEP_SPLIT"));
+        assertEquals("SPLIT_NESTED_END", analysis.getJoinState("SPLIT1"));
+        assertEquals(Set.of("SPLIT_END", "SPLIT_NESTED_END"), analysis.getJoinTargets());
+    }
+
+    @Test
+    public void reachableAndTerminalStates(){
+        SimpleFSM simpleFSM = new SimpleFSM.Builder()
+                .state("START", new Step1())
+                    .conditional().goTo("STEP2")
+                    .conditional().goTo("STEP3")
+                .state("STEP2", new Step2(), true)
+                    .on("proceed").goTo("END")
+                .state("STEP3", new Step3())
+                    .auto().goTo("END")
+                .state("ORPHAN", new Step3())
+                    .auto().goTo("STEP2")
+                .finalState("END", new Step4())
+                .build();
+        GraphAnalysis analysis = simpleFSM.getAnalysis();
+
+        assertEquals(Set.of("END"), analysis.getTerminalStates());
+        assertFalse(analysis.hasCycles());
+        assertFalse(analysis.hasSplits());
+        // ORPHAN has no incoming transitions so it counts as a possible start.
+        assertTrue(analysis.getUnreachableStates().isEmpty());
+        // START -> STEP2 -> END
+        assertEquals(3, analysis.getMaxChainLength());
+    }
+
+    @Test
+    public void cyclesAreDetected(){
+        SimpleFSM simpleFSM = new SimpleFSM.Builder()
+                .state("START", new Step1())
+                    .conditional().goTo("STEP2")
+                    .conditional().goTo("STEP3")
+                .state("STEP2", new Step2(), true)
+                    .on("proceed").goTo("STEP3")
+                .state("STEP3", new Step3())
+                    .auto().goTo("START")
+                .state("LOOP", new NoopStep())
+                    .auto().goTo("LOOP")
+                .build();
+        GraphAnalysis analysis = simpleFSM.getAnalysis();
+
+        assertTrue(analysis.hasCycles());
+        assertEquals(Set.of("START", "STEP2", "STEP3", "LOOP"), analysis.getCycleStates());
+        assertEquals(GraphAnalysis.UNBOUNDED, analysis.getMaxChainLength());
+        assertTrue(analysis.getTerminalStates().isEmpty());
+    }
+
+    @Test
+    public void largeGeneratedDefinition(){
+        int count = 100_000;
+        SimpleFSM.Builder builder = new SimpleFSM.Builder();
+        NoopStep step = new NoopStep();
+        for (int i = 0; i < count - 1; i++) {
+            builder.state("S" + i, step).auto().goTo("S" + (i + 1));
+        }
+        builder.finalState("S" + (count - 1), step);
+
+        long start = System.nanoTime();
+        SimpleFSM simpleFSM = builder.build();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        GraphAnalysis analysis = simpleFSM.getAnalysis();
+        assertEquals(count, analysis.getStateCount());
+        assertEquals(count, analysis.getMaxChainLength());
+        assertEquals(Set.of("S" + (count - 1)), analysis.getTerminalStates());
+        assertTrue(elapsedMillis < 5_000, "Analysis should be linear, took " + elapsedMillis + "ms");
+    }
+
+    @Test
+    public void longConditionalChainInBranch(){
+        int count = 5_000;
+        NoopStep step = new NoopStep();
+        SimpleFSM.Builder builder = new SimpleFSM.Builder();
+        builder.state("START", step)
+                .split().goTo("B0")
+                .split().goTo("OTHER");
+        // Every state of the branch either goes on or skips to its last state.
+        for (int i = 0; i < count; i++) {
+            builder.state("B" + i, step)
+                    .on("NEXT").goTo(i < count - 1 ? "B" + (i + 1) : "LAST")
+                    .on("SKIP").goTo("LAST");
+        }
+        builder.state("LAST", step).join("JOIN")
+                .state("OTHER", step).join("JOIN")
+                .state("JOIN", step).auto().goTo("END")
+                .finalState("END", step);
+
+        GraphAnalysis analysis = builder.build().getAnalysis();
+        assertEquals("JOIN", analysis.getJoinState("START"));
+        assertEquals(count + 5, analysis.getStateCount());
+    }
+}
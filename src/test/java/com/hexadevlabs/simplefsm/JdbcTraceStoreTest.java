@@ -0,0 +1,86 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JdbcTraceStoreTest {
+
+    private Connection makeNewConnection() {
+        try {
+            Class.forName("org.h2.Driver");
+            return DriverManager.getConnection("jdbc:h2:mem:traces;DB_CLOSE_DELAY=-1;", "sa", "");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        try (Connection conn = makeNewConnection(); Statement st = conn.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS fsm_trace");
+        }
+    }
+
+    @Test
+    public void appendAndRead() {
+        JdbcTraceStore store = new JdbcTraceStore(this::makeNewConnection, "fsm_trace").createTable();
+
+        assertEquals(2, store.append("a", List.of(new LogEntry(1, "one"), new LogEntry(2, "two"))));
+        assertEquals(1, store.append("b", List.of(new LogEntry(3, "other"))));
+        assertEquals(3, store.append("a", List.of(new LogEntry(4, "three"))));
+
+        List<LogEntry> entries = store.read("a", 1, 3);
+        assertEquals(2, entries.size());
+        assertEquals("two", entries.get(0).getMessage());
+        assertEquals(4, entries.get(1).getEpochNanos());
+
+        // Writing before the end replaces the rest.
+        assertEquals(2, store.append("a", 1, List.of(new LogEntry(5, "replaced"))));
+        assertEquals("replaced", store.read("a", 1, 3).get(0).getMessage());
+        assertThrows(IllegalArgumentException.class, () -> store.append("a", 3, List.of()));
+        assertEquals(2, store.size("a"));
+
+        store.delete("a");
+        assertEquals(0, store.size("a"));
+        assertEquals(1, store.size("b"));
+    }
+
+    @Test
+    public void instanceTraceInTable() {
+        JdbcTraceStore store = new JdbcTraceStore(this::makeNewConnection, "fsm_trace").createTable();
+        SimpleFSM definition = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("WAIT")
+            .state("WAIT", new Step4(), true)
+                .on("DONE").goTo("END")
+            .finalState("END", new NoopStep())
+            .traceStore(store)
+            .build();
+
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+        int before = fsm.getTrace().size();
+        String state = fsm.exportState();
+
+        SimpleFSM loaded = definition.buildEmptyCopy();
+        loaded.importState(state);
+        loaded.triggerEvent("DONE", data);
+        assertEquals(before + 1, loaded.getTrace().size());
+        assertEquals("Noop step", loaded.getTrace().logs.get(0).getMessage());
+    }
+
+    @Test
+    public void invalidTableName() {
+        assertThrows(IllegalArgumentException.class, () -> new JdbcTraceStore(this::makeNewConnection, "t; DROP TABLE x"));
+    }
+}
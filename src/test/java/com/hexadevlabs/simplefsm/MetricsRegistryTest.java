@@ -0,0 +1,142 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsRegistryTest {
+
+    private static SimpleFSM buildNew(MetricsRegistry registry, ForkJoinPool pool) {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", new Split1())
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("WAIT")
+            .state("WAIT", new NoopStep(), true)
+                .on("GO").goTo("FAIL")
+            .state("FAIL", new Fail())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .withName("orders")
+            .splitHandler(new ForkJoinSplitHandler(pool))
+            .withMetrics(registry.metrics("orders"))
+            .build();
+    }
+
+    private static List<String> lines(MetricsRegistry registry) throws IOException {
+        StringBuilder text = new StringBuilder();
+        registry.writePrometheus(text);
+        return Arrays.asList(text.toString().split("\n"));
+    }
+
+    @Test
+    public void exposition() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            MetricsRegistry registry = new MetricsRegistry();
+            SimpleFSM definition = buildNew(registry, pool);
+            SimpleFSM paused = definition.buildEmptyCopy();
+            paused.start("START", new ProcessingData());
+            for (int i = 0; i < 2; i++) {
+                SimpleFSM fsm = definition.buildEmptyCopy();
+                ProcessingData data = new ProcessingData();
+                fsm.start("START", data);
+                fsm.triggerEvent("GO", data);
+                assertTrue(fsm.hasReachedFinalState());
+            }
+            assertTrue(paused.isPaused());
+
+            List<String> lines = lines(registry);
+            assertTrue(lines.contains("# TYPE simplefsm_instances_started_total counter"));
+            assertTrue(lines.contains("simplefsm_instances_started_total{definition=\"orders\"} 3"));
+            assertTrue(lines.contains("simplefsm_instances_concluded_total{definition=\"orders\"} 2"));
+            assertTrue(lines.contains("simplefsm_state_executions_total{definition=\"orders\",state=\"SPLIT1\"} 3"));
+            assertTrue(lines.contains("simplefsm_state_exceptions_routed_total{definition=\"orders\",state=\"FAIL\"} 2"));
+            assertTrue(lines.contains("simplefsm_transitions_total{definition=\"orders\",from=\"WAIT\",to=\"FAIL\"} 2"));
+            assertTrue(lines.contains("simplefsm_splits_total{definition=\"orders\",state=\"STEP_SPLIT\"} 3"));
+            assertTrue(lines.contains("simplefsm_split_branches_total{definition=\"orders\",state=\"STEP_SPLIT\"} 6"));
+            assertTrue(lines.contains("simplefsm_split_join_duration_seconds_count{definition=\"orders\",state=\"STEP_SPLIT\"} 3"));
+            assertTrue(lines.contains("simplefsm_split_join_duration_seconds_bucket{definition=\"orders\",state=\"STEP_SPLIT\",le=\"+Inf\"} 3"));
+            assertTrue(lines.contains("simplefsm_paused_instances{definition=\"orders\",state=\"WAIT\"} 1"));
+            assertTrue(lines.contains("simplefsm_step_duration_seconds_count{definition=\"orders\",state=\"START\"} 3"));
+
+            // Each metric is written once with all its samples together.
+            assertEquals(1, lines.stream().filter(line -> line.equals("# TYPE simplefsm_step_duration_seconds histogram")).count());
+            long previous = -1;
+            for (String line : lines) {
+                if (line.startsWith("simplefsm_step_duration_seconds_bucket{definition=\"orders\",state=\"FAIL\"")) {
+                    long count = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                    assertTrue(count >= previous);
+                    previous = count;
+                }
+            }
+            assertEquals(2, previous);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void labelsAreEscaped() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.metrics("say \"hi\"\\").recordStarted();
+        assertTrue(lines(registry).contains("simplefsm_instances_started_total{definition=\"say \\\"hi\\\"\\\\\"} 1"));
+    }
+
+    @Test
+    public void cumulativeCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value : new long[]{5, 90, 100, 1000, 5000}) {
+            histogram.record(value);
+        }
+        assertArrayEquals(new long[]{1, 2, 4, 5}, histogram.cumulativeCounts(new long[]{10, 100, 1100}));
+        assertArrayEquals(new long[]{0}, new LatencyHistogram().cumulativeCounts(new long[0]));
+    }
+
+    @Test
+    public void httpEndpoint() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.metrics("orders").recordStarted();
+        try (PrometheusEndpoint endpoint = new PrometheusEndpoint(registry, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            URL url = new URL("http://127.0.0.1:" + endpoint.getPort() + PrometheusEndpoint.PATH);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            try (InputStream in = connection.getInputStream()) {
+                String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(body.contains("simplefsm_instances_started_total{definition=\"orders\"} 1\n"));
+            }
+
+            HttpURLConnection post = (HttpURLConnection) url.openConnection();
+            post.setRequestMethod("POST");
+            assertEquals(405, post.getResponseCode());
+        }
+    }
+
+    private static class Fail extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            throw new IllegalStateException("failing on purpose");
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.hexadevlabs.simplefsm;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProcessingDataCodecTest {
+
+    private static final int ITERATIONS = Integer.getInteger("simplefsm.codec.iterations", 2000);
+
+    public static class Address {
+        String street;
+        LocalDate since;
+
+        Address() {
+        }
+
+        Address(String street, LocalDate since) {
+            this.street = street;
+            this.since = since;
+        }
+    }
+
+    private static ProcessingDataCodec codec() {
+        return new ProcessingDataCodec()
+                .register("id", Long.class)
+                .register("count", Integer.class)
+                .register("name", String.class)
+                .register("score", Double.class)
+                .register("valid", Boolean.class)
+                .register("raw", byte[].class)
+                .register("address", Address.class)
+                .register("ids", new TypeReference<List<Long>>() { })
+                .register("note", String.class);
+    }
+
+    private static ProcessingData sample() {
+        ProcessingData data = new ProcessingData();
+        data.set("id", 7L);
+        data.set("count", 3);
+        data.set("name", "item \"7\"\n\u00e9");
+        data.set("score", 0.25);
+        data.set("valid", true);
+        data.set("raw", new byte[]{1, 2, 3, -1});
+        data.set("address", new Address("Main St", LocalDate.of(2020, 1, 31)));
+        data.set("ids", List.of(1L, 1L << 40));
+        data.set("note", null);
+        return data;
+    }
+
+    private static void assertSample(ProcessingData data) {
+        assertEquals(7L, data.get("id"));
+        assertEquals(3, data.get("count"));
+        assertEquals("item \"7\"\n\u00e9", data.get("name"));
+        assertEquals(0.25, data.get("score"));
+        assertEquals(true, data.get("valid"));
+        assertArrayEquals(new byte[]{1, 2, 3, -1}, (byte[]) data.get("raw"));
+        Address address = (Address) data.get("address");
+        assertEquals("Main St", address.street);
+        assertEquals(LocalDate.of(2020, 1, 31), address.since);
+        assertEquals(List.of(1L, 1L << 40), data.get("ids"));
+        assertTrue(data.containsKey("note"));
+        assertNull(data.get("note"));
+    }
+
+    @Test
+    public void jsonKeepsTypes() {
+        ProcessingData data = sample();
+        data.setNextState("NEXT");
+        data.addException(new ExceptionInfo(new IllegalStateException("failed"), false));
+
+        String json = codec().toJson(data);
+        assertFalse(json.contains("\n  "), json);
+        ProcessingData result = codec().fromJson(json);
+        assertSample(result);
+        assertEquals("NEXT", result.getNextState());
+        assertEquals(1, result.getExceptions().size());
+
+        // The plain Jackson path loses the types.
+        ProcessingData lossy = ProcessingData.fromJson(data.toJson());
+        assertEquals(Integer.class, lossy.get("id").getClass());
+        assertFalse(lossy.get("address") instanceof Address);
+    }
+
+    @Test
+    public void binaryKeepsTypes() {
+        ProcessingData data = sample();
+        data.setNextState("NEXT");
+        byte[] bytes = codec().toBinary(data);
+        ProcessingData result = codec().fromBinary(bytes);
+        assertSample(result);
+        assertEquals("NEXT", result.getNextState());
+        assertFalse(result.hasExceptions());
+    }
+
+    @Test
+    public void specialDoubles() {
+        ProcessingDataCodec codec = new ProcessingDataCodec().register("score", double.class);
+        for (double value : new double[]{Double.NaN, Double.NEGATIVE_INFINITY, -0.0, Double.MAX_VALUE}) {
+            ProcessingData data = new ProcessingData();
+            data.set("score", value);
+            assertEquals(value, codec.fromJson(codec.toJson(data)).get("score"));
+            assertEquals(value, codec.fromBinary(codec.toBinary(data)).get("score"));
+        }
+    }
+
+    @Test
+    public void blobs() throws IOException {
+        Path directory = Files.createTempDirectory("blobs");
+        try {
+            BlobStore store = new BlobStore(directory);
+            ProcessingDataCodec codec = new ProcessingDataCodec().register("doc", ProcessingDataCodec.blob(store));
+            BlobValue blob = BlobValue.copyOf(new byte[100_000]);
+            ProcessingData data = new ProcessingData();
+            data.set("doc", blob);
+
+            String json = codec.toJson(data);
+            assertTrue(json.contains(blob.sha256()));
+            assertEquals(blob, codec.fromJson(json).getBlob("doc"));
+            byte[] bytes = codec.toBinary(data);
+            assertTrue(bytes.length < 200);
+            assertEquals(blob, codec.fromBinary(bytes).getBlob("doc"));
+
+            // Inlined without a store.
+            ProcessingDataCodec inline = new ProcessingDataCodec().register("doc", BlobValue.class);
+            assertEquals(blob, inline.fromBinary(inline.toBinary(data)).getBlob("doc"));
+            assertThrows(ProcessingDataCodecException.class, () -> inline.fromBinary(bytes));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void failsOnWrongKeysAndTypes() {
+        ProcessingDataCodec codec = codec();
+        ProcessingData unknown = new ProcessingData();
+        unknown.set("other", 1);
+        assertThrows(ProcessingDataCodecException.class, () -> codec.toJson(unknown));
+        assertThrows(ProcessingDataCodecException.class, () -> codec.toBinary(unknown));
+
+        ProcessingData wrongType = new ProcessingData();
+        wrongType.set("id", 7);
+        ProcessingDataCodecException e = assertThrows(ProcessingDataCodecException.class, () -> codec.toJson(wrongType));
+        assertTrue(e.getMessage().contains("'id'"));
+
+        assertThrows(IllegalArgumentException.class, () -> codec.register("id", Long.class));
+        assertThrows(ProcessingDataCodecException.class, () -> codec.fromJson("{\"data\":{\"other\":1}}"));
+        assertThrows(ProcessingDataCodecException.class, () -> codec.fromJson("{\"data\":{\"id\":\"7\"}}"));
+        assertThrows(ProcessingDataCodecException.class, () -> codec.fromJson("{\"data\":{\"id\":7,\"id\":8}}"));
+        assertThrows(ProcessingDataCodecException.class, () -> codec.fromJson("{\"data\":{},\"extra\":1}"));
+    }
+
+    @Test
+    public void failsOnCorruptInput() {
+        ProcessingDataCodec codec = codec();
+        String json = codec.toJson(sample());
+        for (int cut = 0; cut < json.length(); cut += 7) {
+            String truncated = json.substring(0, cut);
+            assertThrows(ProcessingDataCodecException.class, () -> codec.fromJson(truncated));
+        }
+        assertThrows(ProcessingDataCodecException.class, () -> codec.fromJson(json + "{}"));
+        assertThrows(ProcessingDataCodecException.class, () -> codec.fromJson("[]"));
+
+        byte[] bytes = codec.toBinary(sample());
+        for (int cut = 0; cut < bytes.length; cut++) {
+            byte[] truncated = Arrays.copyOf(bytes, cut);
+            assertThrows(ProcessingDataCodecException.class, () -> codec.fromBinary(truncated));
+        }
+        byte[] longer = Arrays.copyOf(bytes, bytes.length + 1);
+        assertThrows(ProcessingDataCodecException.class, () -> codec.fromBinary(longer));
+        assertThrows(ProcessingDataCodecException.class,
+                () -> codec.fromBinary("{\"data\":{}}".getBytes(StandardCharsets.UTF_8)));
+        byte[] hugeCount = bytes.clone();
+        hugeCount[5] = 0x7f;
+        assertThrows(ProcessingDataCodecException.class, () -> codec.fromBinary(hugeCount));
+    }
+
+    /**
+     * Compares the codec with ProcessingData.toJson()/fromJson(). Raise the iterations with
+     * -Dsimplefsm.codec.iterations=200000 for numbers worth comparing.
+     */
+    @Test
+    public void benchmark() {
+        ProcessingDataCodec codec = codec();
+        ProcessingData data = sample();
+        data.set("raw", new byte[1024]);
+
+        String jackson = data.toJson();
+        String json = codec.toJson(data);
+        byte[] binary = codec.toBinary(data);
+        assertTrue(json.length() < jackson.length());
+        assertTrue(binary.length < json.length());
+
+        long jacksonNanos = time(() -> ProcessingData.fromJson(data.toJson()));
+        long jsonNanos = time(() -> codec.fromJson(codec.toJson(data)));
+        long binaryNanos = time(() -> codec.fromBinary(codec.toBinary(data)));
+        System.out.printf("ProcessingData round trip: toJson %,d ns %,d bytes, codec JSON %,d ns %,d bytes, "
+                        + "codec binary %,d ns %,d bytes%n",
+                jacksonNanos, jackson.length(), jsonNanos, json.length(), binaryNanos, binary.length);
+    }
+
+    /**
+     * @return Nanoseconds per round trip, after as many warmup rounds.
+     */
+    private static long time(Runnable roundTrip) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            roundTrip.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            roundTrip.run();
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    @Test
+    public void emptyData() {
+        ProcessingDataCodec codec = new ProcessingDataCodec();
+        ProcessingData empty = new ProcessingData();
+        assertEquals("{\"data\":{}}", codec.toJson(empty));
+        assertEquals(Map.of(), codec.fromJson("{\"data\":{}}").getDataMap());
+        assertEquals(Map.of(), codec.fromBinary(codec.toBinary(empty)).getDataMap());
+    }
+}
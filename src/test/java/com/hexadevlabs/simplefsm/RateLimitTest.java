@@ -0,0 +1,166 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimitTest {
+
+    private FsmMetrics metrics;
+
+    @BeforeEach
+    public void setUp() {
+        metrics = new FsmMetrics();
+    }
+
+    private SimpleFSM buildNew(RateLimit rateLimit, String onRejectGoTo) {
+        SimpleFSM.StateBuilder call = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("CALL")
+            .state("CALL", new NoopStep());
+        if (onRejectGoTo != null) {
+            call.rateLimit(rateLimit, onRejectGoTo);
+        } else {
+            call.rateLimit(rateLimit);
+        }
+        return call
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .finalState("THROTTLED", new NoopStep())
+            .finalState("FAILED", new NoopStep())
+            .onExceptionGoTo("FAILED")
+            .withMetrics(metrics)
+            .build();
+    }
+
+    @Test
+    public void rejectRoutesToTransition() {
+        SimpleFSM definition = buildNew(RateLimit.perSecond(0.1).reject(), "THROTTLED");
+
+        assertEquals("END", run(definition).getFinalState().getName());
+        assertEquals("THROTTLED", run(definition).getFinalState().getName());
+        assertEquals("THROTTLED", run(definition).getFinalState().getName());
+        assertEquals(2, metrics.getStateMetrics("CALL").getRateLimitRejections());
+    }
+
+    @Test
+    public void rejectWithoutRouteIsAnException() {
+        SimpleFSM definition = buildNew(RateLimit.perSecond(0.1).reject(), null);
+        run(definition);
+
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+        assertEquals("FAILED", fsm.getFinalState().getName());
+        assertInstanceOf(RateLimitedException.class, data.getException());
+    }
+
+    @Test
+    public void delayDoesNotHoldThread() throws Exception {
+        // One execution every 50ms.
+        SimpleFSM definition = buildNew(RateLimit.perSecond(20), null);
+
+        long start = System.nanoTime();
+        List<SimpleFSM> instances = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            instances.add(run(definition));
+        }
+        // None of the starts waited for their slot.
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(instances.get(0).hasReachedFinalState());
+        assertTrue(instances.get(3).isResumePending());
+
+        for (SimpleFSM fsm : instances) {
+            fsm.whenResumed().get(5, TimeUnit.SECONDS);
+            assertEquals("END", fsm.getFinalState().getName());
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(140));
+        assertEquals(3, metrics.getStateMetrics("CALL").getRateLimitDelays());
+    }
+
+    @Test
+    public void burstThenRate() {
+        RateLimit rateLimit = RateLimit.perSecond(10).burst(3).reject();
+        // Idle for a while, the bucket is full.
+        long now = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        assertEquals(0, rateLimit.reserve(now));
+        assertEquals(0, rateLimit.reserve(now));
+        assertEquals(0, rateLimit.reserve(now));
+        assertEquals(-1, rateLimit.reserve(now));
+        // One more every 100ms.
+        assertEquals(0, rateLimit.reserve(now + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertEquals(-1, rateLimit.reserve(now + TimeUnit.MILLISECONDS.toNanos(100)));
+
+        RateLimit delaying = RateLimit.perSecond(10);
+        now = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        assertEquals(0, delaying.reserve(now));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), delaying.reserve(now));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), delaying.reserve(now));
+    }
+
+    /**
+     * 64 threads running instances through one rate limited state. The limit must
+     * hold and the shared bucket must not become a point of contention.
+     */
+    @Test
+    public void sharedAcross64Threads() throws Exception {
+        int threads = 64;
+        double rate = 20_000;
+        int burst = 100;
+        SimpleFSM definition = buildNew(RateLimit.perSecond(rate).burst(burst).reject(), "THROTTLED");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LongAdder admitted = new LongAdder();
+        LongAdder throttled = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(300);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    ready.countDown();
+                    try {
+                        ready.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (System.nanoTime() - end < 0) {
+                        SimpleFSM fsm = run(definition);
+                        if (fsm.getFinalState().getName().equals("END")) {
+                            admitted.increment();
+                        } else {
+                            throttled.increment();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long total = admitted.sum() + throttled.sum();
+        System.out.printf("Rate limit, %d threads: %d runs in %.2fs (%.0f runs/s), %d admitted, %d throttled%n",
+                threads, total, seconds, total / seconds, admitted.sum(), throttled.sum());
+
+        assertTrue(admitted.sum() > 0);
+        assertTrue(admitted.sum() <= burst + rate * seconds + 1, "Admitted " + admitted.sum());
+        assertEquals(throttled.sum(), metrics.getStateMetrics("CALL").getRateLimitRejections());
+    }
+
+    private static SimpleFSM run(SimpleFSM definition) {
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        fsm.start("START", new ProcessingData());
+        return fsm;
+    }
+}
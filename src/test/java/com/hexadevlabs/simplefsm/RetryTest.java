@@ -0,0 +1,191 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetryTest {
+
+    private Flaky flaky;
+    private FsmMetrics metrics;
+
+    @BeforeEach
+    public void setUp() {
+        flaky = new Flaky();
+        metrics = new FsmMetrics();
+    }
+
+    private SimpleFSM buildNew(RetryPolicy policy) {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("CALL")
+            .state("CALL", flaky)
+                .retry(policy)
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .finalState("FAILED", new NoopStep())
+            .onExceptionGoTo("FAILED")
+            .withMetrics(metrics)
+            .withTrace()
+            .build();
+    }
+
+    @Test
+    public void retriesUntilSuccess() throws Exception {
+        flaky.failures = 2;
+        SimpleFSM fsm = buildNew(RetryPolicy.maxAttempts(3).backoff(Duration.ofMillis(10), 2));
+        ProcessingData data = new ProcessingData();
+
+        fsm.start("START", data);
+        // start() does not wait for the backoff.
+        assertTrue(fsm.isResumePending());
+        assertFalse(fsm.isConcluded());
+        assertFalse(fsm.isPaused());
+
+        fsm.whenResumed().get(5, TimeUnit.SECONDS);
+
+        assertFalse(fsm.isResumePending());
+        assertTrue(fsm.hasReachedFinalState());
+        assertEquals("END", fsm.getFinalState().getName());
+        assertFalse(data.hasExceptions());
+        assertEquals(3, flaky.calls.get());
+        assertEquals(2, metrics.getStateMetrics("CALL").getRetries());
+        assertTrue(fsm.getTrace().toString().contains("Retry 2 of 2"));
+    }
+
+    @Test
+    public void attemptsRunOut() throws Exception {
+        flaky.failures = 10;
+        SimpleFSM fsm = buildNew(RetryPolicy.maxAttempts(3).backoff(Duration.ofMillis(1), 2));
+        ProcessingData data = new ProcessingData();
+
+        fsm.start("START", data);
+        fsm.whenResumed().get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, flaky.calls.get());
+        assertEquals(1, data.getExceptions().size());
+        assertEquals("FAILED", fsm.getFinalState().getName());
+    }
+
+    @Test
+    public void onlyRetriesSelectedExceptions() {
+        flaky.failures = 1;
+        SimpleFSM fsm = buildNew(RetryPolicy.maxAttempts(3).retryOn(IOException.class));
+        ProcessingData data = new ProcessingData();
+
+        fsm.start("START", data);
+
+        assertFalse(fsm.isResumePending());
+        assertEquals(1, flaky.calls.get());
+        assertInstanceOf(IllegalStateException.class, data.getException());
+    }
+
+    @Test
+    public void retryInSplitBranch() {
+        flaky.failures = 1;
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", flaky)
+                .retry(RetryPolicy.maxAttempts(2).backoff(Duration.ofMillis(1), 1))
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .splitHandler(new ForkJoinSplitHandler())
+            .build();
+        ProcessingData data = new ProcessingData();
+
+        fsm.start("START", data);
+
+        assertTrue(fsm.hasReachedFinalState());
+        assertFalse(data.hasExceptions());
+        assertEquals(5, (Integer) data.get("value_sum"));
+    }
+
+    @Test
+    public void eventsWaitForRunningRetry() throws Exception {
+        flaky.failures = 1;
+        flaky.sleepMillis = 500;
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("CALL")
+            .state("CALL", flaky)
+                .retry(RetryPolicy.maxAttempts(2).backoff(Duration.ofMillis(1), 1))
+                .auto().goTo("WAIT")
+            .state("WAIT", new NoopStep(), true)
+                .on("GO").goTo("END")
+            .finalState("END", new NoopStep())
+            .build();
+        ProcessingData data = new ProcessingData();
+
+        fsm.start("START", data);
+        Thread.sleep(200);
+
+        // The second attempt is still running.
+        assertEquals(2, flaky.calls.get());
+        assertTrue(fsm.isResumePending());
+        assertFalse(fsm.whenResumed().isDone());
+        assertFalse(fsm.isPaused());
+        assertThrows(IllegalStateException.class, () -> fsm.triggerEvent("GO", data));
+
+        fsm.whenResumed().get(5, TimeUnit.SECONDS);
+        assertFalse(fsm.isResumePending());
+        assertTrue(fsm.isPaused());
+        fsm.triggerEvent("GO", data);
+        assertEquals("END", fsm.getFinalState().getName());
+    }
+
+    @Test
+    public void exponentialDelays() {
+        RetryPolicy policy = RetryPolicy.maxAttempts(10)
+                .backoff(Duration.ofMillis(10), 2)
+                .maxDelay(Duration.ofMillis(50))
+                .jitter(0);
+        assertEquals(Duration.ofMillis(10).toNanos(), policy.delayNanos(1));
+        assertEquals(Duration.ofMillis(20).toNanos(), policy.delayNanos(2));
+        assertEquals(Duration.ofMillis(40).toNanos(), policy.delayNanos(3));
+        assertEquals(Duration.ofMillis(50).toNanos(), policy.delayNanos(4));
+
+        RetryPolicy jittered = RetryPolicy.maxAttempts(10).backoff(Duration.ofMillis(100), 1).jitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = jittered.delayNanos(1);
+            assertTrue(delay >= Duration.ofMillis(50).toNanos() && delay <= Duration.ofMillis(100).toNanos());
+        }
+    }
+
+    // Throws for the first failures calls.
+    private static class Flaky extends ProcessingStep {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile int failures;
+        volatile long sleepMillis;
+
+        @Override
+        protected void process(ProcessingData data) {
+            if (calls.getAndIncrement() < failures) {
+                throw new IllegalStateException("Downstream unavailable");
+            }
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            data.set("value1", 2);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.hexadevlabs.simplefsm;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardedRuntimeTest {
+
+    private static SimpleFSM buildNew() {
+        return new SimpleFSM.Builder()
+            .state("START", new RecordThread("START"))
+                .auto().goTo("WAIT")
+            .state("WAIT", new RecordThread("WAIT"), true)
+                .on("GO").goTo("FLAKY")
+            .state("FLAKY", new FailsFirst())
+                .retry(RetryPolicy.maxAttempts(2).backoff(Duration.ofMillis(1), 1))
+                .auto().goTo("END")
+            .finalState("END", new RecordThread("END"))
+            .build();
+    }
+
+    @Test
+    public void instancesStayOnTheirShard() throws Exception {
+        SimpleFSM definition = buildNew();
+        int items = 1000;
+        try (ShardedRuntime runtime = new ShardedRuntime(4)) {
+            List<CompletableFuture<FsmInstance>> started = new ArrayList<>();
+            for (int i = 0; i < items; i++) {
+                started.add(runtime.start("item-" + i, definition, "START", new ProcessingData()));
+            }
+            for (CompletableFuture<FsmInstance> future : started) {
+                assertTrue(future.get(5, TimeUnit.SECONDS).getFsm().isPaused());
+            }
+            assertEquals(items, runtime.instanceCount().get(5, TimeUnit.SECONDS));
+
+            List<CompletableFuture<FsmInstance>> triggered = new ArrayList<>();
+            for (int i = 0; i < items; i++) {
+                triggered.add(runtime.triggerEvent("item-" + i, "GO"));
+            }
+            for (CompletableFuture<FsmInstance> future : triggered) {
+                FsmInstance instance = future.get(5, TimeUnit.SECONDS);
+                // The retry continues on the shard as well.
+                instance.getFsm().whenResumed().get(5, TimeUnit.SECONDS);
+            }
+
+            int[] perShard = new int[runtime.getShardCount()];
+            for (int i = 0; i < items; i++) {
+                String id = "item-" + i;
+                FsmInstance instance = runtime.inspect(id, x -> x).get(5, TimeUnit.SECONDS);
+                ProcessingData data = instance.getData();
+                assertTrue(instance.getFsm().hasReachedFinalState());
+                String thread = "simplefsm-shard-" + runtime.shardOf(id);
+                for (String state : new String[]{"START", "WAIT", "FLAKY", "END"}) {
+                    assertEquals(thread, data.get(state), id + " in " + state);
+                }
+                perShard[runtime.shardOf(id)]++;
+            }
+            for (int count : perShard) {
+                assertTrue(count > items / 8, "Shards are unbalanced");
+            }
+        }
+    }
+
+    @Test
+    public void errorsCompleteTheFuture() throws Exception {
+        SimpleFSM definition = buildNew();
+        try (ShardedRuntime runtime = new ShardedRuntime(2)) {
+            runtime.start("a", definition, "START", new ProcessingData()).get(5, TimeUnit.SECONDS);
+
+            ExecutionException duplicate = assertThrows(ExecutionException.class,
+                    () -> runtime.start("a", definition, "START", new ProcessingData()).get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, duplicate.getCause());
+
+            ExecutionException unknown = assertThrows(ExecutionException.class,
+                    () -> runtime.triggerEvent("b", "GO").get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, unknown.getCause());
+
+            ExecutionException badEvent = assertThrows(ExecutionException.class,
+                    () -> runtime.triggerEvent("a", "NOPE").get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, badEvent.getCause());
+
+            // The shard still works.
+            assertNotNull(runtime.remove("a").get(5, TimeUnit.SECONDS));
+            assertNull(runtime.remove("a").get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void failedStartCanBeRetried() throws Exception {
+        SimpleFSM definition = new SimpleFSM.Builder()
+            .state("START", new ErrorOnBroken())
+                .auto().goTo("END")
+            .finalState("END", new RecordThread("END"))
+            .build();
+        try (ShardedRuntime runtime = new ShardedRuntime(2)) {
+            ProcessingData broken = new ProcessingData();
+            broken.set("broken", true);
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> runtime.start("a", definition, "START", broken).get(5, TimeUnit.SECONDS));
+            assertInstanceOf(AssertionError.class, e.getCause());
+            assertEquals(0, runtime.instanceCount().get(5, TimeUnit.SECONDS));
+
+            FsmInstance instance = runtime.start("a", definition, "START", new ProcessingData()).get(5, TimeUnit.SECONDS);
+            assertTrue(instance.getFsm().hasReachedFinalState());
+        }
+    }
+
+    @Test
+    public void shutdownRunsQueuedWork() throws Exception {
+        SimpleFSM definition = buildNew();
+        ShardedRuntime runtime = new ShardedRuntime(1);
+        List<CompletableFuture<FsmInstance>> started = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            started.add(runtime.start("item-" + i, definition, "START", new ProcessingData()));
+        }
+        assertTrue(runtime.shutdown(5, TimeUnit.SECONDS));
+        for (CompletableFuture<FsmInstance> future : started) {
+            assertTrue(future.isDone());
+        }
+        assertThrows(RejectedExecutionException.class,
+                () -> runtime.start("late", definition, "START", new ProcessingData()));
+    }
+
+    @Test
+    public void submitsRacingShutdownComplete() throws Exception {
+        ShardedRuntime runtime = new ShardedRuntime(2);
+        List<List<CompletableFuture<FsmInstance>>> submitted = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            List<CompletableFuture<FsmInstance>> futures = new ArrayList<>();
+            submitted.add(futures);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; ; i++) {
+                        futures.add(runtime.remove("item-" + i));
+                    }
+                } catch (RejectedExecutionException e) {
+                    // Shut down.
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        Thread.sleep(20);
+        assertTrue(runtime.shutdown(5, TimeUnit.SECONDS));
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        for (List<CompletableFuture<FsmInstance>> futures : submitted) {
+            for (CompletableFuture<FsmInstance> future : futures) {
+                assertNull(future.get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void retryAfterShutdownTerminates() throws Exception {
+        SimpleFSM definition = new SimpleFSM.Builder()
+            .state("FLAKY", new FailsFirst())
+                .retry(RetryPolicy.maxAttempts(2).backoff(Duration.ofMillis(200), 1))
+                .auto().goTo("END")
+            .finalState("END", new RecordThread("END"))
+            .build();
+        ShardedRuntime runtime = new ShardedRuntime(1);
+        ProcessingData data = new ProcessingData();
+        SimpleFSM fsm = runtime.start("a", definition, "FLAKY", data).get(5, TimeUnit.SECONDS).getFsm();
+        assertTrue(fsm.isResumePending());
+        assertTrue(runtime.shutdown(5, TimeUnit.SECONDS));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> fsm.whenResumed().get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        assertTrue(fsm.wasTerminated());
+        assertInstanceOf(RejectedExecutionException.class, data.getExceptions().get(data.getExceptions().size() - 1).exception);
+    }
+
+    // Records the thread it ran on under the name of its state.
+    private static class RecordThread extends ProcessingStep {
+        private final String name;
+
+        RecordThread(String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected void process(ProcessingData data) {
+            data.set(name, Thread.currentThread().getName());
+        }
+    }
+
+    // Errors are not handled by the state machine, they fail start().
+    private static class ErrorOnBroken extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            if (data.containsKey("broken")) {
+                throw new AssertionError("Broken data");
+            }
+        }
+    }
+
+    private static class FailsFirst extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            if (!data.containsKey("failed")) {
+                data.set("failed", true);
+                throw new RuntimeException("First attempt fails");
+            }
+            data.set("FLAKY", Thread.currentThread().getName());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotTest {
+
+    private static SimpleFSM buildNew() {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("AWAIT")
+            .state("AWAIT", new NoopStep(), true)
+                .on("APPROVE").goTo("END")
+            .finalState("END", new NoopStep())
+            .build();
+    }
+
+    private static List<FsmInstance> pausedInstances(SimpleFSM definition, int count) {
+        List<FsmInstance> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SimpleFSM fsm = definition.buildEmptyCopy();
+            ProcessingData data = new ProcessingData();
+            data.set("value", i);
+            data.set("label", "item \"" + i + "\"\nline two");
+            fsm.start("START", data);
+            instances.add(new FsmInstance("item-" + i, fsm, data));
+        }
+        return instances;
+    }
+
+    private static byte[] write(List<FsmInstance> instances, SnapshotWriter.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (SnapshotWriter writer = new SnapshotWriter(out, format)) {
+            for (FsmInstance instance : instances) {
+                writer.write(instance);
+            }
+            assertEquals(instances.size(), writer.getWritten());
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripBothFormats() throws IOException {
+        SimpleFSM definition = buildNew();
+        List<FsmInstance> instances = pausedInstances(definition, 5_000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (SnapshotWriter.Format format : SnapshotWriter.Format.values()) {
+                byte[] bytes = write(instances, format);
+                List<FsmInstance> read = new SnapshotReader(definition)
+                        .executor(executor)
+                        .parallelism(4)
+                        .batchSize(1000)
+                        .readAll(new ByteArrayInputStream(bytes));
+
+                assertEquals(instances.size(), read.size(), format.name());
+                for (int i = 0; i < instances.size(); i++) {
+                    FsmInstance original = instances.get(i);
+                    FsmInstance loaded = read.get(i);
+                    assertEquals(original.getId(), loaded.getId());
+                    assertEquals("AWAIT", loaded.getFsm().getCurrentStateName());
+                    assertTrue(loaded.getFsm().isPaused());
+                    assertEquals(i, loaded.getData().get("value"));
+                    assertEquals(original.getData().get("label"), loaded.getData().get("label"));
+                    assertEquals(original.getFsm().exportState(), loaded.getFsm().exportState());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void ndjsonHasOneInstancePerLine() throws IOException {
+        SimpleFSM definition = buildNew();
+        byte[] bytes = write(pausedInstances(definition, 3), SnapshotWriter.Format.NDJSON);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+
+        String[] lines = text.split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("{\"id\":\"item-0\",\"state\":"));
+    }
+
+    @Test
+    public void loadedInstancesContinue() throws IOException {
+        SimpleFSM definition = buildNew();
+        byte[] bytes = write(pausedInstances(definition, 10), SnapshotWriter.Format.BINARY);
+
+        long read = new SnapshotReader(definition).parallelism(1).read(new ByteArrayInputStream(bytes), instance -> {
+            instance.getFsm().triggerEvent("APPROVE", instance.getData());
+            assertTrue(instance.getFsm().hasReachedFinalState());
+        });
+        assertEquals(10, read);
+    }
+
+    @Test
+    public void truncatedStreamFails() throws IOException {
+        SimpleFSM definition = buildNew();
+        byte[] bytes = write(pausedInstances(definition, 2), SnapshotWriter.Format.BINARY);
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 10);
+
+        assertThrows(IOException.class, () -> new SnapshotReader(definition).readAll(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void bulkReadBenchmark() throws IOException {
+        SimpleFSM definition = buildNew();
+        List<FsmInstance> instances = pausedInstances(definition, 20_000);
+
+        long start = System.nanoTime();
+        for (FsmInstance instance : instances) {
+            SimpleFSM fsm = definition.buildEmptyCopy();
+            fsm.importState(instance.getFsm().exportState());
+            ProcessingData.fromJson(instance.getData().toJson());
+        }
+        double separate = (System.nanoTime() - start) / 1e9;
+
+        for (SnapshotWriter.Format format : SnapshotWriter.Format.values()) {
+            byte[] bytes = write(instances, format);
+            start = System.nanoTime();
+            long read = new SnapshotReader(definition).read(new ByteArrayInputStream(bytes), instance -> { });
+            double bulk = (System.nanoTime() - start) / 1e9;
+            assertEquals(instances.size(), read);
+            System.out.printf("%s: %d instances read in %.2fs, %.2fs one by one, %d bytes%n",
+                    format, read, bulk, separate, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SplitDeadlineTest {
+
+    @Test
+    public void branchTimeoutCancelsBranch() {
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().withTimeout(Duration.ofMillis(200)).goTo("SPLIT2")
+            .state("SPLIT1", new Split1())
+                .join("SPLIT_END")
+            .state("SPLIT2", new Sleep(5000))
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .splitHandler(new ThreadBasedSplitHandler())
+            .withTrace()
+            .build();
+
+        ProcessingData data = new ProcessingData();
+        long start = System.nanoTime();
+        fsm.start("START", data);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMillis < 3000, "Took " + elapsedMillis + "ms");
+        assertTrue(fsm.hasReachedFinalState());
+        assertInstanceOf(TimeoutException.class, data.getException());
+        assertNull(data.get("value_sum"));
+        assertTrue(fsm.getTrace().toString().contains("Branch SPLIT2 of split state STEP_SPLIT timed out"));
+    }
+
+    @Test
+    public void splitTimeoutWithForkJoin() {
+        Sleep more = new Sleep(100);
+        SimpleFSM fsm = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .splitTimeout(Duration.ofMillis(50))
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", new Split1())
+                .join("SPLIT_END")
+            .state("SPLIT2", new Sleep(100))
+                .auto().goTo("SPLIT2_MORE")
+            .state("SPLIT2_MORE", more)
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .splitHandler(new ForkJoinSplitHandler())
+            .build();
+
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+
+        // SPLIT2_MORE is never started since the deadline passed during SPLIT2.
+        assertEquals(0, more.runs.get());
+        assertTrue(fsm.hasReachedFinalState());
+        assertInstanceOf(TimeoutException.class, data.getException());
+    }
+
+    @Test
+    public void slowBranchIsHedged() {
+        SlowOnce slowOnce = new SlowOnce();
+        SimpleFSM definition = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", slowOnce)
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .splitHandler(new ThreadBasedSplitHandler().withHedging(95, 5))
+            .withTrace()
+            .build();
+
+        // Learn the latency of the branches.
+        for (int i = 0; i < 10; i++) {
+            SimpleFSM fsm = definition.buildEmptyCopy();
+            ProcessingData data = new ProcessingData();
+            fsm.start("START", data);
+            assertEquals(5, (Integer) data.get("value_sum"));
+        }
+
+        slowOnce.slowCall = slowOnce.calls.get();
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        fsm.setTraceMode(true);
+        ProcessingData data = new ProcessingData();
+        long start = System.nanoTime();
+        fsm.start("START", data);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMillis < 2000, "Took " + elapsedMillis + "ms");
+        assertFalse(data.hasExceptions());
+        assertEquals(5, (Integer) data.get("value_sum"));
+        assertTrue(fsm.getTrace().toString().contains("Hedging slow branch SPLIT1"));
+        // The slow attempt and the hedged one.
+        assertEquals(2, slowOnce.calls.get() - slowOnce.slowCall);
+    }
+
+    @Test
+    public void hedgesAtPercentileNotMax() {
+        SlowCalls slowCalls = new SlowCalls();
+        // One outlier among the first latencies recorded, before hedging starts.
+        slowCalls.slow.put(0, 1200L);
+        SimpleFSM definition = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP_SPLIT")
+            .state("STEP_SPLIT", new StepSplit())
+                .split().goTo("SPLIT1")
+                .split().goTo("SPLIT2")
+            .state("SPLIT1", slowCalls)
+                .join("SPLIT_END")
+            .state("SPLIT2", new Split2())
+                .join("SPLIT_END")
+            .state("SPLIT_END", new SplitEnd())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .onExceptionGoTo("END")
+            .splitHandler(new ThreadBasedSplitHandler().withHedging(95, 20))
+            .build();
+
+        // 40 latencies, p95 is a few ms and the max 1200ms.
+        for (int i = 0; i < 40; i++) {
+            ProcessingData data = new ProcessingData();
+            definition.buildEmptyCopy().start("START", data);
+            assertEquals(5, (Integer) data.get("value_sum"));
+        }
+
+        slowCalls.slow.put(slowCalls.calls.get(), 3000L);
+        ProcessingData data = new ProcessingData();
+        long start = System.nanoTime();
+        definition.buildEmptyCopy().start("START", data);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(5, (Integer) data.get("value_sum"));
+        // Hedging at the max would wait at least 1200ms.
+        assertTrue(elapsedMillis < 600, "Took " + elapsedMillis + "ms");
+    }
+
+    @Test
+    public void timeoutOnlyOnSplitTransitions() {
+        SimpleFSM.StateBuilder builder = new SimpleFSM.Builder()
+            .state("START", new NoopStep());
+        assertThrows(IllegalArgumentException.class,
+                () -> builder.on("GO").withTimeout(Duration.ofSeconds(1)).goTo("END"));
+        assertThrows(IllegalArgumentException.class,
+                () -> builder.splitTimeout(Duration.ZERO));
+    }
+
+    private static class Sleep extends ProcessingStep {
+        private final long millis;
+        final AtomicInteger runs = new AtomicInteger();
+
+        Sleep(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        protected void process(ProcessingData data) {
+            runs.incrementAndGet();
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // Sleeps long on one call and briefly on all others.
+    private static class SlowOnce extends ProcessingStep {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile int slowCall = -1;
+
+        @Override
+        protected void process(ProcessingData data) {
+            long millis = calls.getAndIncrement() == slowCall ? 5000 : 5;
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            data.set("value1", 2);
+        }
+    }
+
+    // Sleeps for the given time on some calls and briefly on all others.
+    private static class SlowCalls extends ProcessingStep {
+        final AtomicInteger calls = new AtomicInteger();
+        final Map<Integer, Long> slow = new ConcurrentHashMap<>();
+
+        @Override
+        protected void process(ProcessingData data) {
+            long millis = slow.getOrDefault(calls.getAndIncrement(), 5L);
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            data.set("value1", 2);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.NoopStep;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StateProfilerTest {
+
+    private static SimpleFSM buildNew(StateProfiler profiler) {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("ALLOCATE")
+            .state("ALLOCATE", new Allocate())
+                .auto().goTo("SPIN")
+            .state("SPIN", new Spin())
+                .auto().goTo("SLEEP")
+            .state("SLEEP", new Sleep())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .withProfiler(profiler)
+            .build();
+    }
+
+    private static void run(SimpleFSM definition, int times) {
+        for (int i = 0; i < times; i++) {
+            definition.buildEmptyCopy().start("START", new ProcessingData());
+        }
+    }
+
+    @Test
+    public void profilesEveryState() throws IOException {
+        StateProfiler profiler = new StateProfiler();
+        SimpleFSM definition = buildNew(profiler);
+        run(definition, 20);
+
+        assertSame(profiler, definition.buildEmptyCopy().getProfiler());
+        for (String state : new String[]{"START", "ALLOCATE", "SPIN", "SLEEP", "END"}) {
+            assertEquals(20, profiler.getProfile(state).getExecutions(), state);
+        }
+        assertEquals(100, profiler.getDefinitionProfile().getExecutions());
+
+        StateProfiler.Profile sleep = profiler.getProfile("SLEEP");
+        assertTrue(sleep.getWallTime().getPercentile(0.5) >= 1_000_000);
+
+        if (StateProfiler.isAllocationSupported()) {
+            long allocated = profiler.getProfile("ALLOCATE").getAllocatedBytes().getPercentile(0.5);
+            assertTrue(allocated >= 1 << 20, "allocated " + allocated);
+            assertTrue(profiler.getProfile("SPIN").getAllocatedBytes().getPercentile(0.5) < 1 << 20);
+        }
+        if (StateProfiler.isCpuTimeSupported()) {
+            // Sleeping takes time but hardly any CPU.
+            assertEquals("SPIN", profiler.getReport().get(0).getName());
+            assertTrue(sleep.getCpuRatio() < 0.5, "cpu ratio " + sleep.getCpuRatio());
+        }
+
+        StringBuilder csv = new StringBuilder();
+        profiler.writeCsv(csv);
+        String[] lines = csv.toString().split("\n");
+        assertEquals(7, lines.length);
+        assertTrue(lines[0].startsWith("state,executions,wall_total"));
+        assertTrue(lines[6].startsWith("*,100,"));
+        Set<String> states = new HashSet<>();
+        for (int i = 1; i < 6; i++) {
+            String[] fields = lines[i].split(",");
+            assertEquals(14, fields.length, lines[i]);
+            StateProfiler.Profile profile = profiler.getProfile(fields[0]);
+            assertNotNull(profile, lines[i]);
+            states.add(fields[0]);
+            assertEquals("20", fields[1]);
+            assertEquals(profile.getWallTime().getSum(), Long.parseLong(fields[2]));
+            assertEquals(profile.getWallTime().getPercentile(0.5), Long.parseLong(fields[3]));
+            assertEquals(profile.getWallTime().getMax(), Long.parseLong(fields[5]));
+            assertEquals(profile.getAllocatedBytes().getMax(), Long.parseLong(fields[13]));
+        }
+        assertEquals(Set.of("START", "ALLOCATE", "SPIN", "SLEEP", "END"), states);
+
+        profiler.reset();
+        assertNull(profiler.getProfile("SPIN"));
+        assertEquals(0, profiler.getDefinitionProfile().getExecutions());
+    }
+
+    @Test
+    public void samplesExecutions() {
+        StateProfiler profiler = new StateProfiler(10);
+        run(buildNew(profiler), 200);
+
+        long profiled = profiler.getDefinitionProfile().getExecutions();
+        assertTrue(profiled > 20 && profiled < 250, "profiled " + profiled);
+        assertThrows(IllegalArgumentException.class, () -> new StateProfiler(0));
+    }
+
+    @Test
+    public void profilingWithCompiledBackend() {
+        StateProfiler profiler = new StateProfiler();
+        SimpleFSM definition = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .withProfiler(profiler)
+            .backend(SimpleFSM.Backend.COMPILED)
+            .build();
+        run(definition, 3);
+        assertEquals(3, profiler.getProfile("START").getExecutions());
+    }
+
+    private static class Allocate extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            byte[] block = new byte[2 << 20];
+            block[block.length - 1] = 1;
+            data.set("size", block.length);
+        }
+    }
+
+    private static class Spin extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            long end = System.nanoTime() + 3_000_000;
+            long x = 0;
+            while (System.nanoTime() < end) {
+                x += x * 31 + 7;
+            }
+            data.set("x", x);
+        }
+    }
+
+    private static class Sleep extends ProcessingStep {
+        @Override
+        protected void process(ProcessingData data) {
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
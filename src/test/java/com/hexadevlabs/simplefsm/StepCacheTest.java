@@ -0,0 +1,321 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StepCacheTest {
+
+    private Lookup lookup;
+    private FsmMetrics metrics;
+
+    @BeforeEach
+    public void setUp() {
+        lookup = new Lookup();
+        metrics = new FsmMetrics();
+    }
+
+    private SimpleFSM buildNew(StepCache cache) {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("LOOKUP")
+            .state("LOOKUP", lookup)
+                .cache(cache)
+                .on("KNOWN").goTo("END")
+                .on("UNKNOWN").goTo("REVIEW")
+            .finalState("END", new NoopStep())
+            .finalState("REVIEW", new NoopStep())
+            .finalState("FAILED", new NoopStep())
+            .onExceptionGoTo("FAILED")
+            .withMetrics(metrics)
+            .build();
+    }
+
+    private static ProcessingData run(SimpleFSM definition, Object customerId) {
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        data.set("customerId", customerId);
+        fsm.start("START", data);
+        data.set("finalState", fsm.getFinalState().getName());
+        return data;
+    }
+
+    @Test
+    public void hitReplaysWritesAndNextState() {
+        SimpleFSM definition = buildNew(StepCache.keyedBy("customerId"));
+
+        ProcessingData first = run(definition, 7);
+        ProcessingData second = run(definition, 7);
+        ProcessingData unknown = run(definition, -1);
+        ProcessingData unknownAgain = run(definition, -1);
+
+        assertEquals(2, lookup.calls.get());
+        assertEquals("customer-7", second.get("customerName"));
+        assertEquals("END", first.get("finalState"));
+        assertEquals("END", second.get("finalState"));
+        assertEquals("REVIEW", unknown.get("finalState"));
+        assertEquals("REVIEW", unknownAgain.get("finalState"));
+
+        FsmMetrics.StateMetrics stateMetrics = metrics.getStateMetrics("LOOKUP");
+        assertEquals(2, stateMetrics.getCacheHits());
+        assertEquals(2, stateMetrics.getCacheMisses());
+        assertEquals(0.5, stateMetrics.getCacheHitRate(), 0.0001);
+    }
+
+    @Test
+    public void keyIsMadeOfAllKeys() {
+        lookup = new Lookup();
+        SimpleFSM definition = buildNew(StepCache.keyedBy("customerId", "region"));
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        ProcessingData data = new ProcessingData();
+        data.set("customerId", 7);
+        data.set("region", "EU");
+        fsm.start("START", data);
+
+        run(definition, 7);
+        run(definition, 7);
+
+        // Once with a region and once without.
+        assertEquals(2, lookup.calls.get());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        StepCache cache = StepCache.keyedBy("customerId").maxSize(2);
+        SimpleFSM definition = buildNew(cache);
+
+        run(definition, 1);
+        run(definition, 2);
+        run(definition, 1);
+        // Evicts 2, which was used least recently.
+        run(definition, 3);
+        assertEquals(2, cache.size());
+        assertEquals(3, lookup.calls.get());
+
+        run(definition, 1);
+        assertEquals(3, lookup.calls.get());
+        run(definition, 2);
+        assertEquals(4, lookup.calls.get());
+    }
+
+    @Test
+    public void entriesExpire() throws InterruptedException {
+        SimpleFSM definition = buildNew(StepCache.keyedBy("customerId").ttl(Duration.ofMillis(50)));
+
+        run(definition, 1);
+        run(definition, 1);
+        assertEquals(1, lookup.calls.get());
+
+        Thread.sleep(100);
+        run(definition, 1);
+        assertEquals(2, lookup.calls.get());
+    }
+
+    @Test
+    public void exceptionsAreNotCached() {
+        lookup.failing = true;
+        SimpleFSM definition = buildNew(StepCache.keyedBy("customerId"));
+
+        ProcessingData data = run(definition, 1);
+        assertEquals("FAILED", data.get("finalState"));
+        lookup.failing = false;
+        data = run(definition, 1);
+
+        assertEquals("END", data.get("finalState"));
+        assertEquals(2, lookup.calls.get());
+    }
+
+    @Test
+    public void concurrentMissesRunStepOnce() throws Exception {
+        lookup.release = new CountDownLatch(1);
+        SimpleFSM definition = buildNew(StepCache.keyedBy("customerId"));
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ProcessingData>> running = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                running.add(executor.submit(() -> run(definition, 42)));
+            }
+            while (lookup.calls.get() == 0) {
+                Thread.onSpinWait();
+            }
+            // Give the others time to find the load in progress.
+            Thread.sleep(100);
+            lookup.release.countDown();
+
+            for (Future<ProcessingData> future : running) {
+                ProcessingData data = future.get(5, TimeUnit.SECONDS);
+                assertEquals("customer-42", data.get("customerName"));
+                assertEquals("END", data.get("finalState"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, lookup.calls.get());
+        assertEquals(threads - 1, metrics.getStateMetrics("LOOKUP").getCacheHits());
+    }
+
+    private SimpleFSM buildWith(ProcessingStep step) {
+        return buildWith(step, StepCache.keyedBy("customerId"));
+    }
+
+    private SimpleFSM buildWith(ProcessingStep step, StepCache cache) {
+        return new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("STEP")
+            .state("STEP", step)
+                .cache(cache)
+                .auto().goTo("END")
+            .finalState("END", new NoopStep())
+            .finalState("FAILED", new NoopStep())
+            .onExceptionGoTo("FAILED")
+            .build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void itemsDoNotShareValues() {
+        SimpleFSM definition = buildWith(new ProcessingStep() {
+            @Override
+            protected void process(ProcessingData data) {
+                data.set("orders", new ArrayList<>(List.of("a")));
+                data.set("raw", new int[]{1, 2});
+            }
+        });
+
+        ProcessingData first = run(definition, 1);
+        ((List<String>) first.get("orders")).add("changed");
+        ((int[]) first.get("raw"))[0] = 9;
+        ProcessingData second = run(definition, 1);
+        assertEquals(List.of("a"), second.get("orders"));
+        ((List<String>) second.get("orders")).add("changed too");
+        ProcessingData third = run(definition, 1);
+
+        assertEquals(List.of("a"), third.get("orders"));
+        assertArrayEquals(new int[]{1, 2}, (int[]) third.get("raw"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void changesInPlaceAreReplayed() {
+        AtomicInteger calls = new AtomicInteger();
+        ProcessingStep step = new ProcessingStep() {
+            @Override
+            protected void process(ProcessingData data) {
+                calls.incrementAndGet();
+                ((List<String>) data.get("tags")).add("checked");
+            }
+        };
+        SimpleFSM definition = buildWith(step, StepCache.keyedBy("customerId").changesInPlace("tags"));
+
+        for (int i = 0; i < 2; i++) {
+            ProcessingData data = new ProcessingData();
+            data.set("customerId", 1);
+            data.set("tags", new ArrayList<>());
+            SimpleFSM fsm = definition.buildEmptyCopy();
+            fsm.start("START", data);
+            assertEquals(List.of("checked"), data.get("tags"));
+        }
+        assertEquals(1, calls.get());
+
+        // Not watched, the change in place is not stored.
+        SimpleFSM unwatched = buildWith(step);
+        for (int i = 0; i < 2; i++) {
+            ProcessingData data = new ProcessingData();
+            data.set("customerId", 1);
+            data.set("tags", new ArrayList<>());
+            unwatched.buildEmptyCopy().start("START", data);
+            assertEquals(i == 0 ? List.of("checked") : List.of(), data.get("tags"));
+        }
+    }
+
+    @Test
+    public void arrayKeysHit() {
+        AtomicInteger calls = new AtomicInteger();
+        SimpleFSM definition = buildWith(new ProcessingStep() {
+            @Override
+            protected void process(ProcessingData data) {
+                calls.incrementAndGet();
+                data.set("total", ((int[]) data.get("customerId")).length);
+            }
+        });
+
+        assertEquals(2, run(definition, new int[]{4, 2}).get("total"));
+        assertEquals(2, run(definition, new int[]{4, 2}).get("total"));
+        assertEquals(3, run(definition, new int[]{4, 2, 1}).get("total"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void valuesThatCanNotBeCopiedFail() {
+        SimpleFSM definition = buildWith(new ProcessingStep() {
+            @Override
+            protected void process(ProcessingData data) {
+                data.set("lock", new Object());
+            }
+        });
+
+        ProcessingData data = run(definition, 1);
+        assertEquals("FAILED", data.get("finalState"));
+        assertInstanceOf(IllegalArgumentException.class, data.getException());
+        assertEquals("FAILED", run(definition, 1).get("finalState"));
+    }
+
+    @Test
+    public void evictsDownToNinetyPercent() {
+        StepCache cache = StepCache.keyedBy("customerId").maxSize(100);
+        SimpleFSM definition = buildNew(cache);
+        for (int id = 0; id <= 100; id++) {
+            run(definition, id);
+        }
+        assertEquals(90, cache.size());
+        run(definition, 100);
+        assertEquals(101, lookup.calls.get());
+        run(definition, 0);
+        assertEquals(102, lookup.calls.get());
+    }
+
+    @Test
+    public void invalidKeys() {
+        assertThrows(IllegalArgumentException.class, StepCache::keyedBy);
+        assertThrows(IllegalArgumentException.class, () -> StepCache.keyedBy("id").maxSize(0));
+        assertThrows(IllegalArgumentException.class, () -> StepCache.keyedBy("id").ttl(Duration.ZERO));
+    }
+
+    // Looks up a customer by id, negative ids are unknown.
+    private static class Lookup extends ProcessingStep {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile boolean failing;
+        volatile CountDownLatch release;
+
+        @Override
+        protected void process(ProcessingData data) {
+            calls.incrementAndGet();
+            if (release != null) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new RuntimeException("Lookup failed");
+            }
+            int id = (Integer) data.get("customerId");
+            if (id < 0) {
+                nextState(data, "REVIEW");
+                return;
+            }
+            data.set("customerName", "customer-" + id);
+            nextState(data, "END");
+        }
+    }
+}
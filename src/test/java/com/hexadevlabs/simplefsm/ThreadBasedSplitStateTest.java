@@ -46,18 +46,18 @@ public class ThreadBasedSplitStateTest {
                 digraph G {
                 labelloc="t";
                 label=<<B>Test FSM</B>>;
-                	SPLIT_END[label="SPLIT_END\\n[SplitEnd]"];
-                	SPLIT_END -> END[label="AUTO"];
-                	SPLIT2[label="SPLIT2\\n[Split2]"];
-                	SPLIT2 -> SPLIT_END[label="SPLIT2_TO_SPLIT_END"];
                 	START[label="START\\n[NoopStep]"];
                 	START -> STEP_SPLIT[label="AUTO"];
+                	STEP_SPLIT[label="STEP_SPLIT\\n[StepSplit]"];
+                	STEP_SPLIT -> SPLIT1[label="SPLIT_SPLIT1"];
+                	STEP_SPLIT -> SPLIT2[label="SPLIT_SPLIT2"];
                 	SPLIT1[label="SPLIT1\\n[Split1]"];
                 	SPLIT1 -> SPLIT_END[label="SPLIT1_TO_SPLIT_END"];
+                	SPLIT2[label="SPLIT2\\n[Split2]"];
+                	SPLIT2 -> SPLIT_END[label="SPLIT2_TO_SPLIT_END"];
+                	SPLIT_END[label="SPLIT_END\\n[SplitEnd]"];
+                	SPLIT_END -> END[label="AUTO"];
                 	END[label="END\\n[NoopStep]\\n<final>"];
-                	STEP_SPLIT[label="STEP_SPLIT\\n[StepSplit]"];
-                	STEP_SPLIT -> SPLIT2[label="SPLIT_SPLIT2"];
-                	STEP_SPLIT -> SPLIT1[label="SPLIT_SPLIT1"];
                 	Exception [label="Exception" shape="box"];
                 	Exception -> END[label="ON_EXCEPTION"];
                 }""";
@@ -161,8 +161,12 @@ public class ThreadBasedSplitStateTest {
             .withTrace()
             .build();
         ProcessingData data = new ProcessingData();
-        // TODO: this should handle Illegal state exception.
-        assertThrows(AssertionError.class, () -> fsm.start("START", data));
+        fsm.start("START", data);
+
+        // Waiting in a branch is not allowed, it is reported as an exception of the split.
+        assertTrue(fsm.hasReachedFinalState());
+        assertInstanceOf(IllegalStateException.class, data.getException());
+        assertNull(data.get("value_sum"));
 
     }
 
@@ -0,0 +1,129 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TraceDictionaryTest {
+
+    private static SimpleFSM buildNew(boolean compact) {
+        SimpleFSM.Builder builder = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("IDLE")
+            .state("IDLE", new NoopStep(), true)
+                .on("NEXT").goTo("WORK")
+            .state("WORK", new Step4())
+                .auto().goTo("IDLE")
+            .withTrace();
+        if (compact) {
+            builder.compactTrace();
+        }
+        return builder.build();
+    }
+
+    private static SimpleFSM runLoops(SimpleFSM definition, int loops) {
+        SimpleFSM fsm = definition.buildEmptyCopy();
+        fsm.setTraceMode(true);
+        ProcessingData data = new ProcessingData();
+        fsm.start("START", data);
+        for (int i = 0; i < loops; i++) {
+            fsm.triggerEvent("NEXT", data);
+        }
+        return fsm;
+    }
+
+    private static List<String> lines(Trace trace) {
+        List<String> lines = new ArrayList<>();
+        for (LogEntry entry : trace.logs) {
+            lines.add(entry.getEpochNanos() + " " + entry.getMessage());
+        }
+        return lines;
+    }
+
+    @Test
+    public void templatesAreEncoded() {
+        SimpleFSM fsm = runLoops(buildNew(false), 1);
+        List<LogEntry> logs = fsm.getTrace().logs;
+
+        assertInstanceOf(EncodedLogEntry.class, logs.get(0));
+        assertEquals("Entering state: START", logs.get(0).getMessage());
+        assertTrue(lines(fsm.getTrace()).stream().anyMatch(line -> line.endsWith("Exiting state: WORK, transitioning to: IDLE")));
+        // Logs of steps stay plain text.
+        assertTrue(logs.stream().anyMatch(entry -> !(entry instanceof EncodedLogEntry) && entry.getMessage().equals("Noop step")));
+    }
+
+    @Test
+    public void encodedEntriesEqualPlainOnes() {
+        TraceDictionary dictionary = new TraceDictionary();
+        Trace trace = new Trace(() -> 42L);
+        trace.setDictionary(dictionary);
+        trace.add("Exiting state: {}, transitioning to: {}", "A", "B");
+        trace.add("Odd {} template {} with {}", "x", "y");
+        trace.add("Literal {}", null);
+
+        List<LogEntry> plain = List.of(
+                new LogEntry(42L, "Exiting state: A, transitioning to: B"),
+                new LogEntry(42L, "Odd x template y with {}"),
+                new LogEntry(42L, "Literal null"));
+        for (int i = 0; i < plain.size(); i++) {
+            LogEntry encoded = trace.logs.get(i);
+            assertEquals(plain.get(i).getMessage(), encoded.getMessage());
+            assertEquals(plain.get(i), encoded);
+            assertEquals(encoded, plain.get(i));
+            assertEquals(plain.get(i).hashCode(), encoded.hashCode());
+        }
+        assertEquals(8, dictionary.size());
+    }
+
+    @Test
+    public void compactExportRoundTrip() {
+        SimpleFSM plain = runLoops(buildNew(false), 1000);
+        SimpleFSM compact = buildNew(true).buildEmptyCopy();
+        compact.importState(plain.exportState());
+
+        String plainState = plain.exportState();
+        String compactState = compact.exportState();
+        System.out.printf("Trace of %d entries exported in %d bytes, %d bytes compact%n",
+                plain.getTrace().size(), plainState.length(), compactState.length());
+        assertTrue(compactState.length() * 8 < plainState.length());
+        assertTrue(compactState.contains("\"compactLogs\""));
+        assertFalse(compactState.contains("\"logs\""));
+
+        // Both forms can be imported by either definition.
+        SimpleFSM fromCompact = buildNew(false).buildEmptyCopy();
+        fromCompact.importState(compactState);
+        assertEquals(lines(plain.getTrace()), lines(fromCompact.getTrace()));
+        assertEquals(plainState, fromCompact.exportState());
+
+        // Continues adding to the imported trace.
+        ProcessingData data = new ProcessingData();
+        fromCompact.triggerEvent("NEXT", data);
+        assertEquals(plain.getTrace().size() + 11, fromCompact.getTrace().size());
+    }
+
+    @Test
+    public void fullDictionaryFallsBackToText() {
+        TraceDictionary dictionary = new TraceDictionary();
+        for (int i = 0; i < TraceDictionary.MAX_SIZE; i++) {
+            assertEquals(i, dictionary.intern("value " + i));
+        }
+        assertEquals(-1, dictionary.intern("one too many"));
+
+        Trace trace = new Trace();
+        trace.setDictionary(dictionary);
+        trace.add("Entering state: {}", "NEW");
+        assertFalse(trace.logs.get(0) instanceof EncodedLogEntry);
+        assertEquals("Entering state: NEW", trace.logs.get(0).getMessage());
+    }
+
+    @Test
+    public void format() {
+        assertEquals("a 1 b 2", TraceDictionary.format("a {} b {}", "1", "2"));
+        assertEquals("a 1 b {}", TraceDictionary.format("a {} b {}", "1"));
+        assertEquals("no values", TraceDictionary.format("no values", "1"));
+    }
+}
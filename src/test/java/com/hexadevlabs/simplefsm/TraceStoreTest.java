@@ -0,0 +1,232 @@
+package com.hexadevlabs.simplefsm;
+
+import com.hexadevlabs.simplefsm.testSteps.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TraceStoreTest {
+
+    private static SimpleFSM buildNew(TraceStore store) {
+        SimpleFSM.Builder builder = new SimpleFSM.Builder()
+            .state("START", new NoopStep())
+                .auto().goTo("IDLE")
+            .state("IDLE", new NoopStep(), true)
+                .on("NEXT").goTo("WORK")
+                .on("CLOSE").goTo("END")
+            .state("WORK", new Step4())
+                .auto().goTo("IDLE")
+            .finalState("END", new NoopStep())
+            .withTrace();
+        if (store != null) {
+            builder.traceStore(store);
+        }
+        return builder.build();
+    }
+
+    private static List<String> messages(Trace trace) {
+        List<String> messages = new ArrayList<>();
+        for (LogEntry entry : trace.logs) {
+            messages.add(entry.getMessage());
+        }
+        return messages;
+    }
+
+    @Test
+    public void exportOnlyCarriesReference() {
+        TraceStore store = TraceStore.inMemory();
+        SimpleFSM plain = buildNew(null).buildEmptyCopy();
+        SimpleFSM stored = buildNew(store).buildEmptyCopy();
+        ProcessingData plainData = new ProcessingData();
+        ProcessingData storedData = new ProcessingData();
+        plain.start("START", plainData);
+        stored.start("START", storedData);
+
+        int firstSize = 0;
+        String state = null;
+        for (int i = 0; i < 500; i++) {
+            plain.triggerEvent("NEXT", plainData);
+            stored.triggerEvent("NEXT", storedData);
+            if (i % 100 == 0) {
+                // Moving through an export and import like a persisted instance would.
+                state = stored.exportState();
+                stored = buildNew(store).buildEmptyCopy();
+                stored.importState(state);
+                if (firstSize == 0) {
+                    firstSize = state.length();
+                }
+            }
+        }
+        state = stored.exportState();
+
+        // The snapshot does not grow with the trace.
+        assertTrue(state.length() < firstSize + 50, state);
+        assertTrue(plain.exportState().length() > 20 * state.length());
+        assertNotNull(stored.getTraceId());
+        assertEquals(plain.getTrace().size(), store.size(stored.getTraceId()));
+
+        SimpleFSM loaded = buildNew(store).buildEmptyCopy();
+        loaded.importState(state);
+        assertEquals(messages(plain.getTrace()), messages(loaded.getTrace()));
+
+        // Entries logged after the last export are added to the stored ones.
+        loaded.triggerEvent("CLOSE", storedData);
+        plain.triggerEvent("CLOSE", plainData);
+        assertEquals(messages(plain.getTrace()), messages(loaded.getTrace()));
+    }
+
+    @Test
+    public void withoutStoreExportIsUnchanged() {
+        SimpleFSM fsm = buildNew(null).buildEmptyCopy();
+        fsm.start("START", new ProcessingData());
+        fsm.flushTrace();
+
+        String state = fsm.exportState();
+        assertFalse(state.contains("traceId"));
+        assertFalse(state.contains("traceHighWaterMark"));
+        assertNull(fsm.getTraceId());
+        assertTrue(fsm.getTrace().size() > 0);
+    }
+
+    @Test
+    public void fileStoreSurvivesReopen() throws IOException {
+        Path file = Files.createTempFile("simplefsm-trace", ".seg");
+        try {
+            try (FileTraceStore store = new FileTraceStore(file)) {
+                assertEquals(2, store.append("a", List.of(new LogEntry(1, "one"), new LogEntry(2, "two"))));
+                assertEquals(1, store.append("b", List.of(new LogEntry(3, "other"))));
+                assertEquals(3, store.append("a", List.of(new LogEntry(4, "three \u00fcn\u00efcode"))));
+                store.append("c", List.of(new LogEntry(5, "deleted")));
+                store.delete("c");
+            }
+            // A record cut short, as by a crash while appending.
+            try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+                raw.seek(raw.length());
+                raw.writeInt(1);
+                raw.write('a');
+                raw.writeLong(6);
+            }
+
+            try (FileTraceStore store = new FileTraceStore(file)) {
+                assertEquals(3, store.size("a"));
+                assertEquals(0, store.size("c"));
+                List<LogEntry> entries = store.read("a", 1, 10);
+                assertEquals(2, entries.size());
+                assertEquals("two", entries.get(0).getMessage());
+                assertEquals("three \u00fcn\u00efcode", entries.get(1).getMessage());
+                assertEquals(4, entries.get(1).getEpochNanos());
+                assertEquals("other", store.read("b", 0, 1).get(0).getMessage());
+
+                // Appends continue after the dropped record.
+                assertEquals(4, store.append("a", List.of(new LogEntry(7, "four"))));
+                assertEquals("four", store.read("a", 3, 4).get(0).getMessage());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void restoringOlderSnapshotReplacesLaterEntries() throws IOException {
+        Path file = Files.createTempFile("simplefsm-trace", ".seg");
+        try (FileTraceStore fileStore = new FileTraceStore(file)) {
+            for (TraceStore store : List.of(TraceStore.inMemory(), fileStore)) {
+                SimpleFSM fsm = buildNew(store).buildEmptyCopy();
+                ProcessingData data = new ProcessingData();
+                fsm.start("START", data);
+                String older = fsm.exportState();
+                fsm.triggerEvent("NEXT", data);
+                fsm.triggerEvent("NEXT", data);
+                fsm.exportState();
+
+                SimpleFSM restored = buildNew(store).buildEmptyCopy();
+                restored.importState(older);
+                restored.triggerEvent("CLOSE", data);
+                List<String> expected = messages(restored.getTrace());
+                String state = restored.exportState();
+
+                SimpleFSM loaded = buildNew(store).buildEmptyCopy();
+                loaded.importState(state);
+                assertEquals(expected, messages(loaded.getTrace()));
+                assertEquals(expected.size(), store.size(loaded.getTraceId()));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void fileStoreTruncationSurvivesReopen() throws IOException {
+        Path file = Files.createTempFile("simplefsm-trace", ".seg");
+        try {
+            try (FileTraceStore store = new FileTraceStore(file)) {
+                store.append("a", List.of(new LogEntry(1, "one"), new LogEntry(2, "two"), new LogEntry(3, "three")));
+                assertEquals(2, store.append("a", 1, List.of(new LogEntry(4, "replaced"))));
+                assertEquals(1, store.append("a", 1, List.of()));
+                assertThrows(IllegalArgumentException.class, () -> store.append("a", 2, List.of()));
+                assertEquals(2, store.append("a", List.of(new LogEntry(5, "after"))));
+            }
+            try (FileTraceStore store = new FileTraceStore(file)) {
+                List<LogEntry> entries = store.read("a", 0, 10);
+                assertEquals(2, entries.size());
+                assertEquals("one", entries.get(0).getMessage());
+                assertEquals("after", entries.get(1).getMessage());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void failedAppendLeavesTraceUnchanged() throws IOException {
+        Path file = Files.createTempFile("simplefsm-trace", ".seg");
+        try {
+            FileTraceStore store = new FileTraceStore(file);
+            store.append("a", List.of(new LogEntry(1, "one")));
+            store.close();
+
+            assertThrows(UncheckedIOException.class, () -> store.append("a", List.of(new LogEntry(2, "two"))));
+            assertThrows(UncheckedIOException.class, () -> store.append("b", List.of(new LogEntry(3, "other"))));
+            assertThrows(UncheckedIOException.class, () -> store.delete("a"));
+            assertEquals(1, store.size("a"));
+            assertEquals(0, store.size("b"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void fileStoreWithInstances() throws IOException {
+        Path file = Files.createTempFile("simplefsm-trace", ".seg");
+        try (FileTraceStore store = new FileTraceStore(file)) {
+            SimpleFSM definition = buildNew(store);
+            List<String> states = new ArrayList<>();
+            List<List<String>> traces = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                SimpleFSM fsm = definition.buildEmptyCopy();
+                ProcessingData data = new ProcessingData();
+                fsm.start("START", data);
+                fsm.triggerEvent("NEXT", data);
+                traces.add(messages(fsm.getTrace()));
+                states.add(fsm.exportState());
+            }
+            for (int i = 0; i < states.size(); i++) {
+                SimpleFSM fsm = definition.buildEmptyCopy();
+                fsm.importState(states.get(i));
+                assertEquals(traces.get(i), messages(fsm.getTrace()));
+                store.delete(fsm.getTraceId());
+                assertEquals(0, store.size(fsm.getTraceId()));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -29,6 +29,10 @@ class TraceTest {
 
     @Test
     void testMergeWithDuplicateLogs() {
+        // Identical entries need identical timestamps so use a fixed clock.
+        FsmClock fixed = () -> 1_000L;
+        trace1.setClock(fixed);
+        trace2.setClock(fixed);
         trace1.add("Duplicate message");
         trace2.add("Duplicate message");
 
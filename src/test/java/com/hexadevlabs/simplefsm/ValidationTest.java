@@ -6,7 +6,9 @@ import com.hexadevlabs.simplefsm.testSteps.Step2;
 import com.hexadevlabs.simplefsm.testSteps.Step3;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ValidationTest {
 
@@ -89,4 +91,33 @@ public class ValidationTest {
                  });
     }
 
+    private SimpleFSM.Builder nestedSplits() {
+        return new SimpleFSM.Builder()
+                .state("START", new Step1())
+                    .split().goTo("SPLIT1")
+                    .split().goTo("SPLIT2")
+                .state("SPLIT1", new Step2())
+                    .split().goTo("NESTED1")
+                    .split().goTo("NESTED2")
+                .state("SPLIT2", new Step2())
+                    .join("END")
+                .state("NESTED1", new Step3())
+                    .join("NESTED_END")
+                .state("NESTED2", new Step3())
+                    .join("NESTED_END")
+                .state("NESTED_END", new Step3())
+                    .auto().goTo("END")
+                .finalState("END", new Step3());
+    }
+
+    @Test
+    public void nestedSplitNeedsSupportingHandler() {
+        SimpleFSMValidationException e = assertThrows(SimpleFSMValidationException.class,
+                () -> nestedSplits().splitHandler(new HandleSplitPlaceholder()).build());
+        assertTrue(e.getMessage().contains("'SPLIT1'"), e.getMessage());
+
+        assertDoesNotThrow(() -> nestedSplits().splitHandler(new ThreadBasedSplitHandler()).build());
+        assertDoesNotThrow(() -> nestedSplits().splitHandler(new ForkJoinSplitHandler()).build());
+    }
+
 }
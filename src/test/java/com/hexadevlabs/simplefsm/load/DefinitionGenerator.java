@@ -0,0 +1,316 @@
+package com.hexadevlabs.simplefsm.load;
+
+import com.hexadevlabs.simplefsm.ForkJoinSplitHandler;
+import com.hexadevlabs.simplefsm.SimpleFSM;
+import com.hexadevlabs.simplefsm.SplitHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates random definitions to put load on the engine. The same settings and
+ * seed always give the same definition, and the path an item takes through it
+ * only depends on the item number, so runs can be compared with each other.
+ * <p>
+ * States S0 to Sn-1 only transition forward, to one of the next few states, so
+ * every item concludes in END, or in ERROR when a step threw. Wait states pause
+ * until the RESUME event. A split state splits into branches of plain states,
+ * the first branch holding a nested split while the nesting depth allows.
+ */
+public class DefinitionGenerator {
+
+    public static final String START = "S0";
+    public static final String END = "END";
+    public static final String ERROR = "ERROR";
+    public static final String RESUME = "RESUME";
+
+    private int states = 20;
+    private int branching = 2;
+    private int window = 4;
+    private double waitStateRate = 0.1;
+    private int splitStates = 0;
+    private int splitWidth = 2;
+    private int splitDepth = 1;
+    private int branchLength = 2;
+    private double exceptionRate = 0;
+    private int stepWork = 0;
+    private long seed = 42;
+    private SplitHandler splitHandler;
+
+    /**
+     * A generated definition with the numbers of the kinds of states in it.
+     */
+    public static class Generated {
+        private final SimpleFSM definition;
+        private final Map<String, Object> settings;
+        private final int waitStates;
+        private final int splitStates;
+        private final int totalStates;
+
+        Generated(SimpleFSM definition, Map<String, Object> settings, int waitStates, int splitStates, int totalStates) {
+            this.definition = definition;
+            this.settings = settings;
+            this.waitStates = waitStates;
+            this.splitStates = splitStates;
+            this.totalStates = totalStates;
+        }
+
+        public SimpleFSM getDefinition() {
+            return definition;
+        }
+
+        /**
+         * Settings the definition was generated with, for the report.
+         */
+        public Map<String, Object> getSettings() {
+            return settings;
+        }
+
+        public int getWaitStates() {
+            return waitStates;
+        }
+
+        public int getSplitStates() {
+            return splitStates;
+        }
+
+        /**
+         * Number of states including those of split branches, END and ERROR.
+         */
+        public int getTotalStates() {
+            return totalStates;
+        }
+    }
+
+    /**
+     * Number of states in the main chain, at least 1.
+     */
+    public DefinitionGenerator states(int states) {
+        this.states = states;
+        return this;
+    }
+
+    /**
+     * Most transitions a state of the main chain has, its step picks one.
+     */
+    public DefinitionGenerator branching(int branching) {
+        this.branching = branching;
+        return this;
+    }
+
+    /**
+     * How many states ahead a transition can go.
+     */
+    public DefinitionGenerator window(int window) {
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * Fraction of the states of the main chain that wait for the RESUME event.
+     */
+    public DefinitionGenerator waitStateRate(double waitStateRate) {
+        this.waitStateRate = waitStateRate;
+        return this;
+    }
+
+    /**
+     * Number of states of the main chain that split.
+     */
+    public DefinitionGenerator splitStates(int splitStates) {
+        this.splitStates = splitStates;
+        return this;
+    }
+
+    /**
+     * Number of branches of every split.
+     */
+    public DefinitionGenerator splitWidth(int splitWidth) {
+        this.splitWidth = splitWidth;
+        return this;
+    }
+
+    /**
+     * Levels of splits, 1 for splits without nested ones.
+     */
+    public DefinitionGenerator splitDepth(int splitDepth) {
+        this.splitDepth = splitDepth;
+        return this;
+    }
+
+    /**
+     * Number of states in a branch of a split.
+     */
+    public DefinitionGenerator branchLength(int branchLength) {
+        this.branchLength = branchLength;
+        return this;
+    }
+
+    /**
+     * Fraction of step executions that throw.
+     */
+    public DefinitionGenerator exceptionRate(double exceptionRate) {
+        this.exceptionRate = exceptionRate;
+        return this;
+    }
+
+    /**
+     * Iterations of busy work in every step, 0 for none.
+     */
+    public DefinitionGenerator stepWork(int stepWork) {
+        this.stepWork = stepWork;
+        return this;
+    }
+
+    public DefinitionGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * SplitHandler for definitions with splits, a ForkJoinSplitHandler on the common pool by default.
+     */
+    public DefinitionGenerator splitHandler(SplitHandler splitHandler) {
+        this.splitHandler = splitHandler;
+        return this;
+    }
+
+    public Generated generate() {
+        if (states < 1 || branching < 1 || window < 1 || splitWidth < 1 || splitDepth < 1 || branchLength < 1) {
+            throw new IllegalArgumentException("Counts must be at least 1");
+        }
+        if (splitStates >= states) {
+            throw new IllegalArgumentException("There must be fewer split states than states");
+        }
+        Random random = new Random(seed);
+        SimpleFSM.Builder builder = new SimpleFSM.Builder();
+        int[] counts = new int[3];
+
+        // The last state does not split, so every split has a state to continue to.
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < states - 1; i++) {
+            candidates.add(i);
+        }
+        Collections.shuffle(candidates, random);
+        boolean[] splits = new boolean[states];
+        for (int i = 0; i < splitStates; i++) {
+            splits[candidates.get(i)] = true;
+        }
+
+        for (int i = 0; i < states; i++) {
+            String name = "S" + i;
+            List<String> targets = targets(i, random);
+            if (splits[i]) {
+                addSplit(builder, name, splitDepth, null, targets.get(0), counts);
+            } else if (random.nextDouble() < waitStateRate) {
+                builder.state(name, step(name, List.of()), true)
+                        .on(RESUME).goTo(targets.get(0));
+                counts[0]++;
+                counts[2]++;
+            } else {
+                SimpleFSM.StateBuilder state = builder.state(name, step(name, targets));
+                if (targets.size() == 1) {
+                    state.auto().goTo(targets.get(0));
+                } else {
+                    for (String target : targets) {
+                        state.on("TO_" + target).goTo(target);
+                    }
+                }
+                counts[2]++;
+            }
+        }
+        builder.finalState(END, new GeneratedStep(END, List.of(), 0, 0))
+                .finalState(ERROR, new GeneratedStep(ERROR, List.of(), 0, 0))
+                .onExceptionGoTo(ERROR)
+                .withName("generated-" + seed);
+        if (splitStates > 0) {
+            builder.splitHandler(splitHandler != null ? splitHandler : new ForkJoinSplitHandler());
+        }
+        return new Generated(builder.build(), settings(), counts[0], counts[1], counts[2] + 2);
+    }
+
+    /**
+     * Forward targets of state i, always including the next state so every state is reachable.
+     */
+    private List<String> targets(int i, Random random) {
+        if (i == states - 1) {
+            return List.of(END);
+        }
+        List<String> targets = new ArrayList<>();
+        targets.add("S" + (i + 1));
+        int last = Math.min(states - 1, i + window);
+        for (int attempt = 1; attempt < branching && last > i + 1; attempt++) {
+            String target = "S" + (i + 2 + random.nextInt(last - i - 1));
+            if (!targets.contains(target)) {
+                targets.add(target);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Adds a split state, its branches and the state they join to.
+     *
+     * @param outerJoin Join state the join state of this split joins to, when nested at the end of a branch.
+     * @param next State the join state continues to otherwise.
+     */
+    private void addSplit(SimpleFSM.Builder builder, String name, int depth, String outerJoin, String next, int[] counts) {
+        String join = name + "_J";
+        SimpleFSM.StateBuilder split = builder.state(name, step(name, List.of()));
+        for (int k = 0; k < splitWidth; k++) {
+            split.split().goTo(name + "_B" + k + "_0");
+        }
+        counts[1]++;
+        counts[2]++;
+
+        SimpleFSM.StateBuilder joinState = builder.state(join, step(join, List.of()));
+        if (outerJoin != null) {
+            joinState.join(outerJoin);
+        } else {
+            joinState.auto().goTo(next);
+        }
+        counts[2]++;
+
+        for (int k = 0; k < splitWidth; k++) {
+            for (int j = 0; j < branchLength; j++) {
+                String stateName = name + "_B" + k + "_" + j;
+                String following = j < branchLength - 1 ? name + "_B" + k + "_" + (j + 1) : null;
+                if (k == 0 && j == 0 && depth > 1) {
+                    addSplit(builder, stateName, depth - 1, following == null ? join : null, following, counts);
+                    continue;
+                }
+                SimpleFSM.StateBuilder state = builder.state(stateName, step(stateName, List.of()));
+                if (following == null) {
+                    state.join(join);
+                } else {
+                    state.auto().goTo(following);
+                }
+                counts[2]++;
+            }
+        }
+    }
+
+    private GeneratedStep step(String name, List<String> targets) {
+        return new GeneratedStep(name, targets.size() > 1 ? targets : List.of(), exceptionRate, stepWork);
+    }
+
+    private Map<String, Object> settings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("states", states);
+        settings.put("branching", branching);
+        settings.put("window", window);
+        settings.put("waitStateRate", waitStateRate);
+        settings.put("splitStates", splitStates);
+        settings.put("splitWidth", splitWidth);
+        settings.put("splitDepth", splitDepth);
+        settings.put("branchLength", branchLength);
+        settings.put("exceptionRate", exceptionRate);
+        settings.put("stepWork", stepWork);
+        settings.put("seed", seed);
+        return settings;
+    }
+}
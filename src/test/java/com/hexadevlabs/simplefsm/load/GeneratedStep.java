@@ -0,0 +1,66 @@
+package com.hexadevlabs.simplefsm.load;
+
+import com.hexadevlabs.simplefsm.ProcessingData;
+import com.hexadevlabs.simplefsm.ProcessingStep;
+
+import java.util.List;
+
+/**
+ * Step of a generated definition. Whether it throws and which transition it
+ * takes is decided by a hash of the item number and the state, so an item takes
+ * the same path on every run.
+ */
+class GeneratedStep extends ProcessingStep {
+
+    static final String ITEM = "item";
+
+    private final String state;
+    private final long stateHash;
+    private final String[] targets;
+    private final long exceptionThreshold;
+    private final int work;
+    // Keeps the busy work from being optimized away.
+    private long sink;
+
+    /**
+     * @param targets States to pick from, empty if the state has a single transition.
+     */
+    GeneratedStep(String state, List<String> targets, double exceptionRate, int work) {
+        this.state = state;
+        this.stateHash = mix(state.hashCode());
+        this.targets = targets.toArray(new String[0]);
+        this.exceptionThreshold = (long) (exceptionRate * (1L << 53));
+        this.work = work;
+    }
+
+    @Override
+    protected void process(ProcessingData data) {
+        long item = ((Number) data.get(ITEM)).longValue();
+        long hash = mix(item ^ stateHash);
+        if (work > 0) {
+            sink += spin(hash);
+        }
+        if ((hash >>> 11) < exceptionThreshold) {
+            throw new IllegalStateException("Generated exception in " + state + " for item " + item);
+        }
+        if (targets.length > 0) {
+            nextState(data, targets[(int) Long.remainderUnsigned(mix(hash), targets.length)]);
+        }
+    }
+
+    private long spin(long hash) {
+        for (int i = 0; i < work; i++) {
+            hash = mix(hash + i);
+        }
+        return hash;
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
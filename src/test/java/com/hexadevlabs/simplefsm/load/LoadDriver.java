@@ -0,0 +1,283 @@
+package com.hexadevlabs.simplefsm.load;
+
+import com.hexadevlabs.simplefsm.FsmInstance;
+import com.hexadevlabs.simplefsm.LatencyHistogram;
+import com.hexadevlabs.simplefsm.ProcessingData;
+import com.hexadevlabs.simplefsm.ShardedRuntime;
+import com.hexadevlabs.simplefsm.SimpleFSM;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs items through a generated definition and measures throughput, latency
+ * of the items from start until they concluded, allocations and the heap.
+ * <ul>
+ *     <li>SYNC: worker threads run items one after another, triggering RESUME
+ *     right away whenever an item pauses.</li>
+ *     <li>ASYNC: items run on a ShardedRuntime with one shard per thread, with at
+ *     most maxInFlight items started and not concluded at a time.</li>
+ *     <li>SPLIT: like SYNC, for definitions with split states, whose branches run
+ *     on the SplitHandler of the definition.</li>
+ * </ul>
+ */
+public class LoadDriver {
+
+    public enum Mode { SYNC, ASYNC, SPLIT }
+
+    private Mode mode = Mode.SYNC;
+    private long items = 100_000;
+    private long warmupItems = 10_000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxInFlight = 1024;
+
+    public LoadDriver mode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public LoadDriver items(long items) {
+        this.items = items;
+        return this;
+    }
+
+    /**
+     * Items run before measuring, to let the JIT compile the hot paths.
+     */
+    public LoadDriver warmupItems(long warmupItems) {
+        this.warmupItems = warmupItems;
+        return this;
+    }
+
+    /**
+     * Worker threads for SYNC and SPLIT, shards for ASYNC.
+     */
+    public LoadDriver threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public LoadDriver maxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Counts of a single pass over the items.
+     */
+    private static class Pass {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder completed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder unfinished = new LongAdder();
+        final LongAdder events = new LongAdder();
+
+        void concluded(SimpleFSM fsm, ProcessingData data, long startNanos) {
+            latency.record(System.nanoTime() - startNanos);
+            if (data.hasExceptions()) {
+                errors.increment();
+            } else if (fsm.hasReachedFinalState()) {
+                completed.increment();
+            } else {
+                unfinished.increment();
+            }
+        }
+    }
+
+    public LoadReport run(DefinitionGenerator.Generated generated) throws InterruptedException {
+        if (mode == Mode.SPLIT && generated.getSplitStates() == 0) {
+            throw new IllegalArgumentException("SPLIT mode needs a definition with split states");
+        }
+        SimpleFSM definition = generated.getDefinition();
+        ShardedRuntime runtime = mode == Mode.ASYNC ? new ShardedRuntime(threads) : null;
+        ExecutorService workers = mode == Mode.ASYNC ? null : Executors.newFixedThreadPool(threads);
+        try {
+            pass(definition, runtime, workers, 0, warmupItems);
+
+            long heapBefore = heapAfterGc();
+            long[] gcBefore = gcCounts();
+            Map<Long, Long> allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            Pass pass = pass(definition, runtime, workers, warmupItems, items);
+            long elapsed = System.nanoTime() - start;
+            // Measured before the threads stop, allocations of finished threads are not known.
+            long allocated = allocatedSince(allocatedBefore);
+            long[] gcAfter = gcCounts();
+            long heapAfter = heapAfterGc();
+
+            double seconds = elapsed / 1e9;
+            LoadReport report = new LoadReport(mode.name(), generated);
+            report.run("items", items);
+            report.run("warmupItems", warmupItems);
+            report.run("threads", threads);
+            report.run("maxInFlight", mode == Mode.ASYNC ? maxInFlight : 0);
+            report.result("elapsedMillis", elapsed / 1_000_000);
+            report.result("throughputPerSecond", Math.round(items / seconds));
+            report.result("latencyP50Micros", pass.latency.getPercentile(0.5) / 1000);
+            report.result("latencyP90Micros", pass.latency.getPercentile(0.9) / 1000);
+            report.result("latencyP99Micros", pass.latency.getPercentile(0.99) / 1000);
+            report.result("latencyP999Micros", pass.latency.getPercentile(0.999) / 1000);
+            report.result("latencyMaxMicros", pass.latency.getMax() / 1000);
+            report.result("completed", pass.completed.sum());
+            report.result("errors", pass.errors.sum());
+            report.result("unfinished", pass.unfinished.sum());
+            report.result("eventsTriggered", pass.events.sum());
+            report.result("allocatedBytes", allocated);
+            report.result("allocationRateMBPerSecond", Math.round(allocated / seconds / (1 << 20)));
+            report.result("allocatedBytesPerItem", items == 0 ? 0 : allocated / items);
+            report.result("heapAfterGcBeforeBytes", heapBefore);
+            report.result("heapAfterGcBytes", heapAfter);
+            report.result("gcCount", gcAfter[0] - gcBefore[0]);
+            report.result("gcTimeMillis", gcAfter[1] - gcBefore[1]);
+            return report;
+        } finally {
+            if (runtime != null) {
+                runtime.close();
+            }
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    private Pass pass(SimpleFSM definition, ShardedRuntime runtime, ExecutorService workers, long first, long count)
+            throws InterruptedException {
+        Pass pass = new Pass();
+        if (count > 0) {
+            if (runtime != null) {
+                runAsync(definition, runtime, pass, first, count);
+            } else {
+                runSync(definition, workers, pass, first, count);
+            }
+        }
+        return pass;
+    }
+
+    private void runSync(SimpleFSM definition, ExecutorService workers, Pass pass, long first, long count)
+            throws InterruptedException {
+        AtomicLong next = new AtomicLong(first);
+        long end = first + count;
+        List<Future<?>> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            running.add(workers.submit(() -> {
+                for (long item = next.getAndIncrement(); item < end; item = next.getAndIncrement()) {
+                    long startNanos = System.nanoTime();
+                    SimpleFSM fsm = definition.buildEmptyCopy();
+                    ProcessingData data = new ProcessingData();
+                    data.set(GeneratedStep.ITEM, item);
+                    fsm.start(DefinitionGenerator.START, data);
+                    while (fsm.isPaused()) {
+                        fsm.triggerEvent(DefinitionGenerator.RESUME, data);
+                        pass.events.increment();
+                    }
+                    pass.concluded(fsm, data, startNanos);
+                }
+            }));
+        }
+        for (Future<?> future : running) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Worker failed", e.getCause());
+            }
+        }
+    }
+
+    private void runAsync(SimpleFSM definition, ShardedRuntime runtime, Pass pass, long first, long count)
+            throws InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        for (long item = first; item < first + count; item++) {
+            inFlight.acquire();
+            String id = Long.toString(item);
+            ProcessingData data = new ProcessingData();
+            data.set(GeneratedStep.ITEM, item);
+            long startNanos = System.nanoTime();
+            runtime.start(id, definition, DefinitionGenerator.START, data)
+                    .thenCompose(instance -> advance(runtime, instance, pass))
+                    .whenComplete((instance, e) -> {
+                        if (e != null) {
+                            pass.unfinished.increment();
+                        } else {
+                            pass.concluded(instance.getFsm(), instance.getData(), startNanos);
+                        }
+                        inFlight.release();
+                    });
+        }
+        // Every item released its permit once all permits can be taken.
+        inFlight.acquire(maxInFlight);
+    }
+
+    /**
+     * Triggers RESUME until the instance concluded, then removes it from the runtime.
+     */
+    private CompletableFuture<FsmInstance> advance(ShardedRuntime runtime, FsmInstance instance, Pass pass) {
+        if (instance.getFsm().isPaused()) {
+            pass.events.increment();
+            return runtime.triggerEvent(instance.getId(), DefinitionGenerator.RESUME)
+                    .thenCompose(next -> advance(runtime, next, pass));
+        }
+        return runtime.remove(instance.getId());
+    }
+
+    private static long heapAfterGc() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return Number of collections and milliseconds spent in them.
+     */
+    private static long[] gcCounts() {
+        long[] counts = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            counts[0] += Math.max(0, gc.getCollectionCount());
+            counts[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return counts;
+    }
+
+    /**
+     * Bytes allocated so far by every live thread, empty if the JVM can't tell.
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        Map<Long, Long> result = new HashMap<>();
+        ThreadMXBean threadsBean = ManagementFactory.getThreadMXBean();
+        if (!(threadsBean instanceof com.sun.management.ThreadMXBean)) {
+            return result;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadsBean;
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return result;
+        }
+        long[] ids = bean.getAllThreadIds();
+        long[] bytes = bean.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                result.put(ids[i], bytes[i]);
+            }
+        }
+        return result;
+    }
+
+    private static long allocatedSince(Map<Long, Long> before) {
+        long total = 0;
+        for (Map.Entry<Long, Long> thread : allocatedBytes().entrySet()) {
+            total += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,118 @@
+package com.hexadevlabs.simplefsm.load;
+
+import com.hexadevlabs.simplefsm.ForkJoinSplitHandler;
+import com.hexadevlabs.simplefsm.ProcessingData;
+import com.hexadevlabs.simplefsm.SimpleFSM;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Small runs of the load harness. For a soak test raise the number of items, for example
+ * mvn test -Dtest=LoadHarnessTest -Dsimplefsm.load.items=5000000 and compare the report
+ * files written to target/load-reports.
+ */
+public class LoadHarnessTest {
+
+    private static final long ITEMS = Long.getLong("simplefsm.load.items", 2000);
+    private static final Path REPORTS = Paths.get(System.getProperty("simplefsm.load.reportDir", "target/load-reports"));
+
+    private static DefinitionGenerator generator() {
+        return new DefinitionGenerator()
+                .states(30)
+                .branching(3)
+                .waitStateRate(0.2)
+                .exceptionRate(0.005)
+                .seed(7);
+    }
+
+    private static LoadReport run(LoadDriver.Mode mode, DefinitionGenerator.Generated generated) throws Exception {
+        LoadReport report = new LoadDriver()
+                .mode(mode)
+                .items(ITEMS)
+                .warmupItems(ITEMS / 10)
+                .threads(2)
+                .run(generated);
+        Path file = report.write(REPORTS);
+        System.out.println(report + " -> " + file);
+
+        assertTrue(Files.size(file) > 0);
+        assertEquals(0, report.getResult("unfinished"));
+        assertEquals(ITEMS, report.getResult("completed") + report.getResult("errors"));
+        assertTrue(report.getResult("throughputPerSecond") > 0);
+        assertTrue(report.getResult("latencyP99Micros") >= report.getResult("latencyP50Micros"));
+        return report;
+    }
+
+    @Test
+    public void generatorIsReproducible() {
+        DefinitionGenerator.Generated first = generator().generate();
+        DefinitionGenerator.Generated second = generator().generate();
+        assertEquals(first.getDefinition().toDefinitionJson(), second.getDefinition().toDefinitionJson());
+        assertNotEquals(first.getDefinition().toDefinitionJson(), generator().seed(8).generate().getDefinition().toDefinitionJson());
+        assertTrue(first.getWaitStates() > 0);
+        assertEquals(32, first.getTotalStates());
+    }
+
+    @Test
+    public void nestedSplitsJoin() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            DefinitionGenerator.Generated generated = new DefinitionGenerator()
+                    .states(6)
+                    .waitStateRate(0)
+                    .splitStates(2)
+                    .splitWidth(3)
+                    .splitDepth(3)
+                    .branchLength(2)
+                    .splitHandler(new ForkJoinSplitHandler(pool))
+                    .generate();
+            assertEquals(2 * 3, generated.getSplitStates());
+
+            SimpleFSM fsm = generated.getDefinition().buildEmptyCopy();
+            ProcessingData data = new ProcessingData();
+            data.set("item", 1L);
+            fsm.start(DefinitionGenerator.START, data);
+            assertTrue(fsm.hasReachedFinalState());
+            assertFalse(data.hasExceptions());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void syncAndAsyncRuns() throws Exception {
+        DefinitionGenerator.Generated generated = generator().generate();
+        LoadReport sync = run(LoadDriver.Mode.SYNC, generated);
+        LoadReport async = run(LoadDriver.Mode.ASYNC, generated);
+
+        // Items take the same path in every mode.
+        assertEquals(sync.getResult("errors"), async.getResult("errors"));
+        assertEquals(sync.getResult("eventsTriggered"), async.getResult("eventsTriggered"));
+        assertTrue(sync.getResult("eventsTriggered") > 0);
+    }
+
+    @Test
+    public void splitRun() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            DefinitionGenerator.Generated generated = generator()
+                    .splitStates(3)
+                    .splitDepth(2)
+                    .splitHandler(new ForkJoinSplitHandler(pool))
+                    .generate();
+            run(LoadDriver.Mode.SPLIT, generated);
+
+            assertThrows(IllegalArgumentException.class,
+                    () -> new LoadDriver().mode(LoadDriver.Mode.SPLIT).run(generator().generate()));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.hexadevlabs.simplefsm.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of a LoadDriver run. Written as JSON with the same keys in the same
+ * order for every run, so the files of two runs can be diffed or loaded side by side.
+ */
+public class LoadReport {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final String mode;
+    private final LocalDateTime time = LocalDateTime.now();
+    private final Map<String, Object> run = new LinkedHashMap<>();
+    private final Map<String, Object> definition = new LinkedHashMap<>();
+    private final Map<String, Object> results = new LinkedHashMap<>();
+
+    LoadReport(String mode, DefinitionGenerator.Generated generated) {
+        this.mode = mode;
+        run.put("mode", mode);
+        definition.putAll(generated.getSettings());
+        definition.put("totalStates", generated.getTotalStates());
+        definition.put("waitStates", generated.getWaitStates());
+        definition.put("splitStates", generated.getSplitStates());
+    }
+
+    void run(String key, Object value) {
+        run.put(key, value);
+    }
+
+    void result(String key, Object value) {
+        results.put(key, value);
+    }
+
+    /**
+     * @return The value of a result, like "throughputPerSecond" or "errors".
+     */
+    public long getResult(String key) {
+        return ((Number) results.get(key)).longValue();
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("javaVersion", System.getProperty("java.version"));
+        environment.put("vm", System.getProperty("java.vm.name"));
+        environment.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        environment.put("processors", Runtime.getRuntime().availableProcessors());
+        environment.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        environment.put("jvmArguments", String.join(" ", ManagementFactory.getRuntimeMXBean().getInputArguments()));
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("time", time.toString());
+        map.put("run", run);
+        map.put("definition", definition);
+        map.put("results", results);
+        map.put("environment", environment);
+        return map;
+    }
+
+    /**
+     * Writes the report to a new file in the directory, named after the mode and time of the run.
+     */
+    public Path write(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        String name = "load-" + mode.toLowerCase() + "-" + FILE_TIME.format(time);
+        Path file = directory.resolve(name + ".json");
+        for (int i = 2; Files.exists(file); i++) {
+            file = directory.resolve(name + "-" + i + ".json");
+        }
+        MAPPER.writeValue(file.toFile(), toMap());
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %,d items/s, p50 %,d us, p99 %,d us, %,d bytes/item, heap after GC %,d KB, %d errors",
+                mode, getResult("throughputPerSecond"), getResult("latencyP50Micros"), getResult("latencyP99Micros"),
+                getResult("allocatedBytesPerItem"), getResult("heapAfterGcBytes") / 1024, getResult("errors"));
+    }
+}